@@ -12,6 +12,16 @@ public abstract class BaseFetchJobPolicy implements Serializable {
     public static final long UNSET_CRAWL_DELAY = Long.MIN_VALUE;
     public static final long DEFAULT_CRAWL_DELAY = 30 * 1000L;
     
+    public enum PartitioningMode {
+        HASH,               // Fetch reducer is picked by hashing the grouping ref.
+        BALANCED            // Fetch reducer is the one with the least estimated fetch time so far.
+    }
+    
+    public enum OrderingMode {
+        RANDOM,             // Fetch sets for different servers are interleaved randomly.
+        VALUE               // Fetch sets with the most score per millisecond of crawl delay go first.
+    }
+    
     public static class FetchSetInfo {
         private List<ScoredUrlDatum> _urls;
         private long _sortKey;
@@ -43,6 +53,9 @@ public abstract class BaseFetchJobPolicy implements Serializable {
     }
 
     private long _defaultCrawlDelay;
+    private long _crawlEndTime = FetcherPolicy.NO_CRAWL_END_TIME;
+    private PartitioningMode _partitioningMode = PartitioningMode.HASH;
+    private OrderingMode _orderingMode = OrderingMode.RANDOM;
 
     public void setDefaultCrawlDelay(long defaultCrawlDelay) {
         _defaultCrawlDelay = defaultCrawlDelay;
@@ -52,6 +65,43 @@ public abstract class BaseFetchJobPolicy implements Serializable {
         return _defaultCrawlDelay;
     }
     
+    public long getCrawlEndTime() {
+        return _crawlEndTime;
+    }
+    
+    /**
+     * Set when fetching will stop. With PartitioningMode.BALANCED, no server's
+     * estimated fetch time can be more than the time left until then.
+     * 
+     * @param crawlEndTime end time in milliseconds, or FetcherPolicy.NO_CRAWL_END_TIME
+     */
+    public void setCrawlEndTime(long crawlEndTime) {
+        _crawlEndTime = crawlEndTime;
+    }
+    
+    public PartitioningMode getPartitioningMode() {
+        return _partitioningMode;
+    }
+    
+    public void setPartitioningMode(PartitioningMode partitioningMode) {
+        _partitioningMode = partitioningMode;
+    }
+    
+    public OrderingMode getOrderingMode() {
+        return _orderingMode;
+    }
+    
+    /**
+     * Set how fetch sets are ordered within a fetch reducer. With OrderingMode.VALUE,
+     * the FetchBuffer should be told to use the same mode, so that it picks between
+     * sets that are ready by their sort key.
+     * 
+     * @param orderingMode
+     */
+    public void setOrderingMode(OrderingMode orderingMode) {
+        _orderingMode = orderingMode;
+    }
+    
     // ==============================================
     // Methods used during creation of FetchSetDatums
     // ==============================================
@@ -17,6 +17,14 @@ public class DefaultFetchJobPolicy extends BaseFetchJobPolicy {
     // When we have to skip URLs, how many to return in each set. We
     // want this to be artificially big, so we don't have lots and lots of sets.
     private static final int URLS_PER_SKIPPED_SET = 100;
+    
+    // Range of sort keys used with OrderingMode.VALUE, which leaves room to bump
+    // keys for the same server so they always increase.
+    private static final long MAX_VALUE_SORT_KEY = Long.MAX_VALUE / 2;
+    
+    // Value is score per millisecond of crawl delay, times this, so that we keep
+    // some fractional precision when it's turned into a sort key.
+    private static final double VALUE_SCALE = 1000.0 * 1000.0 * 1000.0;
 
     private int _maxUrlsPerSet;
     private int _maxUrlsPerServer;
@@ -36,6 +44,8 @@ public class DefaultFetchJobPolicy extends BaseFetchJobPolicy {
     
     public DefaultFetchJobPolicy(FetcherPolicy policy) {
         this(policy.getMaxRequestsPerConnection(), DEFAULT_MAX_URLS_PER_SERVER, policy.getDefaultCrawlDelay());
+        
+        setCrawlEndTime(policy.getCrawlEndTime());
     }
 
     public DefaultFetchJobPolicy(int maxUrlsPerSet, int maxUrlsPerServer, long defaultCrawlDelay) {
@@ -109,8 +119,14 @@ public class DefaultFetchJobPolicy extends BaseFetchJobPolicy {
     private FetchSetInfo makeFetchSet() {
         // Trigger re-calc of target size if we do get called again.
         _targetUrlCount = 0;
-        _curSortKey = nextSortKey(_rand, TIME_RANGE_DIVISOR, _curSortKey);
         long fetchDelay = _crawlDelay * _curUrls.size();
+        if (getOrderingMode() == OrderingMode.VALUE) {
+            // Sets for the same server have to stay in order.
+            _curSortKey = Math.max(_curSortKey + 1, valueSortKey(_curUrls, fetchDelay));
+        } else {
+            _curSortKey = nextSortKey(_rand, TIME_RANGE_DIVISOR, _curSortKey);
+        }
+        
         return new FetchSetInfo(_curUrls, _curSortKey, fetchDelay, _skipping);
     }
     
@@ -150,4 +166,23 @@ public class DefaultFetchJobPolicy extends BaseFetchJobPolicy {
         long targetRange = (Math.max(1, Long.MAX_VALUE - curRequestTime) / divisor) - 1;
         return curRequestTime + 1 + (Math.abs(rand.nextLong()) % targetRange);
     }
+    
+    /**
+     * Return a sort key for a set of URLs, where sets with more total score per millisecond
+     * of politeness (crawl) delay get smaller keys, and thus are fetched first. Negative
+     * scores count as zero.
+     * 
+     * @param urls URLs in the set
+     * @param fetchDelay Crawl delay for the entire set, in milliseconds
+     * @return sort key in the range [0, Long.MAX_VALUE / 2]
+     */
+    public static long valueSortKey(List<ScoredUrlDatum> urls, long fetchDelay) {
+        double totalScore = 0.0;
+        for (ScoredUrlDatum url : urls) {
+            totalScore += Math.max(0.0, url.getScore());
+        }
+        
+        double value = (totalScore * VALUE_SCALE) / Math.max(1, fetchDelay);
+        return MAX_VALUE_SORT_KEY - (long)Math.min(MAX_VALUE_SORT_KEY, value);
+    }
 }
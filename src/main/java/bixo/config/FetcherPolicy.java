@@ -36,12 +36,17 @@ public class FetcherPolicy implements Serializable {
     
     public static final int NO_MIN_RESPONSE_RATE = Integer.MIN_VALUE;
     public static final int NO_REDIRECTS = 0;
+    public static final long NO_MAX_BANDWIDTH = Long.MAX_VALUE;
     
     public static final int DEFAULT_MIN_RESPONSE_RATE = NO_MIN_RESPONSE_RATE;
     public static final int DEFAULT_MAX_CONTENT_SIZE = 64 * 1024;
     public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 2;
     public static final int DEFAULT_MAX_REDIRECTS = 20;
     public static final String DEFAULT_ACCEPT_LANGUAGE = "en-us,en-gb,en;q=0.7,*;q=0.3";
+    public static final int DEFAULT_EXECUTOR_QUEUE_DEPTH = 100;
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_IP = 1;
+    public static final long DEFAULT_MIN_REQUEST_GAP_PER_IP = 0;
+    public static final long DEFAULT_MAX_BANDWIDTH = NO_MAX_BANDWIDTH;
     
     // How long to wait before a fetch request gets rejected.
     // TODO KKr - calculate this based on the fetcher policy's max URLs/request
@@ -83,20 +88,44 @@ public class FetcherPolicy implements Serializable {
         IMPOLITE            // Don't check, just go ahead and process.
     }
 
+    public enum ExecutorMode {
+        THREADED,           // Fixed thread pool, where execute() waits for a free thread.
+        QUEUED,             // Fixed thread pool plus bounded queue, where execute() waits only if the queue is full.
+        VIRTUAL             // One virtual thread per task (falls back to THREADED if the JVM doesn't support it).
+    }
+
+    public enum SchedulingMode {
+        BATCH,              // Fetch all URLs in a set back-to-back, then wait for the set's total crawl delay.
+        SPACED              // Start each request in a set <crawl delay> after the previous one, releasing the thread in between.
+    }
+
+    public enum RawContentMode {
+        KEEP_ALL,           // Output raw content for every fetched document.
+        KEEP_MIME_TYPES     // When parsing, only output raw content for the raw content mime-types (and documents we couldn't parse).
+    }
+
     protected long _crawlDelay;            // Delay (in milliseconds) between requests
     private int _maxRequestsPerConnection;  // Max # of URLs to request in any one connection
     private FetcherMode _fetcherMode;       // Should we skip URLs when they back up for a domain?
     private long _crawlEndTime;          // When we want the crawl to end
     private RedirectMode _redirectMode;     // What to do about redirects?
+    private ExecutorMode _executorMode;     // How to run fetch & robots tasks
+    private int _executorQueueDepth;        // Max # of waiting tasks, for ExecutorMode.QUEUED
+    private SchedulingMode _schedulingMode; // How to space out requests to the same server
+    private int _maxConnectionsPerIp;       // Max # of fetch sets active at once for one IP address (across refs)
+    private long _minRequestGapPerIp;       // Min time (in milliseconds) between requests to one IP address (across refs)
 
     // =========================================================
 
     private int _minResponseRate;        // lower bounds on bytes-per-second
+    private long _maxBandwidth;         // upper bounds on bytes-per-second, across all fetches
     private int _maxContentSize;        // Max # of bytes to use.
     private int _maxRedirects;
     private int _maxConnectionsPerHost; // 
     private String _acceptLanguage;    // What to pass for the Accept-Language request header
     private Set<String> _validMimeTypes;    // Set of mime-types that we'll accept.
+    private RawContentMode _rawContentMode; // Which fetched documents get output with their raw content
+    private Set<String> _rawContentMimeTypes;   // Mime-types to output raw content for, with RawContentMode.KEEP_MIME_TYPES
     private long _requestTimeout;           // Max time for any given set of URLs (termination timeout is based on this)
 
     public FetcherPolicy() {
@@ -122,9 +151,17 @@ public class FetcherPolicy implements Serializable {
         // For rarely used parameters, we'll set it to default values and then let callers set them  individually.
         _acceptLanguage = DEFAULT_ACCEPT_LANGUAGE;
         _validMimeTypes = new HashSet<String>();
+        _rawContentMode = RawContentMode.KEEP_ALL;
+        _rawContentMimeTypes = new HashSet<String>();
         _maxConnectionsPerHost = DEFAULT_MAX_CONNECTIONS_PER_HOST;
         _maxRequestsPerConnection = DEFAULT_MAX_REQUESTS_PER_CONNECTION;
         _fetcherMode = FetcherMode.COMPLETE;
+        _executorMode = ExecutorMode.THREADED;
+        _executorQueueDepth = DEFAULT_EXECUTOR_QUEUE_DEPTH;
+        _schedulingMode = SchedulingMode.BATCH;
+        _maxConnectionsPerIp = DEFAULT_MAX_CONNECTIONS_PER_IP;
+        _minRequestGapPerIp = DEFAULT_MIN_REQUEST_GAP_PER_IP;
+        _maxBandwidth = DEFAULT_MAX_BANDWIDTH;
         _redirectMode = _maxRedirects > 0 ? RedirectMode.FOLLOW_ALL : RedirectMode.FOLLOW_NONE;
         
         _requestTimeout = DEFAULT_REQUEST_TIMEOUT;
@@ -221,6 +258,35 @@ public class FetcherPolicy implements Serializable {
         _validMimeTypes.add(validMimeType);
     }
     
+    public RawContentMode getRawContentMode() {
+        return _rawContentMode;
+    }
+    
+    /**
+     * Set which fetched documents are output (by FetchPipe) with their raw content. When the
+     * FetchPipe is also parsing, using RawContentMode.KEEP_MIME_TYPES means that only the
+     * parse gets written out for the other documents, which avoids writing and re-reading
+     * content that's only needed for parsing. Without a parser, raw content is always output.
+     * Mime-types are compared without regard to case.
+     * 
+     * @param mode
+     */
+    public void setRawContentMode(RawContentMode mode) {
+        _rawContentMode = mode;
+    }
+    
+    public Set<String> getRawContentMimeTypes() {
+        return _rawContentMimeTypes;
+    }
+    
+    public void setRawContentMimeTypes(Set<String> rawContentMimeTypes) {
+        _rawContentMimeTypes = new HashSet<String>(rawContentMimeTypes);
+    }
+    
+    public void addRawContentMimeType(String rawContentMimeType) {
+        _rawContentMimeTypes.add(rawContentMimeType);
+    }
+    
     public RedirectMode getRedirectMode() {
         return _redirectMode;
     }
@@ -246,6 +312,84 @@ public class FetcherPolicy implements Serializable {
         _fetcherMode = mode;
     }
     
+    public ExecutorMode getExecutorMode() {
+        return _executorMode;
+    }
+    
+    public void setExecutorMode(ExecutorMode mode) {
+        _executorMode = mode;
+    }
+    
+    public int getExecutorQueueDepth() {
+        return _executorQueueDepth;
+    }
+    
+    public void setExecutorQueueDepth(int executorQueueDepth) {
+        if (executorQueueDepth < 1) {
+            throw new InvalidParameterException("executorQueueDepth must be > 0: " + executorQueueDepth);
+        }
+        
+        _executorQueueDepth = executorQueueDepth;
+    }
+    
+    public SchedulingMode getSchedulingMode() {
+        return _schedulingMode;
+    }
+    
+    public void setSchedulingMode(SchedulingMode mode) {
+        _schedulingMode = mode;
+    }
+    
+    public int getMaxConnectionsPerIp() {
+        return _maxConnectionsPerIp;
+    }
+    
+    public void setMaxConnectionsPerIp(int maxConnectionsPerIp) {
+        if (maxConnectionsPerIp < 1) {
+            throw new InvalidParameterException("maxConnectionsPerIp must be > 0: " + maxConnectionsPerIp);
+        }
+        
+        _maxConnectionsPerIp = maxConnectionsPerIp;
+    }
+    
+    public long getMinRequestGapPerIp() {
+        return _minRequestGapPerIp;
+    }
+    
+    /**
+     * Set the min time between requests to the same IP address, across all of the refs
+     * (domains) that resolve to it. This applies to every request, including the ones
+     * within a fetch set, in addition to the crawl delay for each ref.
+     * 
+     * @param minRequestGapPerIp Time in milliseconds, or 0 for no gap
+     */
+    public void setMinRequestGapPerIp(long minRequestGapPerIp) {
+        if (minRequestGapPerIp < 0) {
+            throw new InvalidParameterException("minRequestGapPerIp must be >= 0: " + minRequestGapPerIp);
+        }
+        
+        _minRequestGapPerIp = minRequestGapPerIp;
+    }
+    
+    public long getMaxBandwidth() {
+        return _maxBandwidth;
+    }
+    
+    /**
+     * Set the max rate (in bytes/second) for reading content, summed across all of the
+     * fetches being made by one fetcher. This can be changed while fetching, and the new
+     * value is used starting with the next request.
+     * 
+     * @param maxBandwidth Max bytes/second, or NO_MAX_BANDWIDTH
+     */
+    public void setMaxBandwidth(long maxBandwidth) {
+        if (maxBandwidth < 1) {
+            throw new InvalidParameterException("maxBandwidth must be > 0: " + maxBandwidth);
+        }
+        
+        _maxBandwidth = maxBandwidth;
+    }
+    
     /**
      * Calculate the maximum number of URLs that could be fetched in the remaining time.
      * 
@@ -289,13 +433,21 @@ public class FetcherPolicy implements Serializable {
         result = prime * result + ((_acceptLanguage == null) ? 0 : _acceptLanguage.hashCode());
         result = prime * result + (int) (_crawlDelay ^ (_crawlDelay >>> 32));
         result = prime * result + (int) (_crawlEndTime ^ (_crawlEndTime >>> 32));
+        result = prime * result + ((_executorMode == null) ? 0 : _executorMode.hashCode());
+        result = prime * result + _executorQueueDepth;
+        result = prime * result + (int) (_maxBandwidth ^ (_maxBandwidth >>> 32));
         result = prime * result + ((_fetcherMode == null) ? 0 : _fetcherMode.hashCode());
         result = prime * result + _maxConnectionsPerHost;
+        result = prime * result + _maxConnectionsPerIp;
         result = prime * result + _maxContentSize;
         result = prime * result + _maxRedirects;
         result = prime * result + _maxRequestsPerConnection;
         result = prime * result + _minResponseRate;
+        result = prime * result + (int) (_minRequestGapPerIp ^ (_minRequestGapPerIp >>> 32));
+        result = prime * result + ((_rawContentMimeTypes == null) ? 0 : _rawContentMimeTypes.hashCode());
+        result = prime * result + ((_rawContentMode == null) ? 0 : _rawContentMode.hashCode());
         result = prime * result + ((_redirectMode == null) ? 0 : _redirectMode.hashCode());
+        result = prime * result + ((_schedulingMode == null) ? 0 : _schedulingMode.hashCode());
         result = prime * result + (int) (_requestTimeout ^ (_requestTimeout >>> 32));
         result = prime * result + ((_validMimeTypes == null) ? 0 : _validMimeTypes.hashCode());
         return result;
@@ -319,13 +471,24 @@ public class FetcherPolicy implements Serializable {
             return false;
         if (_crawlEndTime != other._crawlEndTime)
             return false;
+        if (_executorMode == null) {
+            if (other._executorMode != null)
+                return false;
+        } else if (!_executorMode.equals(other._executorMode))
+            return false;
+        if (_executorQueueDepth != other._executorQueueDepth)
+            return false;
         if (_fetcherMode == null) {
             if (other._fetcherMode != null)
                 return false;
         } else if (!_fetcherMode.equals(other._fetcherMode))
             return false;
+        if (_maxBandwidth != other._maxBandwidth)
+            return false;
         if (_maxConnectionsPerHost != other._maxConnectionsPerHost)
             return false;
+        if (_maxConnectionsPerIp != other._maxConnectionsPerIp)
+            return false;
         if (_maxContentSize != other._maxContentSize)
             return false;
         if (_maxRedirects != other._maxRedirects)
@@ -334,11 +497,28 @@ public class FetcherPolicy implements Serializable {
             return false;
         if (_minResponseRate != other._minResponseRate)
             return false;
+        if (_minRequestGapPerIp != other._minRequestGapPerIp)
+            return false;
+        if (_rawContentMimeTypes == null) {
+            if (other._rawContentMimeTypes != null)
+                return false;
+        } else if (!_rawContentMimeTypes.equals(other._rawContentMimeTypes))
+            return false;
+        if (_rawContentMode == null) {
+            if (other._rawContentMode != null)
+                return false;
+        } else if (!_rawContentMode.equals(other._rawContentMode))
+            return false;
         if (_redirectMode == null) {
             if (other._redirectMode != null)
                 return false;
         } else if (!_redirectMode.equals(other._redirectMode))
             return false;
+        if (_schedulingMode == null) {
+            if (other._schedulingMode != null)
+                return false;
+        } else if (!_schedulingMode.equals(other._schedulingMode))
+            return false;
         if (_requestTimeout != other._requestTimeout)
             return false;
         if (_validMimeTypes == null) {
@@ -35,12 +35,39 @@ import bixo.parser.BaseLinkExtractor;
 @SuppressWarnings("serial")
 public class ParserPolicy implements Serializable {
     
+    public enum OutputMode {
+        ORDERED,            // Concurrent parse results are output in the same order as the fetched documents.
+        UNORDERED           // Concurrent parse results are output as soon as each parse finishes.
+    }
+    
     public static final int NO_MAX_PARSE_DURATION = Integer.MAX_VALUE;
     
     public static final int DEFAULT_MAX_PARSE_DURATION = 30 * 1000;
     
+    public static final int DEFAULT_MAX_PARSE_THREADS = 1;
+    
+    public static final int DEFAULT_MAX_PARSE_WINDOW = 32;
+    
+    public static final int NO_MAX_CONTENT_CHARS = Integer.MAX_VALUE;
+    
+    public static final int NO_MAX_OUTLINKS = Integer.MAX_VALUE;
+    
+    public static final int NO_MAX_LANGUAGE_CHARS = Integer.MAX_VALUE;
+    
     private int _maxParseDuration;        // Max # of milliseconds to wait for parse to complete a document.
     
+    private int _maxParseThreads;         // Max # of documents being parsed at the same time.
+    
+    private int _maxParseWindow;          // Max # of documents being parsed or waiting to be output.
+    
+    private OutputMode _outputMode;
+    
+    private int _maxContentChars;         // Max # of chars of text to extract from a document.
+    
+    private int _maxOutlinks;             // Max # of outlinks to extract from a document.
+    
+    private int _maxLanguageChars;        // Max # of chars of text to use for detecting the language.
+    
     private Set<String> _linkTags;
     
     private Set<String> _linkAttributeTypes;
@@ -68,6 +95,12 @@ public class ParserPolicy implements Serializable {
         }
         
         _maxParseDuration = maxParseDuration;
+        _maxParseThreads = DEFAULT_MAX_PARSE_THREADS;
+        _maxParseWindow = DEFAULT_MAX_PARSE_WINDOW;
+        _outputMode = OutputMode.ORDERED;
+        _maxContentChars = NO_MAX_CONTENT_CHARS;
+        _maxOutlinks = NO_MAX_OUTLINKS;
+        _maxLanguageChars = NO_MAX_LANGUAGE_CHARS;
         _linkAttributeTypes = linkAttributeTypes;
         _linkTags = linkTags;
     }
@@ -80,6 +113,111 @@ public class ParserPolicy implements Serializable {
         _maxParseDuration = maxParseDuration;
     }
 
+    public int getMaxParseThreads() {
+        return _maxParseThreads;
+    }
+    
+    /**
+     * Set the number of worker threads that a parser uses to run (and time out) parses.
+     * If this is more than one, then the ParsePipe parses that many documents at the
+     * same time in each task.
+     * 
+     * @param maxParseThreads
+     */
+    public void setMaxParseThreads(int maxParseThreads) {
+        if (maxParseThreads < 1) {
+            throw new InvalidParameterException("maxParseThreads must be > 0: " + maxParseThreads);
+        }
+        
+        _maxParseThreads = maxParseThreads;
+    }
+
+    public int getMaxParseWindow() {
+        return _maxParseWindow;
+    }
+    
+    /**
+     * Set the max number of documents that can be in flight when parsing concurrently,
+     * including ones that are done but waiting to be output (in ORDERED mode, behind a
+     * slower document). This is what limits memory use, and is never less than the
+     * max number of parse threads.
+     * 
+     * @param maxParseWindow
+     */
+    public void setMaxParseWindow(int maxParseWindow) {
+        if (maxParseWindow < 1) {
+            throw new InvalidParameterException("maxParseWindow must be > 0: " + maxParseWindow);
+        }
+        
+        _maxParseWindow = maxParseWindow;
+    }
+
+    public OutputMode getOutputMode() {
+        return _outputMode;
+    }
+
+    public void setOutputMode(OutputMode outputMode) {
+        _outputMode = outputMode;
+    }
+
+    public int getMaxContentChars() {
+        return _maxContentChars;
+    }
+
+    /**
+     * Set the max number of chars of text that the content extractor gets from each
+     * document. Text past this is dropped.
+     * 
+     * Once the text, outlink and language limits have all been reached, the rest of the
+     * document isn't parsed, so setting all three bounds the time and memory used by
+     * huge pages.
+     * 
+     * @param maxContentChars
+     */
+    public void setMaxContentChars(int maxContentChars) {
+        if (maxContentChars < 0) {
+            throw new InvalidParameterException("maxContentChars must be >= 0: " + maxContentChars);
+        }
+        
+        _maxContentChars = maxContentChars;
+    }
+
+    public int getMaxOutlinks() {
+        return _maxOutlinks;
+    }
+
+    /**
+     * Set the max number of outlinks that the link extractor gets from each document.
+     * Links past this are dropped.
+     * 
+     * @param maxOutlinks
+     */
+    public void setMaxOutlinks(int maxOutlinks) {
+        if (maxOutlinks < 0) {
+            throw new InvalidParameterException("maxOutlinks must be >= 0: " + maxOutlinks);
+        }
+        
+        _maxOutlinks = maxOutlinks;
+    }
+
+    public int getMaxLanguageChars() {
+        return _maxLanguageChars;
+    }
+
+    /**
+     * Set the max number of chars of text from each document that are used to detect
+     * its language. A few thousand chars is plenty for a reliable result.
+     * 
+     * @param maxLanguageChars
+     */
+    public void setMaxLanguageChars(int maxLanguageChars) {
+        if (maxLanguageChars < 0) {
+            throw new InvalidParameterException("maxLanguageChars must be >= 0: " + maxLanguageChars);
+        }
+        
+        _maxLanguageChars = maxLanguageChars;
+    }
+
     public Set<String> getLinkTags() {
         return _linkTags;
     }
@@ -102,7 +240,13 @@ public class ParserPolicy implements Serializable {
         int result = 1;
         result = prime * result + ((_linkAttributeTypes == null) ? 0 : _linkAttributeTypes.hashCode());
         result = prime * result + ((_linkTags == null) ? 0 : _linkTags.hashCode());
+        result = prime * result + _maxContentChars;
+        result = prime * result + _maxLanguageChars;
+        result = prime * result + _maxOutlinks;
         result = prime * result + _maxParseDuration;
+        result = prime * result + _maxParseThreads;
+        result = prime * result + _maxParseWindow;
+        result = prime * result + ((_outputMode == null) ? 0 : _outputMode.hashCode());
         return result;
     }
 
@@ -125,8 +269,20 @@ public class ParserPolicy implements Serializable {
                 return false;
         } else if (!_linkTags.equals(other._linkTags))
             return false;
+        if (_maxContentChars != other._maxContentChars)
+            return false;
+        if (_maxLanguageChars != other._maxLanguageChars)
+            return false;
+        if (_maxOutlinks != other._maxOutlinks)
+            return false;
         if (_maxParseDuration != other._maxParseDuration)
             return false;
+        if (_maxParseThreads != other._maxParseThreads)
+            return false;
+        if (_maxParseWindow != other._maxParseWindow)
+            return false;
+        if (_outputMode != other._outputMode)
+            return false;
         return true;
     }
 
@@ -135,6 +291,18 @@ public class ParserPolicy implements Serializable {
         StringBuilder result = new StringBuilder();
         result.append("Max parse duration: " + getMaxParseDuration());
         result.append('\r');
+        result.append("Max parse threads: " + getMaxParseThreads());
+        result.append('\r');
+        result.append("Max parse window: " + getMaxParseWindow());
+        result.append('\r');
+        result.append("Output mode: " + getOutputMode());
+        result.append('\r');
+        result.append("Max content chars: " + getMaxContentChars());
+        result.append('\r');
+        result.append("Max outlinks: " + getMaxOutlinks());
+        result.append('\r');
+        result.append("Max language chars: " + getMaxLanguageChars());
+        result.append('\r');
         result.append("Link tags: " + getLinkTags());
         result.append('\r');
         result.append("Link attribute types: " + getLinkAttributeTypes());
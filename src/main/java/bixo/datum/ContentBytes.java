@@ -16,34 +16,57 @@ public class ContentBytes extends BinaryComparable implements WritableComparable
     private static final byte[] EMPTY_BYTES = {};
 
     private byte[] bytes;
+    private int length;
 
     public ContentBytes() {
         this(EMPTY_BYTES);
     }
     
     public ContentBytes(byte[] bytes) {
+        this(bytes, bytes.length);
+    }
+    
+    /**
+     * Wrap the first <length> bytes of <bytes>, without copying them.
+     * 
+     * @param bytes Content buffer, which can be longer than the content
+     * @param length Number of valid bytes in <bytes>
+     */
+    public ContentBytes(byte[] bytes, int length) {
+        if ((length < 0) || (length > bytes.length)) {
+            throw new IllegalArgumentException("Invalid content length: " + length);
+        }
+        
         this.bytes = bytes;
+        this.length = length;
     }
     
+    /**
+     * Return the content buffer. Note that this can be longer than the
+     * content - only the first getLength() bytes are valid.
+     * 
+     * @return content buffer
+     */
     public byte[] getBytes() {
         return bytes;
       }
 
     @Override
     public int getLength() {
-        return bytes.length;
+        return length;
     }
     
     public void readFields(DataInput in) throws IOException {
         int size = in.readInt();
         bytes = new byte[size];
+        length = size;
         in.readFully(bytes, 0, size);
       }
       
       // inherit javadoc
       public void write(DataOutput out) throws IOException {
-        out.writeInt(bytes.length);
-        out.write(bytes, 0, bytes.length);
+        out.writeInt(length);
+        out.write(bytes, 0, length);
       }
       
       public int hashCode() {
@@ -65,7 +88,7 @@ public class ContentBytes extends BinaryComparable implements WritableComparable
        * Generate the stream of bytes as hex pairs separated by ' '.
        */
       public String toString() {
-          int size = bytes.length;
+          int size = length;
           StringBuffer sb = new StringBuffer(3*size);
           for (int idx = 0; idx < size; idx++) {
               // if not the first, put a blank separator in
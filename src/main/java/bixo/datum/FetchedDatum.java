@@ -23,8 +23,11 @@
 package bixo.datum;
 
 import java.io.Serializable;
+import java.nio.CharBuffer;
 import java.security.InvalidParameterException;
 
+import bixo.utils.CharsetUtils;
+
 import com.bixolabs.cascading.Payload;
 
 import cascading.tuple.Fields;
@@ -43,11 +46,15 @@ public class FetchedDatum extends UrlDatum implements Serializable {
     public static final String NUM_REDIRECTS_FN = fieldName(FetchedDatum.class, "numRedirects");
     public static final String HOST_ADDRESS_FN = fieldName(FetchedDatum.class, "hostAddress");
     public static final String HTTP_HEADERS_FN = fieldName(FetchedDatum.class, "httpHeaders");
+    public static final String CHARSET_FN = fieldName(FetchedDatum.class, "charset");
 
     public static final Fields FIELDS = new Fields(NEW_BASE_URL_FN,
                     FETCHED_URL_FN, FETCH_TIME_FN, CONTENT_FN, CONTENT_TYPE_FN,
                     RESPONSE_RATE_FN, NUM_REDIRECTS_FN, HOST_ADDRESS_FN,
-                    HTTP_HEADERS_FN).append(getSuperFields(FetchedDatum.class));
+                    HTTP_HEADERS_FN, CHARSET_FN).append(getSuperFields(FetchedDatum.class));
+
+    // Decoded content, so it only gets decoded once.
+    private transient CharBuffer _contentChars;
 
     public FetchedDatum(Tuple tuple) {
         super(FIELDS, tuple);
@@ -72,6 +79,7 @@ public class FetchedDatum extends UrlDatum implements Serializable {
         
         setNumRedirects(0);
         setNewBaseUrl(null);
+        setCharset(null);
     }
 
     /**
@@ -159,6 +167,47 @@ public class FetchedDatum extends UrlDatum implements Serializable {
         }
 
         _tupleEntry.set(CONTENT_FN, content);
+        _contentChars = null;
+    }
+    
+    /**
+     * Return the charset of the content, as detected when it was fetched.
+     * 
+     * @return charset name, or null if it's unknown
+     */
+    public String getCharset() {
+        return _tupleEntry.getString(CHARSET_FN);
+    }
+    
+    public void setCharset(String charset) {
+        _tupleEntry.set(CHARSET_FN, charset);
+        _contentChars = null;
+    }
+    
+    /**
+     * Return the content decoded using the charset. If the charset hasn't been set, then
+     * it's detected from the content, and if that fails then the default charset is used.
+     * 
+     * The content is only decoded once, so callers shouldn't modify the returned buffer's
+     * contents (its position and limit are theirs to change).
+     * 
+     * @return decoded content
+     */
+    public CharBuffer getContentChars() {
+        if (_contentChars == null) {
+            String charset = getCharset();
+            if (charset == null) {
+                charset = CharsetUtils.detectCharset(getContentBytes(), getContentLength(), getContentType());
+            }
+            
+            if (charset == null) {
+                charset = CharsetUtils.DEFAULT_CHARSET;
+            }
+            
+            _contentChars = CharsetUtils.decode(getContentBytes(), getContentLength(), charset);
+        }
+        
+        return _contentChars.duplicate();
     }
     
     public String getContentType() {
@@ -28,6 +28,11 @@ public class CrawlConfig {
     public static final String CONTENT_SUBDIR_NAME = "content";
     public static final String STATUS_SUBDIR_NAME = "status";
     public static final String PARSE_SUBDIR_NAME = "parse";
+    
+    // Lives in the top-level crawl directory (next to the loop directories), since
+    // it's shared by all loops.
+    public static final String ROBOTS_CACHE_SUBDIR_NAME = "robots-cache";
+    public static final String CRAWL_DELAY_SUBDIR_NAME = "crawl-delays";
 
 
 
@@ -31,12 +31,16 @@ import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.log4j.Logger;
 
+import bixo.config.BaseFetchJobPolicy.OrderingMode;
+import bixo.config.BaseFetchJobPolicy.PartitioningMode;
+import bixo.config.DefaultFetchJobPolicy;
 import bixo.config.FetcherPolicy;
 import bixo.config.UserAgent;
 import bixo.datum.FetchedDatum;
 import bixo.datum.ParsedDatum;
 import bixo.datum.UrlDatum;
 import bixo.fetcher.BaseFetcher;
+import bixo.fetcher.CrawlDelayController;
 import bixo.fetcher.SimpleHttpFetcher;
 import bixo.operations.BaseScoreGenerator;
 import bixo.operations.FixedScoreGenerator;
@@ -45,6 +49,9 @@ import bixo.operations.UrlFilter;
 import bixo.parser.SimpleParser;
 import bixo.pipes.FetchPipe;
 import bixo.pipes.ParsePipe;
+import bixo.robots.RobotUtils;
+import bixo.robots.RobotsCache;
+import bixo.robots.SimpleRobotRulesParser;
 import bixo.urls.BaseUrlFilter;
 import bixo.urls.SimpleUrlNormalizer;
 import cascading.flow.Flow;
@@ -154,7 +161,26 @@ public class JDBCCrawlWorkflow {
         // Create the sub-assembly that runs the fetch job
         BaseFetcher fetcher = new SimpleHttpFetcher(maxThreads, fetcherPolicy, userAgent);
         BaseScoreGenerator scorer = new FixedScoreGenerator();
-        FetchPipe fetchPipe = new FetchPipe(importPipe, scorer, fetcher, numReducers);
+        
+        // Reuse robot rules fetched during earlier loops, and merge in what we fetch
+        // during this loop.
+        Path robotsCachePath = new Path(curLoopDirPath.getParent(), CrawlConfig.ROBOTS_CACHE_SUBDIR_NAME);
+        RobotsCache robotsCache = new RobotsCache(robotsCachePath.toString());
+        robotsCache.compact(conf);
+        
+        // Start each server's crawl delay from where the last loop left it.
+        Path crawlDelayPath = new Path(curLoopDirPath.getParent(), CrawlConfig.CRAWL_DELAY_SUBDIR_NAME);
+        CrawlDelayController delayController = new CrawlDelayController(crawlDelayPath.toString());
+        delayController.compact(conf);
+        
+        // Spread servers across fetch reducers by how long they'll take to fetch, and
+        // fetch the most valuable URLs first, in case we hit the crawl end time.
+        DefaultFetchJobPolicy fetchJobPolicy = new DefaultFetchJobPolicy(fetcherPolicy);
+        fetchJobPolicy.setPartitioningMode(PartitioningMode.BALANCED);
+        fetchJobPolicy.setOrderingMode(OrderingMode.VALUE);
+        
+        FetchPipe fetchPipe = new FetchPipe(importPipe, scorer, fetcher, RobotUtils.createFetcher(fetcher), new SimpleRobotRulesParser(),
+                        robotsCache, delayController, fetchJobPolicy, numReducers);
 
         Pipe statusPipe = new Pipe("status pipe", fetchPipe.getStatusTailPipe());
 
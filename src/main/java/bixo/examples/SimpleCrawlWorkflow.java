@@ -33,12 +33,16 @@ import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.log4j.Logger;
 
+import bixo.config.BaseFetchJobPolicy.OrderingMode;
+import bixo.config.BaseFetchJobPolicy.PartitioningMode;
+import bixo.config.DefaultFetchJobPolicy;
 import bixo.config.FetcherPolicy;
 import bixo.config.UserAgent;
 import bixo.datum.FetchedDatum;
 import bixo.datum.ParsedDatum;
 import bixo.datum.UrlDatum;
 import bixo.datum.UrlStatus;
+import bixo.fetcher.CrawlDelayController;
 import bixo.fetcher.SimpleHttpFetcher;
 import bixo.operations.BaseScoreGenerator;
 import bixo.operations.FixedScoreGenerator;
@@ -47,6 +51,9 @@ import bixo.operations.UrlFilter;
 import bixo.parser.SimpleParser;
 import bixo.pipes.FetchPipe;
 import bixo.pipes.ParsePipe;
+import bixo.robots.RobotUtils;
+import bixo.robots.RobotsCache;
+import bixo.robots.SimpleRobotRulesParser;
 import bixo.urls.BaseUrlFilter;
 import bixo.urls.SimpleUrlNormalizer;
 import cascading.flow.Flow;
@@ -200,7 +207,25 @@ public class SimpleCrawlWorkflow {
         // are fetched first. If URLs are skipped for any reason(s) lower scoring URLs are skipped.
         BaseScoreGenerator scorer = new FixedScoreGenerator();
 
-        FetchPipe fetchPipe = new FetchPipe(urlsToFetchPipe, scorer, fetcher, numReducers);
+        // Reuse robot rules fetched during earlier loops, and merge in what we fetch
+        // during this loop.
+        Path robotsCachePath = new Path(curWorkingDirPath.getParent(), CrawlConfig.ROBOTS_CACHE_SUBDIR_NAME);
+        RobotsCache robotsCache = new RobotsCache(robotsCachePath.toString());
+        robotsCache.compact(conf);
+        
+        // Start each server's crawl delay from where the last loop left it.
+        Path crawlDelayPath = new Path(curWorkingDirPath.getParent(), CrawlConfig.CRAWL_DELAY_SUBDIR_NAME);
+        CrawlDelayController delayController = new CrawlDelayController(crawlDelayPath.toString());
+        delayController.compact(conf);
+        
+        // Spread servers across fetch reducers by how long they'll take to fetch, and
+        // fetch the most valuable URLs first, in case we hit the crawl end time.
+        DefaultFetchJobPolicy fetchJobPolicy = new DefaultFetchJobPolicy(fetcherPolicy);
+        fetchJobPolicy.setPartitioningMode(PartitioningMode.BALANCED);
+        fetchJobPolicy.setOrderingMode(OrderingMode.VALUE);
+        
+        FetchPipe fetchPipe = new FetchPipe(urlsToFetchPipe, scorer, fetcher, RobotUtils.createFetcher(fetcher), new SimpleRobotRulesParser(),
+                        robotsCache, delayController, fetchJobPolicy, numReducers);
         Pipe statusPipe = new Pipe("status pipe", fetchPipe.getStatusTailPipe());
         Pipe contentPipe = new Pipe("content pipe", fetchPipe.getContentTailPipe());
         contentPipe = TupleLogger.makePipe(contentPipe, true);
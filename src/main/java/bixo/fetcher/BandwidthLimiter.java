@@ -0,0 +1,207 @@
+package bixo.fetcher;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import bixo.config.FetcherPolicy;
+
+/**
+ * Token bucket that limits the total rate at which content is read, across all of the
+ * fetches being made by one fetcher.
+ *
+ * Fetch threads call consume() after each read with the number of bytes they got from
+ * the server. If that puts the bucket in debt, the thread sleeps until the debt has been
+ * paid off at the target rate. A fair lock is held while sleeping, so threads take turns
+ * in the order they asked, and since each read is at most one buffer's worth, every
+ * in-flight fetch gets about the same share of the bandwidth.
+ *
+ * Callers that can't sleep (e.g. NIO reactor threads) use reserve() instead, which takes
+ * the bytes from the bucket and returns how long to pause before reading more. A limiter
+ * should be used with one or the other, since a reserve() call waits for the lock while
+ * a consume() call is sleeping.
+ *
+ * The target rate can be changed at any time. Bytes are counted even when there's no
+ * limit, so that the achieved rate can be reported.
+ */
+public class BandwidthLimiter {
+
+    // Max time worth of bytes that can be saved up while nothing is being read.
+    private static final long MAX_BURST_TIME = 1000L;
+
+    private ReentrantLock _lock;
+    private volatile long _maxBytesPerSecond;
+    private double _availableBytes;
+    private long _lastRefillTime;
+
+    private AtomicLong _totalBytes;
+    private volatile long _startTime;
+
+    public BandwidthLimiter() {
+        this(FetcherPolicy.NO_MAX_BANDWIDTH);
+    }
+
+    public BandwidthLimiter(long maxBytesPerSecond) {
+        _lock = new ReentrantLock(true);
+        _totalBytes = new AtomicLong();
+        _startTime = 0;
+        _lastRefillTime = System.nanoTime();
+        _availableBytes = 0;
+
+        setMaxBytesPerSecond(maxBytesPerSecond);
+    }
+
+    public long getMaxBytesPerSecond() {
+        return _maxBytesPerSecond;
+    }
+
+    /**
+     * Change the target rate.
+     *
+     * @param maxBytesPerSecond Target rate, or FetcherPolicy.NO_MAX_BANDWIDTH
+     */
+    public void setMaxBytesPerSecond(long maxBytesPerSecond) {
+        if (maxBytesPerSecond <= 0) {
+            throw new IllegalArgumentException("maxBytesPerSecond must be > 0: " + maxBytesPerSecond);
+        }
+
+        // Called for every request, so skip the lock if nothing changed.
+        if (maxBytesPerSecond == _maxBytesPerSecond) {
+            return;
+        }
+
+        _lock.lock();
+
+        try {
+            // Bytes saved up at the old rate are still available, but capped at the new burst size.
+            refill(System.nanoTime());
+            _maxBytesPerSecond = maxBytesPerSecond;
+            _availableBytes = Math.min(_availableBytes, getMaxBurst());
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    public boolean isLimited() {
+        return _maxBytesPerSecond != FetcherPolicy.NO_MAX_BANDWIDTH;
+    }
+
+    /**
+     * Record that <numBytes> were just read, and wait (if necessary) to stay under
+     * the target rate. If the calling thread is interrupted while waiting, this returns
+     * early with the thread's interrupted flag set.
+     *
+     * @param numBytes Bytes read from the server
+     * @return time spent waiting, in milliseconds
+     */
+    public long consume(long numBytes) {
+        if (!countBytes(numBytes)) {
+            return 0;
+        }
+
+        long startTime = System.nanoTime();
+
+        try {
+            _lock.lockInterruptibly();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 0;
+        }
+
+        try {
+            long waitNanos = takeBytes(numBytes);
+            if (waitNanos > 0) {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            _lock.unlock();
+        }
+
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+    }
+
+    /**
+     * Record that <numBytes> were just read, without waiting. The caller is responsible
+     * for not reading anything more until the returned time has passed.
+     *
+     * @param numBytes Bytes read from the server
+     * @return time to wait before reading more, in milliseconds
+     */
+    public long reserve(long numBytes) {
+        if (!countBytes(numBytes)) {
+            return 0;
+        }
+
+        long waitNanos;
+        _lock.lock();
+
+        try {
+            waitNanos = takeBytes(numBytes);
+        } finally {
+            _lock.unlock();
+        }
+
+        // Round up, so the caller doesn't come back before the debt has been paid off.
+        return (waitNanos + TimeUnit.MILLISECONDS.toNanos(1) - 1) / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    public long getTotalBytes() {
+        return _totalBytes.get();
+    }
+
+    /**
+     * Return the average rate since the first bytes were read.
+     *
+     * @return bytes per second
+     */
+    public long getAchievedBytesPerSecond() {
+        long startTime = _startTime;
+        if (startTime == 0) {
+            return 0;
+        }
+
+        long elapsedTime = Math.max(1, System.currentTimeMillis() - startTime);
+        return (_totalBytes.get() * 1000L) / elapsedTime;
+    }
+
+    // Returns true if the bytes need to be taken from the bucket.
+    private boolean countBytes(long numBytes) {
+        if (numBytes <= 0) {
+            return false;
+        }
+
+        if (_startTime == 0) {
+            _startTime = System.currentTimeMillis();
+        }
+
+        _totalBytes.addAndGet(numBytes);
+        return isLimited();
+    }
+
+    // Must be called while holding the lock. Returns nanoseconds until the bucket is out of debt.
+    private long takeBytes(long numBytes) {
+        refill(System.nanoTime());
+        _availableBytes -= numBytes;
+        if (_availableBytes >= 0) {
+            return 0;
+        }
+
+        return (long)((-_availableBytes * TimeUnit.SECONDS.toNanos(1)) / _maxBytesPerSecond);
+    }
+
+    // Must be called while holding the lock.
+    private void refill(long now) {
+        if (isLimited()) {
+            double elapsedSeconds = (now - _lastRefillTime) / (double)TimeUnit.SECONDS.toNanos(1);
+            _availableBytes = Math.min(getMaxBurst(), _availableBytes + (elapsedSeconds * _maxBytesPerSecond));
+        }
+
+        _lastRefillTime = now;
+    }
+
+    private double getMaxBurst() {
+        return (_maxBytesPerSecond * (double)MAX_BURST_TIME) / 1000.0;
+    }
+}
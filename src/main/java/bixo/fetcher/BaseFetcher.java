@@ -40,12 +40,16 @@ public abstract class BaseFetcher implements Serializable {
     protected FetcherPolicy _fetcherPolicy;
     protected UserAgent _userAgent;
     protected Map<String, Integer> _maxContentSizes;
+    protected BaseHostResolver _hostResolver;
+    
+    private transient BandwidthLimiter _bandwidthLimiter;
     
     public BaseFetcher(int maxThreads, FetcherPolicy fetcherPolicy, UserAgent userAgent) {
         _maxThreads = maxThreads;
         _fetcherPolicy = fetcherPolicy;
         _userAgent = userAgent;
         _maxContentSizes = new HashMap<String, Integer>();
+        _hostResolver = new CachingHostResolver();
     }
 
     public int getMaxThreads() {
@@ -60,6 +64,28 @@ public abstract class BaseFetcher implements Serializable {
         return _userAgent;
     }
     
+    public BaseHostResolver getHostResolver() {
+        return _hostResolver;
+    }
+    
+    public void setHostResolver(BaseHostResolver hostResolver) {
+        _hostResolver = hostResolver;
+    }
+    
+    /**
+     * Return the limiter shared by all of the fetches being made by this fetcher. The
+     * target rate comes from the fetcher policy's max bandwidth.
+     * 
+     * @return limiter (never null)
+     */
+    public synchronized BandwidthLimiter getBandwidthLimiter() {
+        if (_bandwidthLimiter == null) {
+            _bandwidthLimiter = new BandwidthLimiter(_fetcherPolicy.getMaxBandwidth());
+        }
+        
+        return _bandwidthLimiter;
+    }
+    
     // TODO KKr Move into a _defaultMaxContentSize field when support is removed
     // from FetcherPolicy.
     //
@@ -0,0 +1,90 @@
+package bixo.fetcher;
+
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Resolves host names to addresses, for fetchers and robots processing.
+ * 
+ * Subclasses can cache results, and resolve names in the background when
+ * prefetch() is called, so that a later resolve() doesn't have to block.
+ */
+@SuppressWarnings("serial")
+public abstract class BaseHostResolver implements Serializable {
+
+    /**
+     * Gets the result of resolveAsync(), from whichever thread finished the lookup.
+     */
+    public interface ResolveCallback {
+        void resolved(InetAddress address);
+        void failed(UnknownHostException e);
+    }
+
+    /**
+     * Return the address for <host>.
+     * 
+     * @param host Host name (or address literal)
+     * @return address
+     * @throws UnknownHostException if the host can't be resolved
+     */
+    public abstract InetAddress resolve(String host) throws UnknownHostException;
+    
+    /**
+     * Resolve <host> without blocking the calling thread (e.g. an I/O reactor thread),
+     * and pass the result to <callback>. By default the lookup is done by resolve(), in
+     * a new thread.
+     * 
+     * @param host Host name (or address literal)
+     * @param callback Callback for the result
+     */
+    public void resolveAsync(final String host, final ResolveCallback callback) {
+        Thread t = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                resolveAndCallback(host, callback);
+            }
+        }, getClass().getSimpleName() + "-" + host);
+
+        t.setDaemon(true);
+        t.start();
+    }
+    
+    /**
+     * Resolve <host> in the calling thread, and pass the result to <callback>.
+     * 
+     * @param host Host name (or address literal)
+     * @param callback Callback for the result
+     */
+    protected void resolveAndCallback(String host, ResolveCallback callback) {
+        InetAddress address;
+        try {
+            address = resolve(host);
+        } catch (UnknownHostException e) {
+            callback.failed(e);
+            return;
+        }
+        
+        callback.resolved(address);
+    }
+    
+    /**
+     * Start resolving <host> in the background, if that's supported. By default
+     * this does nothing.
+     * 
+     * @param host Host name
+     */
+    public void prefetch(String host) {
+    }
+    
+    /**
+     * Let the resolver know that <host> resolved to <hostAddress> (e.g. in an earlier
+     * phase of the crawl), so that it can skip the lookup. By default this does nothing.
+     * 
+     * @param host Host name
+     * @param hostAddress Text form of the IP address
+     */
+    public void addAddress(String host, String hostAddress) {
+    }
+}
@@ -0,0 +1,291 @@
+package bixo.fetcher;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+
+import bixo.utils.DaemonThreadFactory;
+
+/**
+ * Resolver that caches lookups (including failures) for a limited time, in a bounded
+ * LRU cache, and resolves prefetched hosts (and async requests) using a pool of threads.
+ * 
+ * Java doesn't give us the TTL from the DNS record, so we use a fixed TTL for successful
+ * lookups, and a (typically shorter) one for failed lookups. Concurrent requests for the
+ * same host share a single lookup.
+ */
+@SuppressWarnings("serial")
+public class CachingHostResolver extends BaseHostResolver {
+    private static final Logger LOGGER = Logger.getLogger(CachingHostResolver.class);
+    
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+    public static final long DEFAULT_TTL = 5 * 60 * 1000L;
+    public static final long DEFAULT_NEGATIVE_TTL = 60 * 1000L;
+    public static final int DEFAULT_NUM_THREADS = 10;
+    
+    private static final Pattern IPV4_ADDRESS_PATTERN = Pattern.compile("\\d{1,3}\\.\\d{1,3}\\.\\d{1,3}\\.\\d{1,3}");
+    
+    private static class CacheEntry {
+        private InetAddress _address;
+        private UnknownHostException _exception;
+        private long _expiration;
+        
+        public CacheEntry(InetAddress address, long expiration) {
+            _address = address;
+            _expiration = expiration;
+        }
+        
+        public CacheEntry(UnknownHostException exception, long expiration) {
+            _exception = exception;
+            _expiration = expiration;
+        }
+        
+        public boolean isExpired(long now) {
+            return now >= _expiration;
+        }
+        
+        public InetAddress getAddress() throws UnknownHostException {
+            if (_exception != null) {
+                throw _exception;
+            }
+            
+            return _address;
+        }
+    }
+    
+    private static class LruCache extends LinkedHashMap<String, CacheEntry> {
+        private int _maxEntries;
+        
+        public LruCache(int maxEntries) {
+            super(Math.min(maxEntries, 1024), 0.75f, true);
+            
+            _maxEntries = maxEntries;
+        }
+        
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+            return size() > _maxEntries;
+        }
+    }
+    
+    private int _maxEntries;
+    private long _ttl;
+    private long _negativeTtl;
+    private int _numThreads;
+    
+    private transient LruCache _cache;
+    private transient ConcurrentHashMap<String, FutureTask<CacheEntry>> _pending;
+    private transient ExecutorService _pool;
+    
+    public CachingHostResolver() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_TTL, DEFAULT_NEGATIVE_TTL, DEFAULT_NUM_THREADS);
+    }
+    
+    public CachingHostResolver(int maxEntries, long ttl, long negativeTtl, int numThreads) {
+        _maxEntries = maxEntries;
+        _ttl = ttl;
+        _negativeTtl = negativeTtl;
+        _numThreads = numThreads;
+    }
+    
+    public int getMaxEntries() {
+        return _maxEntries;
+    }
+
+    public long getTtl() {
+        return _ttl;
+    }
+
+    public long getNegativeTtl() {
+        return _negativeTtl;
+    }
+
+    public int getNumThreads() {
+        return _numThreads;
+    }
+
+    @Override
+    public InetAddress resolve(String host) throws UnknownHostException {
+        CacheEntry entry = getCachedEntry(host);
+        if (entry != null) {
+            return entry.getAddress();
+        }
+        
+        FutureTask<CacheEntry> lookup = startLookup(host);
+        
+        // If nobody else has started running the lookup yet, do it in this thread versus
+        // waiting on the pool.
+        lookup.run();
+        
+        try {
+            return lookup.get().getAddress();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return lookup(host);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Unexpected exception resolving " + host, e.getCause());
+        }
+    }
+    
+    @Override
+    public void resolveAsync(final String host, final ResolveCallback callback) {
+        // Cached results (including failures) don't need a thread.
+        if (getCachedEntry(host) != null) {
+            resolveAndCallback(host, callback);
+            return;
+        }
+        
+        try {
+            getPool().execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    resolveAndCallback(host, callback);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Pool is being shut down, so fall back to using a new thread.
+            super.resolveAsync(host, callback);
+        }
+    }
+    
+    @Override
+    public void prefetch(String host) {
+        if (getCachedEntry(host) != null) {
+            return;
+        }
+        
+        try {
+            getPool().execute(startLookup(host));
+        } catch (RejectedExecutionException e) {
+            // Pool is being shut down, so leave it to resolve() to do the work.
+            LOGGER.debug("Prefetch of " + host + " rejected");
+        }
+    }
+    
+    @Override
+    public void addAddress(String host, String hostAddress) {
+        // Only use an address literal, so we don't trigger a lookup here.
+        if (!IPV4_ADDRESS_PATTERN.matcher(hostAddress).matches() && (hostAddress.indexOf(':') == -1)) {
+            return;
+        }
+        
+        try {
+            InetAddress address = InetAddress.getByAddress(host, InetAddress.getByName(hostAddress).getAddress());
+            putEntry(host, new CacheEntry(address, System.currentTimeMillis() + _ttl));
+        } catch (UnknownHostException e) {
+            LOGGER.debug("Ignoring invalid address for " + host + ": " + hostAddress);
+        }
+    }
+    
+    public int size() {
+        LruCache cache = getCache();
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+    
+    /**
+     * Stop the threads used for prefetching. Pending prefetches are abandoned, and
+     * will be done by resolve() if needed.
+     */
+    public synchronized void shutdown() {
+        if (_pool != null) {
+            _pool.shutdownNow();
+            _pool = null;
+        }
+    }
+    
+    private CacheEntry getCachedEntry(String host) {
+        LruCache cache = getCache();
+        synchronized (cache) {
+            CacheEntry entry = cache.get(host);
+            if ((entry != null) && entry.isExpired(System.currentTimeMillis())) {
+                cache.remove(host);
+                entry = null;
+            }
+            
+            return entry;
+        }
+    }
+    
+    private void putEntry(String host, CacheEntry entry) {
+        LruCache cache = getCache();
+        synchronized (cache) {
+            cache.put(host, entry);
+        }
+    }
+    
+    private FutureTask<CacheEntry> startLookup(final String host) {
+        ConcurrentHashMap<String, FutureTask<CacheEntry>> pending = getPending();
+        FutureTask<CacheEntry> result = pending.get(host);
+        if (result != null) {
+            return result;
+        }
+        
+        FutureTask<CacheEntry> lookup = new FutureTask<CacheEntry>(new Callable<CacheEntry>() {
+
+            @Override
+            public CacheEntry call() throws Exception {
+                CacheEntry entry;
+                try {
+                    InetAddress address = lookup(host);
+                    entry = new CacheEntry(address, System.currentTimeMillis() + _ttl);
+                } catch (UnknownHostException e) {
+                    entry = new CacheEntry(e, System.currentTimeMillis() + _negativeTtl);
+                }
+
+                putEntry(host, entry);
+                return entry;
+            }
+        }) {
+
+            @Override
+            protected void done() {
+                getPending().remove(host, this);
+            }
+        };
+        
+        result = pending.putIfAbsent(host, lookup);
+        return result == null ? lookup : result;
+    }
+    
+    protected InetAddress lookup(String host) throws UnknownHostException {
+        return InetAddress.getByName(host);
+    }
+    
+    private synchronized LruCache getCache() {
+        if (_cache == null) {
+            _cache = new LruCache(_maxEntries);
+        }
+        
+        return _cache;
+    }
+    
+    private synchronized ConcurrentHashMap<String, FutureTask<CacheEntry>> getPending() {
+        if (_pending == null) {
+            _pending = new ConcurrentHashMap<String, FutureTask<CacheEntry>>();
+        }
+        
+        return _pending;
+    }
+    
+    private synchronized ExecutorService getPool() {
+        if (_pool == null) {
+            _pool = Executors.newFixedThreadPool(_numThreads, new DaemonThreadFactory("CachingHostResolver"));
+        }
+        
+        return _pool;
+    }
+}
@@ -0,0 +1,449 @@
+package bixo.fetcher;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.log4j.Logger;
+
+import bixo.config.BaseFetchJobPolicy;
+import bixo.utils.GroupingKey;
+import bixo.utils.PartFileUtils;
+import bixo.utils.PartFileUtils.PartFileReader;
+import bixo.utils.PartFileUtils.PartFileWriter;
+
+/**
+ * Feedback controller that adjusts the delay between fetch sets for each server, based on
+ * how the server has been responding during the crawl.
+ *
+ * Each server has a delay factor (starting at 1.0) that's applied to the fetch delay the
+ * fetch job policy calculated for a set. Before each set is fetched, the factor is updated
+ * from the (decayed) average response time and error rate of earlier requests. A server
+ * that's slow or returning errors (5xx, or I/O errors) backs off quickly, while a fast and
+ * healthy one slowly speeds up - but never past <minFactor>, or below the min crawl delay
+ * from the fetcher policy or robots.txt.
+ *
+ * If a state directory is set, then the factors that changed are written out when the controller
+ * is closed, and loaded when it's opened, so the next crawl loop starts where this one left off.
+ */
+@SuppressWarnings("serial")
+public class CrawlDelayController implements Serializable {
+    private static final Logger LOGGER = Logger.getLogger(CrawlDelayController.class);
+
+    public static final long DEFAULT_FAST_RESPONSE_TIME = 500;
+    public static final long DEFAULT_SLOW_RESPONSE_TIME = 5 * 1000L;
+    public static final double DEFAULT_MAX_ERROR_RATE = 0.1;
+    public static final double DEFAULT_MIN_FACTOR = 0.25;
+    public static final double DEFAULT_MAX_FACTOR = 8.0;
+
+    // Factors that haven't been updated in this long aren't loaded.
+    public static final long DEFAULT_MAX_STATE_AGE = 7 * 24 * 60 * 60 * 1000L;
+
+    // How much weight the latest request gets in the average response time & error rate.
+    private static final double SAMPLE_WEIGHT = 0.3;
+
+    private static final double BACKOFF_MULTIPLIER = 2.0;
+    private static final double SPEEDUP_MULTIPLIER = 0.8;
+
+    private static final int FORMAT_VERSION = 1;
+
+    public enum Adjustment {
+        NONE,
+        BACKOFF,
+        SPEEDUP
+    }
+
+    private static class ServerState {
+        private double _factor;
+        private long _updateTime;
+        private boolean _changed;
+
+        private double _avgResponseTime;
+        private double _errorRate;
+        private int _numSamples;
+
+        public ServerState(double factor, long updateTime) {
+            _factor = factor;
+            _updateTime = updateTime;
+        }
+    }
+
+    private String _stateDir;
+    private long _fastResponseTime = DEFAULT_FAST_RESPONSE_TIME;
+    private long _slowResponseTime = DEFAULT_SLOW_RESPONSE_TIME;
+    private double _maxErrorRate = DEFAULT_MAX_ERROR_RATE;
+    private double _minFactor = DEFAULT_MIN_FACTOR;
+    private double _maxFactor = DEFAULT_MAX_FACTOR;
+
+    private transient Map<String, ServerState> _servers;
+
+    public CrawlDelayController() {
+        this(null);
+    }
+
+    /**
+     * @param stateDir Directory for saving delay factors between crawl loops, or null
+     */
+    public CrawlDelayController(String stateDir) {
+        _stateDir = stateDir;
+    }
+
+    public String getStateDir() {
+        return _stateDir;
+    }
+
+    public long getFastResponseTime() {
+        return _fastResponseTime;
+    }
+
+    /**
+     * Set the average response time below which a (healthy) server gets sped up.
+     *
+     * @param fastResponseTime Time in milliseconds
+     */
+    public void setFastResponseTime(long fastResponseTime) {
+        _fastResponseTime = fastResponseTime;
+    }
+
+    public long getSlowResponseTime() {
+        return _slowResponseTime;
+    }
+
+    /**
+     * Set the average response time above which a server gets backed off.
+     *
+     * @param slowResponseTime Time in milliseconds
+     */
+    public void setSlowResponseTime(long slowResponseTime) {
+        _slowResponseTime = slowResponseTime;
+    }
+
+    public double getMaxErrorRate() {
+        return _maxErrorRate;
+    }
+
+    public void setMaxErrorRate(double maxErrorRate) {
+        _maxErrorRate = maxErrorRate;
+    }
+
+    public double getMinFactor() {
+        return _minFactor;
+    }
+
+    public void setMinFactor(double minFactor) {
+        if ((minFactor <= 0.0) || (minFactor > 1.0)) {
+            throw new IllegalArgumentException("minFactor must be > 0 and <= 1.0: " + minFactor);
+        }
+
+        _minFactor = minFactor;
+    }
+
+    public double getMaxFactor() {
+        return _maxFactor;
+    }
+
+    public void setMaxFactor(double maxFactor) {
+        if (maxFactor < 1.0) {
+            throw new IllegalArgumentException("maxFactor must be >= 1.0: " + maxFactor);
+        }
+
+        _maxFactor = maxFactor;
+    }
+
+    /**
+     * Record the result of one request to the server for <ref>.
+     *
+     * @param ref Grouping ref for the URL's fetch set
+     * @param responseTime Time in milliseconds for the request
+     * @param isServerError true if the server returned a 5xx status, or the request failed with an I/O error
+     */
+    public void record(String ref, long responseTime, boolean isServerError) {
+        ServerState state = getState(GroupingKey.getServerFromRef(ref));
+
+        synchronized (state) {
+            if (state._numSamples == 0) {
+                state._avgResponseTime = responseTime;
+                state._errorRate = isServerError ? 1.0 : 0.0;
+            } else {
+                state._avgResponseTime += SAMPLE_WEIGHT * (responseTime - state._avgResponseTime);
+                state._errorRate += SAMPLE_WEIGHT * ((isServerError ? 1.0 : 0.0) - state._errorRate);
+            }
+
+            state._numSamples += 1;
+        }
+    }
+
+    /**
+     * Update the delay factor for the server for <ref>, from the requests since the last update.
+     *
+     * @param ref Grouping ref for the fetch set that's about to be fetched
+     * @return the adjustment that was made
+     */
+    public Adjustment update(String ref) {
+        ServerState state = getState(GroupingKey.getServerFromRef(ref));
+
+        synchronized (state) {
+            if (state._numSamples == 0) {
+                return Adjustment.NONE;
+            }
+
+            Adjustment result = Adjustment.NONE;
+            if ((state._errorRate > _maxErrorRate) || (state._avgResponseTime > _slowResponseTime)) {
+                if (state._factor < _maxFactor) {
+                    state._factor = Math.min(_maxFactor, state._factor * BACKOFF_MULTIPLIER);
+                    result = Adjustment.BACKOFF;
+                }
+            } else if (state._avgResponseTime < _fastResponseTime) {
+                if (state._factor > _minFactor) {
+                    state._factor = Math.max(_minFactor, state._factor * SPEEDUP_MULTIPLIER);
+                    result = Adjustment.SPEEDUP;
+                }
+            }
+
+            // Each set of requests gets one vote, so start the next set's samples from scratch.
+            state._numSamples = 0;
+            state._updateTime = System.currentTimeMillis();
+            state._changed = state._changed || (result != Adjustment.NONE);
+            return result;
+        }
+    }
+
+    /**
+     * Return the delay to use after fetching a set of <numUrls> URLs for <ref>, before
+     * the next set can be fetched.
+     *
+     * @param ref Grouping ref for the fetch set
+     * @param fetchDelay Delay calculated by the fetch job policy
+     * @param numUrls Number of URLs in the set
+     * @param minCrawlDelay Min delay between requests, from the fetcher policy
+     * @return adjusted delay in milliseconds
+     */
+    public long getFetchDelay(String ref, long fetchDelay, int numUrls, long minCrawlDelay) {
+        // Never go faster than robots.txt asked us to.
+        if (GroupingKey.isValidKey(ref)) {
+            long robotsDelay = GroupingKey.getCrawlDelayFromKey(ref);
+            if (robotsDelay != BaseFetchJobPolicy.UNSET_CRAWL_DELAY) {
+                minCrawlDelay = Math.max(minCrawlDelay, robotsDelay);
+            }
+        }
+
+        long minDelay = Math.min(fetchDelay, minCrawlDelay * numUrls);
+        return Math.max(minDelay, Math.round(fetchDelay * getFactor(ref)));
+    }
+
+    public double getFactor(String ref) {
+        ServerState state = getState(GroupingKey.getServerFromRef(ref));
+
+        synchronized (state) {
+            return state._factor;
+        }
+    }
+
+    /**
+     * Return the current delay factor for every server we know about.
+     *
+     * @return map from server key (normally the IP address) to factor
+     */
+    public Map<String, Double> getFactors() {
+        Map<String, Double> result = new HashMap<String, Double>();
+        for (Map.Entry<String, ServerState> entry : getServers().entrySet()) {
+            synchronized (entry.getValue()) {
+                result.put(entry.getKey(), entry.getValue()._factor);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Load delay factors saved by earlier crawls, if we have a state directory.
+     *
+     * @param conf Configuration used to get the file system
+     * @throws IOException
+     */
+    public void open(Configuration conf) throws IOException {
+        if (_stateDir == null) {
+            return;
+        }
+
+        Path statePath = new Path(_stateDir);
+        FileSystem fs = statePath.getFileSystem(conf);
+        PartFileUtils.readPartFiles(fs, PartFileUtils.listPartFiles(fs, statePath), makeReader(getServers()));
+
+        LOGGER.info(String.format("Loaded %d crawl delay factors from %s", getServers().size(), _stateDir));
+    }
+
+    /**
+     * Write out the delay factors for servers whose factor changed since the controller was
+     * opened, as a new part file in the state directory. This includes servers that are now
+     * back at the default factor, so that they override older factors in other part files.
+     *
+     * @param conf Configuration used to get the file system
+     * @throws IOException
+     */
+    public void close(Configuration conf) throws IOException {
+        if (_stateDir == null) {
+            return;
+        }
+
+        Path statePath = new Path(_stateDir);
+        FileSystem fs = statePath.getFileSystem(conf);
+        final Map<String, ServerState> changed = getChangedStates(getServers());
+        if (changed.isEmpty()) {
+            return;
+        }
+        
+        PartFileUtils.writePartFile(fs, statePath, new PartFileWriter() {
+
+            @Override
+            public void write(DataOutput out) throws IOException {
+                writeStates(out, changed);
+            }
+        });
+        
+        LOGGER.info(String.format("Saved %d crawl delay factors to %s", changed.size(), _stateDir));
+    }
+
+    /**
+     * Merge all of the part files in the state directory into one file. If a server has
+     * more than one factor, the most recently updated one wins, and servers that wound up
+     * back at the default factor are dropped. This must not be called while a crawl is
+     * using the directory.
+     *
+     * @param conf Configuration used to get the file system
+     * @throws IOException
+     */
+    public void compact(Configuration conf) throws IOException {
+        if (_stateDir == null) {
+            return;
+        }
+
+        Path statePath = new Path(_stateDir);
+        FileSystem fs = statePath.getFileSystem(conf);
+        List<Path> partPaths = PartFileUtils.listPartFiles(fs, statePath);
+        if (partPaths.size() < 2) {
+            return;
+        }
+
+        Map<String, ServerState> states = new HashMap<String, ServerState>();
+        PartFileUtils.readPartFiles(fs, partPaths, makeReader(states));
+
+        final Map<String, ServerState> merged = new HashMap<String, ServerState>();
+        for (Map.Entry<String, ServerState> entry : states.entrySet()) {
+            if (entry.getValue()._factor != 1.0) {
+                merged.put(entry.getKey(), entry.getValue());
+            }
+        }
+        
+        PartFileUtils.replacePartFiles(fs, statePath, partPaths, new PartFileWriter() {
+
+            @Override
+            public void write(DataOutput out) throws IOException {
+                writeStates(out, merged);
+            }
+        });
+    }
+
+    // Package-private so that tests can skip the file system.
+    void save(DataOutputStream out) throws IOException {
+        writeStates(out, getChangedStates(getServers()));
+    }
+
+    void load(DataInputStream in) throws IOException {
+        readStates(in, getServers(), DEFAULT_MAX_STATE_AGE);
+    }
+
+    /**
+     * Return a copy of the states for servers whose factor was changed by this controller.
+     * 
+     * @param states Map from server to state
+     * @return Map from server to (copy of) state
+     */
+    private static Map<String, ServerState> getChangedStates(Map<String, ServerState> states) {
+        Map<String, ServerState> result = new HashMap<String, ServerState>();
+        for (Map.Entry<String, ServerState> entry : states.entrySet()) {
+            ServerState state = entry.getValue();
+            synchronized (state) {
+                if (state._changed) {
+                    result.put(entry.getKey(), new ServerState(state._factor, state._updateTime));
+                }
+            }
+        }
+
+        return result;
+    }
+    
+    private static void writeStates(DataOutput out, Map<String, ServerState> states) throws IOException {
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(states.size());
+        for (Map.Entry<String, ServerState> entry : states.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeDouble(entry.getValue()._factor);
+            out.writeLong(entry.getValue()._updateTime);
+        }
+    }
+
+    private static void readStates(DataInput in, Map<String, ServerState> states, long maxAge) throws IOException {
+        int version = in.readInt();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unknown crawl delay state format version: " + version);
+        }
+
+        long oldestTime = System.currentTimeMillis() - maxAge;
+        int numStates = in.readInt();
+        for (int i = 0; i < numStates; i++) {
+            String key = in.readUTF();
+            double factor = in.readDouble();
+            long updateTime = in.readLong();
+
+            ServerState existing = states.get(key);
+            if ((updateTime >= oldestTime) && ((existing == null) || (existing._updateTime < updateTime))) {
+                states.put(key, new ServerState(factor, updateTime));
+            }
+        }
+    }
+
+    private static PartFileReader makeReader(final Map<String, ServerState> states) {
+        return new PartFileReader() {
+
+            @Override
+            public void read(DataInput in) throws IOException {
+                readStates(in, states, DEFAULT_MAX_STATE_AGE);
+            }
+        };
+    }
+
+    private ServerState getState(String key) {
+        Map<String, ServerState> servers = getServers();
+        ServerState result = servers.get(key);
+        if (result == null) {
+            synchronized (servers) {
+                result = servers.get(key);
+                if (result == null) {
+                    result = new ServerState(1.0, System.currentTimeMillis());
+                    servers.put(key, result);
+                }
+            }
+        }
+
+        return result;
+    }
+
+    private synchronized Map<String, ServerState> getServers() {
+        if (_servers == null) {
+            _servers = new ConcurrentHashMap<String, ServerState>();
+        }
+
+        return _servers;
+    }
+}
@@ -26,6 +26,7 @@ import java.io.IOException;
 import java.util.Iterator;
 import java.util.List;
 
+import org.apache.http.HttpStatus;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
@@ -35,8 +36,10 @@ import bixo.datum.UrlStatus;
 import bixo.exceptions.AbortedFetchException;
 import bixo.exceptions.AbortedFetchReason;
 import bixo.exceptions.BaseFetchException;
+import bixo.exceptions.HttpFetchException;
 import bixo.exceptions.IOFetchException;
 import bixo.hadoop.FetchCounters;
+import bixo.utils.BufferPool;
 import cascading.tuple.Tuple;
 
 import com.bixolabs.cascading.LoggingFlowProcess;
@@ -48,6 +51,9 @@ import com.bixolabs.cascading.LoggingFlowProcess;
 public class FetchTask implements Runnable {
     private static final Logger LOGGER = Logger.getLogger(FetchTask.class);
     
+    // Score counters are in thousandths, since scores are usually fractional.
+    private static final double SCORE_COUNTER_SCALE = 1000.0;
+    
     private IFetchMgr _fetchMgr;
     private BaseFetcher _httpFetcher;
     private List<ScoredUrlDatum> _items;
@@ -60,7 +66,6 @@ public class FetchTask implements Runnable {
         _ref = ref;
     }
 
-    @SuppressWarnings("unchecked")
     @Override
     public void run() {
         LoggingFlowProcess process = _fetchMgr.getProcess();
@@ -70,56 +75,13 @@ public class FetchTask implements Runnable {
             // TODO KKr - when fetching the last item, send a Connection: close
             // header to let the server know it doesn't need to keep the socket open.
             Iterator<ScoredUrlDatum> iter = _items.iterator();
-            while (!Thread.interrupted() && iter.hasNext()) {
-                ScoredUrlDatum item = iter.next();
-                FetchedDatum result = new FetchedDatum(item);
-                Comparable status = null;
-
-                try {
-                    process.increment(FetchCounters.URLS_FETCHING, 1);
-                    long startTime = System.currentTimeMillis();
-                    result = _httpFetcher.get(item);
-                    long deltaTime = System.currentTimeMillis() - startTime;
-
-                    process.increment(FetchCounters.FETCHED_TIME, (int)deltaTime);
-                    process.increment(FetchCounters.URLS_FETCHED, 1);
-                    process.increment(FetchCounters.FETCHED_BYTES, result.getContentLength());
-                    process.setStatus(Level.TRACE, "Fetched " + result);
-
-                    status = UrlStatus.FETCHED.toString();
-                } catch (BaseFetchException e) {
-                    // TODO KKr - we'd have to do something special here for AbortedFetchException with
-                    // the reason == INTERRUPTED, as we'd want to (a) increment URLS_SKIPPED, not failed,
-                    // and we'd want to bail out of this loop (or set the interrupted flag)
-                    process.increment(FetchCounters.URLS_FAILED, 1);
-
-                    // We can do this because each of the concrete subclasses of BaseFetchException implements
-                    // WritableComparable
-                    status = (Comparable)e;
-                } catch (Exception e) {
-                    LOGGER.warn("Unexpected exception while fetching " + item.getUrl(), e);
-
-                    process.increment(FetchCounters.URLS_FAILED, 1);
-                    status = new IOFetchException(item.getUrl(), new IOException(e));
-                } finally {
-                    process.decrement(FetchCounters.URLS_FETCHING, 1);
-
-                    Tuple tuple = result.getTuple();
-                    tuple.add(status);
-                   _fetchMgr.collect(tuple);
-                }
+            while (!Thread.interrupted() && iter.hasNext() && waitForRequest()) {
+                fetch(_fetchMgr, _httpFetcher, _ref, iter.next());
             }
             
             // While we still have entries, we need to write them out to avoid losing them.
             while (iter.hasNext()) {
-                ScoredUrlDatum item = iter.next();
-                FetchedDatum result = new FetchedDatum(item);
-                process.increment(FetchCounters.URLS_SKIPPED, 1);
-                AbortedFetchException status = new AbortedFetchException(item.getUrl(), AbortedFetchReason.INTERRUPTED);
-                
-                Tuple tuple = result.getTuple();
-                tuple.add(status);
-               _fetchMgr.collect(tuple);
+                skip(_fetchMgr, iter.next());
             }
         } catch (Throwable t) {
             LOGGER.error("Exception while fetching", t);
@@ -129,4 +91,150 @@ public class FetchTask implements Runnable {
         }
     }
 
+    /**
+     * Wait until we're allowed to make the next request to the server (see the per-IP
+     * min request gap).
+     * 
+     * @return false if we were interrupted while waiting
+     */
+    private boolean waitForRequest() {
+        long delay;
+        while ((delay = _fetchMgr.reserveRequest(_ref)) > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Fetch <item>, and pass the result (or the exception) to <fetchMgr>.
+     * 
+     * @param fetchMgr
+     * @param httpFetcher
+     * @param ref Grouping ref for the URL's fetch set
+     * @param item URL to fetch
+     * @return time when the request was started
+     */
+    @SuppressWarnings("unchecked")
+    static long fetch(IFetchMgr fetchMgr, BaseFetcher httpFetcher, String ref, ScoredUrlDatum item) {
+        LoggingFlowProcess process = fetchMgr.getProcess();
+        FetchedDatum result = new FetchedDatum(item);
+        Comparable status = null;
+        boolean isServerError = false;
+        long startTime = System.currentTimeMillis();
+        
+        // Track buffer allocations made (on this thread) by the fetcher.
+        BufferPool pool = BufferPool.get();
+        long bytesAllocated = pool.getBytesAllocated();
+        long bytesReused = pool.getBytesReused();
+        
+        // And the time spent in each phase of the request.
+        FetchTimings timings = FetchTimings.get();
+        timings.reset();
+
+        try {
+            process.increment(FetchCounters.URLS_FETCHING, 1);
+            result = httpFetcher.get(item);
+            long deltaTime = System.currentTimeMillis() - startTime;
+
+            process.increment(FetchCounters.FETCHED_TIME, (int)deltaTime);
+            process.increment(FetchCounters.URLS_FETCHED, 1);
+            incrementScore(process, FetchCounters.SCORE_FETCHED, item.getScore());
+            process.increment(FetchCounters.FETCHED_BYTES, result.getContentLength());
+            process.setStatus(Level.TRACE, "Fetched " + result);
+
+            status = UrlStatus.FETCHED.toString();
+        } catch (BaseFetchException e) {
+            // TODO KKr - we'd have to do something special here for AbortedFetchException with
+            // the reason == INTERRUPTED, as we'd want to (a) increment URLS_SKIPPED, not failed,
+            // and we'd want to bail out of this loop (or set the interrupted flag)
+            process.increment(FetchCounters.URLS_FAILED, 1);
+            incrementScore(process, FetchCounters.SCORE_FAILED, item.getScore());
+            isServerError = isServerError(e);
+
+            // We can do this because each of the concrete subclasses of BaseFetchException implements
+            // WritableComparable
+            status = (Comparable)e;
+        } catch (Exception e) {
+            LOGGER.warn("Unexpected exception while fetching " + item.getUrl(), e);
+
+            process.increment(FetchCounters.URLS_FAILED, 1);
+            incrementScore(process, FetchCounters.SCORE_FAILED, item.getScore());
+            isServerError = true;
+            status = new IOFetchException(item.getUrl(), new IOException(e));
+        } finally {
+            process.decrement(FetchCounters.URLS_FETCHING, 1);
+            process.increment(FetchCounters.BUFFER_BYTES_ALLOCATED, (int)(pool.getBytesAllocated() - bytesAllocated));
+            process.increment(FetchCounters.BUFFER_BYTES_REUSED, (int)(pool.getBytesReused() - bytesReused));
+            recordTimings(fetchMgr, timings);
+            fetchMgr.fetched(ref, System.currentTimeMillis() - startTime, isServerError);
+
+            Tuple tuple = result.getTuple();
+            tuple.add(status);
+            fetchMgr.collect(tuple);
+        }
+        
+        return startTime;
+    }
+    
+    /**
+     * Return true if <e> means the server is having problems (versus the URL being bad),
+     * so we should ease up on it.
+     * 
+     * @param e Exception from fetching a URL
+     * @return true for 5xx responses and I/O errors (e.g. timeouts, refused connections)
+     */
+    private static boolean isServerError(BaseFetchException e) {
+        if (e instanceof HttpFetchException) {
+            return ((HttpFetchException)e).getHttpStatus() >= HttpStatus.SC_INTERNAL_SERVER_ERROR;
+        } else {
+            return e instanceof IOFetchException;
+        }
+    }
+    
+    private static void recordTimings(IFetchMgr fetchMgr, FetchTimings timings) {
+        LoggingFlowProcess process = fetchMgr.getProcess();
+        for (FetchTimings.Phase phase : FetchTimings.Phase.values()) {
+            long time = timings.getTime(phase);
+            if (time != FetchTimings.NOT_RECORDED) {
+                process.increment(phase.getCounter(), (int)time);
+            }
+        }
+        
+        fetchMgr.getPhaseTimes().record(timings);
+    }
+    
+    /**
+     * Add <score> to one of the score counters, which are scaled so that fractional
+     * scores aren't lost.
+     * 
+     * @param process
+     * @param counter SCORE_FETCHED, SCORE_SKIPPED or SCORE_FAILED
+     * @param score Sum of URL scores
+     */
+    public static void incrementScore(LoggingFlowProcess process, FetchCounters counter, double score) {
+        process.increment(counter, (int)Math.round(score * SCORE_COUNTER_SCALE));
+    }
+    
+    /**
+     * Pass <item> to <fetchMgr> as skipped (interrupted), so that it doesn't get lost.
+     * 
+     * @param fetchMgr
+     * @param item URL that won't be fetched
+     */
+    static void skip(IFetchMgr fetchMgr, ScoredUrlDatum item) {
+        FetchedDatum result = new FetchedDatum(item);
+        fetchMgr.getProcess().increment(FetchCounters.URLS_SKIPPED, 1);
+        incrementScore(fetchMgr.getProcess(), FetchCounters.SCORE_SKIPPED, item.getScore());
+        AbortedFetchException status = new AbortedFetchException(item.getUrl(), AbortedFetchReason.INTERRUPTED);
+        
+        Tuple tuple = result.getTuple();
+        tuple.add(status);
+        fetchMgr.collect(tuple);
+    }
+
 }
@@ -0,0 +1,146 @@
+package bixo.fetcher;
+
+import java.util.Arrays;
+
+import bixo.hadoop.FetchCounters;
+import bixo.utils.LatencyHistogram;
+
+/**
+ * Time spent in each phase of the current fetch request, for the calling thread.
+ * 
+ * The fetcher (and its HttpClient socket factory & interceptors) add time to each
+ * phase as it happens, since all of that happens on the thread making the request.
+ * If a redirect or retry means a phase happens more than once, the times are summed.
+ * Phases that never happen (e.g. DNS & connect, when a kept-alive connection is
+ * reused) aren't recorded.
+ */
+public class FetchTimings {
+
+    public enum Phase {
+        DNS(FetchCounters.FETCHED_DNS_TIME),
+        CONNECT(FetchCounters.FETCHED_CONNECT_TIME),
+        TLS(FetchCounters.FETCHED_TLS_TIME),
+        FIRST_BYTE(FetchCounters.FETCHED_FIRST_BYTE_TIME),
+        BODY(FetchCounters.FETCHED_BODY_TIME),
+        THROTTLE(FetchCounters.FETCHED_THROTTLE_TIME);    // Included in BODY
+        
+        private FetchCounters _counter;
+        
+        private Phase(FetchCounters counter) {
+            _counter = counter;
+        }
+        
+        public FetchCounters getCounter() {
+            return _counter;
+        }
+    }
+    
+    /**
+     * Histograms of phase times, for all of the requests made by one FetchBuffer.
+     */
+    public static class Histograms {
+        private LatencyHistogram[] _histograms;
+        
+        public Histograms() {
+            _histograms = new LatencyHistogram[Phase.values().length];
+            for (int i = 0; i < _histograms.length; i++) {
+                _histograms[i] = new LatencyHistogram();
+            }
+        }
+        
+        public void record(FetchTimings timings) {
+            for (Phase phase : Phase.values()) {
+                long time = timings.getTime(phase);
+                if (time != NOT_RECORDED) {
+                    _histograms[phase.ordinal()].record(time);
+                }
+            }
+        }
+        
+        public LatencyHistogram getHistogram(Phase phase) {
+            return _histograms[phase.ordinal()];
+        }
+        
+        @Override
+        public String toString() {
+            StringBuilder result = new StringBuilder();
+            for (Phase phase : Phase.values()) {
+                result.append(String.format("%n%s: %s", phase, _histograms[phase.ordinal()]));
+            }
+            
+            return result.toString();
+        }
+    }
+    
+    public static final long NOT_RECORDED = -1;
+
+    private static final ThreadLocal<FetchTimings> TIMINGS = new ThreadLocal<FetchTimings>() {
+        
+        @Override
+        protected FetchTimings initialValue() {
+            return new FetchTimings();
+        }
+    };
+    
+    private long[] _times;
+    private long _requestSentTime;
+    
+    protected FetchTimings() {
+        _times = new long[Phase.values().length];
+        reset();
+    }
+    
+    /**
+     * Return the timings for the current thread.
+     * 
+     * @return thread's fetch timings
+     */
+    public static FetchTimings get() {
+        return TIMINGS.get();
+    }
+    
+    /**
+     * Clear all times, before starting a new fetch.
+     */
+    public void reset() {
+        Arrays.fill(_times, NOT_RECORDED);
+        _requestSentTime = 0;
+    }
+    
+    public void addTime(Phase phase, long time) {
+        int index = phase.ordinal();
+        if (_times[index] == NOT_RECORDED) {
+            _times[index] = time;
+        } else {
+            _times[index] += time;
+        }
+    }
+    
+    /**
+     * Return the total time spent in <phase>, or NOT_RECORDED.
+     * 
+     * @param phase Phase of the request
+     * @return time in milliseconds
+     */
+    public long getTime(Phase phase) {
+        return _times[phase.ordinal()];
+    }
+    
+    /**
+     * Note that the request (on an open connection) is being sent, which starts
+     * the FIRST_BYTE phase.
+     */
+    public void requestSent() {
+        _requestSentTime = System.currentTimeMillis();
+    }
+    
+    /**
+     * Note that we've got the response headers, which ends the FIRST_BYTE phase.
+     */
+    public void responseReceived() {
+        if (_requestSentTime != 0) {
+            addTime(Phase.FIRST_BYTE, System.currentTimeMillis() - _requestSentTime);
+            _requestSentTime = 0;
+        }
+    }
+}
@@ -11,6 +11,7 @@ public class FetchedResult {
     private final String _fetchedUrl;
     private final long _fetchTime;
     private final byte[] _content;
+    private final int _contentLength;
     private final String _contentType;
     private final int _responseRate;
     private final HttpHeaders _headers;
@@ -20,11 +21,31 @@ public class FetchedResult {
 
     private Payload _payload;
     
+    public FetchedResult(   String baseUrl,
+                            String redirectedUrl,
+                            long fetchTime,
+                            HttpHeaders headers, 
+                            byte[] content,
+                            String contentType,
+                            int responseRate,
+                            Payload payload,
+                            String newBaseUrl,
+                            int numRedirects,
+                            String hostAddress){
+        this(baseUrl, redirectedUrl, fetchTime, headers, content, content == null ? 0 : content.length, contentType,
+             responseRate, payload, newBaseUrl, numRedirects, hostAddress);
+    }
+    
+    /**
+     * Create a result where only the first <contentLength> bytes of <content> are valid,
+     * so that the fetcher doesn't need to make an exact-length copy.
+     */
     public FetchedResult(   String baseUrl,
                             String redirectedUrl,
 	                        long fetchTime,
 	                        HttpHeaders headers, 
 	                        byte[] content,
+	                        int contentLength,
 	                        String contentType,
 	                        int responseRate,
 	                        Payload payload,
@@ -49,6 +70,10 @@ public class FetchedResult {
         	throw new InvalidParameterException("content cannot be null");
         }
         
+        if ((contentLength < 0) || (contentLength > content.length)) {
+            throw new InvalidParameterException("contentLength is invalid: " + contentLength);
+        }
+        
         if (contentType == null) {
             throw new InvalidParameterException("contentType cannot be null");
         }
@@ -61,6 +86,7 @@ public class FetchedResult {
         _fetchedUrl = redirectedUrl;
         _fetchTime = fetchTime;
         _content = content;
+        _contentLength = contentLength;
         _contentType = contentType;
         _responseRate = responseRate;
         _headers = headers;
@@ -93,6 +119,10 @@ public class FetchedResult {
 		return _content;
 	}
 
+	public int getContentLength() {
+	    return _contentLength;
+	}
+
 	public String getContentType() {
 		return _contentType;
 	}
@@ -9,8 +9,29 @@ public interface IFetchMgr {
     
     public LoggingFlowProcess getProcess();
     
+    public FetchTimings.Histograms getPhaseTimes();
+    
     public void collect(Tuple tuple);
     
+    /**
+     * Called right before each request for a URL in the <ref> fetch set, so that requests
+     * to the same server (across refs) are spaced out by the min request gap.
+     * 
+     * @param ref Grouping ref for the fetch set
+     * @return 0 if the request can be made now, otherwise the time in milliseconds to
+     * wait before calling this again
+     */
+    public long reserveRequest(String ref);
+    
+    /**
+     * Called after each request for a URL in the <ref> fetch set.
+     * 
+     * @param ref Grouping ref for the fetch set
+     * @param responseTime Time in milliseconds for the request
+     * @param isServerError true for 5xx responses and I/O errors
+     */
+    public void fetched(String ref, long responseTime, boolean isServerError);
+    
     public void finished(String ref);
     
 }
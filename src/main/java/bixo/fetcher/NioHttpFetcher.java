@@ -0,0 +1,1039 @@
+package bixo.fetcher;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+
+import org.apache.http.ConnectionReuseStrategy;
+import org.apache.http.Header;
+import org.apache.http.HttpException;
+import org.apache.http.HttpInetConnection;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.impl.DefaultConnectionReuseStrategy;
+import org.apache.http.impl.nio.DefaultClientIOEventDispatch;
+import org.apache.http.impl.nio.SSLClientIOEventDispatch;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.NHttpClientConnection;
+import org.apache.http.nio.NHttpConnection;
+import org.apache.http.nio.entity.ConsumingNHttpEntity;
+import org.apache.http.nio.entity.ConsumingNHttpEntityTemplate;
+import org.apache.http.nio.entity.ContentListener;
+import org.apache.http.nio.protocol.AsyncNHttpClientHandler;
+import org.apache.http.nio.protocol.EventListener;
+import org.apache.http.nio.protocol.NHttpRequestExecutionHandler;
+import org.apache.http.nio.reactor.ConnectingIOReactor;
+import org.apache.http.nio.reactor.IOEventDispatch;
+import org.apache.http.nio.reactor.SessionRequest;
+import org.apache.http.nio.reactor.SessionRequestCallback;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.BasicHttpProcessor;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.RequestConnControl;
+import org.apache.http.protocol.RequestContent;
+import org.apache.log4j.Logger;
+
+import com.bixolabs.cascading.Payload;
+
+import bixo.config.FetcherPolicy;
+import bixo.config.UserAgent;
+import bixo.config.FetcherPolicy.RedirectMode;
+import bixo.datum.FetchedDatum;
+import bixo.datum.HttpHeaders;
+import bixo.datum.ScoredUrlDatum;
+import bixo.exceptions.AbortedFetchException;
+import bixo.exceptions.AbortedFetchReason;
+import bixo.exceptions.BaseFetchException;
+import bixo.exceptions.HttpFetchException;
+import bixo.exceptions.IOFetchException;
+import bixo.exceptions.RedirectFetchException;
+import bixo.exceptions.UrlFetchException;
+import bixo.exceptions.RedirectFetchException.RedirectExceptionReason;
+import bixo.utils.EncodingUtils;
+import bixo.utils.HttpUtils;
+import bixo.utils.TimerWheel;
+import bixo.utils.EncodingUtils.ExpandedResult;
+
+/**
+ * Fetcher that uses non-blocking I/O (HttpCore NIO) to handle many concurrent requests
+ * with a small number of I/O threads.
+ *
+ * Note that this only saves threads for callers of submit(). get() waits on the result,
+ * so when this is used in place of SimpleHttpFetcher by FetchTask or SpacedFetchTask
+ * (which is how FetchBuffer uses every fetcher), each in-flight request still ties up
+ * one of the fetch threads, and maxThreads still limits the number of concurrent
+ * requests. The socket I/O itself is still all done by the I/O threads.
+ *
+ * Connections are kept alive (per scheme/host/port) between requests, so a FetchTask
+ * that fetches a set of URLs from one server will reuse the same connection.
+ *
+ * The policy's max bandwidth is enforced without blocking the I/O threads - when a read
+ * puts the fetcher over its limit, input from that connection is suspended until the
+ * limiter has caught up.
+ */
+@SuppressWarnings("serial")
+public class NioHttpFetcher extends BaseFetcher {
+    private static Logger LOGGER = Logger.getLogger(NioHttpFetcher.class);
+
+    private static final int DEFAULT_SOCKET_TIMEOUT = 30 * 1000;
+    private static final int DEFAULT_CONNECTION_TIMEOUT = 30 * 1000;
+    private static final int DEFAULT_IO_THREADS = 2;
+
+    private static final int DEFAULT_MAX_THREADS = 1;
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+    private static final int DEFAULT_BYTEARRAY_SIZE = 32 * 1024;
+
+    // How long we'll keep an idle connection around for reuse.
+    private static final long MAX_IDLE_TIME = 10 * 1000L;
+
+    // Keys used to access data in the connection's context.
+    private static final String FETCH_STATE_CONTEXT_KEY = "bixo-fetch-state";
+    private static final String CONNECTION_CONTEXT_KEY = "bixo-connection";
+
+    private static final String SSL_CONTEXT_NAMES[] = {
+        "TLS",
+        "Default",
+        "SSL",
+    };
+
+    private int _socketTimeout;
+    private int _connectionTimeout;
+    private int _ioThreads;
+
+    private transient ConnectingIOReactor _plainReactor;
+    private transient ConnectingIOReactor _sslReactor;
+    private transient ConnectionReuseStrategy _reuseStrategy;
+    private transient Map<String, LinkedList<IdleConnection>> _idleConnections;
+    private transient TimerWheel _resumeTimer;
+
+    private static class IdleConnection {
+        private NHttpClientConnection _conn;
+        private long _idleTime;
+
+        public IdleConnection(NHttpClientConnection conn) {
+            _conn = conn;
+            _idleTime = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * State of one fetch request, which can span several HTTP requests if there are
+     * redirects. This is also the Future that callers of submit() wait on.
+     */
+    private class FetchState implements Future<FetchedDatum> {
+        private String _url;
+        private Payload _payload;
+
+        private URI _curUri;
+        private InetAddress _hostAddress;
+        private int _numRedirects;
+        private URI _permRedirectUri;
+        private boolean _retried;
+
+        // Per-response state
+        private NHttpClientConnection _conn;
+        private boolean _requestSent;
+        private boolean _responseStarted;
+        private HttpHeaders _headers;
+        private String _contentType;
+        private String _mimeType;
+        private ByteArrayOutputStream _content;
+        private int _targetLength;
+        private boolean _truncated;
+        private long _readStartTime;
+        private long _readRate;
+        private int _readRequests;
+        private long _throttleTime;
+
+        // Grabbed when the fetch is submitted, so reactor threads never need the fetcher's lock.
+        private BandwidthLimiter _limiter;
+        private TimerWheel _resumeTimer;
+
+        private boolean _done;
+        private FetchedResult _result;
+        private BaseFetchException _exception;
+
+        public FetchState(String url, Payload payload) {
+            _url = url;
+            _payload = payload;
+            _numRedirects = 0;
+            _retried = false;
+        }
+
+        public synchronized void succeed(FetchedResult result) {
+            if (!_done) {
+                _result = result;
+                _done = true;
+                notifyAll();
+            }
+        }
+
+        public synchronized void fail(BaseFetchException e) {
+            if (!_done) {
+                _exception = e;
+                _done = true;
+                notifyAll();
+            }
+        }
+
+        @Override
+        public synchronized boolean isDone() {
+            return _done;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            fail(new AbortedFetchException(_url, AbortedFetchReason.INTERRUPTED));
+            closeConnection(this);
+            return true;
+        }
+
+        @Override
+        public synchronized FetchedDatum get() throws InterruptedException, ExecutionException {
+            while (!_done) {
+                wait();
+            }
+
+            return getResult();
+        }
+
+        @Override
+        public synchronized FetchedDatum get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            long endTime = System.currentTimeMillis() + unit.toMillis(timeout);
+            while (!_done) {
+                long waitTime = endTime - System.currentTimeMillis();
+                if (waitTime <= 0) {
+                    throw new TimeoutException("Timeout fetching " + _url);
+                }
+
+                wait(waitTime);
+            }
+
+            return getResult();
+        }
+
+        private FetchedDatum getResult() throws ExecutionException {
+            if (_exception != null) {
+                throw new ExecutionException(_exception);
+            } else {
+                return SimpleHttpFetcher.convert(_result);
+            }
+        }
+    }
+
+    private class MySessionRequestCallback implements SessionRequestCallback {
+
+        @Override
+        public void completed(SessionRequest request) {
+            // Nothing to do, the handler will call initalizeContext.
+        }
+
+        @Override
+        public void failed(SessionRequest request) {
+            FetchState state = (FetchState)request.getAttachment();
+            IOException e = request.getException();
+            state.fail(new IOFetchException(state._url, e == null ? new IOException("Connection failed") : e));
+        }
+
+        @Override
+        public void timeout(SessionRequest request) {
+            FetchState state = (FetchState)request.getAttachment();
+            state.fail(new IOFetchException(state._url, new SocketTimeoutException("Connect timed out")));
+        }
+
+        @Override
+        public void cancelled(SessionRequest request) {
+            FetchState state = (FetchState)request.getAttachment();
+            state.fail(new AbortedFetchException(state._url, AbortedFetchReason.INTERRUPTED));
+        }
+    }
+
+    /**
+     * Copies response content into the FetchState as it arrives, until we've got
+     * as much as we want.
+     */
+    private class MyContentListener implements ContentListener {
+        private FetchState _state;
+        private ByteBuffer _buffer;
+
+        public MyContentListener(FetchState state) {
+            _state = state;
+            _buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        }
+
+        @Override
+        public void contentAvailable(ContentDecoder decoder, IOControl ioctrl) throws IOException {
+            int bytesRead;
+            while ((bytesRead = decoder.read(_buffer)) > 0) {
+                _buffer.flip();
+                int bytesToCopy = Math.min(bytesRead, _state._targetLength - _state._content.size());
+                _state._content.write(_buffer.array(), 0, bytesToCopy);
+                _buffer.clear();
+                _state._readRequests += 1;
+
+                // We can't sleep on the reactor thread, so if we're over the bandwidth limit
+                // we'll stop reading from this connection for a while (see below).
+                long waitTime = _state._limiter.reserve(bytesRead);
+
+                // Assume read time is at least one millisecond, to avoid DBZ exception. Time spent
+                // paused by the bandwidth limiter doesn't count against the server.
+                long totalReadTime = Math.max(1, System.currentTimeMillis() - _state._readStartTime - _state._throttleTime);
+                _state._readRate = (_state._content.size() * 1000L) / totalReadTime;
+
+                if (_state._content.size() >= _state._targetLength) {
+                    // We've got all we want, so finish up without reading the rest.
+                    if (!decoder.isCompleted()) {
+                        _state._truncated = true;
+                        _state._conn = null;
+                        finishContent(_state);
+                        ioctrl.shutdown();
+                    }
+
+                    return;
+                }
+
+                // Don't bail on the first read cycle, as we can get a hiccup starting out.
+                if ((_state._readRequests > 1) && (_state._readRate < _fetcherPolicy.getMinResponseRate())) {
+                    _state.fail(new AbortedFetchException(_state._url, "Slow response rate of " + _state._readRate + " bytes/sec", AbortedFetchReason.SLOW_RESPONSE_RATE));
+                    _state._conn = null;
+                    ioctrl.shutdown();
+                    return;
+                }
+
+                if (waitTime > 0) {
+                    _state._throttleTime += waitTime;
+                    ioctrl.suspendInput();
+                    resumeInput(ioctrl, waitTime);
+                    return;
+                }
+            }
+        }
+
+        private void resumeInput(final IOControl ioctrl, long delay) {
+            if (_state._resumeTimer == null) {
+                LOGGER.debug("Can't resume reading after abort: " + _state._url);
+                return;
+            }
+
+            try {
+                _state._resumeTimer.schedule(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        ioctrl.requestInput();
+                    }
+                }, delay);
+            } catch (IllegalStateException e) {
+                // We've been aborted, so the connection is getting closed anyway.
+                LOGGER.debug("Can't resume reading after abort: " + _state._url);
+            }
+        }
+
+        @Override
+        public void finished() {
+            // Nothing to do here, handleResponse will get called.
+        }
+    }
+
+    private class MyExecutionHandler implements NHttpRequestExecutionHandler {
+
+        @Override
+        public void initalizeContext(HttpContext context, Object attachment) {
+            context.setAttribute(FETCH_STATE_CONTEXT_KEY, attachment);
+        }
+
+        @Override
+        public HttpRequest submitRequest(HttpContext context) {
+            FetchState state = (FetchState)context.getAttribute(FETCH_STATE_CONTEXT_KEY);
+            if ((state == null) || state._requestSent || state.isDone()) {
+                return null;
+            }
+
+            state._conn = (NHttpClientConnection)context.getAttribute(CONNECTION_CONTEXT_KEY);
+            if (state._conn instanceof HttpInetConnection) {
+                state._hostAddress = ((HttpInetConnection)state._conn).getRemoteAddress();
+            }
+
+            state._requestSent = true;
+            state._responseStarted = false;
+            state._readStartTime = System.currentTimeMillis();
+            return makeRequest(state._curUri);
+        }
+
+        @Override
+        public ConsumingNHttpEntity responseEntity(HttpResponse response, HttpContext context) throws IOException {
+            FetchState state = (FetchState)context.getAttribute(FETCH_STATE_CONTEXT_KEY);
+            if ((state == null) || state.isDone()) {
+                return null;
+            }
+
+            state._responseStarted = true;
+            state._headers = new HttpHeaders();
+            for (Header header : response.getAllHeaders()) {
+                state._headers.add(header.getName(), header.getValue());
+            }
+
+            int httpStatus = response.getStatusLine().getStatusCode();
+            if ((httpStatus < 200) || (httpStatus >= 300)) {
+                // Let handleResponse deal with errors and redirects, once the body has been discarded.
+                return null;
+            }
+
+            Header cth = response.getFirstHeader(HttpHeaderNames.CONTENT_TYPE);
+            state._contentType = (cth == null) ? "" : cth.getValue();
+            state._mimeType = HttpUtils.getMimeTypeFromContentType(state._contentType);
+
+            // Check if we should abort due to mime-type filtering (see SimpleHttpFetcher for details).
+            Set<String> mimeTypes = _fetcherPolicy.getValidMimeTypes();
+            if ((mimeTypes != null) && (mimeTypes.size() > 0) && !mimeTypes.contains(state._mimeType)) {
+                state.fail(new AbortedFetchException(state._url, "Invalid mime-type: " + state._mimeType, AbortedFetchReason.INVALID_MIMETYPE));
+                closeConnection(state);
+                return null;
+            }
+
+            // Figure out how much data we want to try to fetch.
+            state._targetLength = getMaxContentSize(state._mimeType);
+            state._truncated = false;
+            state._throttleTime = 0;
+            String contentLengthStr = state._headers.getFirst(HttpHeaderNames.CONTENT_LENGTH);
+            if (contentLengthStr != null) {
+                try {
+                    int contentLength = Integer.parseInt(contentLengthStr);
+                    if (contentLength > state._targetLength) {
+                        state._truncated = true;
+                    } else {
+                        state._targetLength = contentLength;
+                    }
+                } catch (NumberFormatException e) {
+                    LOGGER.warn("Invalid content length in header: " + contentLengthStr);
+                }
+            }
+
+            state._content = new ByteArrayOutputStream(Math.min(DEFAULT_BYTEARRAY_SIZE, Math.max(1, state._targetLength)));
+            state._readRate = 0;
+            state._readRequests = 0;
+
+            return new ConsumingNHttpEntityTemplate(response.getEntity(), new MyContentListener(state));
+        }
+
+        @Override
+        public void handleResponse(HttpResponse response, HttpContext context) throws IOException {
+            FetchState state = (FetchState)context.getAttribute(FETCH_STATE_CONTEXT_KEY);
+            context.removeAttribute(FETCH_STATE_CONTEXT_KEY);
+
+            boolean keepAlive = _reuseStrategy.keepAlive(response, context);
+            NHttpClientConnection conn = (NHttpClientConnection)context.getAttribute(CONNECTION_CONTEXT_KEY);
+
+            if ((state != null) && !state.isDone()) {
+                int httpStatus = response.getStatusLine().getStatusCode();
+                if ((httpStatus >= 200) && (httpStatus < 300)) {
+                    finishContent(state);
+                } else if (isRedirect(httpStatus) && (_fetcherPolicy.getMaxRedirects() > 0)) {
+                    // Release the connection first, as the redirect might be to the same server.
+                    if (keepAlive && (conn != null)) {
+                        releaseConnection(state._curUri, conn);
+                        keepAlive = false;
+                    }
+
+                    handleRedirect(state, httpStatus);
+                } else {
+                    state.fail(new HttpFetchException(state._url, "Error fetching " + state._url, httpStatus, state._headers));
+                }
+            }
+
+            if (keepAlive && (conn != null) && (state != null)) {
+                releaseConnection(state._curUri, conn);
+            }
+        }
+
+        @Override
+        public void finalizeContext(HttpContext context) {
+            // The connection has been closed, so if we were in the middle of a request we need to
+            // either retry it (server closed an idle kept-alive connection on us) or fail it.
+            FetchState state = (FetchState)context.getAttribute(FETCH_STATE_CONTEXT_KEY);
+            context.removeAttribute(FETCH_STATE_CONTEXT_KEY);
+
+            if ((state != null) && !state.isDone()) {
+                if (!state._responseStarted && !state._retried) {
+                    state._retried = true;
+                    startRequest(state);
+                } else {
+                    state.fail(new IOFetchException(state._url, new IOException("Connection closed")));
+                }
+            }
+        }
+    }
+
+    private class MyEventListener implements EventListener {
+
+        @Override
+        public void connectionOpen(NHttpConnection conn) {
+            conn.getContext().setAttribute(CONNECTION_CONTEXT_KEY, conn);
+        }
+
+        @Override
+        public void connectionTimeout(NHttpConnection conn) {
+            FetchState state = (FetchState)conn.getContext().getAttribute(FETCH_STATE_CONTEXT_KEY);
+            if (state != null) {
+                state.fail(new IOFetchException(state._url, new SocketTimeoutException("Read timed out")));
+            }
+        }
+
+        @Override
+        public void fatalIOException(IOException e, NHttpConnection conn) {
+            FetchState state = (FetchState)conn.getContext().getAttribute(FETCH_STATE_CONTEXT_KEY);
+            if ((state != null) && state._responseStarted) {
+                state.fail(new IOFetchException(state._url, e));
+            }
+        }
+
+        @Override
+        public void fatalProtocolException(HttpException e, NHttpConnection conn) {
+            FetchState state = (FetchState)conn.getContext().getAttribute(FETCH_STATE_CONTEXT_KEY);
+            if (state != null) {
+                state.fail(new IOFetchException(state._url, new IOException(e)));
+            }
+        }
+
+        @Override
+        public void connectionClosed(NHttpConnection conn) {
+            removeIdleConnection(conn);
+        }
+    }
+
+    public NioHttpFetcher(UserAgent userAgent) {
+        this(DEFAULT_MAX_THREADS, userAgent);
+    }
+
+    public NioHttpFetcher(int maxThreads, UserAgent userAgent) {
+        this(maxThreads, new FetcherPolicy(), userAgent);
+    }
+
+    public NioHttpFetcher(int maxThreads, FetcherPolicy fetcherPolicy, UserAgent userAgent) {
+        super(maxThreads, fetcherPolicy, userAgent);
+
+        _socketTimeout = DEFAULT_SOCKET_TIMEOUT;
+        _connectionTimeout = DEFAULT_CONNECTION_TIMEOUT;
+        _ioThreads = DEFAULT_IO_THREADS;
+
+        // Just to be explicit, we rely on lazy initialization of the reactors so that
+        // we don't have to worry about serializing them.
+        _plainReactor = null;
+        _sslReactor = null;
+    }
+
+    public int getSocketTimeout() {
+        return _socketTimeout;
+    }
+
+    public void setSocketTimeout(int socketTimeoutInMs) {
+        if (_plainReactor == null) {
+            _socketTimeout = socketTimeoutInMs;
+        } else {
+            throw new IllegalStateException("Can't change socket timeout after I/O reactor has been initialized");
+        }
+    }
+
+    public int getConnectionTimeout() {
+        return _connectionTimeout;
+    }
+
+    public void setConnectionTimeout(int connectionTimeoutInMs) {
+        if (_plainReactor == null) {
+            _connectionTimeout = connectionTimeoutInMs;
+        } else {
+            throw new IllegalStateException("Can't change connection timeout after I/O reactor has been initialized");
+        }
+    }
+
+    public int getIoThreads() {
+        return _ioThreads;
+    }
+
+    public void setIoThreads(int ioThreads) {
+        if (_plainReactor == null) {
+            _ioThreads = ioThreads;
+        } else {
+            throw new IllegalStateException("Can't change I/O thread count after I/O reactor has been initialized");
+        }
+    }
+
+    /**
+     * Fetch <scoredUrl>, blocking the calling thread until the result is available (or the
+     * request timeout has passed). Use submit() to avoid tying up a thread per request.
+     */
+    @Override
+    public FetchedDatum get(ScoredUrlDatum scoredUrl) throws BaseFetchException {
+        Future<FetchedDatum> result = submit(scoredUrl);
+
+        try {
+            return result.get(_fetcherPolicy.getRequestTimeout(), TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            BaseFetchException fe = (BaseFetchException)e.getCause();
+            if (fe instanceof HttpFetchException) {
+                // Don't bother generating a trace for a 404 (not found)
+                if (LOGGER.isTraceEnabled() && (((HttpFetchException)fe).getHttpStatus() != HttpStatus.SC_NOT_FOUND)) {
+                    LOGGER.trace(String.format("Exception fetching %s (%s)", scoredUrl.getUrl(), fe.getMessage()));
+                }
+            } else if (!(fe instanceof AbortedFetchException) || (((AbortedFetchException)fe).getAbortReason() != AbortedFetchReason.INVALID_MIMETYPE)) {
+                LOGGER.debug(String.format("Exception fetching %s (%s)", scoredUrl.getUrl(), fe.getMessage()));
+            }
+
+            throw fe;
+        } catch (TimeoutException e) {
+            result.cancel(true);
+            throw new IOFetchException(scoredUrl.getUrl(), new InterruptedIOException(e.getMessage()));
+        } catch (InterruptedException e) {
+            result.cancel(true);
+            throw new AbortedFetchException(scoredUrl.getUrl(), AbortedFetchReason.INTERRUPTED);
+        }
+    }
+
+    /**
+     * Start fetching <scoredUrl>, without waiting for the result. Any problem with the fetch
+     * will be reported as an ExecutionException that wraps a BaseFetchException.
+     *
+     * @param scoredUrl URL to fetch
+     * @return future result of the fetch
+     */
+    public Future<FetchedDatum> submit(ScoredUrlDatum scoredUrl) {
+        init();
+
+        String url = scoredUrl.getUrl();
+        LOGGER.trace("Fetching " + url);
+
+        FetchState state = new FetchState(url, scoredUrl.getPayload());
+        state._limiter = getBandwidthLimiter();
+        state._limiter.setMaxBytesPerSecond(_fetcherPolicy.getMaxBandwidth());
+        state._resumeTimer = _resumeTimer;
+
+        try {
+            state._curUri = new URI(url);
+            startRequest(state);
+        } catch (URISyntaxException e) {
+            state.fail(new UrlFetchException(url, e.getMessage()));
+        }
+
+        return state;
+    }
+
+    /**
+     * Start the next HTTP request for <state>, using a kept-alive connection if we have one.
+     * This gets called from I/O reactor threads (for redirects and retries), so it must never
+     * block - new connections are opened once the host has been resolved asynchronously.
+     *
+     * @param state
+     */
+    private void startRequest(final FetchState state) {
+        URI uri = state._curUri;
+        String scheme = uri.getScheme();
+        String host = uri.getHost();
+        if ((scheme == null) || (host == null)) {
+            state.fail(new UrlFetchException(state._url, "Invalid URL: " + uri));
+            return;
+        }
+
+        boolean isSsl = scheme.equalsIgnoreCase("https");
+        if (!isSsl && !scheme.equalsIgnoreCase("http")) {
+            state.fail(new UrlFetchException(state._url, "Unsupported protocol: " + scheme));
+            return;
+        } else if (isSsl && (_sslReactor == null)) {
+            state.fail(new UrlFetchException(state._url, "No valid SSLContext found for https"));
+            return;
+        }
+
+        state._requestSent = false;
+        state._responseStarted = false;
+
+        NHttpClientConnection conn = getIdleConnection(uri);
+        if (conn != null) {
+            conn.getContext().setAttribute(FETCH_STATE_CONTEXT_KEY, state);
+            conn.requestOutput();
+            return;
+        }
+
+        final ConnectingIOReactor reactor = isSsl ? _sslReactor : _plainReactor;
+        final int port = getPort(uri);
+        _hostResolver.resolveAsync(host, new BaseHostResolver.ResolveCallback() {
+
+            @Override
+            public void resolved(InetAddress address) {
+                // The request might have timed out while we were waiting on the lookup.
+                if (state.isDone()) {
+                    return;
+                }
+                
+                state._hostAddress = address;
+                reactor.connect(new InetSocketAddress(address, port), null, state, new MySessionRequestCallback());
+            }
+
+            @Override
+            public void failed(UnknownHostException e) {
+                state.fail(new IOFetchException(state._url, e));
+            }
+        });
+    }
+
+    private HttpRequest makeRequest(URI uri) {
+        String path = uri.getRawPath();
+        if ((path == null) || (path.length() == 0)) {
+            path = "/";
+        }
+
+        if (uri.getRawQuery() != null) {
+            path = path + "?" + uri.getRawQuery();
+        }
+
+        HttpRequest request = new BasicHttpRequest("GET", path, HttpVersion.HTTP_1_1);
+        String host = uri.getHost();
+        if (uri.getPort() != -1) {
+            host = host + ":" + uri.getPort();
+        }
+
+        request.addHeader("Host", host);
+        request.addHeader("User-Agent", _userAgent.getUserAgentString());
+        request.addHeader(HttpHeaderNames.ACCEPT_LANGUAGE, _fetcherPolicy.getAcceptLanguage());
+        request.addHeader(HttpHeaderNames.ACCEPT_CHARSET, SimpleHttpFetcher.DEFAULT_ACCEPT_CHARSET);
+        request.addHeader(HttpHeaderNames.ACCEPT_ENCODING, SimpleHttpFetcher.DEFAULT_ACCEPT_ENCODING);
+        request.addHeader(HttpHeaderNames.ACCEPT, SimpleHttpFetcher.DEFAULT_ACCEPT);
+        return request;
+    }
+
+    private void handleRedirect(FetchState state, int httpStatus) {
+        String location = state._headers.getFirst(HttpHeaderNames.LOCATION);
+        if (location == null) {
+            state.fail(new HttpFetchException(state._url, "Redirect without location for " + state._url, httpStatus, state._headers));
+            return;
+        }
+
+        URI redirectUri;
+        try {
+            redirectUri = state._curUri.resolve(new URI(location.trim()));
+
+            // See the comment in SimpleHttpFetcher.MyRedirectHandler about explicit default ports.
+            if (redirectUri.getScheme().equalsIgnoreCase("http") && (redirectUri.getPort() == 80)) {
+                redirectUri = new URI(redirectUri.getScheme(), redirectUri.getUserInfo(), redirectUri.getHost(), -1, redirectUri.getPath(), redirectUri.getQuery(), redirectUri.getFragment());
+            }
+        } catch (URISyntaxException e) {
+            state.fail(new UrlFetchException(state._url, "Invalid redirect location: " + location));
+            return;
+        }
+
+        boolean isPermRedirect = httpStatus == HttpStatus.SC_MOVED_PERMANENTLY;
+        RedirectMode redirectMode = _fetcherPolicy.getRedirectMode();
+        if ((redirectMode == RedirectMode.FOLLOW_NONE) ||
+            ((redirectMode == RedirectMode.FOLLOW_TEMP) && isPermRedirect)) {
+            RedirectExceptionReason reason = isPermRedirect ? RedirectExceptionReason.PERM_REDIRECT_DISALLOWED :
+                RedirectExceptionReason.TEMP_REDIRECT_DISALLOWED;
+            state.fail(new RedirectFetchException(state._url, toUrl(redirectUri, state._url), reason));
+            return;
+        }
+
+        if (state._numRedirects >= _fetcherPolicy.getMaxRedirects()) {
+            state.fail(new RedirectFetchException(state._url, toUrl(state._curUri, state._url), RedirectExceptionReason.TOO_MANY_REDIRECTS));
+            return;
+        }
+
+        state._numRedirects += 1;
+        if (isPermRedirect) {
+            state._permRedirectUri = redirectUri;
+        }
+
+        state._curUri = redirectUri;
+        state._retried = false;
+        startRequest(state);
+    }
+
+    /**
+     * We've read all of the content we're going to get, so build the result.
+     *
+     * @param state
+     */
+    private void finishContent(FetchState state) {
+        String url = state._url;
+        byte[] content = state._content.toByteArray();
+        boolean truncated = state._truncated;
+
+        // Toss truncated image content.
+        if (truncated && !SimpleHttpFetcher.isTextMimeType(state._mimeType)) {
+            state.fail(new AbortedFetchException(url, "Truncated image", AbortedFetchReason.CONTENT_SIZE));
+            return;
+        }
+
+        // Now see if we need to decode the content. If the encoded data got truncated, we'll
+        // still get back whatever could be decoded (flagged as truncated).
+        String contentEncoding = state._headers.getFirst(HttpHeaderNames.CONTENT_ENCODING);
+        if (EncodingUtils.isSupportedEncoding(contentEncoding)) {
+            try {
+                ExpandedResult expandedResult = EncodingUtils.processEncoded(content, content.length, contentEncoding, getMaxContentSize(state._mimeType));
+                if (expandedResult.isTruncated() && !SimpleHttpFetcher.isTextMimeType(state._mimeType)) {
+                    state.fail(new AbortedFetchException(url, "Truncated decompressed image", AbortedFetchReason.CONTENT_SIZE));
+                    return;
+                }
+
+                content = Arrays.copyOf(expandedResult.getExpanded(), expandedResult.getLength());
+            } catch (IOException e) {
+                state.fail(new IOFetchException(url, e));
+                return;
+            }
+        }
+
+        String newBaseUrl = null;
+        if (state._permRedirectUri != null) {
+            newBaseUrl = toUrl(state._permRedirectUri, null);
+        }
+
+        String hostAddress = (state._hostAddress == null) ? "" : state._hostAddress.getHostAddress();
+        state.succeed(new FetchedResult(url,
+                                        toUrl(state._curUri, url),
+                                        System.currentTimeMillis(),
+                                        state._headers,
+                                        content,
+                                        state._contentType,
+                                        (int)state._readRate,
+                                        state._payload,
+                                        newBaseUrl,
+                                        state._numRedirects,
+                                        hostAddress));
+    }
+
+    private static boolean isRedirect(int httpStatus) {
+        return (httpStatus == HttpStatus.SC_MOVED_PERMANENTLY)
+            || (httpStatus == HttpStatus.SC_MOVED_TEMPORARILY)
+            || (httpStatus == HttpStatus.SC_SEE_OTHER)
+            || (httpStatus == HttpStatus.SC_TEMPORARY_REDIRECT);
+    }
+
+    private static String toUrl(URI uri, String defaultUrl) {
+        try {
+            return uri.toURL().toExternalForm();
+        } catch (MalformedURLException e) {
+            LOGGER.warn("Invalid URI: " + uri);
+            return defaultUrl;
+        } catch (IllegalArgumentException e) {
+            LOGGER.warn("Invalid URI: " + uri);
+            return defaultUrl;
+        }
+    }
+
+    private static int getPort(URI uri) {
+        if (uri.getPort() != -1) {
+            return uri.getPort();
+        } else {
+            return uri.getScheme().equalsIgnoreCase("https") ? 443 : 80;
+        }
+    }
+
+    private static String getConnectionKey(URI uri) {
+        return uri.getScheme().toLowerCase() + "://" + uri.getHost().toLowerCase() + ":" + getPort(uri);
+    }
+
+    private NHttpClientConnection getIdleConnection(URI uri) {
+        String key = getConnectionKey(uri);
+        long oldestIdleTime = System.currentTimeMillis() - MAX_IDLE_TIME;
+
+        synchronized (_idleConnections) {
+            LinkedList<IdleConnection> conns = _idleConnections.get(key);
+            while ((conns != null) && !conns.isEmpty()) {
+                IdleConnection idle = conns.removeLast();
+                if (idle._conn.isOpen() && (idle._idleTime >= oldestIdleTime)) {
+                    return idle._conn;
+                }
+
+                safeClose(idle._conn);
+            }
+        }
+
+        return null;
+    }
+
+    private void releaseConnection(URI uri, NHttpClientConnection conn) {
+        if (!conn.isOpen()) {
+            return;
+        }
+
+        String key = getConnectionKey(uri);
+        synchronized (_idleConnections) {
+            LinkedList<IdleConnection> conns = _idleConnections.get(key);
+            if (conns == null) {
+                conns = new LinkedList<IdleConnection>();
+                _idleConnections.put(key, conns);
+            }
+
+            conns.add(new IdleConnection(conn));
+        }
+    }
+
+    private void removeIdleConnection(NHttpConnection conn) {
+        synchronized (_idleConnections) {
+            Iterator<LinkedList<IdleConnection>> iter = _idleConnections.values().iterator();
+            while (iter.hasNext()) {
+                LinkedList<IdleConnection> conns = iter.next();
+                Iterator<IdleConnection> connIter = conns.iterator();
+                while (connIter.hasNext()) {
+                    if (connIter.next()._conn == conn) {
+                        connIter.remove();
+                    }
+                }
+
+                if (conns.isEmpty()) {
+                    iter.remove();
+                }
+            }
+        }
+    }
+
+    private void closeConnection(FetchState state) {
+        NHttpClientConnection conn = state._conn;
+        state._conn = null;
+        safeClose(conn);
+    }
+
+    private static void safeClose(NHttpConnection conn) {
+        if (conn != null) {
+            try {
+                conn.shutdown();
+            } catch (IOException e) {
+                // Ignore any errors
+            }
+        }
+    }
+
+    private synchronized void init() {
+        if (_plainReactor == null) {
+            _resumeTimer = new TimerWheel();
+
+            HttpParams params = new BasicHttpParams();
+            HttpConnectionParams.setSoTimeout(params, _socketTimeout);
+            HttpConnectionParams.setConnectionTimeout(params, _connectionTimeout);
+            HttpConnectionParams.setSocketBufferSize(params, BUFFER_SIZE);
+            HttpConnectionParams.setStaleCheckingEnabled(params, false);
+            HttpConnectionParams.setTcpNoDelay(params, true);
+            HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+            HttpProtocolParams.setUserAgent(params, _userAgent.getUserAgentString());
+
+            BasicHttpProcessor httpProcessor = new BasicHttpProcessor();
+            httpProcessor.addInterceptor(new RequestContent());
+            httpProcessor.addInterceptor(new RequestConnControl());
+
+            _reuseStrategy = new DefaultConnectionReuseStrategy();
+            _idleConnections = new HashMap<String, LinkedList<IdleConnection>>();
+
+            AsyncNHttpClientHandler handler = new AsyncNHttpClientHandler(httpProcessor, new MyExecutionHandler(), _reuseStrategy, params);
+            handler.setEventListener(new MyEventListener());
+
+            try {
+                _plainReactor = new DefaultConnectingIOReactor(_ioThreads, params);
+                startReactor(_plainReactor, new DefaultClientIOEventDispatch(handler, params), "plain");
+            } catch (IOException e) {
+                throw new RuntimeException("Can't create I/O reactor", e);
+            }
+
+            SSLContext sslContext = null;
+            for (String contextName : SSL_CONTEXT_NAMES) {
+                try {
+                    sslContext = SSLContext.getInstance(contextName);
+                    sslContext.init(null, new TrustManager[] { new DummyX509TrustManager(null) }, null);
+                    break;
+                } catch (NoSuchAlgorithmException e) {
+                    LOGGER.debug("SSLContext algorithm not available: " + contextName);
+                    sslContext = null;
+                } catch (Exception e) {
+                    LOGGER.debug("SSLContext can't be initialized: " + contextName, e);
+                    sslContext = null;
+                }
+            }
+
+            if (sslContext != null) {
+                try {
+                    _sslReactor = new DefaultConnectingIOReactor(_ioThreads, params);
+                    startReactor(_sslReactor, new SSLClientIOEventDispatch(handler, sslContext, params), "ssl");
+                } catch (IOException e) {
+                    LOGGER.warn("Can't create I/O reactor for https", e);
+                    _sslReactor = null;
+                }
+            } else {
+                LOGGER.warn("No valid SSLContext found for https");
+            }
+        }
+    }
+
+    private static void startReactor(final ConnectingIOReactor reactor, final IOEventDispatch dispatch, String name) {
+        Thread t = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    reactor.execute(dispatch);
+                } catch (InterruptedIOException e) {
+                    LOGGER.debug("I/O reactor interrupted");
+                } catch (IOException e) {
+                    LOGGER.error("I/O reactor terminated unexpectedly", e);
+                }
+            }
+        }, "NioHttpFetcher-" + name);
+
+        t.setDaemon(true);
+        t.start();
+    }
+
+    @Override
+    public synchronized void abort() {
+        // Shutting down the reactors closes all connections, which fails any active requests.
+        try {
+            if (_plainReactor != null) {
+                _plainReactor.shutdown();
+            }
+
+            if (_sslReactor != null) {
+                _sslReactor.shutdown();
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Exception shutting down I/O reactors", e);
+        } finally {
+            _plainReactor = null;
+            _sslReactor = null;
+
+            if (_resumeTimer != null) {
+                _resumeTimer.stop();
+                _resumeTimer = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package bixo.fetcher;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Politeness limits that apply to a server (IP address), no matter how many grouping
+ * refs it shows up under: the max number of fetch sets being fetched from it at the
+ * same time, and the min time between one request and the next.
+ *
+ * Fetch sets are only started (acquire()) when the server is ready, and then every request
+ * in the set has to reserve its turn (reserveRequest()) right before it's made, so the gap
+ * applies to each request, not just to the start of each set.
+ *
+ * State is kept in a fixed number of stripes, each with its own lock, so fetch threads
+ * releasing different servers don't contend with each other or with the dispatcher.
+ * Servers only have state while they're active, or waiting out the min request gap.
+ */
+public class PerIpRateLimiter {
+
+    // Ready time for a server that's already at the max number of connections.
+    public static final long AT_CAPACITY = Long.MAX_VALUE;
+
+    public static final int NO_MAX_CONNECTIONS = Integer.MAX_VALUE;
+
+    private static final int NUM_STRIPES = 64;
+
+    private static class IpState {
+        private int _numActive;
+        private long _nextRequestTime;
+    }
+
+    private int _maxConnectionsPerIp;
+    private long _minRequestGap;
+
+    private Object[] _locks;
+    private Map<String, IpState>[] _stripes;
+
+    @SuppressWarnings("unchecked")
+    public PerIpRateLimiter(int maxConnectionsPerIp, long minRequestGap) {
+        if (maxConnectionsPerIp < 1) {
+            throw new IllegalArgumentException("maxConnectionsPerIp must be > 0: " + maxConnectionsPerIp);
+        }
+
+        if (minRequestGap < 0) {
+            throw new IllegalArgumentException("minRequestGap must be >= 0: " + minRequestGap);
+        }
+
+        _maxConnectionsPerIp = maxConnectionsPerIp;
+        _minRequestGap = minRequestGap;
+
+        _locks = new Object[NUM_STRIPES];
+        _stripes = new Map[NUM_STRIPES];
+        for (int i = 0; i < NUM_STRIPES; i++) {
+            _locks[i] = new Object();
+            _stripes[i] = new HashMap<String, IpState>();
+        }
+    }
+
+    public int getMaxConnectionsPerIp() {
+        return _maxConnectionsPerIp;
+    }
+
+    public long getMinRequestGap() {
+        return _minRequestGap;
+    }
+
+    /**
+     * Return the time when a new fetch set could be started for <ip>, or AT_CAPACITY
+     * if it already has the max number of active sets (in which case we have to wait
+     * for a call to release()).
+     *
+     * @param ip Server address
+     * @return time in milliseconds (0 if the server has no active sets)
+     */
+    public long getReadyTime(String ip) {
+        int stripe = getStripe(ip);
+        synchronized (_locks[stripe]) {
+            IpState state = _stripes[stripe].get(ip);
+            if (state == null) {
+                return 0;
+            } else if (state._numActive >= _maxConnectionsPerIp) {
+                return AT_CAPACITY;
+            } else if ((state._numActive == 0) && (state._nextRequestTime <= System.currentTimeMillis())) {
+                // Finished, and past the request gap, so we don't need to track it anymore.
+                _stripes[stripe].remove(ip);
+                return 0;
+            } else {
+                return state._nextRequestTime;
+            }
+        }
+    }
+
+    public boolean isReady(String ip, long now) {
+        return getReadyTime(ip) <= now;
+    }
+
+    /**
+     * Record that a fetch set for <ip> was started at <now>. This doesn't check the
+     * limits, so callers that ignore politeness (e.g. FetcherMode.IMPOLITE) still
+     * get counted.
+     *
+     * @param ip Server address
+     * @param now Current time, in milliseconds
+     */
+    public void acquire(String ip, long now) {
+        int stripe = getStripe(ip);
+        synchronized (_locks[stripe]) {
+            Map<String, IpState> states = _stripes[stripe];
+            IpState state = states.get(ip);
+            if (state == null) {
+                state = new IpState();
+                states.put(ip, state);
+            }
+
+            state._numActive += 1;
+        }
+    }
+
+    /**
+     * Try to make a request to <ip>, which must have an active fetch set. If the min
+     * request gap since the last request has passed, the request is recorded as being
+     * made at <now>, otherwise nothing changes and the caller has to try again later.
+     *
+     * @param ip Server address
+     * @param now Current time, in milliseconds
+     * @return 0 if the request can be made now, otherwise the time to wait (in milliseconds)
+     * before trying again
+     */
+    public long reserveRequest(String ip, long now) {
+        int stripe = getStripe(ip);
+        synchronized (_locks[stripe]) {
+            IpState state = _stripes[stripe].get(ip);
+            if (state == null) {
+                throw new IllegalStateException("reserveRequest called for inactive IP: " + ip);
+            }
+
+            if (state._nextRequestTime > now) {
+                return state._nextRequestTime - now;
+            }
+
+            state._nextRequestTime = now + _minRequestGap;
+            return 0;
+        }
+    }
+
+    /**
+     * Record that a fetch set for <ip> is done.
+     *
+     * @param ip Server address
+     */
+    public void release(String ip) {
+        int stripe = getStripe(ip);
+        synchronized (_locks[stripe]) {
+            Map<String, IpState> states = _stripes[stripe];
+            IpState state = states.get(ip);
+            if (state == null) {
+                throw new IllegalStateException("release called for inactive IP: " + ip);
+            }
+
+            state._numActive -= 1;
+            if ((state._numActive == 0) && (state._nextRequestTime <= System.currentTimeMillis())) {
+                states.remove(ip);
+            }
+        }
+    }
+
+    public int getNumActive(String ip) {
+        int stripe = getStripe(ip);
+        synchronized (_locks[stripe]) {
+            IpState state = _stripes[stripe].get(ip);
+            return state == null ? 0 : state._numActive;
+        }
+    }
+
+    private int getStripe(String ip) {
+        return (ip.hashCode() & Integer.MAX_VALUE) % NUM_STRIPES;
+    }
+}
@@ -0,0 +1,16 @@
+package bixo.fetcher;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Resolver that does a (blocking) lookup via InetAddress for every request.
+ */
+@SuppressWarnings("serial")
+public class SimpleHostResolver extends BaseHostResolver {
+
+    @Override
+    public InetAddress resolve(String host) throws UnknownHostException {
+        return InetAddress.getByName(host);
+    }
+}
@@ -22,7 +22,6 @@
  */
 package bixo.fetcher;
 
-import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
@@ -40,6 +39,7 @@ import javax.net.ssl.SSLException;
 import javax.net.ssl.SSLHandshakeException;
 import javax.net.ssl.TrustManager;
 
+import org.apache.commons.io.input.CountingInputStream;
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpEntityEnclosingRequest;
@@ -49,6 +49,7 @@ import org.apache.http.HttpInetConnection;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpRequestInterceptor;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
 import org.apache.http.HttpStatus;
 import org.apache.http.HttpVersion;
 import org.apache.http.NoHttpResponseException;
@@ -108,9 +109,11 @@ import bixo.exceptions.IOFetchException;
 import bixo.exceptions.RedirectFetchException;
 import bixo.exceptions.UrlFetchException;
 import bixo.exceptions.RedirectFetchException.RedirectExceptionReason;
+import bixo.fetcher.FetchTimings.Phase;
+import bixo.utils.BufferPool;
+import bixo.utils.CharsetUtils;
 import bixo.utils.EncodingUtils;
 import bixo.utils.HttpUtils;
-import bixo.utils.EncodingUtils.ExpandedResult;
 
 @SuppressWarnings("serial")
 public class SimpleHttpFetcher extends BaseFetcher {
@@ -134,12 +137,12 @@ public class SimpleHttpFetcher extends BaseFetcher {
     
     private static final int DEFAULT_BYTEARRAY_SIZE = 32 * 1024;
     
-    // Use the same values as Firefox (except that we don't accept deflate,
-    // which we're not sure is implemented correctly - see the notes in
-    // EncodingUtils/EncodingUtilsTest for more details).
-    private static final String DEFAULT_ACCEPT = "text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8";
-    private static final String DEFAULT_ACCEPT_CHARSET = "utf-8,ISO-8859-1;q=0.7,*;q=0.7";
-    private static final String DEFAULT_ACCEPT_ENCODING = "x-gzip, gzip";
+    private static final byte[] EMPTY_CONTENT = new byte[0];
+    
+    // Use the same values as Firefox.
+    static final String DEFAULT_ACCEPT = "text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8";
+    static final String DEFAULT_ACCEPT_CHARSET = "utf-8,ISO-8859-1;q=0.7,*;q=0.7";
+    static final String DEFAULT_ACCEPT_ENCODING = "x-gzip, gzip, deflate";
 
     // Keys used to access data in the Http execution context.
     private static final String PERM_REDIRECT_CONTEXT_KEY = "perm-redirect";
@@ -277,7 +280,7 @@ public class SimpleHttpFetcher extends BaseFetcher {
     }
     
     /**
-     * Interceptor to record host address in context.
+     * Interceptor to record host address in context, and when the request is sent.
      *
      */
     private static class MyRequestInterceptor implements HttpRequestInterceptor {
@@ -292,6 +295,23 @@ public class SimpleHttpFetcher extends BaseFetcher {
             
             context.setAttribute(   HOST_ADDRESS,
                                     connection.getRemoteAddress().getHostAddress());
+            
+            FetchTimings.get().requestSent();
+        }
+    }
+    
+    /**
+     * Interceptor to record when we got the response headers.
+     *
+     */
+    private static class MyResponseInterceptor implements HttpResponseInterceptor {
+
+        @Override
+        public void process(HttpResponse response,
+                            HttpContext context)
+            throws HttpException, IOException {
+            
+            FetchTimings.get().responseReceived();
         }
     }
     
@@ -370,6 +390,15 @@ public class SimpleHttpFetcher extends BaseFetcher {
         }
     }
 
+    @Override
+    public void setHostResolver(BaseHostResolver hostResolver) {
+        if (_httpClient == null) {
+            super.setHostResolver(hostResolver);
+        } else {
+            throw new IllegalStateException("Can't change host resolver after HttpClient has been initialized");
+        }
+    }
+
     public int getMaxRetryCount() {
         return _maxRetryCount;
     }
@@ -378,14 +407,18 @@ public class SimpleHttpFetcher extends BaseFetcher {
         _maxRetryCount = maxRetryCount;
     }
     
-    private static FetchedDatum convert(FetchedResult result) {
+    static FetchedDatum convert(FetchedResult result) {
     	FetchedDatum datum = new FetchedDatum(result.getBaseUrl(), result.getFetchedUrl(), result.getFetchTime(),
-    	                result.getHeaders(), new ContentBytes(result.getContent()), result.getContentType(),
+    	                result.getHeaders(), new ContentBytes(result.getContent(), result.getContentLength()), result.getContentType(),
     	                result.getResponseRate());
     	datum.setNewBaseUrl(result.getNewBaseUrl());
     	datum.setNumRedirects(result.getNumRedirects());
     	datum.setHostAddress(result.getHostAddress());
     	datum.setPayload(result.getPayload());
+    	
+    	// Figure out the charset now, while we've got the raw bytes handy, so the parser
+    	// doesn't have to.
+    	datum.setCharset(CharsetUtils.detectCharset(result.getContent(), result.getContentLength(), result.getContentType()));
     	return datum;
     }
 
@@ -573,18 +606,28 @@ public class SimpleHttpFetcher extends BaseFetcher {
             safeAbort(needAbort, request);
         }
         
-        // Figure out how much data we want to try to fetch.
+        // Figure out how much data we want to try to fetch. If the content is encoded,
+        // this limit applies to the decoded bytes, so the Content-Length (which is the
+        // encoded size) doesn't tell us whether we'll be truncating it.
+        String contentEncoding = headerMap.getFirst(HttpHeaderNames.CONTENT_ENCODING);
+        boolean isEncoded = EncodingUtils.isSupportedEncoding(contentEncoding);
+        if ((contentEncoding != null) && LOGGER.isTraceEnabled()) {
+            fetchTrace.append("; Content-Encoding: " + contentEncoding);
+        }
+        
         int maxContentSize = getMaxContentSize(mimeType);
         int targetLength = maxContentSize;
         boolean truncated = false;
+        boolean knownLength = false;
         String contentLengthStr = headerMap.getFirst(HttpHeaderNames.CONTENT_LENGTH);
-        if (contentLengthStr != null) {
+        if ((contentLengthStr != null) && !isEncoded) {
             try {
                 int contentLength = Integer.parseInt(contentLengthStr);
                 if (contentLength > targetLength) {
                     truncated = true;
                 } else {
                     targetLength = contentLength;
+                    knownLength = true;
                 }
             } catch (NumberFormatException e) {
                 // Ignore (and log) invalid content length values.
@@ -594,106 +637,140 @@ public class SimpleHttpFetcher extends BaseFetcher {
 
         // Now finally read in response body, up to targetLength bytes.
         // Note that entity might be null, for zero length responses.
-        byte[] content = new byte[0];
+        //
+        // Encoded (compressed) content is decoded as we read it, so that we can stop
+        // reading from the socket as soon as we've got enough. If we know the length
+        // (and the content isn't encoded), read directly into the array that we'll
+        // return. Otherwise read into a pooled buffer, and copy out what we read.
+        BufferPool pool = BufferPool.get();
+        byte[] content = EMPTY_CONTENT;
+        int contentLength = 0;
+        byte[] pooledBuffer = null;
         long readRate = 0;
         HttpEntity entity = response.getEntity();
+        long bodyStartTime = System.currentTimeMillis();
         needAbort = true;
 
-        if (entity != null) {
-            InputStream in = null;
+        try {
+            if (entity != null) {
+                CountingInputStream rawIn = null;
+                InputStream in = null;
 
-            try {
-                in = entity.getContent();
-                byte[] buffer = new byte[BUFFER_SIZE];
-                int bytesRead = 0;
-                int totalRead = 0;
-                ByteArrayOutputStream out = new ByteArrayOutputStream(DEFAULT_BYTEARRAY_SIZE);
-
-                int readRequests = 0;
-                int minResponseRate = _fetcherPolicy.getMinResponseRate();
-                // TODO KKr - we need to monitor the rate while reading a
-                // single block. Look at HttpClient
-                // metrics support for how to do this. Once we fix this, fix
-                // the test to read a smaller (< 20K)
-                // chuck of data.
-                while ((totalRead < targetLength) &&
-                                ((bytesRead = in.read(buffer, 0, Math.min(buffer.length, targetLength - totalRead))) != -1)) {
-                    readRequests += 1;
-                    totalRead += bytesRead;
-                    out.write(buffer, 0, bytesRead);
-
-                    // Assume read time is at least one millisecond, to avoid DBZ exception.
-                    long totalReadTime = Math.max(1, System.currentTimeMillis() - readStartTime);
-                    readRate = (totalRead * 1000L) / totalReadTime;
-
-                    // Don't bail on the first read cycle, as we can get a hiccup starting out.
-                    // Also don't bail if we've read everything we need.
-                    if ((readRequests > 1) && (totalRead < targetLength) && (readRate < minResponseRate)) {
-                        throw new AbortedFetchException(url, "Slow response rate of " + readRate + " bytes/sec", AbortedFetchReason.SLOW_RESPONSE_RATE);
+                try {
+                    rawIn = new CountingInputStream(entity.getContent());
+                    in = EncodingUtils.makeDecodingStream(rawIn, contentEncoding);
+                    byte[] buffer;
+                    if (knownLength) {
+                        buffer = pool.allocate(targetLength);
+                    } else {
+                        pooledBuffer = pool.acquire(Math.min(targetLength, DEFAULT_BYTEARRAY_SIZE));
+                        buffer = pooledBuffer;
                     }
+                    
+                    int bytesRead = 0;
+                    int totalRead = 0;
+
+                    int readRequests = 0;
+                    int minResponseRate = _fetcherPolicy.getMinResponseRate();
+                    
+                    // Reads from all threads draw from the same limiter, one buffer at a time.
+                    BandwidthLimiter limiter = getBandwidthLimiter();
+                    limiter.setMaxBytesPerSecond(_fetcherPolicy.getMaxBandwidth());
+                    long lastByteCount = 0;
+                    long throttleTime = 0;
+                    
+                    try {
+                        // TODO KKr - we need to monitor the rate while reading a
+                        // single block. Look at HttpClient
+                        // metrics support for how to do this. Once we fix this, fix
+                        // the test to read a smaller (< 20K)
+                        // chuck of data.
+                        while (totalRead < targetLength) {
+                            if (totalRead == buffer.length) {
+                                pooledBuffer = pool.grow(pooledBuffer, totalRead, Math.min(targetLength, 2 * buffer.length));
+                                buffer = pooledBuffer;
+                            }
+                            
+                            int readSize = Math.min(BUFFER_SIZE, Math.min(buffer.length, targetLength) - totalRead);
+                            if ((bytesRead = in.read(buffer, totalRead, readSize)) == -1) {
+                                break;
+                            }
+                            
+                            readRequests += 1;
+                            totalRead += bytesRead;
+
+                            long byteCount = rawIn.getByteCount();
+                            throttleTime += limiter.consume(byteCount - lastByteCount);
+                            lastByteCount = byteCount;
+
+                            // Response rate is based on what we read from the server, not
+                            // what it decoded to. Time spent waiting on our own bandwidth
+                            // limit doesn't count against the server. Assume read time is
+                            // at least one millisecond, to avoid DBZ exception.
+                            long totalReadTime = Math.max(1, System.currentTimeMillis() - readStartTime - throttleTime);
+                            readRate = (rawIn.getByteCount() * 1000L) / totalReadTime;
+
+                            // Don't bail on the first read cycle, as we can get a hiccup starting out.
+                            // Also don't bail if we've read everything we need.
+                            if ((readRequests > 1) && (totalRead < targetLength) && (readRate < minResponseRate)) {
+                                throw new AbortedFetchException(url, "Slow response rate of " + readRate + " bytes/sec", AbortedFetchReason.SLOW_RESPONSE_RATE);
+                            }
 
-                    // Check to see if we got interrupted.
-                    if (Thread.interrupted()) {
-                        throw new AbortedFetchException(url, AbortedFetchReason.INTERRUPTED);
+                            // Check to see if we got interrupted.
+                            if (Thread.interrupted()) {
+                                throw new AbortedFetchException(url, AbortedFetchReason.INTERRUPTED);
+                            }
+                        }
+                        
+                        if (isEncoded && (totalRead == targetLength)) {
+                            // See if there's more decoded content that we're dropping.
+                            truncated = (in.read() != -1);
+                        }
+                        
+                        if (throttleTime > 0) {
+                            FetchTimings.get().addTime(Phase.THROTTLE, throttleTime);
+                        }
+                    } catch (IOException e) {
+                        // If the encoded data was cut off (or is corrupt), keep what we
+                        // decoded before that happened as truncated content.
+                        if (!isEncoded || (totalRead == 0) || !EncodingUtils.isDecodingException(e)) {
+                            throw e;
+                        }
+                        
+                        LOGGER.trace("Exception decoding content from " + url, e);
+                        truncated = true;
                     }
-                }
 
-                content = out.toByteArray();
-                needAbort = truncated || (in.available() > 0);
-            } catch (IOException e) {
-                // We don't need to abort if there's an IOException
-                throw new IOFetchException(url, e);
-            } finally {
-                safeAbort(needAbort, request);
-                safeClose(in);
+                    if (isEncoded && LOGGER.isTraceEnabled()) {
+                        fetchTrace.append("; decoded " + rawIn.getByteCount() + " to " + totalRead + " bytes");
+                    }
+                    
+                    content = buffer;
+                    contentLength = totalRead;
+                    needAbort = truncated || (rawIn.available() > 0);
+                } catch (IOException e) {
+                    // We don't need to abort if there's an IOException
+                    throw new IOFetchException(url, e);
+                } finally {
+                    safeAbort(needAbort, request);
+                    safeClose(in == null ? rawIn : in);
+                    FetchTimings.get().addTime(Phase.BODY, System.currentTimeMillis() - bodyStartTime);
+                }
             }
-        }
-        
-        // Toss truncated image content.
-        if  (   (truncated)
-            &&  (!isTextMimeType(mimeType))) {
-            throw new AbortedFetchException(url, "Truncated image", AbortedFetchReason.CONTENT_SIZE);
-        }
 
-        // Now see if we need to uncompress the content.
-        String contentEncoding = headerMap.getFirst(HttpHeaderNames.CONTENT_ENCODING);
-        if (contentEncoding != null) {
-            if (LOGGER.isTraceEnabled()) {
-                fetchTrace.append("; Content-Encoding: " + contentEncoding);
+            // Toss truncated image content.
+            if  (   (truncated)
+                &&  (!isTextMimeType(mimeType))) {
+                throw new AbortedFetchException(url, "Truncated image", AbortedFetchReason.CONTENT_SIZE);
             }
 
-            // TODO KKr We might want to just decompress a truncated gzip
-            // containing text (since we have a max content size to save us
-            // from any gzip corruption). We might want to break the following 
-            // out into a separate method, by the way (if not refactor this 
-            // entire monolithic method).
-            //
-            try {
-                if ("gzip".equals(contentEncoding) || "x-gzip".equals(contentEncoding)) {
-                    if (truncated) {
-                        throw new AbortedFetchException(url, "Truncated compressed data", AbortedFetchReason.CONTENT_SIZE);
-                    } else {
-                        ExpandedResult expandedResult = EncodingUtils.processGzipEncoded(content, maxContentSize);
-                        truncated = expandedResult.isTruncated();
-                        if  (   (truncated)
-                            &&  (!isTextMimeType(mimeType))) {
-                            throw new AbortedFetchException(url, "Truncated decompressed image", AbortedFetchReason.CONTENT_SIZE);
-                        } else {
-                            content = expandedResult.getExpanded();
-                            if (LOGGER.isTraceEnabled()) {
-                                fetchTrace.append("; unzipped to " + content.length + " bytes");
-                            }
-                        }
-//                    } else if ("deflate".equals(contentEncoding)) {
-//                        content = EncodingUtils.processDeflateEncoded(content);
-//                        if (LOGGER.isTraceEnabled()) {
-//                            fetchTrace.append("; inflated to " + content.length + " bytes");
-//                        }
-                    }
-                }
-            } catch (IOException e) {
-                throw new IOFetchException(url, e);
+            // If the content is still in the pooled buffer, copy out what we need.
+            if (content == pooledBuffer) {
+                content = pool.allocate(contentLength);
+                System.arraycopy(pooledBuffer, 0, content, 0, contentLength);
             }
+        } finally {
+            pool.release(pooledBuffer);
         }
 
         // Finally dump out the trace msg we've been building.
@@ -707,6 +784,7 @@ public class SimpleHttpFetcher extends BaseFetcher {
                                     System.currentTimeMillis(), 
                                     headerMap,
                                     content,
+                                    contentLength,
                                     contentType,
                                     (int)readRate,
                                     payload,
@@ -715,7 +793,7 @@ public class SimpleHttpFetcher extends BaseFetcher {
                                     hostAddress);
     }
     
-    private boolean isTextMimeType(String mimeType) {
+    static boolean isTextMimeType(String mimeType) {
         for (String textContentType : TEXT_MIME_TYPES) {
             if (textContentType.equals(mimeType)) {
                 return true;
@@ -802,7 +880,8 @@ public class SimpleHttpFetcher extends BaseFetcher {
 
             // Create and initialize scheme registry
             SchemeRegistry schemeRegistry = new SchemeRegistry();
-            schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+            // Socket factories are wrapped so we can track DNS, connect & TLS handshake times.
+            schemeRegistry.register(new Scheme("http", new TimedSocketFactory(PlainSocketFactory.getSocketFactory(), _hostResolver), 80));
             SSLSocketFactory sf = null;
 
             for (String contextName : SSL_CONTEXT_NAMES) {
@@ -820,7 +899,7 @@ public class SimpleHttpFetcher extends BaseFetcher {
             
             if (sf != null) {
                 sf.setHostnameVerifier(new DummyX509HostnameVerifier());
-                schemeRegistry.register(new Scheme("https", sf, 443));
+                schemeRegistry.register(new Scheme("https", new TimedSocketFactory(sf, _hostResolver), 443));
             } else {
                 LOGGER.warn("No valid SSLContext found for https");
             }
@@ -831,6 +910,7 @@ public class SimpleHttpFetcher extends BaseFetcher {
             _httpClient.setHttpRequestRetryHandler(new MyRequestRetryHandler(_maxRetryCount));
             _httpClient.setRedirectHandler(new MyRedirectHandler(_fetcherPolicy.getRedirectMode()));
             _httpClient.addRequestInterceptor(new MyRequestInterceptor());
+            _httpClient.addResponseInterceptor(new MyResponseInterceptor());
             
             params = _httpClient.getParams();
             // FUTURE KKr - support authentication
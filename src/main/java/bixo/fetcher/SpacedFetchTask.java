@@ -0,0 +1,99 @@
+package bixo.fetcher;
+
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import bixo.datum.ScoredUrlDatum;
+import bixo.hadoop.FetchCounters;
+import bixo.utils.ScheduledExecutor;
+
+import com.bixolabs.cascading.LoggingFlowProcess;
+
+/**
+ * Runnable instance for fetching a set of URLs from the same server, with each request
+ * starting <crawlDelay> milliseconds after the previous one.
+ * 
+ * Unlike FetchTask, which fetches every URL back-to-back and then leaves the server alone
+ * for the total crawl delay of the set, each run() fetches a single URL and then
+ * re-schedules itself with the executor. So a thread is only held while a request is in
+ * flight. The ref isn't reported as finished until the delay after the last request has
+ * passed, so the next set for the same server is spaced correctly as well. Each request
+ * also waits (the same way) for the per-IP request gap, in case other refs for the same
+ * server are being fetched at the same time.
+ *
+ */
+public class SpacedFetchTask implements Runnable {
+    private static final Logger LOGGER = Logger.getLogger(SpacedFetchTask.class);
+    
+    private IFetchMgr _fetchMgr;
+    private BaseFetcher _httpFetcher;
+    private List<ScoredUrlDatum> _items;
+    private String _ref;
+    private long _crawlDelay;
+    private ScheduledExecutor _executor;
+    
+    private int _nextItem;
+    private boolean _done;
+    
+    public SpacedFetchTask(IFetchMgr fetchMgr, BaseFetcher httpFetcher, List<ScoredUrlDatum> items, String ref, long crawlDelay, ScheduledExecutor executor) {
+        _fetchMgr = fetchMgr;
+        _httpFetcher = httpFetcher;
+        _items = items;
+        _ref = ref;
+        _crawlDelay = crawlDelay;
+        _executor = executor;
+        
+        _nextItem = 0;
+        _done = false;
+    }
+
+    @Override
+    public void run() {
+        LoggingFlowProcess process = _fetchMgr.getProcess();
+        
+        // We've already fetched everything, and waited out the crawl delay after the last request.
+        if (_done) {
+            _fetchMgr.finished(_ref);
+            return;
+        }
+
+        process.increment(FetchCounters.DOMAINS_PROCESSING, 1);
+        boolean finished = true;
+        
+        try {
+            if (Thread.interrupted() || _httpFetcher.getFetcherPolicy().isTerminateFetch()) {
+                // Write out everything that's left, to avoid losing them.
+                while (_nextItem < _items.size()) {
+                    FetchTask.skip(_fetchMgr, _items.get(_nextItem++));
+                }
+            } else {
+                long waitTime = _fetchMgr.reserveRequest(_ref);
+                if (waitTime > 0) {
+                    // Wait for our turn with the server, without holding on to the thread.
+                    _executor.execute(this, waitTime);
+                    finished = false;
+                } else {
+                    long startTime = FetchTask.fetch(_fetchMgr, _httpFetcher, _ref, _items.get(_nextItem++));
+                    
+                    // Schedule the next request (or the end of the set) relative to when this one started.
+                    _done = (_nextItem >= _items.size());
+                    long delay = Math.max(0, (startTime + _crawlDelay) - System.currentTimeMillis());
+                    if (!_done || (delay > 0)) {
+                        _executor.execute(this, delay);
+                        finished = false;
+                    }
+                }
+            }
+        } catch (Throwable t) {
+            LOGGER.error("Exception while fetching", t);
+        } finally {
+            process.decrement(FetchCounters.DOMAINS_PROCESSING, 1);
+            
+            if (finished) {
+                _fetchMgr.finished(_ref);
+            }
+        }
+    }
+
+}
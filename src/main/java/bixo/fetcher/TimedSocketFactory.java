@@ -0,0 +1,103 @@
+package bixo.fetcher;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+
+import javax.net.ssl.SSLSocket;
+
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.scheme.LayeredSocketFactory;
+import org.apache.http.conn.scheme.SocketFactory;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+
+import bixo.fetcher.FetchTimings.Phase;
+
+/**
+ * Socket factory that resolves host names using a BaseHostResolver, and records DNS, connect and (for layered factories, i.e. https)
+ * TLS handshake times in the calling thread's FetchTimings.
+ * 
+ * For https we open the plain socket ourselves, and then layer the SSL socket on
+ * top of it using the original host name, so that the handshake can be timed
+ * separately from the connect.
+ */
+class TimedSocketFactory implements LayeredSocketFactory {
+
+    private SocketFactory _factory;
+    private LayeredSocketFactory _layeredFactory;
+    private BaseHostResolver _hostResolver;
+    
+    public TimedSocketFactory(SocketFactory factory, BaseHostResolver hostResolver) {
+        _factory = factory;
+        _hostResolver = hostResolver;
+        _layeredFactory = (factory instanceof LayeredSocketFactory) ? (LayeredSocketFactory)factory : null;
+    }
+    
+    @Override
+    public Socket createSocket() throws IOException {
+        if (_layeredFactory == null) {
+            return _factory.createSocket();
+        } else {
+            return new Socket();
+        }
+    }
+
+    @Override
+    public Socket connectSocket(Socket sock, String host, int port, InetAddress localAddress, int localPort, HttpParams params) throws IOException, UnknownHostException, ConnectTimeoutException {
+        FetchTimings timings = FetchTimings.get();
+        
+        long startTime = System.currentTimeMillis();
+        InetAddress address = _hostResolver.resolve(host);
+        long connectStartTime = System.currentTimeMillis();
+        timings.addTime(Phase.DNS, connectStartTime - startTime);
+        
+        if (_layeredFactory == null) {
+            // Pass in the address, so the factory doesn't resolve the host name again.
+            Socket result = _factory.connectSocket(sock, address.getHostAddress(), port, localAddress, localPort, params);
+            timings.addTime(Phase.CONNECT, System.currentTimeMillis() - connectStartTime);
+            return result;
+        }
+        
+        Socket plainSocket = (sock != null) ? sock : new Socket();
+        if ((localAddress != null) || (localPort > 0)) {
+            plainSocket.bind(new InetSocketAddress(localAddress, Math.max(0, localPort)));
+        }
+        
+        try {
+            plainSocket.connect(new InetSocketAddress(address, port), HttpConnectionParams.getConnectionTimeout(params));
+        } catch (SocketTimeoutException e) {
+            throw new ConnectTimeoutException("Connect to " + host + ":" + port + " timed out");
+        }
+        
+        plainSocket.setSoTimeout(HttpConnectionParams.getSoTimeout(params));
+        long handshakeStartTime = System.currentTimeMillis();
+        timings.addTime(Phase.CONNECT, handshakeStartTime - connectStartTime);
+        
+        Socket result = _layeredFactory.createSocket(plainSocket, host, port, true);
+        if (result instanceof SSLSocket) {
+            // Make sure the handshake is done (this blocks until it is).
+            ((SSLSocket)result).getSession();
+        }
+        
+        timings.addTime(Phase.TLS, System.currentTimeMillis() - handshakeStartTime);
+        return result;
+    }
+
+    @Override
+    public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException, UnknownHostException {
+        if (_layeredFactory == null) {
+            throw new IllegalStateException("Socket factory doesn't support layering: " + _factory);
+        }
+        
+        return _layeredFactory.createSocket(socket, host, port, autoClose);
+    }
+
+    @Override
+    public boolean isSecure(Socket sock) throws IllegalArgumentException {
+        return _factory.isSecure(sock);
+    }
+}
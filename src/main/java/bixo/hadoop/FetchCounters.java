@@ -14,6 +14,8 @@ public enum FetchCounters {
     URLS_DEFERRED,      // URLs we deferred, because domain was deferred
     URLS_REJECTED,      // URLS we rejected, because domain was rejected
     URLS_BLOCKED,       // URLS we blocked, because of robots.txt
+    ROBOTS_CACHE_HITS,  // Domains where we used cached robots.txt rules
+    ROBOTS_CACHE_MISSES,// Domains where we had to fetch robots.txt
     
     // During URL fetching
     URLS_FETCHING,
@@ -23,7 +25,32 @@ public enum FetchCounters {
 
     URLS_SKIPPED_PER_SERVER_LIMIT, // UrlStatus.SKIPPED_PER_SERVER_LIMIT
     
+    // SCORE_FETCHED + SCORE_SKIPPED + SCORE_FAILED is the sum of scores for all URLs we were given
+    SCORE_FETCHED,          // Sum of scores (x1000) of URLs that were fetched
+    SCORE_SKIPPED,          // Sum of scores (x1000) of URLs that were skipped (e.g. time limit)
+    SCORE_FAILED,           // Sum of scores (x1000) of URLs where the fetch failed (same as URLS_FAILED)
+    
     FETCHED_BYTES,          // Total bytes of fetched content.
     FETCHED_TIME,           // Total time in milliseconds spent fetching
+    FETCHED_DNS_TIME,           // Time spent resolving host names, for new connections
+    FETCHED_CONNECT_TIME,       // Time spent opening TCP connections
+    FETCHED_TLS_TIME,           // Time spent in TLS handshakes, for new https connections
+    FETCHED_FIRST_BYTE_TIME,    // Time from sending the request to getting the response headers
+    FETCHED_BODY_TIME,          // Time spent reading the response body
+    FETCHED_THROTTLE_TIME,      // Part of the body time spent waiting on the bandwidth limit
+    
+    FETCHED_TARGET_RATE,    // Max bytes/second for the fetcher (if limited), from FetcherPolicy.getMaxBandwidth()
+    FETCHED_ACHIEVED_RATE,  // Actual bytes/second read by the fetcher
+    
+    CRAWL_DELAY_BACKOFFS,   // Times we increased the delay for a server (slow responses or errors)
+    CRAWL_DELAY_SPEEDUPS,   // Times we decreased the delay for a server (fast responses)
+    
+    DISPATCHER_IDLE_TIME,   // Total time in milliseconds FetchBuffer waited for something to fetch
+
+    BUFFER_BYTES_ALLOCATED, // Total bytes of new buffers allocated while reading content
+    BUFFER_BYTES_REUSED,    // Total bytes of pooled buffers reused while reading content
+
+    COLLECTOR_BLOCKED_TIME,     // Total time in milliseconds threads waited to queue up output tuples
+    COLLECTOR_MAX_QUEUE_DEPTH,  // Max number of output tuples waiting to be written
 
 }
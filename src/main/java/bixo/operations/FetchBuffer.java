@@ -1,25 +1,48 @@
 package bixo.operations;
 
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.RejectedExecutionException;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.log4j.Logger;
 
+import bixo.config.BaseFetchJobPolicy.OrderingMode;
 import bixo.config.FetcherPolicy;
 import bixo.config.FetcherPolicy.FetcherMode;
+import bixo.config.FetcherPolicy.SchedulingMode;
+import bixo.config.ParserPolicy;
 import bixo.datum.FetchSetDatum;
 import bixo.datum.FetchedDatum;
 import bixo.datum.ScoredUrlDatum;
 import bixo.datum.UrlStatus;
+import bixo.fetcher.BandwidthLimiter;
 import bixo.fetcher.BaseFetcher;
+import bixo.fetcher.BaseHostResolver;
+import bixo.fetcher.CrawlDelayController;
 import bixo.fetcher.FetchTask;
+import bixo.fetcher.FetchTimings;
 import bixo.fetcher.IFetchMgr;
+import bixo.fetcher.PerIpRateLimiter;
+import bixo.fetcher.SpacedFetchTask;
 import bixo.hadoop.FetchCounters;
-import bixo.utils.DiskQueue;
-import bixo.utils.ThreadedExecutor;
+import bixo.parser.BaseParser;
+import bixo.parser.ParseExecutor;
+import bixo.parser.ParseWindow;
+import bixo.parser.ParseWindow.ParseResult;
+import bixo.parser.ParserCounters;
+import bixo.utils.BaseExecutor;
+import bixo.utils.DaemonThreadFactory;
+import bixo.utils.GroupingKey;
+import bixo.utils.ScheduledExecutor;
 import cascading.flow.FlowProcess;
 import cascading.flow.hadoop.HadoopFlowProcess;
 import cascading.operation.BaseOperation;
@@ -43,14 +66,19 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
     private class QueuedValues {
         private static final int MAX_ELEMENTS_IN_MEMORY = 1000;
         
-        private DiskQueue<FetchSetDatum> _queue;
+        // With OrderingMode.VALUE, how many sets we read ahead, so that we can pick the
+        // most valuable one that's ready.
+        private static final int MAX_LOOKAHEAD_SETS = 200;
+        
+        private FetchSetQueue _queue;
         private Iterator<TupleEntry> _values;
         private boolean _iteratorDone;
         
         public QueuedValues(Iterator<TupleEntry> values) {
             _values = values;
             _iteratorDone = false;
-            _queue = new DiskQueue<FetchSetDatum>(MAX_ELEMENTS_IN_MEMORY);
+            _queue = new FetchSetQueue(MAX_ELEMENTS_IN_MEMORY, _activeRefs, _pendingRefs, _ipLimiter);
+            _queue.setOrderBySortKey(_orderingMode == OrderingMode.VALUE);
         }
         
         /**
@@ -69,41 +97,58 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
             return _queue.isEmpty() && !safeHasNext();
         }
         
+        public void release(String ref) {
+            _queue.release(ref);
+        }
+        
+        /**
+         * Return how long to wait before something in the queue might be ready, capped
+         * at <maxWaitTime>. Refs that are still active will signal us via finished().
+         * 
+         * @param maxWaitTime Maximum time to wait, in milliseconds
+         * @return time to wait, in milliseconds
+         */
+        public long getWaitTime(long maxWaitTime) {
+            long nextReadyTime = _queue.getNextReadyTime();
+            if (nextReadyTime == FetchSetQueue.ACTIVE_REF) {
+                return maxWaitTime;
+            } else {
+                return Math.max(1, Math.min(maxWaitTime, nextReadyTime - System.currentTimeMillis()));
+            }
+        }
+        
         public FetchSetDatum nextOrNull(FetcherMode mode) {
             
             // Loop until we have something to return, or there's nothing that we can return.
             while (true) {
-                // First see if we've got something in the queue, and if so, then check if it's ready
-                // to be processed.
-                FetchSetDatum datum = _queue.peek();
+                // When ordering by value, every set goes through the queue, so that we pick the
+                // best one that's ready. Only when fetching completely, though, since otherwise
+                // we'd skip sets that we read ahead just because they weren't ready yet.
+                if (_queue.isOrderBySortKey() && (mode == FetcherMode.COMPLETE)) {
+                    readAhead();
+                }
+                
+                // First see if we've got something in the queue that's ready to be processed. The
+                // queue hands back the set whose ref has been ready the longest, so one slow ref
+                // doesn't block everything queued up behind it.
+                FetchSetDatum datum = _queue.poll(System.currentTimeMillis());
                 if (datum != null) {
-                    String ref = datum.getGroupingRef();
-                    if (_activeRefs.get(ref) == null) {
-                        Long nextFetchTime = _pendingRefs.get(ref);
-                        if ((nextFetchTime == null) || (nextFetchTime <= System.currentTimeMillis())) {
-                            return _queue.remove();
-                        }
-                    }
+                    return datum;
                 }
 
-                // We have a datum from the queue, but it's not ready to be returned.
-                if (datum != null) {
+                // We have queued datums, but none are ready to be returned.
+                if ((mode != FetcherMode.COMPLETE) && !_queue.isEmpty()) {
+                    datum = _queue.poll();
                     switch (mode) {
-                        case COMPLETE:
-                            trace("Ignoring top queue item %s (domain still active or pending)", datum.getGroupingRef());
-                            break;
-
                         case IMPOLITE:
-                            _queue.remove();
                             return datum;
                             
                         // In efficient fetching, we punt on items that aren't ready.
                         case EFFICIENT:
-                            _queue.remove();
                             List<ScoredUrlDatum> urls = datum.getUrls();
                             trace("Skipping %d urls from %s (e.g. %s)", urls.size(), datum.getGroupingRef(), urls.get(0).getUrl());
                             skipUrls(urls, UrlStatus.SKIPPED_INEFFICIENT, null);
-                            break;
+                            continue;
                     }
                 }
                 
@@ -119,8 +164,10 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
                     
                     String ref = datum.getGroupingRef();
                     if (_activeRefs.get(ref) == null) {
+                        long now = System.currentTimeMillis();
                         Long nextFetchTime = _pendingRefs.get(ref);
-                        if ((nextFetchTime == null) || (nextFetchTime <= System.currentTimeMillis())) {
+                        if (((nextFetchTime == null) || (nextFetchTime <= now))
+                                        && _ipLimiter.isReady(GroupingKey.getServerFromRef(ref), now)) {
                             return datum;
                         }
                     }
@@ -144,45 +191,161 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
                         }
                     }
                 } else {
-                    // TODO KKr - have a peek(index) and a remove(index) call for the DiskQueue,
-                    // where index < number of elements in memory. That way we don't get stuck on having
-                    // a top-most element that's taking a long time, but there are following elements that
-                    // would be ready to go. Or we could just make sure that the DiskQueue orders
-                    // elements by a comparator (for the in memory set), so top-most is always the
-                    // one that's closest to being ready (or biggest, if more than one is ready)
                     return null;
                 }
             }
         }
+        
+        private void readAhead() {
+            while ((_queue.size() < MAX_LOOKAHEAD_SETS) && safeHasNext()) {
+                FetchSetDatum datum = new FetchSetDatum(new TupleEntry(_values.next()));
+                if (datum.isSkipped()) {
+                    List<ScoredUrlDatum> urls = datum.getUrls();
+                    trace("Skipping %d urls from %s (e.g. %s)", urls.size(), datum.getGroupingRef(), urls.get(0).getUrl());
+                    skipUrls(urls, UrlStatus.SKIPPED_PER_SERVER_LIMIT, null);
+                } else {
+                    _queue.add(datum);
+                }
+            }
+        }
     }
 
+    // Parses a fetched document, and then outputs the fetch result with the parse added.
+    private class ParseTask implements Runnable {
+        private Tuple _tuple;
+        
+        public ParseTask(Tuple tuple) {
+            _tuple = tuple;
+        }
+        
+        @Override
+        public void run() {
+            FetchedDatum fetchedDatum = new FetchedDatum(_tuple.get(FETCHED_DATUM_POSITIONS));
+            ParseResult result = ParseWindow.parse(_parser, fetchedDatum);
+            _flowProcess.increment(ParserCounters.PARSE_TIME, (int)result.getParseTime());
+            
+            Exception e = result.getException();
+            if (e == null) {
+                _flowProcess.increment(ParserCounters.DOCUMENTS_PARSED, 1);
+                _tuple.add(result.getParsedDatum().getTuple());
+            } else {
+                if (e instanceof TimeoutException) {
+                    LOGGER.warn("Timeout parsing " + fetchedDatum.getBaseUrl());
+                    _flowProcess.increment(ParserCounters.PARSE_TIMEOUTS, 1);
+                } else {
+                    LOGGER.warn("Error parsing " + fetchedDatum.getBaseUrl(), e);
+                }
+                
+                _flowProcess.increment(ParserCounters.DOCUMENTS_FAILED, 1);
+                _tuple.add(null);
+            }
+            
+            _collector.add(_tuple);
+        }
+        
+        // Output the fetch result without a parse, for a task that never got to run.
+        public void skip() {
+            _flowProcess.increment(ParserCounters.DOCUMENTS_FAILED, 1);
+            _tuple.add(null);
+            _collector.add(_tuple);
+        }
+    }
+    
     private static final Fields FETCH_RESULT_FIELD = new Fields(BaseDatum.fieldName(FetchBuffer.class, "fetch-exception"));
+    private static final Fields PARSE_RESULT_FIELD = new Fields(BaseDatum.fieldName(FetchBuffer.class, "parse-result"));
+    
+    private static final int[] FETCHED_DATUM_POSITIONS = new int[FetchedDatum.FIELDS.size()];
+    static {
+        for (int i = 0; i < FETCHED_DATUM_POSITIONS.length; i++) {
+            FETCHED_DATUM_POSITIONS[i] = i;
+        }
+    }
 
-    // Time to sleep when we don't have any URLs that can be fetched.
+    // Max time to wait when we don't have any URLs that can be fetched. We'll wake up sooner
+    // if a queued ref becomes ready, or a FetchTask finishes.
     private static final long NOTHING_TO_FETCH_SLEEP_TIME = 1000;
 
     private static final long HARD_TERMINATION_CLEANUP_DURATION = 10 * 1000L;
 
+    // Max number of output tuples waiting to be written. These can include content,
+    // so we don't want to let too many pile up.
+    private static final int MAX_QUEUED_TUPLES = 100;
+
     private BaseFetcher _fetcher;
     private FetcherMode _fetcherMode;
+    private CrawlDelayController _delayController;
+    private OrderingMode _orderingMode;
+    private BaseParser _parser;
 
-    private transient ThreadedExecutor _executor;
+    private transient BaseExecutor _executor;
+    private transient ScheduledExecutor _scheduler;
     private transient LoggingFlowProcess _flowProcess;
+    private transient TupleCollectorQueue _outputQueue;
     private transient TupleEntryCollector _collector;
 
     private transient Object _refLock;
+    private transient long _numFinished;
     private transient ConcurrentHashMap<String, Long> _activeRefs;
     private transient ConcurrentHashMap<String, Long> _pendingRefs;
-    
-    private transient AtomicBoolean _keepCollecting;
+    private transient PerIpRateLimiter _ipLimiter;
+    private transient QueuedValues _values;
+    private transient FetchTimings.Histograms _phaseTimes;
+    private transient ThreadPoolExecutor _parsePool;
     
     public FetchBuffer(BaseFetcher fetcher) {
+        this(fetcher, null);
+    }
+
+    /**
+     * @param fetcher
+     * @param delayController Controller for adjusting the delay between fetch sets to
+     * the same server based on how it's responding, or null to use the fetch delay
+     * from the fetch job policy as-is.
+     */
+    public FetchBuffer(BaseFetcher fetcher, CrawlDelayController delayController) {
+        this(fetcher, delayController, OrderingMode.RANDOM);
+    }
+
+    /**
+     * @param fetcher
+     * @param delayController Controller for adjusting the delay between fetch sets to
+     * the same server based on how it's responding, or null to use the fetch delay
+     * from the fetch job policy as-is.
+     * @param orderingMode Ordering used by the fetch job policy. With OrderingMode.VALUE,
+     * we read ahead and fetch the ready set with the lowest sort key (highest value),
+     * versus the one that's been ready the longest.
+     */
+    public FetchBuffer(BaseFetcher fetcher, CrawlDelayController delayController, OrderingMode orderingMode) {
+        this(fetcher, delayController, orderingMode, null);
+    }
+
+    /**
+     * @param fetcher
+     * @param delayController Controller for adjusting the delay between fetch sets to
+     * the same server based on how it's responding, or null to use the fetch delay
+     * from the fetch job policy as-is.
+     * @param orderingMode Ordering used by the fetch job policy.
+     * @param parser Thread safe parser for fetched documents, or null. If set, then each
+     * output tuple has an extra field after the fetch result, with the ParsedDatum tuple
+     * (or null if the document wasn't fetched, or couldn't be parsed). Documents are parsed
+     * by a pool of the parser policy's max parse threads, so parsing overlaps with fetching.
+     */
+    public FetchBuffer(BaseFetcher fetcher, CrawlDelayController delayController, OrderingMode orderingMode, BaseParser parser) {
         // We're going to output a tuple that contains a FetchedDatum, plus meta-data,
-        // plus a result that could be a string, a status, or an exception
-        super(FetchedDatum.FIELDS.append(FETCH_RESULT_FIELD));
+        // plus a result that could be a string, a status, or an exception, plus the
+        // parse if we've got a parser.
+        super(makeOutputFields(parser));
 
         _fetcher = fetcher;
         _fetcherMode = _fetcher.getFetcherPolicy().getFetcherMode();
+        _delayController = delayController;
+        _orderingMode = orderingMode;
+        _parser = parser;
+    }
+    
+    private static Fields makeOutputFields(BaseParser parser) {
+        Fields result = FetchedDatum.FIELDS.append(FETCH_RESULT_FIELD);
+        return parser == null ? result : result.append(PARSE_RESULT_FIELD);
     }
 
     @Override
@@ -200,43 +363,89 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
         _flowProcess = new LoggingFlowProcess((HadoopFlowProcess) flowProcess);
         _flowProcess.addReporter(new LoggingFlowReporter());
 
-        _executor = new ThreadedExecutor(_fetcher.getMaxThreads(), _fetcher.getFetcherPolicy().getRequestTimeout());
+        FetcherPolicy fetcherPolicy = _fetcher.getFetcherPolicy();
+        _executor = BaseExecutor.makeExecutor(fetcherPolicy, _fetcher.getMaxThreads(), fetcherPolicy.getRequestTimeout());
+        if (fetcherPolicy.getSchedulingMode() == SchedulingMode.SPACED) {
+            _scheduler = new ScheduledExecutor(_executor);
+            _executor = _scheduler;
+        } else {
+            _scheduler = null;
+        }
 
         _refLock = new Object();
+        _numFinished = 0;
         _pendingRefs = new ConcurrentHashMap<String, Long>();
         _activeRefs = new ConcurrentHashMap<String, Long>();
         
-        _keepCollecting = new AtomicBoolean(true);
+        // Politeness per IP address, since one server can have multiple refs (with different crawl delays).
+        _ipLimiter = new PerIpRateLimiter(fetcherPolicy.getMaxConnectionsPerIp(), fetcherPolicy.getMinRequestGapPerIp());
+        
+        _outputQueue = new TupleCollectorQueue(MAX_QUEUED_TUPLES, _flowProcess);
+        _phaseTimes = new FetchTimings.Histograms();
+        
+        // Fetch threads hand off documents to the parse pool. If it's backed up, the fetch
+        // thread does the parse itself (see collect()), which slows down fetching to match.
+        if (_parser != null) {
+            ParserPolicy parserPolicy = _parser.getParserPolicy();
+            int numThreads = parserPolicy.getMaxParseThreads();
+            _parsePool = new ThreadPoolExecutor(numThreads, numThreads, 0L, TimeUnit.MILLISECONDS,
+                            new ArrayBlockingQueue<Runnable>(parserPolicy.getMaxParseWindow()), new DaemonThreadFactory("FetchBuffer-parse"));
+        } else {
+            _parsePool = null;
+        }
+        
+        if (_delayController != null) {
+            try {
+                _delayController.open(((HadoopFlowProcess)flowProcess).getJobConf());
+            } catch (IOException e) {
+                // We can still run, every server just starts at the default delay.
+                LOGGER.error("Unable to load crawl delay state from " + _delayController.getStateDir(), e);
+            }
+        }
     }
 
     @Override
     public void operate(FlowProcess process, BufferCall<NullContext> buffCall) {
         QueuedValues values = new QueuedValues(buffCall.getArgumentsIterator());
+        _values = values;
 
-        _collector = buffCall.getOutputCollector();
+        // Fetch threads (and we) write results via the output queue, since collectors
+        // aren't thread safe.
+        _collector = _outputQueue.wrap(buffCall.getOutputCollector());
         FetcherPolicy fetcherPolicy = _fetcher.getFetcherPolicy();
         
         // Each value is a PreFetchedDatum that contains a set of URLs to fetch in one request from
         // a single server, plus other values needed to set state properly.
         while (!Thread.interrupted() && !fetcherPolicy.isTerminateFetch() && !values.isEmpty()) {
+            long numFinished = getNumFinished();
             FetchSetDatum datum = values.nextOrNull(_fetcherMode);
             
             try {
                 if (datum == null) {
-                    trace("Nothing ready to fetch, sleeping...");
+                    trace("Nothing ready to fetch, waiting...");
                     process.keepAlive();
-                    Thread.sleep(NOTHING_TO_FETCH_SLEEP_TIME);
+                    waitForReady(numFinished, values.getWaitTime(NOTHING_TO_FETCH_SLEEP_TIME));
                 } else {
                     List<ScoredUrlDatum> urls = datum.getUrls();
                     String ref = datum.getGroupingRef();
                     trace("Processing %d URLs for %s", urls.size(), ref);
+                    addHostAddresses(ref, urls);
+                    long fetchDelay = getFetchDelay(ref, datum.getFetchDelay(), urls.size());
 
-                    Runnable doFetch = new FetchTask(this, _fetcher, urls, ref);
+                    Runnable doFetch;
+                    if (_scheduler == null) {
+                        doFetch = new FetchTask(this, _fetcher, urls, ref);
+                    } else {
+                        // Fetch delay is for the whole set, so space requests evenly across it.
+                        long crawlDelay = fetchDelay / urls.size();
+                        doFetch = new SpacedFetchTask(this, _fetcher, urls, ref, crawlDelay, _scheduler);
+                    }
+                    
                     if (datum.isLastList()) {
                         makeActive(ref, 0L);
                         trace("Executing fetch of %d URLs from %s (last batch)", urls.size(), ref);
                     } else {
-                        Long nextFetchTime = System.currentTimeMillis() + datum.getFetchDelay();
+                        Long nextFetchTime = System.currentTimeMillis() + fetchDelay;
                         makeActive(ref, nextFetchTime);
                         trace("Executing fetch of %d URLs from %s (next fetch time %d)", urls.size(), ref, nextFetchTime);
                     }
@@ -283,7 +492,7 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
             // We don't know worst-case for amount of time a worker thread will effectively
             // "sleep" waiting for a FetchTask to be queued up, but we'll add in a bit of
             // slop to represent that amount of time.
-            long pollTime = ThreadedExecutor.MAX_POLL_TIME;
+            long pollTime = BaseExecutor.MAX_POLL_TIME;
             Thread.sleep(pollTime);
             
             long requestTimeout = _fetcher.getFetcherPolicy().getRequestTimeout();
@@ -298,19 +507,48 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
                 // actually write out their remaining URLs.
                 Thread.sleep(HARD_TERMINATION_CLEANUP_DURATION);
             }
-            
-            // Now stop collecting results. If somebody is in the middle of the collect() call,
-            // we want them to finish before we set it to false and drop out of this method.
-            synchronized (_keepCollecting) {
-                _keepCollecting.set(false);
-            }
         } catch (InterruptedException e) {
             // FUTURE What's the right thing to do here? E.g. do I need to worry about
             // losing URLs still to be processed?
             LOGGER.warn("Interrupted while waiting for termination");
         }
 
+        if (_parsePool != null) {
+            finishParsing();
+        }
+        
+        // Now stop collecting results. Anything that's been queued up gets written
+        // out before this returns, and anything collected after this gets dropped.
+        _outputQueue.close();
+
+        if (_delayController != null) {
+            try {
+                _delayController.close(((HadoopFlowProcess)process).getJobConf());
+            } catch (IOException e) {
+                LOGGER.error("Unable to save crawl delay state to " + _delayController.getStateDir(), e);
+            }
+            
+            if (LOGGER.isDebugEnabled()) {
+                for (Map.Entry<String, Double> entry : _delayController.getFactors().entrySet()) {
+                    LOGGER.debug(String.format("Final crawl delay factor for %s: %.2f", entry.getKey(), entry.getValue()));
+                }
+            }
+        }
+        
+        // Counters are summed across tasks, so these give the job's total target & achieved rates.
+        BandwidthLimiter limiter = _fetcher.getBandwidthLimiter();
+        if (limiter.getTotalBytes() > 0) {
+            if (limiter.isLimited()) {
+                _flowProcess.increment(FetchCounters.FETCHED_TARGET_RATE, (int)Math.min(Integer.MAX_VALUE, limiter.getMaxBytesPerSecond()));
+            }
+            
+            long achievedRate = limiter.getAchievedBytesPerSecond();
+            _flowProcess.increment(FetchCounters.FETCHED_ACHIEVED_RATE, (int)Math.min(Integer.MAX_VALUE, achievedRate));
+            LOGGER.info(String.format("Fetched %d bytes at %d bytes/sec", limiter.getTotalBytes(), achievedRate));
+        }
+        
         _flowProcess.dumpCounters();
+        LOGGER.info("Fetch phase times:" + _phaseTimes);
     }
 
     @Override
@@ -321,6 +559,8 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
                 throw new RuntimeException("finished called on non-active ref: " + ref);
             }
             
+            _ipLimiter.release(GroupingKey.getServerFromRef(ref));
+            
             // If there's going to be more to fetch, put it back in the pending pool.
             if (nextFetchTime != 0) {
                 trace("Finished batch fetch for %s, with next batch at %d", ref, nextFetchTime);
@@ -328,20 +568,55 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
             } else {
                 trace("Finished last batch fetch for %s", ref);
             }
+            
+            // Let any sets that were queued up behind this ref get scheduled.
+            if (_values != null) {
+                _values.release(ref);
+            }
+            
+            // And wake up the dispatcher, in case it's waiting for something to do.
+            _numFinished += 1;
+            _refLock.notifyAll();
         }
     }
 
     @Override
     public void collect(Tuple tuple) {
-        // Prevent two bad things from happening:
-        // 1. Somebody changes _keepCollecting after we've tested that it's true
-        // 2. Two people calling collector.add() at the same time (it's not thread safe)
-        synchronized (_keepCollecting) {
-            if (_keepCollecting.get()) {
-                _collector.add(tuple);
-            } else {
-                LOGGER.warn("Losing an entry: " + tuple);
-            }
+        if (_parsePool == null) {
+            _collector.add(tuple);
+            return;
+        }
+        
+        // Status is the field after the FetchedDatum.
+        Comparable status = tuple.get(FETCHED_DATUM_POSITIONS.length);
+        if (!(status instanceof String) || (UrlStatus.valueOf((String)status) != UrlStatus.FETCHED)) {
+            tuple.add(null);
+            _collector.add(tuple);
+            return;
+        }
+        
+        ParseTask task = new ParseTask(tuple);
+        try {
+            _parsePool.execute(task);
+        } catch (RejectedExecutionException e) {
+            // Parse pool is backed up (or shut down), so parse on this thread.
+            task.run();
+        }
+    }
+
+    @Override
+    public long reserveRequest(String ref) {
+        if (_fetcherMode == FetcherMode.IMPOLITE) {
+            return 0;
+        }
+        
+        return _ipLimiter.reserveRequest(GroupingKey.getServerFromRef(ref), System.currentTimeMillis());
+    }
+
+    @Override
+    public void fetched(String ref, long responseTime, boolean isServerError) {
+        if (_delayController != null) {
+            _delayController.record(ref, responseTime, isServerError);
         }
     }
 
@@ -350,15 +625,27 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
         return _flowProcess;
     }
     
+    @Override
+    public FetchTimings.Histograms getPhaseTimes() {
+        return _phaseTimes;
+    }
+    
     private void skipUrls(List<ScoredUrlDatum> urls, UrlStatus status, String traceMsg) {
+        double totalScore = 0.0;
         for (ScoredUrlDatum datum : urls) {
             FetchedDatum result = new FetchedDatum(datum);
             Tuple tuple = result.getTuple();
             tuple.add(status.toString());
+            if (_parser != null) {
+                tuple.add(null);
+            }
+            
             _collector.add(tuple);
+            totalScore += datum.getScore();
         }
 
         _flowProcess.increment(FetchCounters.URLS_SKIPPED, urls.size());
+        FetchTask.incrementScore(_flowProcess, FetchCounters.SCORE_SKIPPED, totalScore);
         if (status == UrlStatus.SKIPPED_PER_SERVER_LIMIT) {
             _flowProcess.increment(FetchCounters.URLS_SKIPPED_PER_SERVER_LIMIT, urls.size());
         }
@@ -368,6 +655,38 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
         }
     }
     
+    /**
+     * Return the delay before the next set for <ref> can be fetched, adjusted (if we have
+     * a delay controller) for how the server has been responding so far.
+     * 
+     * @param ref Grouping ref for the fetch set
+     * @param fetchDelay Fetch delay from the fetch job policy
+     * @param numUrls Number of URLs in the set
+     * @return delay in milliseconds
+     */
+    private long getFetchDelay(String ref, long fetchDelay, int numUrls) {
+        if (_delayController == null) {
+            return fetchDelay;
+        }
+        
+        switch (_delayController.update(ref)) {
+            case BACKOFF:
+                _flowProcess.increment(FetchCounters.CRAWL_DELAY_BACKOFFS, 1);
+                break;
+                
+            case SPEEDUP:
+                _flowProcess.increment(FetchCounters.CRAWL_DELAY_SPEEDUPS, 1);
+                break;
+                
+            default:
+                break;
+        }
+        
+        long result = _delayController.getFetchDelay(ref, fetchDelay, numUrls, _fetcher.getFetcherPolicy().getCrawlDelay());
+        trace("Fetch delay for %s adjusted from %d to %d", ref, fetchDelay, result);
+        return result;
+    }
+    
     /**
      * Make <ref> active, removing from pending if necessary.
      * 
@@ -379,7 +698,34 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
             trace("Making %s active", ref);
             _pendingRefs.remove(ref);
             _activeRefs.put(ref, nextFetchTime);
+            _ipLimiter.acquire(GroupingKey.getServerFromRef(ref), System.currentTimeMillis());
+        }
+    }
+
+    private long getNumFinished() {
+        synchronized (_refLock) {
+            return _numFinished;
+        }
+    }
+    
+    /**
+     * Wait until <waitTime> has elapsed, or a FetchTask has finished since we saw
+     * <numFinished> tasks complete. Track the time spent idle.
+     * 
+     * @param numFinished Count of finished calls when we last checked for work.
+     * @param waitTime Max time to wait, in milliseconds
+     * @throws InterruptedException
+     */
+    private void waitForReady(long numFinished, long waitTime) throws InterruptedException {
+        long startTime = System.currentTimeMillis();
+        
+        synchronized (_refLock) {
+            if (_numFinished == numFinished) {
+                _refLock.wait(waitTime);
+            }
         }
+        
+        _flowProcess.increment(FetchCounters.DISPATCHER_IDLE_TIME, (int)(System.currentTimeMillis() - startTime));
     }
 
     private void adjustActive(String ref, long deltaTime) {
@@ -391,6 +737,95 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
         }
     }
 
+    /**
+     * The grouping ref starts with the IP address that the robots phase resolved
+     * for these URLs, so let the fetcher's resolver know, to avoid another lookup.
+     * 
+     * @param ref Grouping ref for the fetch set
+     * @param urls URLs in the fetch set
+     */
+    private void addHostAddresses(String ref, List<ScoredUrlDatum> urls) {
+        if (GroupingKey.isSpecialKey(ref) || !GroupingKey.isValidKey(ref)) {
+            return;
+        }
+        
+        String hostAddress = GroupingKey.getDomainFromKey(ref);
+        BaseHostResolver resolver = _fetcher.getHostResolver();
+        String lastHost = null;
+        for (ScoredUrlDatum url : urls) {
+            try {
+                String host = new URL(url.getUrl()).getHost();
+                if (!host.equals(lastHost)) {
+                    resolver.addAddress(host, hostAddress);
+                    lastHost = host;
+                }
+            } catch (MalformedURLException e) {
+                // Fetcher will report this when it tries to fetch the URL.
+            }
+        }
+    }
+    
+    /**
+     * Wait for documents that are still being parsed to be output, and update the parse
+     * counters. Every queued document can take up to the max parse duration.
+     */
+    private void finishParsing() {
+        ParserPolicy parserPolicy = _parser.getParserPolicy();
+        _parsePool.shutdown();
+        
+        try {
+            long maxWaitTime = Long.MAX_VALUE;
+            if (parserPolicy.getMaxParseDuration() != ParserPolicy.NO_MAX_PARSE_DURATION) {
+                int numRounds = 1 + (parserPolicy.getMaxParseWindow() / parserPolicy.getMaxParseThreads());
+                maxWaitTime = (long)parserPolicy.getMaxParseDuration() * numRounds;
+            }
+            
+            if (!_parsePool.awaitTermination(maxWaitTime, TimeUnit.MILLISECONDS)) {
+                LOGGER.warn("Had to do a hard termination of parsing");
+                abortParsing();
+            }
+        } catch (InterruptedException e) {
+            LOGGER.warn("Interrupted while waiting for parsing to finish");
+            abortParsing();
+        }
+        
+        ParseExecutor executor = _parser.getParseExecutor();
+        if (executor != null) {
+            _flowProcess.increment(ParserCounters.PARSE_SATURATED, (int)executor.getNumSaturated());
+            _flowProcess.increment(ParserCounters.PARSE_WEDGED, executor.getNumWedged());
+        }
+        
+        for (Map.Entry<ParserCounters, Long> entry : _parser.getLimitCounts().entrySet()) {
+            _flowProcess.increment(entry.getKey(), entry.getValue().intValue());
+        }
+    }
+    
+    /**
+     * Stop the parse pool, and output the documents that were still waiting to be parsed
+     * (without a parse), so that none of them get lost. Documents that were being parsed
+     * get interrupted, and are output (normally as failed) by their parse task.
+     */
+    private void abortParsing() {
+        List<Runnable> queuedTasks = _parsePool.shutdownNow();
+        if (!queuedTasks.isEmpty()) {
+            LOGGER.warn(String.format("Skipping parsing of %d queued documents", queuedTasks.size()));
+        }
+        
+        for (Runnable task : queuedTasks) {
+            ((ParseTask)task).skip();
+        }
+        
+        // Give the interrupted parse tasks a chance to output their documents, before
+        // we stop collecting results.
+        try {
+            if (!_parsePool.awaitTermination(HARD_TERMINATION_CLEANUP_DURATION, TimeUnit.MILLISECONDS)) {
+                LOGGER.warn("Parse threads still running after hard termination");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
     private void trace(String template, Object... params) {
         if (LOGGER.isTraceEnabled()) {
             LOGGER.trace(String.format(template, params));
@@ -0,0 +1,67 @@
+package bixo.operations;
+
+/**
+ * Picks the fetch reducer for each grouping ref, so that every reducer winds up with
+ * about the same estimated fetch time.
+ * 
+ * Refs are assigned one at a time to whichever partition has the smallest load so far.
+ * Each MakeFetchSetsBuffer task only sees its own share of the refs, so ties are broken
+ * by rotating through the partitions, starting at the task number. That way different
+ * tasks don't all put their first (or zero-cost) refs into the same partition.
+ * 
+ * Partition values are in the range [0, numPartitions), which Cascading's hashing of the
+ * (single int) grouping key maps one-to-one onto reducers.
+ */
+public class FetchSetPartitioner {
+
+    private long[] _loads;
+    private int _nextPartition;
+    
+    public FetchSetPartitioner(int numPartitions, int taskNum) {
+        if (numPartitions < 1) {
+            throw new IllegalArgumentException("numPartitions must be > 0: " + numPartitions);
+        }
+        
+        _loads = new long[numPartitions];
+        _nextPartition = (taskNum & Integer.MAX_VALUE) % numPartitions;
+    }
+    
+    public int getNumPartitions() {
+        return _loads.length;
+    }
+    
+    /**
+     * Assign a ref to the partition with the least load, and add its estimated cost.
+     * 
+     * @param cost Estimated fetch time for the ref, in milliseconds
+     * @return partition value
+     */
+    public int assign(long cost) {
+        int numPartitions = _loads.length;
+        int result = _nextPartition;
+        for (int i = 1; i < numPartitions; i++) {
+            int partition = (_nextPartition + i) % numPartitions;
+            if (_loads[partition] < _loads[result]) {
+                result = partition;
+            }
+        }
+        
+        _nextPartition = (result + 1) % numPartitions;
+        addCost(result, cost);
+        return result;
+    }
+    
+    /**
+     * Add more cost to a partition, for a ref that was already assigned to it.
+     * 
+     * @param partition Value returned by assign()
+     * @param cost Additional fetch time, in milliseconds
+     */
+    public void addCost(int partition, long cost) {
+        _loads[partition] += cost;
+    }
+    
+    public long getLoad(int partition) {
+        return _loads[partition];
+    }
+}
@@ -0,0 +1,410 @@
+package bixo.operations;
+
+import java.security.InvalidParameterException;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import bixo.datum.FetchSetDatum;
+import bixo.fetcher.PerIpRateLimiter;
+import bixo.utils.DiskQueue;
+import bixo.utils.GroupingKey;
+
+/**
+ * A queue of FetchSetDatums that couldn't be fetched at the time they were read,
+ * because their grouping ref was still active or pending.
+ *
+ * Unlike a simple FIFO queue, this will hand out the set that's closest to being
+ * ready, so one slow (still active) ref doesn't block every set queued up behind it.
+ * Sets are kept in memory, in per-ref lists, with a min-heap of refs keyed by the
+ * time when the ref can next be fetched. Refs that are currently active aren't in
+ * the heap - they're parked until {@link #release(String)} is called.
+ *
+ * If there's a PerIpRateLimiter, then a ref also isn't ready until its server is: refs
+ * for a server that's at its max number of connections are parked until a release()
+ * for any ref on that server.
+ *
+ * If the queue is ordered by sort key, then out of the refs that are ready, the one
+ * whose next set has the lowest sort key (e.g. the most valuable, for the fetch job
+ * policy's OrderingMode.VALUE) is handed out first, versus the one that's been ready
+ * the longest.
+ *
+ * Once more than <maxInMemory> sets have been queued, the rest spill over onto
+ * disk (in arrival order), and are loaded back into memory as space frees up.
+ *
+ * All methods are synchronized, since release() gets called by fetch threads.
+ */
+public class FetchSetQueue {
+
+    // Ready time for a ref that's active, and thus has no known ready time.
+    public static final long ACTIVE_REF = Long.MAX_VALUE;
+
+    private static class RefEntry implements Comparable<RefEntry> {
+        private String _ref;
+        private long _readyTime;
+        private long _sortKey;
+        private long _sequence;
+
+        public RefEntry(String ref, long readyTime, long sortKey, long sequence) {
+            _ref = ref;
+            _readyTime = readyTime;
+            _sortKey = sortKey;
+            _sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(RefEntry o) {
+            if (_readyTime < o._readyTime) {
+                return -1;
+            } else if (_readyTime > o._readyTime) {
+                return 1;
+            } else if (_sequence < o._sequence) {
+                return -1;
+            } else if (_sequence > o._sequence) {
+                return 1;
+            } else {
+                return 0;
+            }
+        }
+    }
+
+    private static class SortKeyComparator implements Comparator<RefEntry> {
+
+        @Override
+        public int compare(RefEntry o1, RefEntry o2) {
+            if (o1._sortKey < o2._sortKey) {
+                return -1;
+            } else if (o1._sortKey > o2._sortKey) {
+                return 1;
+            } else {
+                return o1.compareTo(o2);
+            }
+        }
+    }
+
+    private int _maxInMemory;
+    private Map<String, Long> _activeRefs;
+    private Map<String, Long> _pendingRefs;
+    private PerIpRateLimiter _limiter;
+
+    // Queued sets for each ref, in the order that they were added.
+    private Map<String, LinkedList<FetchSetDatum>> _sets;
+    private int _numInMemory;
+
+    // Refs with queued sets that aren't active, ordered by when they're ready.
+    private PriorityQueue<RefEntry> _readyRefs;
+
+    // If we're ordering by sort key, refs that were ready when last polled, by the
+    // sort key of their next set. Otherwise null.
+    private PriorityQueue<RefEntry> _sortedRefs;
+
+    // Refs with queued sets that are active.
+    private Set<String> _parkedRefs;
+
+    // Refs with queued sets that are waiting on their server, by server.
+    private Map<String, Set<String>> _blockedRefs;
+
+    private DiskQueue<FetchSetDatum> _overflow;
+    private long _sequence;
+
+    /**
+     * Create a queue that uses <activeRefs> and <pendingRefs> (owned by the caller) to
+     * decide when a ref is ready.
+     *
+     * @param maxInMemory Maximum number of sets to keep in memory.
+     * @param activeRefs Map from ref to next fetch time, for refs being fetched.
+     * @param pendingRefs Map from ref to next fetch time, for refs waiting on a crawl delay.
+     */
+    public FetchSetQueue(int maxInMemory, Map<String, Long> activeRefs, Map<String, Long> pendingRefs) {
+        this(maxInMemory, activeRefs, pendingRefs, null);
+    }
+
+    /**
+     * Create a queue that also uses <limiter> (shared with the caller) to decide when
+     * a ref's server is ready.
+     *
+     * @param maxInMemory Maximum number of sets to keep in memory.
+     * @param activeRefs Map from ref to next fetch time, for refs being fetched.
+     * @param pendingRefs Map from ref to next fetch time, for refs waiting on a crawl delay.
+     * @param limiter Per-server limits, or null
+     */
+    public FetchSetQueue(int maxInMemory, Map<String, Long> activeRefs, Map<String, Long> pendingRefs, PerIpRateLimiter limiter) {
+        if (maxInMemory < 1) {
+            throw new InvalidParameterException("FetchSetQueue max size must be at least one");
+        }
+
+        _maxInMemory = maxInMemory;
+        _activeRefs = activeRefs;
+        _pendingRefs = pendingRefs;
+        _limiter = limiter;
+
+        _sets = new HashMap<String, LinkedList<FetchSetDatum>>();
+        _numInMemory = 0;
+        _readyRefs = new PriorityQueue<RefEntry>();
+        _parkedRefs = new HashSet<String>();
+        _blockedRefs = new HashMap<String, Set<String>>();
+        _overflow = new DiskQueue<FetchSetDatum>(maxInMemory);
+        _sequence = 0;
+    }
+
+    /**
+     * Set whether ready refs are handed out by the sort key of their next set, versus
+     * by how long they've been ready. This should be called before anything is added.
+     *
+     * @param orderBySortKey
+     */
+    public synchronized void setOrderBySortKey(boolean orderBySortKey) {
+        if (orderBySortKey && (_sortedRefs == null)) {
+            _sortedRefs = new PriorityQueue<RefEntry>(11, new SortKeyComparator());
+        } else if (!orderBySortKey && (_sortedRefs != null)) {
+            _readyRefs.addAll(_sortedRefs);
+            _sortedRefs = null;
+        }
+    }
+
+    public synchronized boolean isOrderBySortKey() {
+        return _sortedRefs != null;
+    }
+
+    public synchronized void add(FetchSetDatum datum) {
+        if ((_numInMemory >= _maxInMemory) || !_overflow.isEmpty()) {
+            _overflow.add(datum);
+        } else {
+            addToMemory(datum);
+        }
+    }
+
+    public synchronized boolean isEmpty() {
+        return (_numInMemory == 0) && _overflow.isEmpty();
+    }
+
+    public synchronized int size() {
+        return _numInMemory + _overflow.size();
+    }
+
+    /**
+     * Return the set for the ref that's been ready the longest (or, if ordering by
+     * sort key, the ready set with the lowest sort key), or null if no queued set is
+     * ready to be fetched at <now>. The caller is expected to make the ref of the
+     * returned set active.
+     *
+     * @param now Current time, in milliseconds
+     * @return ready set, or null
+     */
+    public synchronized FetchSetDatum poll(long now) {
+        while (!_readyRefs.isEmpty()) {
+            RefEntry entry = _readyRefs.peek();
+            long readyTime = getReadyTime(entry._ref);
+
+            if (readyTime == ACTIVE_REF) {
+                _readyRefs.remove();
+                park(entry._ref);
+            } else if (readyTime != entry._readyTime) {
+                // Ready time changed since we added it to the heap, so re-sort.
+                _readyRefs.remove();
+                entry._readyTime = readyTime;
+                _readyRefs.add(entry);
+            } else if (readyTime > now) {
+                break;
+            } else if (_sortedRefs == null) {
+                _readyRefs.remove();
+                return removeFirst(entry._ref, true);
+            } else {
+                _readyRefs.remove();
+                _sortedRefs.add(entry);
+            }
+        }
+
+        if (_sortedRefs == null) {
+            return null;
+        }
+
+        // Ready refs can stop being ready (e.g. another ref for the same server was
+        // made active), so check again.
+        while (!_sortedRefs.isEmpty()) {
+            RefEntry entry = _sortedRefs.remove();
+            long readyTime = getReadyTime(entry._ref);
+
+            if (readyTime == ACTIVE_REF) {
+                park(entry._ref);
+            } else if (readyTime > now) {
+                entry._readyTime = readyTime;
+                _readyRefs.add(entry);
+            } else {
+                return removeFirst(entry._ref, true);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Return any set (even if it's not ready), or null if the queue is empty.
+     *
+     * @return queued set, or null
+     */
+    public synchronized FetchSetDatum poll() {
+        RefEntry entry = (_sortedRefs == null) ? null : _sortedRefs.poll();
+        if (entry != null) {
+            return removeFirst(entry._ref, false);
+        }
+
+        entry = _readyRefs.poll();
+        if (entry != null) {
+            return removeFirst(entry._ref, false);
+        }
+
+        Iterator<String> iter = _parkedRefs.iterator();
+        if (iter.hasNext()) {
+            String ref = iter.next();
+            iter.remove();
+            return removeFirst(ref, false);
+        }
+
+        Iterator<Set<String>> blockedIter = _blockedRefs.values().iterator();
+        if (blockedIter.hasNext()) {
+            Set<String> refs = blockedIter.next();
+            String ref = refs.iterator().next();
+            refs.remove(ref);
+            if (refs.isEmpty()) {
+                blockedIter.remove();
+            }
+
+            return removeFirst(ref, false);
+        }
+
+        if (!_overflow.isEmpty()) {
+            return _overflow.remove();
+        }
+
+        return null;
+    }
+
+    /**
+     * Return the earliest time when a queued set might be ready, or ACTIVE_REF if
+     * every queued set is blocked waiting on an active ref (or server).
+     *
+     * @return time in milliseconds
+     */
+    public synchronized long getNextReadyTime() {
+        if ((_sortedRefs != null) && !_sortedRefs.isEmpty()) {
+            return 0;
+        }
+
+        RefEntry entry = _readyRefs.peek();
+        return entry == null ? ACTIVE_REF : entry._readyTime;
+    }
+
+    /**
+     * Let the queue know that <ref> is no longer active, so any sets waiting on it
+     * (or on its server) can be scheduled. This must be called after the ref's state
+     * has been updated.
+     *
+     * @param ref Grouping ref that finished
+     */
+    public synchronized void release(String ref) {
+        if (_parkedRefs.remove(ref)) {
+            schedule(ref);
+        }
+
+        Set<String> blockedRefs = _blockedRefs.remove(GroupingKey.getServerFromRef(ref));
+        if (blockedRefs != null) {
+            for (String blockedRef : blockedRefs) {
+                schedule(blockedRef);
+            }
+        }
+    }
+
+    private void addToMemory(FetchSetDatum datum) {
+        String ref = datum.getGroupingRef();
+        LinkedList<FetchSetDatum> refSets = _sets.get(ref);
+        if (refSets == null) {
+            refSets = new LinkedList<FetchSetDatum>();
+            _sets.put(ref, refSets);
+            refSets.add(datum);
+            schedule(ref);
+        } else {
+            refSets.add(datum);
+        }
+
+        _numInMemory += 1;
+    }
+
+    private void schedule(String ref) {
+        long readyTime = getReadyTime(ref);
+        if (readyTime == ACTIVE_REF) {
+            park(ref);
+        } else {
+            long sortKey = _sets.get(ref).getFirst().getFetchTime();
+            _readyRefs.add(new RefEntry(ref, readyTime, sortKey, _sequence++));
+        }
+    }
+
+    /**
+     * Park <ref> until it's released, or (if it's not active, so it must be waiting
+     * on its server) until any ref for its server is released.
+     *
+     * @param ref Grouping ref that isn't ready
+     */
+    private void park(String ref) {
+        if (_activeRefs.get(ref) != null) {
+            _parkedRefs.add(ref);
+        } else {
+            String server = GroupingKey.getServerFromRef(ref);
+            Set<String> refs = _blockedRefs.get(server);
+            if (refs == null) {
+                refs = new HashSet<String>();
+                _blockedRefs.put(server, refs);
+            }
+
+            refs.add(ref);
+        }
+    }
+
+    private FetchSetDatum removeFirst(String ref, boolean willBeActive) {
+        LinkedList<FetchSetDatum> refSets = _sets.get(ref);
+        FetchSetDatum result = refSets.removeFirst();
+        _numInMemory -= 1;
+
+        if (refSets.isEmpty()) {
+            _sets.remove(ref);
+        } else if (willBeActive) {
+            // Caller is about to make the ref active, so wait for it to be released.
+            _parkedRefs.add(ref);
+        } else {
+            schedule(ref);
+        }
+
+        // Now that we've got space in memory, pull in sets that spilled to disk.
+        while ((_numInMemory < _maxInMemory) && !_overflow.isEmpty()) {
+            addToMemory(_overflow.remove());
+        }
+
+        return result;
+    }
+
+    private long getReadyTime(String ref) {
+        if (_activeRefs.get(ref) != null) {
+            return ACTIVE_REF;
+        }
+
+        Long nextFetchTime = _pendingRefs.get(ref);
+        long result = (nextFetchTime == null) ? 0 : nextFetchTime;
+
+        if (_limiter != null) {
+            long serverReadyTime = _limiter.getReadyTime(GroupingKey.getServerFromRef(ref));
+            if (serverReadyTime == PerIpRateLimiter.AT_CAPACITY) {
+                return ACTIVE_REF;
+            }
+
+            result = Math.max(result, serverReadyTime);
+        }
+
+        return result;
+    }
+}
@@ -1,5 +1,8 @@
 package bixo.operations;
 
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
 import java.util.Iterator;
 import java.util.concurrent.RejectedExecutionException;
 
@@ -9,18 +12,20 @@ import bixo.config.UserAgent;
 import bixo.datum.GroupedUrlDatum;
 import bixo.datum.ScoredUrlDatum;
 import bixo.fetcher.BaseFetcher;
-import bixo.hadoop.FetchCounters;
 import bixo.robots.BaseRobotsParser;
 import bixo.robots.RobotUtils;
+import bixo.robots.RobotsCache;
+import bixo.robots.RobotsFetchCoordinator;
+import bixo.utils.BaseExecutor;
 import bixo.utils.DiskQueue;
-import bixo.utils.GroupingKey;
-import bixo.utils.ThreadedExecutor;
+import bixo.utils.DomainInfo;
 import cascading.flow.FlowProcess;
 import cascading.flow.hadoop.HadoopFlowProcess;
 import cascading.operation.BaseOperation;
 import cascading.operation.Buffer;
 import cascading.operation.BufferCall;
 import cascading.tuple.TupleEntry;
+import cascading.tuple.TupleEntryCollector;
 
 import com.bixolabs.cascading.LoggingFlowProcess;
 import com.bixolabs.cascading.LoggingFlowReporter;
@@ -39,13 +44,18 @@ public class FilterAndScoreByUrlAndRobots extends BaseOperation<NullContext> imp
     private static final long TERMINATE_TIMEOUT = COMMAND_TIMEOUT;
 
     private static final int MAX_URLS_IN_MEMORY = 100;
+    private static final int MAX_QUEUED_TUPLES = 1000;
 
     private BaseScoreGenerator _scorer;
 	private BaseFetcher _fetcher;
 	private BaseRobotsParser _parser;
+	private RobotsCache _robotsCache;
+	private int _maxRobotsRequestsPerIp = RobotsFetchCoordinator.DEFAULT_MAX_REQUESTS_PER_IP;
 	
-    private transient ThreadedExecutor _executor;
+    private transient BaseExecutor _executor;
+    private transient RobotsFetchCoordinator _robotsFetcher;
     private transient LoggingFlowProcess _flowProcess;
+    private transient TupleCollectorQueue _outputQueue;
 
     public FilterAndScoreByUrlAndRobots(UserAgent userAgent, int maxThreads, BaseRobotsParser parser, BaseScoreGenerator scorer) {
         super(ScoredUrlDatum.FIELDS);
@@ -56,22 +66,53 @@ public class FilterAndScoreByUrlAndRobots extends BaseOperation<NullContext> imp
     }
 
     public FilterAndScoreByUrlAndRobots(BaseFetcher fetcher, BaseRobotsParser parser, BaseScoreGenerator scorer) {
+        this(fetcher, parser, null, scorer);
+    }
+
+    public FilterAndScoreByUrlAndRobots(BaseFetcher fetcher, BaseRobotsParser parser, RobotsCache robotsCache, BaseScoreGenerator scorer) {
         // We're going to output a ScoredUrlDatum (what FetcherBuffer expects).
         super(ScoredUrlDatum.FIELDS);
 
         _scorer = scorer;
         _parser = parser;
         _fetcher = fetcher;
+        _robotsCache = robotsCache;
+    }
+
+    public int getMaxRobotsRequestsPerIp() {
+        return _maxRobotsRequestsPerIp;
+    }
+
+    /**
+     * Set the max number of robots.txt requests that can be active at the same time to
+     * any one IP address (across all of the domains that resolve to it).
+     * 
+     * @param maxRobotsRequestsPerIp Max concurrent requests
+     */
+    public void setMaxRobotsRequestsPerIp(int maxRobotsRequestsPerIp) {
+        _maxRobotsRequestsPerIp = maxRobotsRequestsPerIp;
     }
 
     @Override
     public void prepare(FlowProcess flowProcess, cascading.operation.OperationCall<NullContext> operationCall) {
-        _executor = new ThreadedExecutor(_fetcher.getMaxThreads(), COMMAND_TIMEOUT);
+        _executor = BaseExecutor.makeExecutor(_fetcher.getFetcherPolicy(), _fetcher.getMaxThreads(), COMMAND_TIMEOUT);
+        _robotsFetcher = new RobotsFetchCoordinator(_fetcher, _parser, _maxRobotsRequestsPerIp);
         
         // FUTURE KKr - use Cascading process vs creating our own, once it
         // supports logging in local mode, and a setStatus() call.
         _flowProcess = new LoggingFlowProcess((HadoopFlowProcess)flowProcess);
         _flowProcess.addReporter(new LoggingFlowReporter());
+        
+        _outputQueue = new TupleCollectorQueue(MAX_QUEUED_TUPLES, _flowProcess);
+        
+        if (_robotsCache != null) {
+            try {
+                _robotsCache.open(((HadoopFlowProcess)flowProcess).getJobConf());
+            } catch (IOException e) {
+                // We can still run without the cached rules, it just means more robots.txt fetches.
+                LOGGER.error("Unable to load robots cache from " + _robotsCache.getCacheDir(), e);
+            }
+        }
     }
     
     @Override
@@ -87,6 +128,17 @@ public class FilterAndScoreByUrlAndRobots extends BaseOperation<NullContext> imp
             LOGGER.warn("Interrupted while waiting for termination");
         }
         
+        // Write out everything the robots threads emitted.
+        _outputQueue.close();
+        
+        if (_robotsCache != null) {
+            try {
+                _robotsCache.close(((HadoopFlowProcess)flowProcess).getJobConf());
+            } catch (IOException e) {
+                LOGGER.error("Unable to save robots cache to " + _robotsCache.getCacheDir(), e);
+            }
+        }
+        
         _flowProcess.dumpCounters();
     }
     
@@ -94,25 +146,40 @@ public class FilterAndScoreByUrlAndRobots extends BaseOperation<NullContext> imp
 	public void operate(FlowProcess flowProcess, BufferCall<NullContext> bufferCall) {
         TupleEntry group = bufferCall.getGroup();
         String protocolAndDomain = group.getString(0);
+        
+        // Start resolving the domain now, in case we have to wait for a thread to process it.
+        prefetchHost(protocolAndDomain);
 
+        TupleEntryCollector collector = _outputQueue.wrap(bufferCall.getOutputCollector());
+        
+        // Start working on the domain before we've read the URLs, so that they only get
+        // queued up (and spilled to disk) while we're waiting on DNS & robots.txt.
         DiskQueue<GroupedUrlDatum> urls = new DiskQueue<GroupedUrlDatum>(MAX_URLS_IN_MEMORY);
-        Iterator<TupleEntry> values = bufferCall.getArgumentsIterator();
-        while (values.hasNext()) {
-            urls.add(new GroupedUrlDatum(new TupleEntry(values.next())));
-        }
+        ProcessRobotsTask doRobots = new ProcessRobotsTask(protocolAndDomain, _scorer, urls, _robotsFetcher, _robotsCache, collector, _flowProcess);
         
         try {
-            Runnable doRobots = new ProcessRobotsTask(protocolAndDomain, _scorer, urls, _fetcher, _parser, bufferCall.getOutputCollector(), _flowProcess);
             _executor.execute(doRobots);
         } catch (RejectedExecutionException e) {
             // should never happen.
             LOGGER.error("Robots handling pool rejected our request for " + protocolAndDomain);
-            _flowProcess.increment(FetchCounters.DOMAINS_REJECTED, 1);
-            _flowProcess.increment(FetchCounters.URLS_REJECTED, urls.size());
-            ProcessRobotsTask.emptyQueue(urls, GroupingKey.DEFERRED_GROUPING_KEY, bufferCall.getOutputCollector());
+            doRobots.reject();
+        }
+        
+        Iterator<TupleEntry> values = bufferCall.getArgumentsIterator();
+        while (values.hasNext()) {
+            doRobots.addUrl(new GroupedUrlDatum(new TupleEntry(values.next())));
         }
 	}
 
-	
+    private void prefetchHost(String protocolAndDomain) {
+        try {
+            String host = new URL(protocolAndDomain).getHost();
+            if (!DomainInfo.isTestingDomain(host)) {
+                _fetcher.getHostResolver().prefetch(host);
+            }
+        } catch (MalformedURLException e) {
+            // ProcessRobotsTask will deal with this.
+        }
+    }
 
 }
@@ -1,18 +1,24 @@
 package bixo.operations;
 
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 
 import org.apache.log4j.Logger;
 
 import bixo.config.BaseFetchJobPolicy;
 import bixo.config.BaseFetchJobPolicy.FetchSetInfo;
+import bixo.config.BaseFetchJobPolicy.PartitioningMode;
+import bixo.config.FetcherPolicy;
 import bixo.datum.FetchSetDatum;
 import bixo.datum.ScoredUrlDatum;
 import bixo.utils.GroupingKey;
 import cascading.flow.FlowProcess;
+import cascading.flow.hadoop.HadoopFlowProcess;
 import cascading.operation.BaseOperation;
 import cascading.operation.Buffer;
 import cascading.operation.BufferCall;
+import cascading.operation.OperationCall;
 import cascading.tuple.TupleEntry;
 import cascading.tuple.TupleEntryCollector;
 
@@ -20,22 +26,44 @@ import com.bixolabs.cascading.NullContext;
 import com.bixolabs.cascading.PartitioningKey;
 
 /**
- * We get ScoredUrlDatums, grouped by server IP address.
+ * We get ScoredUrlDatums, grouped by server IP address (see GroupingKey.getServerFromRef),
+ * and sorted by grouping ref and then score. The same server shows up under a different
+ * ref for each crawl delay, and all of the refs for a server are in the same group.
  * 
  * We need to generate sets of URLs to fetch, using a kept-alive connection.
  * Our output thus is one or more FetchSetDatums.
  *
+ * Every fetch set for a server goes to the same fetch reducer, even when it has more
+ * than one ref, as per-server politeness is only enforced within a reducer. With
+ * PartitioningMode.BALANCED, that reducer is picked by a FetchSetPartitioner, using the
+ * server's estimated fetch time (sum of the fetch delays of its sets, capped by the time
+ * left until the crawl end time). We hold onto a server's sets until we know its cost,
+ * or until we know it's big.
  */
 @SuppressWarnings( { "serial", "unchecked" })
 public class MakeFetchSetsBuffer extends BaseOperation<NullContext> implements Buffer<NullContext> {
     private static final Logger LOGGER = Logger.getLogger(MakeFetchSetsBuffer.class);
 
+    // Max URLs in fetch sets we'll hold onto while estimating a server's fetch time.
+    // Past this, the server gets assigned using what we've seen so far.
+    private static final int MAX_PENDING_URLS = 10000;
+    
+    private static final int UNASSIGNED = -1;
+    
     private int _numReduceTasks;
     private BaseFetchJobPolicy _policy;
     
     private boolean _iteratorDone;
     private Iterator<TupleEntry> _values;
 
+    private transient FetchSetPartitioner _partitioner;
+    private transient long _maxServerCost;
+    private transient List<FetchSetDatum> _pendingSets;
+    private transient int _pendingUrls;
+    private transient long _serverCost;
+    private transient int _partition;
+    private transient ScoredUrlDatum _nextDatum;
+    
     public MakeFetchSetsBuffer(BaseFetchJobPolicy policy, int numReduceTasks) {
         super(FetchSetDatum.FIELDS);
 
@@ -44,70 +72,174 @@ public class MakeFetchSetsBuffer extends BaseOperation<NullContext> implements B
     }
 
     @Override
-    public void operate(FlowProcess process, BufferCall buffCall) {
-        Iterator<TupleEntry> values = buffCall.getArgumentsIterator();
-        TupleEntry group = buffCall.getGroup();
+    public void prepare(FlowProcess flowProcess, OperationCall operationCall) {
+        super.prepare(flowProcess, operationCall);
         
-        _values = values;
-        _iteratorDone = false;
-
-        // <key> is the output of the IGroupingKeyGenerator used. This should
-        // be <IP address>-<crawl delay in ms>
-        String key = group.getString(0);
-
-        if (GroupingKey.isSpecialKey(key)) {
-            throw new RuntimeException("Invalid grouping key: " + key);
+        if (_policy.getPartitioningMode() == PartitioningMode.BALANCED) {
+            int taskNum = 0;
+            if (flowProcess instanceof HadoopFlowProcess) {
+                taskNum = ((HadoopFlowProcess)flowProcess).getJobConf().getInt("mapred.task.partition", 0);
+            }
+            
+            _partitioner = new FetchSetPartitioner(_numReduceTasks, taskNum);
+            _pendingSets = new ArrayList<FetchSetDatum>();
+            
+            long crawlEndTime = _policy.getCrawlEndTime();
+            if (crawlEndTime == FetcherPolicy.NO_CRAWL_END_TIME) {
+                _maxServerCost = Long.MAX_VALUE;
+            } else {
+                _maxServerCost = Math.max(0, crawlEndTime - System.currentTimeMillis());
+            }
         }
+    }
+    
+    @Override
+    public void operate(FlowProcess process, BufferCall buffCall) {
+        _values = buffCall.getArgumentsIterator();
+        _iteratorDone = false;
 
-        long crawlDelay = GroupingKey.getCrawlDelayFromKey(key);
-        if (crawlDelay == BaseFetchJobPolicy.UNSET_CRAWL_DELAY) {
-            crawlDelay = _policy.getDefaultCrawlDelay();
-        }
-        
-        _policy.startFetchSet(key, crawlDelay);
+        // <server> is the IP address from the grouping keys of the URLs.
+        String server = buffCall.getGroup().getString(0);
         
         TupleEntryCollector collector = buffCall.getOutputCollector();
 
-        PartitioningKey newKey = new PartitioningKey(key, _numReduceTasks);
+        if (_partitioner == null) {
+            _partition = new PartitioningKey(server, _numReduceTasks).getValue();
+        } else {
+            _partition = UNASSIGNED;
+            _pendingUrls = 0;
+            _serverCost = 0;
+        }
         
-        while (safeHasNext()) {
-            ScoredUrlDatum scoredDatum = new ScoredUrlDatum(new TupleEntry(values.next()));
-            FetchSetInfo setInfo = _policy.nextFetchSet(scoredDatum);
+        _nextDatum = nextDatum();
+        while (_nextDatum != null) {
+            // <key> is the output of the IGroupingKeyGenerator used. This should
+            // be <IP address>-<crawl delay in ms>
+            String key = _nextDatum.getGroupKey();
+            
+            if (GroupingKey.isSpecialKey(key)) {
+                throw new RuntimeException("Invalid grouping key: " + key);
+            }
+
+            long crawlDelay = GroupingKey.getCrawlDelayFromKey(key);
+            if (crawlDelay == BaseFetchJobPolicy.UNSET_CRAWL_DELAY) {
+                crawlDelay = _policy.getDefaultCrawlDelay();
+            }
+            
+            _policy.startFetchSet(key, crawlDelay);
+            
+            while ((_nextDatum != null) && key.equals(_nextDatum.getGroupKey())) {
+                ScoredUrlDatum scoredDatum = _nextDatum;
+                _nextDatum = nextDatum();
+                
+                FetchSetInfo setInfo = _policy.nextFetchSet(scoredDatum);
+                if (setInfo != null) {
+                    FetchSetDatum result = makeFetchSetDatum(setInfo, key, hasNextForRef(key));
+                    emit(result, setInfo.getUrls().size(), collector);
+                }
+            }
+            
+            // See if we have another partially built datum to add.
+            FetchSetInfo setInfo = _policy.endFetchSet();
             if (setInfo != null) {
-                FetchSetDatum result = makeFetchSetDatum(setInfo, newKey, safeHasNext());
-                collector.add(result.getTuple());
+                FetchSetDatum result = makeFetchSetDatum(setInfo, key, false);
+                emit(result, setInfo.getUrls().size(), collector);
             }
         }
         
-        // See if we have another partially built datum to add.
-        FetchSetInfo setInfo = _policy.endFetchSet();
-        if (setInfo != null) {
-            FetchSetDatum result = makeFetchSetDatum(setInfo, newKey, false);
-            collector.add(result.getTuple());
+        if (_partitioner != null) {
+            assignPending(collector);
         }
     }
 
-    private FetchSetDatum makeFetchSetDatum(FetchSetInfo setInfo, PartitioningKey key, boolean hasNext) {
-        LOGGER.trace(String.format("Added %d urls for ref %s in group %d at %d", setInfo.getUrls().size(), key.getRef(), key.getValue(), setInfo.getSortKey()));
+    @Override
+    public void cleanup(FlowProcess process, OperationCall operationCall) {
+        if (_partitioner != null) {
+            StringBuilder loads = new StringBuilder();
+            for (int i = 0; i < _partitioner.getNumPartitions(); i++) {
+                loads.append(String.format("%n%d: %dms", i, _partitioner.getLoad(i)));
+            }
+            
+            LOGGER.info("Estimated fetch time per reducer:" + loads);
+        }
         
-        FetchSetDatum result = new FetchSetDatum(setInfo.getUrls(), setInfo.getSortKey(), setInfo.getFetchDelay(), key.getValue(), key.getRef());
+        super.cleanup(process, operationCall);
+    }
+    
+    private FetchSetDatum makeFetchSetDatum(FetchSetInfo setInfo, String ref, boolean hasNext) {
+        LOGGER.trace(String.format("Added %d urls for ref %s in group %d at %d", setInfo.getUrls().size(), ref, _partition, setInfo.getSortKey()));
+        
+        FetchSetDatum result = new FetchSetDatum(setInfo.getUrls(), setInfo.getSortKey(), setInfo.getFetchDelay(), _partition, ref);
         result.setLastList(!hasNext || setInfo.isSkipping());
         result.setSkipped(setInfo.isSkipping());
         return result;
     }
     
+    private void emit(FetchSetDatum datum, int numUrls, TupleEntryCollector collector) {
+        if (_partitioner == null) {
+            collector.add(datum.getTuple());
+            return;
+        }
+        
+        // Skipped URLs don't take any time to "fetch".
+        long cost = 0;
+        if (!datum.isSkipped()) {
+            cost = Math.min(datum.getFetchDelay(), _maxServerCost - _serverCost);
+            _serverCost += cost;
+        }
+        
+        if (_partition != UNASSIGNED) {
+            _partitioner.addCost(_partition, cost);
+            datum.setGroupingKey(_partition);
+            collector.add(datum.getTuple());
+            return;
+        }
+        
+        _pendingSets.add(datum);
+        _pendingUrls += numUrls;
+        
+        // Once we're skipping, or have hit the max cost, the cost won't go up any more.
+        if (datum.isSkipped() || (_serverCost >= _maxServerCost) || (_pendingUrls >= MAX_PENDING_URLS)) {
+            assignPending(collector);
+        }
+    }
+    
+    private void assignPending(TupleEntryCollector collector) {
+        if (_pendingSets.isEmpty()) {
+            return;
+        }
+        
+        _partition = _partitioner.assign(_serverCost);
+        for (FetchSetDatum datum : _pendingSets) {
+            datum.setGroupingKey(_partition);
+            collector.add(datum.getTuple());
+        }
+        
+        _pendingSets.clear();
+        _pendingUrls = 0;
+    }
     
     /**
-     * Return true if the iterator has another Tuple. This avoids calling
-     * the hasNext() method after it returns false, as doing so with
+     * Return a copy of the next datum for the group, or null if there aren't any more.
+     * This avoids calling the hasNext() method after it returns false, as doing so with
      * Cascading 1.2 will trigger a NPE.
      * 
-     * @return true if there's another Tuple waiting to be read.
+     * @return next ScoredUrlDatum, or null
      */
-    private boolean safeHasNext() {
+    private ScoredUrlDatum nextDatum() {
         _iteratorDone = _iteratorDone || !_values.hasNext();
-        return !_iteratorDone;
+        if (_iteratorDone) {
+            return null;
+        }
+        
+        return new ScoredUrlDatum(new TupleEntry(_values.next()));
     }
     
-
+    /**
+     * @param ref Grouping ref of the current fetch set
+     * @return true if there's another URL waiting to be read for <ref>
+     */
+    private boolean hasNextForRef(String ref) {
+        return (_nextDatum != null) && ref.equals(_nextDatum.getGroupKey());
+    }
 }
@@ -15,7 +15,9 @@ import bixo.fetcher.BaseFetcher;
 import bixo.hadoop.FetchCounters;
 import bixo.robots.BaseRobotRules;
 import bixo.robots.BaseRobotsParser;
-import bixo.robots.RobotUtils;
+import bixo.robots.RobotsCache;
+import bixo.robots.RobotsFetchCoordinator;
+import bixo.robots.RobotsFetchCoordinator.RobotRulesCallback;
 import bixo.utils.DomainInfo;
 import bixo.utils.DomainNames;
 import bixo.utils.GroupingKey;
@@ -23,62 +25,169 @@ import cascading.tuple.TupleEntryCollector;
 
 import com.bixolabs.cascading.LoggingFlowProcess;
 
+/**
+ * Figure out how to handle URLs from one domain (resolve the host, and get the
+ * robots.txt rules), and then output a ScoredUrlDatum for each URL.
+ * 
+ * URLs can be added via addUrl() while the task is running. They're only queued
+ * until the task knows how to handle them, after which addUrl() outputs them
+ * directly.
+ * 
+ * If robots.txt has to be fetched from an IP address that's already busy, run()
+ * returns without waiting, and the rest of the work is done by whichever thread
+ * does the fetch later on.
+ */
 public class ProcessRobotsTask implements Runnable {
     private static final Logger LOGGER = Logger.getLogger(ProcessRobotsTask.class);
 
     private String _protocolAndDomain;
     private BaseScoreGenerator _scorer;
     private Queue<GroupedUrlDatum> _urls;
-    private BaseFetcher _fetcher;
+    private RobotsFetchCoordinator _robotsFetcher;
     private TupleEntryCollector _collector;
-    private BaseRobotsParser _parser;
     private LoggingFlowProcess _flowProcess;
+    private RobotsCache _robotsCache;
+    
+    // Set up by run() (or reject()) before any URLs are processed. If _rejectKey
+    // is set, then every URL gets that grouping key.
+    private String _rejectKey;
+    private FetchCounters _rejectCounter;
+    private BaseRobotRules _robotRules;
+    private String _validKey;
+    private String _domain;
+    private String _pld;
+    
+    // Set (while holding our lock) once _urls is empty and the values above are set.
+    private boolean _drained;
 
     public ProcessRobotsTask(String protocolAndDomain, BaseScoreGenerator scorer, Queue<GroupedUrlDatum> urls, BaseFetcher fetcher, 
                     BaseRobotsParser parser, TupleEntryCollector collector, LoggingFlowProcess flowProcess) {
+        this(protocolAndDomain, scorer, urls, fetcher, parser, null, collector, flowProcess);
+    }
+    
+    public ProcessRobotsTask(String protocolAndDomain, BaseScoreGenerator scorer, Queue<GroupedUrlDatum> urls, BaseFetcher fetcher, 
+                    BaseRobotsParser parser, RobotsCache robotsCache, TupleEntryCollector collector, LoggingFlowProcess flowProcess) {
+        this(protocolAndDomain, scorer, urls, new RobotsFetchCoordinator(fetcher, parser), robotsCache, collector, flowProcess);
+    }
+    
+    public ProcessRobotsTask(String protocolAndDomain, BaseScoreGenerator scorer, Queue<GroupedUrlDatum> urls, RobotsFetchCoordinator robotsFetcher, 
+                    RobotsCache robotsCache, TupleEntryCollector collector, LoggingFlowProcess flowProcess) {
         _protocolAndDomain = protocolAndDomain;
         _scorer = scorer;
         _urls = urls;
-        _fetcher = fetcher;
-        _parser = parser;
+        _robotsFetcher = robotsFetcher;
         _collector = collector;
         _flowProcess = flowProcess;
+        _robotsCache = robotsCache;
     }
 
     /**
-     * Clear out the queue by outputting all entries with <groupingKey>.
+     * Get the rules from the robots cache (if we have one), otherwise
+     * fetch and parse robots.txt, and add the result to the cache. Either way
+     * setRobotRules() gets called with the result, but if robots.txt has to be
+     * fetched that can happen later, from a different thread.
      * 
-     * We do this to empty the queue when there's some kind of error.
+     * @param protocolAndDomain
+     * @param hostAddress IP address for the domain
+     * @throws MalformedURLException
+     */
+    private void getRobotRules(final String protocolAndDomain, final String hostAddress) throws MalformedURLException {
+        URL robotsUrl = new URL(protocolAndDomain + "/robots.txt");
+        
+        if (_robotsCache != null) {
+            BaseRobotRules result = _robotsCache.getRules(protocolAndDomain);
+            if (result != null) {
+                _flowProcess.increment(FetchCounters.ROBOTS_CACHE_HITS, 1);
+                setRobotRules(result, hostAddress);
+                return;
+            }
+            
+            _flowProcess.increment(FetchCounters.ROBOTS_CACHE_MISSES, 1);
+        }
+        
+        _robotsFetcher.getRobotRules(robotsUrl, hostAddress, new RobotRulesCallback() {
+            
+            @Override
+            public void rulesReady(BaseRobotRules rules) {
+                if (_robotsCache != null) {
+                    _robotsCache.putRules(protocolAndDomain, rules);
+                }
+                
+                setRobotRules(rules, hostAddress);
+            }
+        });
+    }
+    
+    /**
+     * Use the robot rules to generate a new grouping key for all of the URLs that provides
+     * the count & crawl delay (or deferred) values that we need, then process the URLs.
      * 
-     * @param urls Queue of URLs to empty out
-     * @param groupingKey grouping key to use for all entries.
-     * @param outputCollector
+     * @param rules robot rules for the domain
+     * @param hostAddress IP address for the domain
      */
-    public static void emptyQueue(Queue<GroupedUrlDatum> urls, String groupingKey, TupleEntryCollector collector) {
-        GroupedUrlDatum datum;
-        while ((datum = urls.poll()) != null) {
-            ScoredUrlDatum scoreUrl = new ScoredUrlDatum(datum.getUrl(), groupingKey, UrlStatus.UNFETCHED, 1.0);
-            scoreUrl.setPayload(datum.getPayload());
-            // TODO KKr - move synchronization up, to avoid lots of contention with other threads?
-            synchronized (collector) {
-                collector.add(scoreUrl.getTuple());
+    private void setRobotRules(BaseRobotRules rules, String hostAddress) {
+        try {
+            _robotRules = rules;
+
+            if (_robotRules.isDeferVisits()) {
+                LOGGER.debug("Deferring visits to URLs from " + _domain);
+                _flowProcess.increment(FetchCounters.DOMAINS_DEFERRED, 1);
+            } else {
+                // Use the same key for every URL from this domain
+                _validKey = GroupingKey.makeGroupingKey(hostAddress, _robotRules.getCrawlDelay());
+                _flowProcess.increment(FetchCounters.DOMAINS_FINISHED, 1);
             }
+        } catch (Exception e) {
+            LOGGER.warn("Exception processing " + _protocolAndDomain, e);
+            _flowProcess.increment(FetchCounters.DOMAINS_REJECTED, 1);
+            setRejected(GroupingKey.INVALID_URL_GROUPING_KEY, FetchCounters.URLS_REJECTED);
         }
+        
+        finish();
     }
 
+    /**
+     * Add another URL for this domain. If we don't know yet how to handle URLs from this
+     * domain, it gets queued up (and will be processed by the thread running the task),
+     * otherwise it's processed immediately, using the calling thread.
+     * 
+     * @param datum URL to process
+     */
+    public void addUrl(GroupedUrlDatum datum) {
+        synchronized (this) {
+            if (!_drained) {
+                _urls.add(datum);
+                return;
+            }
+        }
+        
+        processUrl(datum);
+    }
+    
+    /**
+     * The task couldn't be run, so defer all of the URLs (queued or added later).
+     */
+    public void reject() {
+        _flowProcess.increment(FetchCounters.DOMAINS_REJECTED, 1);
+        setRejected(GroupingKey.DEFERRED_GROUPING_KEY, FetchCounters.URLS_REJECTED);
+        drainUrls();
+    }
+    
     /* (non-Javadoc)
      * @see java.lang.Runnable#run()
      * 
-     * Get robots.txt for the domain, and use it to generate a new grouping key
-     * for all of the URLs that provides the count & crawl delay (or deferred/blocked)
-     * values that we need.
+     * Resolve the domain and get its robots.txt rules. The queued URLs are processed
+     * once we know how to handle them, which might be after this returns (see above).
      */
     @Override
     public void run() {
         _flowProcess.increment(FetchCounters.DOMAINS_PROCESSING, 1);
 
+        String robotsDomain = null;
+        String hostAddress = null;
+        
         try {
-            DomainInfo domainInfo = new DomainInfo(_protocolAndDomain);
+            DomainInfo domainInfo = new DomainInfo(_protocolAndDomain, _robotsFetcher.getFetcher().getHostResolver());
             if (!domainInfo.isValidHostAddress()) {
                 throw new UnknownHostException(_protocolAndDomain);
             }
@@ -87,79 +196,123 @@ public class ProcessRobotsTask implements Runnable {
                 LOGGER.trace(String.format("Resolved %s to %s", _protocolAndDomain, domainInfo.getHostAddress()));
             }
             
-            String domain = domainInfo.getDomain();
-            String pld = DomainNames.getPLD(domain);
-            if (!_scorer.isGoodDomain(domain, pld)) {
+            _domain = domainInfo.getDomain();
+            _pld = DomainNames.getPLD(_domain);
+            if (!_scorer.isGoodDomain(_domain, _pld)) {
                 _flowProcess.increment(FetchCounters.DOMAINS_SKIPPED, 1);
-                _flowProcess.increment(FetchCounters.URLS_SKIPPED, _urls.size());
-                
-                LOGGER.debug("Skipping URLs from not-good domain: " + domain);
+                LOGGER.debug("Skipping URLs from not-good domain: " + _domain);
                 
-                emptyQueue(_urls, GroupingKey.SKIPPED_GROUPING_KEY, _collector);
+                setRejected(GroupingKey.SKIPPED_GROUPING_KEY, FetchCounters.URLS_SKIPPED);
             } else {
-                BaseRobotRules robotRules = RobotUtils.getRobotRules(_fetcher, _parser, new URL(domainInfo.getProtocolAndDomain() + "/robots.txt"));
-
-                String validKey = null;
-                boolean isDeferred = robotRules.isDeferVisits();
-                if (isDeferred) {
-                    LOGGER.debug("Deferring visits to URLs from " + domainInfo.getDomain());
-                    _flowProcess.increment(FetchCounters.DOMAINS_DEFERRED, 1);
-                } else {
-                    validKey = GroupingKey.makeGroupingKey(domainInfo.getHostAddress(), robotRules.getCrawlDelay());
-                    _flowProcess.increment(FetchCounters.DOMAINS_FINISHED, 1);
-                }
-
-                // Use the same key for every URL from this domain
-                GroupedUrlDatum datum;
-                while ((datum = _urls.poll()) != null) {
-                    ScoredUrlDatum scoreUrl;
-                    FetchCounters counter;
-                    String url = datum.getUrl();
-
-                    if (isDeferred) {
-                        counter = FetchCounters.URLS_DEFERRED;
-                        scoreUrl = new ScoredUrlDatum(url, GroupingKey.DEFERRED_GROUPING_KEY, UrlStatus.SKIPPED_DEFERRED, 0.0);
-                    } else if (!robotRules.isAllowed(url)) {
-                        counter = FetchCounters.URLS_BLOCKED;
-                        scoreUrl = new ScoredUrlDatum(url, GroupingKey.BLOCKED_GROUPING_KEY, UrlStatus.SKIPPED_BLOCKED, 0.0);
-                    } else {
-                        counter = FetchCounters.URLS_ACCEPTED;
-                        double score = _scorer.generateScore(domain, pld, datum);
-                        scoreUrl = new ScoredUrlDatum(url, validKey, UrlStatus.UNFETCHED, score);
-                    }
-                    
-                    scoreUrl.setPayload(datum.getPayload());
-                    _flowProcess.increment(counter, 1);
-
-                    // collectors aren't thread safe
-                    synchronized (_collector) {
-                        _collector.add(scoreUrl.getTuple());
-                    }
-                }
+                robotsDomain = domainInfo.getProtocolAndDomain();
+                hostAddress = domainInfo.getHostAddress();
             }
         } catch (UnknownHostException e) {
             LOGGER.debug("Unknown host: " + _protocolAndDomain);
             _flowProcess.increment(FetchCounters.DOMAINS_REJECTED, 1);
-            _flowProcess.increment(FetchCounters.URLS_REJECTED, _urls.size());
-            emptyQueue(_urls, GroupingKey.UNKNOWN_HOST_GROUPING_KEY, _collector);
+            setRejected(GroupingKey.UNKNOWN_HOST_GROUPING_KEY, FetchCounters.URLS_REJECTED);
         } catch (MalformedURLException e) {
             LOGGER.debug("Invalid URL: " + _protocolAndDomain);
             _flowProcess.increment(FetchCounters.DOMAINS_REJECTED, 1);
-            _flowProcess.increment(FetchCounters.URLS_REJECTED, _urls.size());
-            emptyQueue(_urls, GroupingKey.INVALID_URL_GROUPING_KEY, _collector);
+            setRejected(GroupingKey.INVALID_URL_GROUPING_KEY, FetchCounters.URLS_REJECTED);
         } catch (URISyntaxException e) {
             LOGGER.debug("Invalid URI: " + _protocolAndDomain);
             _flowProcess.increment(FetchCounters.DOMAINS_REJECTED, 1);
-            _flowProcess.increment(FetchCounters.URLS_REJECTED, _urls.size());
-            emptyQueue(_urls, GroupingKey.INVALID_URL_GROUPING_KEY, _collector);
+            setRejected(GroupingKey.INVALID_URL_GROUPING_KEY, FetchCounters.URLS_REJECTED);
         } catch (Exception e) {
             LOGGER.warn("Exception processing " + _protocolAndDomain, e);
             _flowProcess.increment(FetchCounters.DOMAINS_REJECTED, 1);
-            _flowProcess.increment(FetchCounters.URLS_REJECTED, _urls.size());
-            emptyQueue(_urls, GroupingKey.INVALID_URL_GROUPING_KEY, _collector);
+            setRejected(GroupingKey.INVALID_URL_GROUPING_KEY, FetchCounters.URLS_REJECTED);
+        }
+        
+        if (robotsDomain == null) {
+            finish();
+            return;
+        }
+        
+        try {
+            getRobotRules(robotsDomain, hostAddress);
+        } catch (MalformedURLException e) {
+            LOGGER.debug("Invalid URL: " + robotsDomain);
+            _flowProcess.increment(FetchCounters.DOMAINS_REJECTED, 1);
+            setRejected(GroupingKey.INVALID_URL_GROUPING_KEY, FetchCounters.URLS_REJECTED);
+            finish();
+        }
+    }
+
+    /**
+     * We know how to handle the URLs, so process them and wrap up.
+     */
+    private void finish() {
+        try {
+            drainUrls();
         } finally {
             _flowProcess.decrement(FetchCounters.DOMAINS_PROCESSING, 1);
         }
     }
 
+    private void setRejected(String groupingKey, FetchCounters counter) {
+        _rejectKey = groupingKey;
+        _rejectCounter = counter;
+    }
+    
+    /**
+     * Process all of the queued URLs. Once the queue is empty, any URLs added via
+     * addUrl() get processed by the caller.
+     */
+    private void drainUrls() {
+        try {
+            while (true) {
+                GroupedUrlDatum datum;
+                synchronized (this) {
+                    datum = _urls.poll();
+                    if (datum == null) {
+                        return;
+                    }
+                }
+                
+                processUrl(datum);
+            }
+        } finally {
+            // Even if something went wrong, URLs added from now on shouldn't be queued
+            // up, since nobody would ever process them.
+            synchronized (this) {
+                _drained = true;
+            }
+        }
+    }
+    
+    private void processUrl(GroupedUrlDatum datum) {
+        ScoredUrlDatum scoreUrl;
+        FetchCounters counter;
+        String url = datum.getUrl();
+
+        try {
+            if (_rejectKey != null) {
+                counter = _rejectCounter;
+                scoreUrl = new ScoredUrlDatum(url, _rejectKey, UrlStatus.UNFETCHED, 1.0);
+            } else if (_robotRules.isDeferVisits()) {
+                counter = FetchCounters.URLS_DEFERRED;
+                scoreUrl = new ScoredUrlDatum(url, GroupingKey.DEFERRED_GROUPING_KEY, UrlStatus.SKIPPED_DEFERRED, 0.0);
+            } else if (!_robotRules.isAllowed(url)) {
+                counter = FetchCounters.URLS_BLOCKED;
+                scoreUrl = new ScoredUrlDatum(url, GroupingKey.BLOCKED_GROUPING_KEY, UrlStatus.SKIPPED_BLOCKED, 0.0);
+            } else {
+                counter = FetchCounters.URLS_ACCEPTED;
+                double score = _scorer.generateScore(_domain, _pld, datum);
+                scoreUrl = new ScoredUrlDatum(url, _validKey, UrlStatus.UNFETCHED, score);
+            }
+        } catch (Exception e) {
+            // Don't let one bad URL (e.g. the scorer blowing up) lose the rest of them.
+            LOGGER.warn("Exception processing " + url, e);
+            counter = FetchCounters.URLS_REJECTED;
+            scoreUrl = new ScoredUrlDatum(url, GroupingKey.INVALID_URL_GROUPING_KEY, UrlStatus.UNFETCHED, 1.0);
+        }
+        
+        scoreUrl.setPayload(datum.getPayload());
+        _flowProcess.increment(counter, 1);
+
+        _collector.add(scoreUrl.getTuple());
+    }
+
 }
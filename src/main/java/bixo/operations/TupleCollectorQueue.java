@@ -0,0 +1,221 @@
+package bixo.operations;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import bixo.hadoop.FetchCounters;
+import cascading.tuple.Tuple;
+import cascading.tuple.TupleEntryCollector;
+
+import com.bixolabs.cascading.LoggingFlowProcess;
+
+/**
+ * Lets many threads emit tuples without contending for the (not thread safe)
+ * output collector.
+ * 
+ * Tuples go into a bounded queue, and a single collector thread drains them
+ * in batches, writing each one to the collector it was added for. If the queue
+ * is full then the adding thread blocks, and that time is tracked via the
+ * COLLECTOR_BLOCKED_TIME counter.
+ * 
+ * Once close() has been called, any tuples that are added get dropped (with a
+ * warning), but everything added before then is written before close() returns.
+ */
+public class TupleCollectorQueue {
+    private static final Logger LOGGER = Logger.getLogger(TupleCollectorQueue.class);
+    
+    private static final int MAX_BATCH_SIZE = 100;
+    private static final long POLL_TIME = 100L;
+    
+    private static class QueuedTuple {
+        private TupleEntryCollector _collector;
+        private Tuple _tuple;
+        
+        public QueuedTuple(TupleEntryCollector collector, Tuple tuple) {
+            _collector = collector;
+            _tuple = tuple;
+        }
+    }
+    
+    private class QueuedCollector extends TupleEntryCollector {
+        private TupleEntryCollector _collector;
+        
+        public QueuedCollector(TupleEntryCollector collector) {
+            _collector = collector;
+        }
+        
+        @Override
+        protected void collect(Tuple tuple) {
+            TupleCollectorQueue.this.add(_collector, tuple);
+        }
+    }
+    
+    private class CollectorThread extends Thread {
+        
+        public CollectorThread() {
+            super("TupleCollectorQueue");
+            setDaemon(true);
+        }
+        
+        @Override
+        public void run() {
+            List<QueuedTuple> batch = new ArrayList<QueuedTuple>(MAX_BATCH_SIZE);
+            
+            while (true) {
+                // Check for shutdown before we drain, so that anything added by a thread
+                // that got in before close() is written out.
+                boolean done = _closed && (_numAdding.get() == 0);
+                
+                try {
+                    QueuedTuple first = done ? _queue.poll() : _queue.poll(POLL_TIME, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        if (done) {
+                            break;
+                        } else {
+                            continue;
+                        }
+                    }
+                    
+                    batch.add(first);
+                } catch (InterruptedException e) {
+                    // Only close() can stop us, since we can't lose tuples.
+                    continue;
+                }
+                
+                _queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+                updateMaxDepth(batch.size() + _queue.size());
+                
+                for (QueuedTuple queued : batch) {
+                    try {
+                        queued._collector.add(queued._tuple);
+                    } catch (Throwable t) {
+                        LOGGER.error("Exception writing tuple: " + queued._tuple, t);
+                    }
+                }
+                
+                batch.clear();
+            }
+        }
+    }
+    
+    private LoggingFlowProcess _flowProcess;
+    private BlockingQueue<QueuedTuple> _queue;
+    private AtomicInteger _numAdding;
+    private volatile boolean _closed;
+    private int _maxDepth;
+    private CollectorThread _collectorThread;
+    
+    /**
+     * Create a queue, and start its collector thread.
+     * 
+     * @param maxQueueSize Max number of tuples waiting to be written, before adding blocks
+     * @param flowProcess Process used for collector counters
+     */
+    public TupleCollectorQueue(int maxQueueSize, LoggingFlowProcess flowProcess) {
+        _flowProcess = flowProcess;
+        _queue = new ArrayBlockingQueue<QueuedTuple>(maxQueueSize);
+        _numAdding = new AtomicInteger(0);
+        _closed = false;
+        _maxDepth = 0;
+        
+        _collectorThread = new CollectorThread();
+        _collectorThread.start();
+    }
+    
+    /**
+     * Return a collector that's safe to call from multiple threads, which queues up
+     * tuples to be written to <collector>.
+     * 
+     * @param collector Collector that will get the tuples
+     * @return thread-safe collector
+     */
+    public TupleEntryCollector wrap(TupleEntryCollector collector) {
+        return new QueuedCollector(collector);
+    }
+    
+    /**
+     * Queue up <tuple> to be written to <collector>, blocking if the queue is full.
+     * 
+     * @param collector Collector that will get the tuple
+     * @param tuple Tuple to write
+     */
+    public void add(TupleEntryCollector collector, Tuple tuple) {
+        _numAdding.incrementAndGet();
+        
+        try {
+            if (_closed) {
+                LOGGER.warn("Losing an entry: " + tuple);
+                return;
+            }
+            
+            QueuedTuple queued = new QueuedTuple(collector, tuple);
+            if (_queue.offer(queued)) {
+                return;
+            }
+            
+            long startTime = System.currentTimeMillis();
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    _queue.put(queued);
+                    break;
+                } catch (InterruptedException e) {
+                    // Hang onto the interrupt, but don't lose the tuple.
+                    interrupted = true;
+                }
+            }
+            
+            _flowProcess.increment(FetchCounters.COLLECTOR_BLOCKED_TIME, (int)(System.currentTimeMillis() - startTime));
+            
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        } finally {
+            _numAdding.decrementAndGet();
+        }
+    }
+    
+    /**
+     * Return the number of tuples waiting to be written.
+     * 
+     * @return queue depth
+     */
+    public int getQueueDepth() {
+        return _queue.size();
+    }
+    
+    /**
+     * Stop accepting tuples, and wait until everything that's been queued up
+     * has been written.
+     */
+    public void close() {
+        _closed = true;
+        
+        boolean interrupted = false;
+        while (_collectorThread.isAlive()) {
+            try {
+                _collectorThread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private void updateMaxDepth(int depth) {
+        // Counters can only be incremented, so bump it by however much the max grew.
+        if (depth > _maxDepth) {
+            _flowProcess.increment(FetchCounters.COLLECTOR_MAX_QUEUE_DEPTH, depth - _maxDepth);
+            _maxDepth = depth;
+        }
+    }
+}
@@ -12,11 +12,35 @@ public abstract class BaseContentExtractor extends DefaultHandler implements Ser
     protected boolean _inHead;
     protected boolean _inBody;
     protected boolean _inTitle;
+    
+    private int _maxContentChars = Integer.MAX_VALUE;
+    private int _numContentChars;
+    private boolean _contentLimitReached;
 
     public void reset() {
         _inHead = false;
         _inBody = false;
         _inTitle = false;
+        _numContentChars = 0;
+        _contentLimitReached = false;
+    }
+    
+    /**
+     * @param maxContentChars max number of chars passed to addContent() for one document
+     */
+    public void setMaxContentChars(int maxContentChars) {
+        _maxContentChars = maxContentChars;
+    }
+    
+    public int getMaxContentChars() {
+        return _maxContentChars;
+    }
+    
+    /**
+     * @return true if some of the document's text was dropped, because of the max content chars
+     */
+    public boolean isContentLimitReached() {
+        return _contentLimitReached;
     }
     
     public abstract String getContent();
@@ -45,9 +69,25 @@ public abstract class BaseContentExtractor extends DefaultHandler implements Ser
         super.characters(ch, start, length);
         
         if (_inTitle) {
-            addContent(ch, start, length);
-            addContent(' ');
+            addLimitedContent(ch, start, length);
+            if (_numContentChars < _maxContentChars) {
+                _numContentChars += 1;
+                addContent(' ');
+            }
         } else if (_inBody) {
+            addLimitedContent(ch, start, length);
+        }
+    }
+    
+    private void addLimitedContent(char[] ch, int start, int length) {
+        int available = _maxContentChars - _numContentChars;
+        if (length > available) {
+            _contentLimitReached = true;
+            length = available;
+        }
+        
+        if (length > 0) {
+            _numContentChars += length;
             addContent(ch, start, length);
         }
     }
@@ -55,6 +55,10 @@ public abstract class BaseLinkExtractor extends DefaultHandler implements Serial
     protected StringBuilder _curAnchor = new StringBuilder();
     protected Set<String> _linkTags = DEFAULT_LINK_TAGS;
     protected Set<String> _linkAttributeTypes = DEFAULT_LINK_ATTRIBUTE_TYPES;
+    
+    private int _maxOutlinks = Integer.MAX_VALUE;
+    private int _numOutlinks;
+    private boolean _outlinkLimitReached;
 
     /**
      * @param linkTags to collect {@link Outlink}s from
@@ -88,8 +92,28 @@ public abstract class BaseLinkExtractor extends DefaultHandler implements Serial
         return _linkAttributeTypes;
     }
     
+    /**
+     * @param maxOutlinks max number of links passed to addLink() for one document
+     */
+    public void setMaxOutlinks(int maxOutlinks) {
+        _maxOutlinks = maxOutlinks;
+    }
+    
+    public int getMaxOutlinks() {
+        return _maxOutlinks;
+    }
+    
+    /**
+     * @return true if some of the document's links were dropped, because of the max outlinks
+     */
+    public boolean isOutlinkLimitReached() {
+        return _outlinkLimitReached;
+    }
+    
     public void reset() {
         _inAnchorTag = null;
+        _numOutlinks = 0;
+        _outlinkLimitReached = false;
     }
     
     public void addLink(Outlink link) {};
@@ -106,6 +130,11 @@ public abstract class BaseLinkExtractor extends DefaultHandler implements Serial
             for (String linkAttributeType : _linkAttributeTypes) {
                 String attrValue = attributes.getValue(linkAttributeType);
                 if (attrValue != null) {
+                    if (_numOutlinks >= _maxOutlinks) {
+                        _outlinkLimitReached = true;
+                        break;
+                    }
+                    
                     _curUrl = attrValue;
                     _curRelAttributes = attributes.getValue("rel");
                     _inAnchorTag = tag;
@@ -129,6 +158,7 @@ public abstract class BaseLinkExtractor extends DefaultHandler implements Serial
         super.endElement(uri, localName, name);
 
         if (localName.equalsIgnoreCase(_inAnchorTag)) {
+            _numOutlinks += 1;
             addLink(new Outlink(_curUrl, _curAnchor.toString(), _curRelAttributes));
             _inAnchorTag = null;
         }
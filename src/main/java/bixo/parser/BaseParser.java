@@ -1,6 +1,8 @@
 package bixo.parser;
 
 import java.io.Serializable;
+import java.util.Collections;
+import java.util.Map;
 
 import org.apache.tika.parser.AutoDetectParser;
 import org.apache.tika.parser.Parser;
@@ -24,6 +26,27 @@ public abstract class BaseParser implements Serializable {
 
     public abstract Parser getTikaParser();
 
+    /**
+     * Return the executor used to run (and time out) parses, or null if the parser
+     * doesn't use one.
+     * 
+     * @return executor, or null
+     */
+    public ParseExecutor getParseExecutor() {
+        return null;
+    }
+
+    /**
+     * Return the number of documents that hit each of the parse limits in the policy
+     * (ParserCounters.CONTENT_LIMITED, etc), or an empty map if the parser doesn't
+     * enforce them.
+     * 
+     * @return map from counter to number of documents
+     */
+    public Map<ParserCounters, Long> getLimitCounts() {
+        return Collections.emptyMap();
+    }
+
     public abstract ParsedDatum parse(FetchedDatum fetchedDatum) throws Exception;
 
 }
@@ -0,0 +1,238 @@
+package bixo.parser;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.CharBuffer;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import org.apache.tika.language.LanguageIdentifier;
+import org.apache.tika.language.ProfilingHandler;
+import org.apache.tika.metadata.Metadata;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.DefaultHandler;
+
+import bixo.datum.ParsedDatum;
+
+/**
+ * Parses HTML with our own tokenizer, instead of going through Tika's type detection
+ * and parser pipeline. The content and link extractors get the same events that they
+ * would from Tika, so the resulting ParsedDatum is the same, but we don't have to
+ * detect the type, run TagSoup, or map every element.
+ *
+ * Like Tika, relative links are resolved against the base URL (from a <base> element,
+ * or the content location), and the title and meta tags are added to the metadata.
+ */
+class HtmlCallable implements Callable<ParsedDatum> {
+
+    // Sends events to the extractors (and the language profiler), and picks up the
+    // title, meta tags and base URL along the way.
+    private class HtmlHandler extends DefaultHandler {
+        private boolean _inHead = false;
+        private boolean _inTitle = false;
+        private boolean _foundBase = false;
+        private StringBuilder _title = new StringBuilder();
+
+        @Override
+        public void startDocument() throws SAXException {
+            _contentExtractor.startDocument();
+            _linkExtractor.startDocument();
+        }
+
+        @Override
+        public void endDocument() throws SAXException {
+            _contentExtractor.endDocument();
+            _linkExtractor.endDocument();
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+            if (localName.equals("head")) {
+                _inHead = true;
+            } else if (_inHead) {
+                if (localName.equals("title")) {
+                    _inTitle = true;
+                } else if (localName.equals("meta")) {
+                    addMetadata(atts);
+                } else if (localName.equals("base") && !_foundBase) {
+                    String href = atts.getValue("href");
+                    if (href != null) {
+                        _baseUrl = resolve(href);
+                        _metadata.set(Metadata.CONTENT_LOCATION, _baseUrl);
+                        _foundBase = true;
+                    }
+                }
+            }
+
+            Attributes resolvedAtts = resolveLinks(localName, atts);
+            _contentExtractor.startElement(uri, localName, qName, resolvedAtts);
+            _linkExtractor.startElement(uri, localName, qName, resolvedAtts);
+            if (_budget != null) {
+                _budget.startElement(uri, localName, qName, resolvedAtts);
+            }
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) throws SAXException {
+            if (_inTitle) {
+                _title.append(ch, start, length);
+            }
+
+            _contentExtractor.characters(ch, start, length);
+            _linkExtractor.characters(ch, start, length);
+            if (_budget != null) {
+                // The budget passes text on to the profiling handler.
+                _budget.characters(ch, start, length);
+            } else if (_profilingHandler != null) {
+                _profilingHandler.characters(ch, start, length);
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) throws SAXException {
+            if (localName.equals("head")) {
+                _inHead = false;
+            } else if (_inTitle && localName.equals("title")) {
+                _inTitle = false;
+                _metadata.set(Metadata.TITLE, _title.toString().trim());
+            }
+
+            _contentExtractor.endElement(uri, localName, qName);
+            _linkExtractor.endElement(uri, localName, qName);
+            if (_budget != null) {
+                _budget.endElement(uri, localName, qName);
+            }
+        }
+
+        private void addMetadata(Attributes atts) {
+            String content = atts.getValue("content");
+            String name = atts.getValue("http-equiv");
+            if (name == null) {
+                name = atts.getValue("name");
+            }
+
+            if ((content == null) || (name == null)) {
+                return;
+            }
+
+            if (name.equalsIgnoreCase(Metadata.CONTENT_TYPE)) {
+                _metadata.set(Metadata.CONTENT_TYPE, content);
+            } else {
+                _metadata.set(name, content);
+            }
+        }
+
+        /**
+         * Return <atts> with link attributes resolved against the base URL, if
+         * <localName> is one of the tags that the link extractor cares about.
+         */
+        private Attributes resolveLinks(String localName, Attributes atts) {
+            if (!_linkExtractor.getLinkTags().contains(localName)) {
+                return atts;
+            }
+
+            Set<String> linkAttributeTypes = _linkExtractor.getLinkAttributeTypes();
+            AttributesImpl result = null;
+            for (int i = 0; i < atts.getLength(); i++) {
+                if (linkAttributeTypes.contains(atts.getLocalName(i))) {
+                    if (result == null) {
+                        result = new AttributesImpl(atts);
+                    }
+
+                    result.setValue(i, resolve(atts.getValue(i)));
+                }
+            }
+
+            return result == null ? atts : result;
+        }
+    }
+
+    private BaseContentExtractor _contentExtractor;
+    private BaseLinkExtractor _linkExtractor;
+    private CharBuffer _content;
+    private String _charset;
+    private Metadata _metadata;
+    private boolean _extractLanguage;
+    private ParseBudget _budget;
+
+    private String _baseUrl;
+    private ProfilingHandler _profilingHandler;
+
+    /**
+     * @param contentExtractor Extractor for text (reset and ready to use)
+     * @param linkExtractor Extractor for outlinks (reset and ready to use)
+     * @param content Decoded content (must be backed by an array)
+     * @param charset Charset that was used to decode the content
+     * @param metadata Metadata, which must include the content location
+     * @param extractLanguage True if language should be detected
+     * @param budget Limits for the parse, which stop it early once they're all reached (or
+     *        null, to parse the entire document)
+     */
+    public HtmlCallable(BaseContentExtractor contentExtractor, BaseLinkExtractor linkExtractor, CharBuffer content,
+                    String charset, Metadata metadata, boolean extractLanguage, ParseBudget budget) {
+        _contentExtractor = contentExtractor;
+        _linkExtractor = linkExtractor;
+        _content = content;
+        _charset = charset;
+        _metadata = metadata;
+        _extractLanguage = extractLanguage;
+        _budget = budget;
+    }
+
+    @Override
+    public ParsedDatum call() throws Exception {
+        _baseUrl = _metadata.get(Metadata.CONTENT_LOCATION);
+        _profilingHandler = _extractLanguage ? new ProfilingHandler() : null;
+        _metadata.set(Metadata.CONTENT_ENCODING, _charset);
+
+        if (_budget != null) {
+            _budget.reset(_profilingHandler);
+        }
+        
+        try {
+            new HtmlTokenizer(new HtmlHandler()).parse(_content.array(), _content.arrayOffset() + _content.position(),
+                            _content.remaining());
+        } catch (SAXException e) {
+            // Stopping the parse early isn't an error, so use what we've got.
+            if ((_budget == null) || !_budget.isStopped()) {
+                throw e;
+            }
+        }
+
+        String lang = _extractLanguage ? detectLanguage() : "";
+        return new ParsedDatum(_metadata.get(Metadata.RESOURCE_NAME_KEY), null, _contentExtractor.getContent(), lang,
+                        _metadata.get(Metadata.TITLE),
+                        _linkExtractor.getLinks(), TikaCallable.makeMap(_metadata));
+    }
+
+    private String resolve(String url) {
+        try {
+            return new URL(new URL(_baseUrl), url.trim()).toExternalForm();
+        } catch (MalformedURLException e) {
+            return url;
+        }
+    }
+
+    /**
+     * Same as TikaCallable: use the language from meta tags if there is one, otherwise
+     * the result from profiling the text.
+     *
+     * @return two char language code, or empty string if no language was detected.
+     */
+    private String detectLanguage() {
+        String result = _metadata.get(Metadata.LANGUAGE);
+        if (result == null) {
+            result = _metadata.get(Metadata.CONTENT_LANGUAGE);
+        }
+
+        result = TikaCallable.getFirstLanguage(result);
+        if (result == null) {
+            LanguageIdentifier langIdentifier = _profilingHandler.getLanguage();
+            result = langIdentifier.isReasonablyCertain() ? langIdentifier.getLanguage() : "";
+        }
+
+        return result;
+    }
+}
@@ -0,0 +1,652 @@
+package bixo.parser;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * Streaming HTML tokenizer that turns (possibly broken) HTML into SAX events, without
+ * building a document tree.
+ *
+ * The events have the same shape as what Tika produces for HTML, so our content and link
+ * extractors work unchanged: element and attribute names are lower-cased and in the XHTML
+ * namespace, there's always an <html> element with a <head> and a <body>, head-only
+ * elements (title, meta, link, base) that show up before any body content are put in the
+ * head, void elements (e.g. <img>) are closed right away, unclosed elements are closed
+ * when an ancestor ends, and script and style elements are dropped along with their content.
+ * Entities in text and attribute values are decoded.
+ */
+public class HtmlTokenizer {
+
+    public static final String XHTML_NAMESPACE = "http://www.w3.org/1999/xhtml";
+
+    private static final Set<String> VOID_ELEMENTS = new HashSet<String>() {{
+        add("area");
+        add("base");
+        add("basefont");
+        add("bgsound");
+        add("br");
+        add("col");
+        add("embed");
+        add("frame");
+        add("hr");
+        add("img");
+        add("input");
+        add("isindex");
+        add("keygen");
+        add("link");
+        add("meta");
+        add("param");
+        add("source");
+        add("track");
+        add("wbr");
+    }};
+
+    private static final Set<String> HEAD_ELEMENTS = new HashSet<String>() {{
+        add("base");
+        add("link");
+        add("meta");
+        add("title");
+    }};
+
+    // Elements whose content is dropped, along with the element itself.
+    private static final Set<String> DISCARD_ELEMENTS = new HashSet<String>() {{
+        add("script");
+        add("style");
+    }};
+
+    // Elements whose content is text (with entities), not markup.
+    private static final Set<String> RCDATA_ELEMENTS = new HashSet<String>() {{
+        add("textarea");
+        add("title");
+    }};
+
+    // HTML 4 Latin-1 entities, for characters 160 - 255.
+    private static final String[] LATIN1_ENTITIES = {
+        "nbsp", "iexcl", "cent", "pound", "curren", "yen", "brvbar", "sect",
+        "uml", "copy", "ordf", "laquo", "not", "shy", "reg", "macr",
+        "deg", "plusmn", "sup2", "sup3", "acute", "micro", "para", "middot",
+        "cedil", "sup1", "ordm", "raquo", "frac14", "frac12", "frac34", "iquest",
+        "Agrave", "Aacute", "Acirc", "Atilde", "Auml", "Aring", "AElig", "Ccedil",
+        "Egrave", "Eacute", "Ecirc", "Euml", "Igrave", "Iacute", "Icirc", "Iuml",
+        "ETH", "Ntilde", "Ograve", "Oacute", "Ocirc", "Otilde", "Ouml", "times",
+        "Oslash", "Ugrave", "Uacute", "Ucirc", "Uuml", "Yacute", "THORN", "szlig",
+        "agrave", "aacute", "acirc", "atilde", "auml", "aring", "aelig", "ccedil",
+        "egrave", "eacute", "ecirc", "euml", "igrave", "iacute", "icirc", "iuml",
+        "eth", "ntilde", "ograve", "oacute", "ocirc", "otilde", "ouml", "divide",
+        "oslash", "ugrave", "uacute", "ucirc", "uuml", "yacute", "thorn", "yuml"
+    };
+
+    private static final Map<String, Character> ENTITIES = new HashMap<String, Character>() {{
+        for (int i = 0; i < LATIN1_ENTITIES.length; i++) {
+            put(LATIN1_ENTITIES[i], (char)(160 + i));
+        }
+
+        put("amp", '&');
+        put("lt", '<');
+        put("gt", '>');
+        put("quot", '"');
+        put("apos", '\'');
+        put("OElig", '\u0152');
+        put("oelig", '\u0153');
+        put("Scaron", '\u0160');
+        put("scaron", '\u0161');
+        put("Yuml", '\u0178');
+        put("fnof", '\u0192');
+        put("circ", '\u02C6');
+        put("tilde", '\u02DC');
+        put("ensp", '\u2002');
+        put("emsp", '\u2003');
+        put("thinsp", '\u2009');
+        put("zwnj", '\u200C');
+        put("zwj", '\u200D');
+        put("lrm", '\u200E');
+        put("rlm", '\u200F');
+        put("ndash", '\u2013');
+        put("mdash", '\u2014');
+        put("lsquo", '\u2018');
+        put("rsquo", '\u2019');
+        put("sbquo", '\u201A');
+        put("ldquo", '\u201C');
+        put("rdquo", '\u201D');
+        put("bdquo", '\u201E');
+        put("dagger", '\u2020');
+        put("Dagger", '\u2021');
+        put("bull", '\u2022');
+        put("hellip", '\u2026');
+        put("permil", '\u2030');
+        put("prime", '\u2032');
+        put("Prime", '\u2033');
+        put("lsaquo", '\u2039');
+        put("rsaquo", '\u203A');
+        put("euro", '\u20AC');
+        put("trade", '\u2122');
+        put("larr", '\u2190');
+        put("uarr", '\u2191');
+        put("rarr", '\u2192');
+        put("darr", '\u2193');
+        put("harr", '\u2194');
+    }};
+
+    // Longest entity name we'll look for, so a stray '&' doesn't scan the whole document.
+    private static final int MAX_ENTITY_LENGTH = 10;
+
+    private static final int BEFORE_HEAD = 0;
+    private static final int IN_HEAD = 1;
+    private static final int AFTER_HEAD = 2;
+    private static final int IN_BODY = 3;
+
+    private ContentHandler _handler;
+    private char[] _chars;
+    private int _pos;
+    private int _end;
+
+    private List<String> _openElements;
+    private int _state;
+    private StringBuilder _text;
+
+    public HtmlTokenizer(ContentHandler handler) {
+        _handler = handler;
+        _openElements = new ArrayList<String>();
+        _text = new StringBuilder();
+    }
+
+    /**
+     * Tokenize <length> chars of HTML, starting at <offset>, and send the resulting
+     * SAX events to the handler. The array isn't modified, and characters() gets called
+     * with slices of it where possible.
+     *
+     * @param chars Decoded HTML
+     * @param offset Index of first char
+     * @param length Number of chars
+     * @throws SAXException if the handler throws it
+     */
+    public void parse(char[] chars, int offset, int length) throws SAXException {
+        _chars = chars;
+        _pos = offset;
+        _end = offset + length;
+        _openElements.clear();
+        _state = BEFORE_HEAD;
+
+        // Skip a byte order mark that made it through decoding, so it isn't treated as body text.
+        if ((_pos < _end) && (_chars[_pos] == '\uFEFF')) {
+            _pos += 1;
+        }
+
+        _handler.startDocument();
+
+        while (_pos < _end) {
+            if (_chars[_pos] == '<') {
+                parseMarkup();
+            } else {
+                parseText();
+            }
+        }
+
+        closeAll();
+        _handler.endDocument();
+        _chars = null;
+    }
+
+    private void parseMarkup() throws SAXException {
+        int next = _pos + 1;
+        if (next >= _end) {
+            text(_chars, _pos, 1);
+            _pos = _end;
+        } else if (startsWith(next, "!--")) {
+            _pos = skipPast(next + 3, "-->");
+        } else if ((_chars[next] == '!') || (_chars[next] == '?')) {
+            _pos = skipPast(next, ">");
+        } else if ((_chars[next] == '/') && (next + 1 < _end) && isLetter(_chars[next + 1])) {
+            _pos = next + 1;
+            String name = readName();
+            _pos = skipPast(_pos, ">");
+            endTag(name);
+        } else if (isLetter(_chars[next])) {
+            _pos = next;
+            parseStartTag();
+        } else {
+            text(_chars, _pos, 1);
+            _pos = next;
+        }
+    }
+
+    private void parseStartTag() throws SAXException {
+        String name = readName();
+        AttributesImpl attributes = new AttributesImpl();
+        boolean selfClosing = false;
+
+        while (_pos < _end) {
+            char c = _chars[_pos];
+            if (c == '>') {
+                _pos += 1;
+                break;
+            } else if (c == '/') {
+                selfClosing = (_pos + 1 < _end) && (_chars[_pos + 1] == '>');
+                _pos += 1;
+            } else if (Character.isWhitespace(c)) {
+                _pos += 1;
+            } else {
+                parseAttribute(attributes);
+                selfClosing = false;
+            }
+        }
+
+        if (DISCARD_ELEMENTS.contains(name)) {
+            if (!selfClosing) {
+                _pos = skipPastEndTag(name);
+            }
+        } else {
+            startTag(name, attributes, selfClosing);
+
+            if (RCDATA_ELEMENTS.contains(name) && !selfClosing) {
+                int start = _pos;
+                int endTagStart = findEndTag(name);
+                decodeText(start, endTagStart);
+                _pos = skipPastEndTag(name);
+                endTag(name);
+            }
+        }
+    }
+
+    private void parseAttribute(AttributesImpl attributes) {
+        int start = _pos;
+        while ((_pos < _end) && !Character.isWhitespace(_chars[_pos]) && (_chars[_pos] != '=')
+                        && (_chars[_pos] != '>') && (_chars[_pos] != '/')) {
+            _pos += 1;
+        }
+
+        String name = new String(_chars, start, _pos - start).toLowerCase();
+        String value = "";
+
+        int afterName = _pos;
+        skipWhitespace();
+        if ((_pos < _end) && (_chars[_pos] == '=')) {
+            _pos += 1;
+            skipWhitespace();
+
+            if ((_pos < _end) && ((_chars[_pos] == '"') || (_chars[_pos] == '\''))) {
+                char quote = _chars[_pos];
+                int valueStart = _pos + 1;
+                _pos = valueStart;
+                while ((_pos < _end) && (_chars[_pos] != quote)) {
+                    _pos += 1;
+                }
+
+                value = decode(valueStart, _pos);
+                _pos = Math.min(_end, _pos + 1);
+            } else {
+                int valueStart = _pos;
+                while ((_pos < _end) && !Character.isWhitespace(_chars[_pos]) && (_chars[_pos] != '>')) {
+                    _pos += 1;
+                }
+
+                value = decode(valueStart, _pos);
+            }
+        } else {
+            _pos = afterName;
+        }
+
+        // First one wins, same as browsers.
+        if (attributes.getIndex(name) == -1) {
+            attributes.addAttribute("", name, name, "CDATA", value);
+        }
+    }
+
+    private void parseText() throws SAXException {
+        int start = _pos;
+        while ((_pos < _end) && (_chars[_pos] != '<')) {
+            _pos += 1;
+        }
+
+        decodeText(start, _pos);
+    }
+
+    private void startTag(String name, AttributesImpl attributes, boolean selfClosing) throws SAXException {
+        if (name.equals("html")) {
+            ensureHtml();
+            return;
+        } else if (name.equals("head")) {
+            if (_state == BEFORE_HEAD) {
+                openHead();
+            }
+
+            return;
+        } else if (name.equals("body")) {
+            ensureBody();
+            return;
+        } else if (HEAD_ELEMENTS.contains(name) && (_state <= IN_HEAD)) {
+            if (_state == BEFORE_HEAD) {
+                openHead();
+            }
+        } else {
+            ensureBody();
+        }
+
+        // Links can't be nested, so a new one closes any that's open.
+        if (name.equals("a") && _openElements.contains("a")) {
+            endTag("a");
+        }
+
+        _openElements.add(name);
+        _handler.startElement(XHTML_NAMESPACE, name, name, attributes);
+
+        if (selfClosing || VOID_ELEMENTS.contains(name)) {
+            popElement();
+        }
+    }
+
+    private void endTag(String name) throws SAXException {
+        if (name.equals("html") || name.equals("body") || VOID_ELEMENTS.contains(name)) {
+            // Closed at the end of the document.
+            return;
+        } else if (name.equals("head")) {
+            if (_state == IN_HEAD) {
+                closeTo("head");
+                _state = AFTER_HEAD;
+            }
+
+            return;
+        }
+
+        // Don't close anything above the head or body, for a stray end tag.
+        for (int i = _openElements.size() - 1; i >= 0; i--) {
+            String openName = _openElements.get(i);
+            if (openName.equals(name)) {
+                closeTo(name);
+                return;
+            } else if (openName.equals("head") || openName.equals("body")) {
+                return;
+            }
+        }
+    }
+
+    private void text(char[] chars, int start, int length) throws SAXException {
+        if (length == 0) {
+            return;
+        }
+
+        if ((_state != IN_BODY) && !isInTextElement()) {
+            if (isWhitespace(chars, start, length)) {
+                return;
+            }
+
+            ensureBody();
+        }
+
+        _handler.characters(chars, start, length);
+    }
+
+    private boolean isInTextElement() {
+        int numOpen = _openElements.size();
+        return (numOpen > 0) && RCDATA_ELEMENTS.contains(_openElements.get(numOpen - 1));
+    }
+
+    private void ensureHtml() throws SAXException {
+        if (_openElements.isEmpty()) {
+            pushElement("html");
+        }
+    }
+
+    private void openHead() throws SAXException {
+        ensureHtml();
+        pushElement("head");
+        _state = IN_HEAD;
+    }
+
+    private void ensureBody() throws SAXException {
+        if (_state == IN_BODY) {
+            return;
+        }
+
+        if (_state == BEFORE_HEAD) {
+            openHead();
+        }
+
+        if (_state == IN_HEAD) {
+            closeTo("head");
+        }
+
+        pushElement("body");
+        _state = IN_BODY;
+    }
+
+    private void pushElement(String name) throws SAXException {
+        _openElements.add(name);
+        _handler.startElement(XHTML_NAMESPACE, name, name, new AttributesImpl());
+    }
+
+    private void popElement() throws SAXException {
+        String name = _openElements.remove(_openElements.size() - 1);
+        _handler.endElement(XHTML_NAMESPACE, name, name);
+    }
+
+    private void closeTo(String name) throws SAXException {
+        while (!_openElements.isEmpty()) {
+            boolean found = _openElements.get(_openElements.size() - 1).equals(name);
+            popElement();
+            if (found) {
+                break;
+            }
+        }
+    }
+
+    private void closeAll() throws SAXException {
+        ensureBody();
+        while (!_openElements.isEmpty()) {
+            popElement();
+        }
+    }
+
+    /**
+     * Send text from <start> to <end> to the handler, decoding any entities.
+     */
+    private void decodeText(int start, int end) throws SAXException {
+        int runStart = start;
+        for (int i = start; i < end; i++) {
+            if (_chars[i] == '&') {
+                int entityEnd = findEntityEnd(i, end);
+                if (entityEnd != -1) {
+                    int decoded = decodeEntity(i, entityEnd);
+                    if (decoded != 0) {
+                        text(_chars, runStart, i - runStart);
+                        char[] decodedChars = Character.toChars(decoded);
+                        text(decodedChars, 0, decodedChars.length);
+
+                        i = (entityEnd < end) && (_chars[entityEnd] == ';') ? entityEnd : entityEnd - 1;
+                        runStart = i + 1;
+                    }
+                }
+            }
+        }
+
+        text(_chars, runStart, end - runStart);
+    }
+
+    /**
+     * Return the attribute value from <start> to <end>, with entities decoded. As per
+     * the HTML spec, a named entity without a ';' isn't decoded if it's followed by '='
+     * or a letter or digit, so that URLs like "/page?a=1&copy=2" are left alone.
+     */
+    private String decode(int start, int end) {
+        _text.setLength(0);
+        for (int i = start; i < end; i++) {
+            char c = _chars[i];
+            if (c == '&') {
+                int entityEnd = findEntityEnd(i, end);
+                if ((entityEnd != -1) && !isUnterminatedInAttribute(i, entityEnd, end)) {
+                    int decoded = decodeEntity(i, entityEnd);
+                    if (decoded != 0) {
+                        _text.appendCodePoint(decoded);
+                        i = (entityEnd < end) && (_chars[entityEnd] == ';') ? entityEnd : entityEnd - 1;
+                        continue;
+                    }
+                }
+            }
+
+            _text.append(c);
+        }
+
+        return _text.toString();
+    }
+
+    /**
+     * Return the index just past the name (or number) of the entity that starts at
+     * <ampersand>, or -1 if there's no name.
+     */
+    private int findEntityEnd(int ampersand, int end) {
+        int i = ampersand + 1;
+        if ((i < end) && (_chars[i] == '#')) {
+            i += 1;
+            if ((i < end) && ((_chars[i] == 'x') || (_chars[i] == 'X'))) {
+                i += 1;
+            }
+        }
+
+        int nameStart = i;
+        while ((i < end) && (i - nameStart < MAX_ENTITY_LENGTH) && Character.isLetterOrDigit(_chars[i])) {
+            i += 1;
+        }
+
+        return i == nameStart ? -1 : i;
+    }
+
+    /**
+     * Return true if the entity from <ampersand> to <entityEnd> is a named entity without
+     * a ';', that's followed by a char that means it's not really an entity when it's in
+     * an attribute value.
+     */
+    private boolean isUnterminatedInAttribute(int ampersand, int entityEnd, int end) {
+        if ((_chars[ampersand + 1] == '#') || (entityEnd == end)) {
+            return false;
+        }
+
+        char next = _chars[entityEnd];
+        return (next == '=') || Character.isLetterOrDigit(next);
+    }
+
+    /**
+     * Return the code point for the entity from <ampersand> to <entityEnd>, or 0 if
+     * it's not one we know.
+     */
+    private int decodeEntity(int ampersand, int entityEnd) {
+        if (_chars[ampersand + 1] == '#') {
+            int numStart = ampersand + 2;
+            int radix = 10;
+            if ((_chars[numStart] == 'x') || (_chars[numStart] == 'X')) {
+                numStart += 1;
+                radix = 16;
+            }
+
+            try {
+                int value = Integer.parseInt(new String(_chars, numStart, entityEnd - numStart), radix);
+                return (Character.isValidCodePoint(value) && (value > 0)) ? value : 0;
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        } else {
+            Character result = ENTITIES.get(new String(_chars, ampersand + 1, entityEnd - ampersand - 1));
+            return result == null ? 0 : result.charValue();
+        }
+    }
+
+    private String readName() {
+        int start = _pos;
+        while ((_pos < _end) && !Character.isWhitespace(_chars[_pos]) && (_chars[_pos] != '>') && (_chars[_pos] != '/')) {
+            _pos += 1;
+        }
+
+        return new String(_chars, start, _pos - start).toLowerCase();
+    }
+
+    private void skipWhitespace() {
+        while ((_pos < _end) && Character.isWhitespace(_chars[_pos])) {
+            _pos += 1;
+        }
+    }
+
+    /**
+     * Return the index just past the next <target> at or after <from>, or the end
+     * of the input if there isn't one.
+     */
+    private int skipPast(int from, String target) {
+        for (int i = from; i < _end; i++) {
+            if (startsWith(i, target)) {
+                return i + target.length();
+            }
+        }
+
+        return _end;
+    }
+
+    /**
+     * Return the index of the "</name" that ends the current element, or the end of
+     * the input if there isn't one.
+     */
+    private int findEndTag(String name) {
+        for (int i = _pos; i < _end - 1; i++) {
+            if ((_chars[i] == '<') && (_chars[i + 1] == '/') && startsWithIgnoreCase(i + 2, name)) {
+                int afterName = i + 2 + name.length();
+                if ((afterName >= _end) || !Character.isLetterOrDigit(_chars[afterName])) {
+                    return i;
+                }
+            }
+        }
+
+        return _end;
+    }
+
+    private int skipPastEndTag(String name) {
+        int endTagStart = findEndTag(name);
+        return endTagStart == _end ? _end : skipPast(endTagStart, ">");
+    }
+
+    private boolean startsWith(int from, String target) {
+        if (from + target.length() > _end) {
+            return false;
+        }
+
+        for (int i = 0; i < target.length(); i++) {
+            if (_chars[from + i] != target.charAt(i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private boolean startsWithIgnoreCase(int from, String target) {
+        if (from + target.length() > _end) {
+            return false;
+        }
+
+        for (int i = 0; i < target.length(); i++) {
+            if (Character.toLowerCase(_chars[from + i]) != target.charAt(i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static boolean isLetter(char c) {
+        return ((c >= 'a') && (c <= 'z')) || ((c >= 'A') && (c <= 'Z'));
+    }
+
+    private static boolean isWhitespace(char[] chars, int start, int length) {
+        for (int i = start; i < start + length; i++) {
+            if (!Character.isWhitespace(chars[i])) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,116 @@
+package bixo.parser;
+
+import org.apache.tika.language.ProfilingHandler;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Handler that goes after the content and link extractors, so they've already seen each
+ * event by the time we get it. Text is passed on to the language profiler (if there is
+ * one) until it has had the max language chars, and once the content extractor, the link
+ * extractor and the profiler have all hit their limits, we stop the parse by throwing a
+ * SAXException - nothing in the rest of the document can change the result.
+ *
+ * Callers need to check isStopped() when the parse throws an exception, to tell this
+ * apart from a real failure.
+ */
+class ParseBudget extends DefaultHandler {
+
+    private BaseContentExtractor _contentExtractor;
+    private BaseLinkExtractor _linkExtractor;
+    private int _maxLanguageChars;
+
+    private ProfilingHandler _profilingHandler;
+    private int _numLanguageChars;
+    private boolean _languageLimitReached;
+    private boolean _stopped;
+
+    public ParseBudget(BaseContentExtractor contentExtractor, BaseLinkExtractor linkExtractor, int maxLanguageChars) {
+        _contentExtractor = contentExtractor;
+        _linkExtractor = linkExtractor;
+        _maxLanguageChars = maxLanguageChars;
+    }
+
+    /**
+     * Get ready for a new document.
+     *
+     * @param profilingHandler Language profiler for the document, or null if the language
+     *        isn't being detected
+     */
+    public void reset(ProfilingHandler profilingHandler) {
+        _profilingHandler = profilingHandler;
+        _numLanguageChars = 0;
+        _languageLimitReached = false;
+        _stopped = false;
+    }
+
+    public void setMaxLanguageChars(int maxLanguageChars) {
+        _maxLanguageChars = maxLanguageChars;
+    }
+
+    public int getMaxLanguageChars() {
+        return _maxLanguageChars;
+    }
+
+    /**
+     * @return true if some of the document's text wasn't used for language detection
+     */
+    public boolean isLanguageLimitReached() {
+        return _languageLimitReached;
+    }
+
+    /**
+     * @return true if we stopped the parse before the end of the document
+     */
+    public boolean isStopped() {
+        return _stopped;
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+        checkLimits();
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+        checkLimits();
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) throws SAXException {
+        if (_profilingHandler != null) {
+            _profilingHandler.characters(ch, start, limitLanguageChars(length));
+        }
+
+        checkLimits();
+    }
+
+    @Override
+    public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+        if (_profilingHandler != null) {
+            _profilingHandler.ignorableWhitespace(ch, start, limitLanguageChars(length));
+        }
+
+        checkLimits();
+    }
+
+    private int limitLanguageChars(int length) {
+        int available = _maxLanguageChars - _numLanguageChars;
+        if (length > available) {
+            _languageLimitReached = true;
+            length = available;
+        }
+
+        _numLanguageChars += length;
+        return length;
+    }
+
+    private void checkLimits() throws SAXException {
+        if (_contentExtractor.isContentLimitReached() && _linkExtractor.isOutlinkLimitReached()
+                        && ((_profilingHandler == null) || _languageLimitReached)) {
+            _stopped = true;
+            throw new SAXException("Parse limits reached");
+        }
+    }
+}
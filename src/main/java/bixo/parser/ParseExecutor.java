@@ -0,0 +1,178 @@
+package bixo.parser;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import bixo.utils.DaemonThreadFactory;
+
+/**
+ * Runs parses on a pool of reusable worker threads, with a time limit for each parse.
+ *
+ * The calling thread waits for the result, and acts as the watchdog: if the parse takes
+ * too long, the worker gets interrupted and the caller gets a TimeoutException. A parse
+ * that ignores the interrupt (e.g. stuck in a runaway loop) leaves its worker wedged.
+ * That worker no longer counts against the max number of parses, and the pool grows
+ * by one to replace it, so wedged workers don't starve everybody else. If the parse
+ * eventually finishes, the pool shrinks back down.
+ *
+ * Idle workers exit after a while, and are daemon threads so that wedged ones won't
+ * keep the JVM from exiting.
+ */
+public class ParseExecutor {
+
+    // How long an idle worker waits for another parse before exiting.
+    private static final long KEEP_ALIVE_TIME = 60 * 1000L;
+
+    private static final int RUNNING = 0;
+    private static final int DONE = 1;
+    private static final int ABANDONED = 2;
+
+    private class WatchedCallable<T> implements Callable<T> {
+        private Callable<T> _task;
+        private AtomicInteger _state = new AtomicInteger(RUNNING);
+
+        public WatchedCallable(Callable<T> task) {
+            _task = task;
+        }
+
+        @Override
+        public T call() throws Exception {
+            try {
+                return _task.call();
+            } finally {
+                if (_state.getAndSet(DONE) == ABANDONED) {
+                    changeNumWedged(-1);
+                }
+            }
+        }
+
+        public void abandon() {
+            if (_state.compareAndSet(RUNNING, ABANDONED)) {
+                changeNumWedged(1);
+            }
+        }
+    }
+
+    private int _maxThreads;
+    private ThreadPoolExecutor _pool;
+    private Semaphore _permits;
+
+    private AtomicLong _numTimeouts;
+    private AtomicLong _numSaturated;
+    private AtomicInteger _numWedged;
+
+    /**
+     * @param maxThreads Max number of parses that can be running at the same time,
+     * not counting wedged ones.
+     */
+    public ParseExecutor(int maxThreads) {
+        if (maxThreads < 1) {
+            throw new IllegalArgumentException("maxThreads must be > 0: " + maxThreads);
+        }
+
+        _maxThreads = maxThreads;
+        _permits = new Semaphore(maxThreads, true);
+
+        // One thread per permit, plus one per wedged worker. The semaphore means there's
+        // never more work queued up than there are free threads.
+        _pool = new ThreadPoolExecutor(maxThreads, Integer.MAX_VALUE, KEEP_ALIVE_TIME, TimeUnit.MILLISECONDS,
+                        new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory("ParseExecutor"));
+        _pool.allowCoreThreadTimeOut(true);
+
+        _numTimeouts = new AtomicLong();
+        _numSaturated = new AtomicLong();
+        _numWedged = new AtomicInteger();
+    }
+
+    public int getMaxThreads() {
+        return _maxThreads;
+    }
+
+    /**
+     * Run <task> on a worker thread, and wait up to <timeout> for the result. If all
+     * workers are busy, wait for one to be free first (which doesn't count against the
+     * timeout).
+     *
+     * @param task Parse to run
+     * @param timeout Max time to wait for the parse, in milliseconds
+     * @return result of the parse
+     * @throws TimeoutException if the parse took too long
+     * @throws ExecutionException if the parse threw an exception
+     * @throws InterruptedException if the calling thread was interrupted
+     */
+    public <T> T invoke(Callable<T> task, long timeout) throws TimeoutException, ExecutionException, InterruptedException {
+        if (!_permits.tryAcquire()) {
+            _numSaturated.incrementAndGet();
+            _permits.acquire();
+        }
+
+        try {
+            WatchedCallable<T> watchedTask = new WatchedCallable<T>(task);
+            FutureTask<T> future = new FutureTask<T>(watchedTask);
+            _pool.execute(future);
+
+            try {
+                return future.get(timeout, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                _numTimeouts.incrementAndGet();
+                watchedTask.abandon();
+                future.cancel(true);
+                throw e;
+            } catch (InterruptedException e) {
+                watchedTask.abandon();
+                future.cancel(true);
+                throw e;
+            }
+        } finally {
+            _permits.release();
+        }
+    }
+
+    /**
+     * @return number of parses that timed out
+     */
+    public long getNumTimeouts() {
+        return _numTimeouts.get();
+    }
+
+    /**
+     * @return number of parses that had to wait for a free worker
+     */
+    public long getNumSaturated() {
+        return _numSaturated.get();
+    }
+
+    /**
+     * @return number of workers still running a parse that timed out
+     */
+    public int getNumWedged() {
+        return _numWedged.get();
+    }
+
+    /**
+     * @return number of worker threads (busy, idle, or wedged)
+     */
+    public int getNumThreads() {
+        return _pool.getPoolSize();
+    }
+
+    private synchronized void changeNumWedged(int delta) {
+        _pool.setCorePoolSize(_maxThreads + _numWedged.addAndGet(delta));
+    }
+
+    /**
+     * Stop idle workers. Wedged workers are interrupted again, but we don't wait for
+     * them to finish.
+     */
+    public void shutdown() {
+        _pool.shutdownNow();
+    }
+}
@@ -0,0 +1,230 @@
+package bixo.parser;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import bixo.config.ParserPolicy.OutputMode;
+import bixo.datum.FetchedDatum;
+import bixo.datum.ParsedDatum;
+import bixo.utils.DaemonThreadFactory;
+
+/**
+ * Parses documents concurrently, with a limit on the number that are in flight.
+ *
+ * The caller adds each fetched document, and gets back the results that are ready to be
+ * output. If the window is full, add() waits for a result first, so the caller never gets
+ * too far ahead of the parse threads. In ORDERED mode results come back in the order the
+ * documents were added, which means a slow document holds up the ones behind it (but
+ * they keep getting parsed, up to the window size). In UNORDERED mode each result comes
+ * back as soon as it's ready.
+ *
+ * All results are returned to the thread calling add() and drain(), so that thread can
+ * write them to a (not thread safe) collector.
+ */
+public class ParseWindow {
+
+    public static class ParseResult {
+        private FetchedDatum _fetchedDatum;
+        private ParsedDatum _parsedDatum;
+        private Exception _exception;
+        private long _parseTime;
+
+        public ParseResult(FetchedDatum fetchedDatum, ParsedDatum parsedDatum, Exception exception, long parseTime) {
+            _fetchedDatum = fetchedDatum;
+            _parsedDatum = parsedDatum;
+            _exception = exception;
+            _parseTime = parseTime;
+        }
+
+        public FetchedDatum getFetchedDatum() {
+            return _fetchedDatum;
+        }
+
+        /**
+         * @return result of the parse, or null if it failed
+         */
+        public ParsedDatum getParsedDatum() {
+            return _parsedDatum;
+        }
+
+        /**
+         * @return exception thrown by the parser, or null if it succeeded
+         */
+        public Exception getException() {
+            return _exception;
+        }
+
+        /**
+         * @return time in milliseconds spent in the parser
+         */
+        public long getParseTime() {
+            return _parseTime;
+        }
+    }
+
+    private class ParseTask implements Callable<ParseResult> {
+        private FetchedDatum _fetchedDatum;
+
+        public ParseTask(FetchedDatum fetchedDatum) {
+            _fetchedDatum = fetchedDatum;
+        }
+
+        @Override
+        public ParseResult call() {
+            return parse(_parser, _fetchedDatum);
+        }
+    }
+
+    private BaseParser _parser;
+    private int _maxInFlight;
+    private OutputMode _outputMode;
+
+    private ThreadPoolExecutor _pool;
+    private CompletionService<ParseResult> _completionService;
+
+    // Results in the order the documents were added, for ORDERED mode.
+    private LinkedList<Future<ParseResult>> _pending;
+    private int _numInFlight;
+
+    /**
+     * @param parser Thread safe parser
+     * @param numThreads Number of documents to parse at the same time
+     * @param maxInFlight Max number of documents being parsed, or waiting to be returned
+     * (raised to <numThreads> if it's less than that)
+     * @param outputMode Whether results are returned in the same order as documents are added
+     */
+    public ParseWindow(BaseParser parser, int numThreads, int maxInFlight, OutputMode outputMode) {
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("numThreads must be > 0: " + numThreads);
+        }
+
+        _parser = parser;
+        _maxInFlight = Math.max(numThreads, maxInFlight);
+        _outputMode = outputMode;
+
+        _pool = new ThreadPoolExecutor(numThreads, numThreads, 0L, TimeUnit.MILLISECONDS,
+                        new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory("ParseWindow"));
+        _completionService = new ExecutorCompletionService<ParseResult>(_pool);
+        _pending = new LinkedList<Future<ParseResult>>();
+        _numInFlight = 0;
+    }
+
+    public int getMaxInFlight() {
+        return _maxInFlight;
+    }
+
+    public int getNumInFlight() {
+        return _numInFlight;
+    }
+
+    /**
+     * Start parsing <fetchedDatum>, first waiting for room in the window if it's full.
+     *
+     * @param fetchedDatum Document to parse
+     * @return results that are ready to be output (possibly empty)
+     * @throws InterruptedException if the calling thread was interrupted while waiting
+     */
+    public List<ParseResult> add(FetchedDatum fetchedDatum) throws InterruptedException {
+        List<ParseResult> result = new ArrayList<ParseResult>();
+        while (_numInFlight >= _maxInFlight) {
+            result.add(next(true));
+        }
+
+        // Only go through the completion service when we'll be taking results from it,
+        // otherwise they'd pile up there.
+        ParseTask task = new ParseTask(fetchedDatum);
+        if (_outputMode == OutputMode.ORDERED) {
+            _pending.add(_pool.submit(task));
+        } else {
+            _completionService.submit(task);
+        }
+
+        _numInFlight += 1;
+
+        ParseResult ready;
+        while ((ready = next(false)) != null) {
+            result.add(ready);
+        }
+
+        return result;
+    }
+
+    /**
+     * Wait for all documents in flight to be parsed.
+     *
+     * @return remaining results
+     * @throws InterruptedException if the calling thread was interrupted while waiting
+     */
+    public List<ParseResult> drain() throws InterruptedException {
+        List<ParseResult> result = new ArrayList<ParseResult>(_numInFlight);
+        while (_numInFlight > 0) {
+            result.add(next(true));
+        }
+
+        return result;
+    }
+
+    /**
+     * Stop the parse threads. Anything still in flight gets interrupted.
+     */
+    public void shutdown() {
+        _pool.shutdownNow();
+    }
+
+    /**
+     * Parse <fetchedDatum> on the calling thread.
+     *
+     * @param parser Parser to use
+     * @param fetchedDatum Document to parse
+     * @return result, with the exception (if any) from the parser
+     */
+    public static ParseResult parse(BaseParser parser, FetchedDatum fetchedDatum) {
+        long startTime = System.currentTimeMillis();
+
+        try {
+            ParsedDatum parsedDatum = parser.parse(fetchedDatum);
+            return new ParseResult(fetchedDatum, parsedDatum, null, System.currentTimeMillis() - startTime);
+        } catch (Exception e) {
+            return new ParseResult(fetchedDatum, null, e, System.currentTimeMillis() - startTime);
+        }
+    }
+
+    private ParseResult next(boolean wait) throws InterruptedException {
+        if (_numInFlight == 0) {
+            return null;
+        }
+
+        Future<ParseResult> future;
+        if (_outputMode == OutputMode.ORDERED) {
+            future = _pending.getFirst();
+            if (!wait && !future.isDone()) {
+                return null;
+            }
+
+            _pending.removeFirst();
+        } else {
+            future = wait ? _completionService.take() : _completionService.poll();
+            if (future == null) {
+                return null;
+            }
+        }
+
+        _numInFlight -= 1;
+
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            // ParseTask catches exceptions, so this is an Error from the parser.
+            throw new RuntimeException("Unexpected error while parsing", e.getCause());
+        }
+    }
+}
@@ -2,5 +2,15 @@ package bixo.parser;
 
 public enum ParserCounters {
     DOCUMENTS_PARSED,   // successfully parsed a document.
-    DOCUMENTS_FAILED    // failed to parse a document
+    DOCUMENTS_FAILED,   // failed to parse a document
+    
+    PARSE_TIME,         // Total time in milliseconds spent parsing (incl. waiting for a worker)
+    PARSE_TIMEOUTS,     // Documents that took longer than the max parse duration
+    PARSE_SATURATED,    // Documents that had to wait for a free parse worker
+    PARSE_WEDGED,       // Parse workers still stuck on a timed-out document, at the end of the task
+    
+    CONTENT_LIMITED,    // Documents with more text than the max content chars
+    OUTLINKS_LIMITED,   // Documents with more outlinks than the max outlinks
+    LANGUAGE_LIMITED,   // Documents with more text than the max language chars
+    PARSE_STOPPED       // Documents that weren't parsed to the end, because all of the above limits were hit
 }
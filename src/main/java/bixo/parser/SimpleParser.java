@@ -1,24 +1,33 @@
 package bixo.parser;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.CharBuffer;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.Callable;
-import java.util.concurrent.FutureTask;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.apache.log4j.Logger;
 import org.apache.tika.metadata.Metadata;
 import org.apache.tika.parser.AutoDetectParser;
 import org.apache.tika.parser.Parser;
-import org.apache.tika.utils.CharsetUtils;
 
 import bixo.config.ParserPolicy;
 import bixo.datum.FetchedDatum;
 import bixo.datum.ParsedDatum;
 import bixo.fetcher.HttpHeaderNames;
+import bixo.utils.CharsetUtils;
 import bixo.utils.HttpUtils;
 import bixo.utils.IoUtils;
 
@@ -26,10 +35,34 @@ import bixo.utils.IoUtils;
 public class SimpleParser extends BaseParser {
     private static final Logger LOGGER = Logger.getLogger(SimpleParser.class);
 
+    // Tika parser and extractors for one parse. None of these are thread safe, so each
+    // parse that's running gets its own set, and returns it to the pool when done.
+    private static class ParseState {
+        private Parser _parser;
+        private BaseContentExtractor _contentExtractor;
+        private BaseLinkExtractor _linkExtractor;
+        private ParseBudget _budget;
+    }
+    
+    private static final Set<String> HTML_MIME_TYPES = new HashSet<String>() {{
+        add("text/html");
+        add("application/xhtml+xml");
+    }};
+    
+    // If there's a null byte in this much of the content, it's not really HTML,
+    // whatever the server says.
+    private static final int BINARY_CHECK_LENGTH = 512;
+    
     private boolean _extractLanguage = true;
+    private boolean _fastHtmlParsing = true;
+    
+    // Prototypes that get copied for each ParseState.
     protected BaseContentExtractor _contentExtractor;
     protected BaseLinkExtractor _linkExtractor;
-    private transient Parser _parser;
+    
+    private transient Queue<ParseState> _idleStates;
+    private transient ParseExecutor _executor;
+    private transient Map<ParserCounters, Long> _limitCounts;
     
     public SimpleParser() {
         this(new ParserPolicy());
@@ -56,15 +89,102 @@ public class SimpleParser extends BaseParser {
         _linkExtractor = linkExtractor;
     }
     
-    protected synchronized void init() {
-        if (_parser == null) {
-            _parser = getTikaParser();
+    private synchronized Queue<ParseState> getIdleStates() {
+        if (_idleStates == null) {
+            _idleStates = new ConcurrentLinkedQueue<ParseState>();
+        }
+        
+        return _idleStates;
+    }
+    
+    /**
+     * Get a parser and extractors for one parse, either from the pool or by making a new
+     * set. The extractors are reset and ready to use.
+     * 
+     * @return state that only the caller is using
+     */
+    private ParseState acquireParseState() {
+        ParseState result = getIdleStates().poll();
+        if (result == null) {
+            result = new ParseState();
+            result._parser = getTikaParser();
+            result._contentExtractor = copy(_contentExtractor);
+            result._linkExtractor = copy(_linkExtractor);
+            result._budget = new ParseBudget(result._contentExtractor, result._linkExtractor, getParserPolicy().getMaxLanguageChars());
+        }
+        
+        result._contentExtractor.setMaxContentChars(getParserPolicy().getMaxContentChars());
+        result._contentExtractor.reset();
+        result._linkExtractor.setLinkTags(getParserPolicy().getLinkTags());
+        result._linkExtractor.setLinkAttributeTypes(getParserPolicy().getLinkAttributeTypes());
+        result._linkExtractor.setMaxOutlinks(getParserPolicy().getMaxOutlinks());
+        result._linkExtractor.reset();
+        result._budget.setMaxLanguageChars(getParserPolicy().getMaxLanguageChars());
+        return result;
+    }
+    
+    /**
+     * Update the limit counts, for the document that was just parsed using <state>.
+     */
+    private synchronized void countLimits(ParseState state) {
+        if (_limitCounts == null) {
+            _limitCounts = new EnumMap<ParserCounters, Long>(ParserCounters.class);
+        }
+        
+        if (state._contentExtractor.isContentLimitReached()) {
+            incrementLimitCount(ParserCounters.CONTENT_LIMITED);
+        }
+        
+        if (state._linkExtractor.isOutlinkLimitReached()) {
+            incrementLimitCount(ParserCounters.OUTLINKS_LIMITED);
+        }
+        
+        if (state._budget.isLanguageLimitReached()) {
+            incrementLimitCount(ParserCounters.LANGUAGE_LIMITED);
+        }
+        
+        if (state._budget.isStopped()) {
+            incrementLimitCount(ParserCounters.PARSE_STOPPED);
+        }
+    }
+    
+    private void incrementLimitCount(ParserCounters counter) {
+        Long count = _limitCounts.get(counter);
+        _limitCounts.put(counter, count == null ? 1L : count + 1);
+    }
+    
+    @Override
+    public synchronized Map<ParserCounters, Long> getLimitCounts() {
+        if (_limitCounts == null) {
+            return super.getLimitCounts();
         }
         
-        _contentExtractor.reset();
-        _linkExtractor.setLinkTags(getParserPolicy().getLinkTags());
-        _linkExtractor.setLinkAttributeTypes(getParserPolicy().getLinkAttributeTypes());
-        _linkExtractor.reset();
+        return new EnumMap<ParserCounters, Long>(_limitCounts);
+    }
+    
+    private void releaseParseState(ParseState state) {
+        getIdleStates().add(state);
+    }
+    
+    /**
+     * Make a deep copy of an extractor, so that subclasses with their own settings get
+     * copied correctly without having to implement clone().
+     */
+    @SuppressWarnings("unchecked")
+    private static <T extends Serializable> T copy(T extractor) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(extractor);
+            out.close();
+            
+            ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+            return (T)in.readObject();
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to copy " + extractor.getClass().getName(), e);
+        } catch (ClassNotFoundException e) {
+            throw new RuntimeException("Unable to copy " + extractor.getClass().getName(), e);
+        }
     }
 
     @Override
@@ -72,6 +192,15 @@ public class SimpleParser extends BaseParser {
         return new AutoDetectParser();
     }
 
+    @Override
+    public synchronized ParseExecutor getParseExecutor() {
+        if (_executor == null) {
+            _executor = new ParseExecutor(getParserPolicy().getMaxParseThreads());
+        }
+        
+        return _executor;
+    }
+
     public void setExtractLanguage(boolean extractLanguage) {
         _extractLanguage = extractLanguage;
     }
@@ -80,10 +209,26 @@ public class SimpleParser extends BaseParser {
         return _extractLanguage;
     }
     
+    /**
+     * Set whether HTML with a known charset is parsed by our own tokenizer (the default),
+     * instead of Tika. Other content always goes to Tika.
+     * 
+     * @param fastHtmlParsing
+     */
+    public void setFastHtmlParsing(boolean fastHtmlParsing) {
+        _fastHtmlParsing = fastHtmlParsing;
+    }
+    
+    public boolean isFastHtmlParsing() {
+        return _fastHtmlParsing;
+    }
+    
+    /**
+     * Parse <fetchedDatum>. This is thread safe, and concurrent calls will run in parallel,
+     * up to the policy's max parse threads.
+     */
     @Override
     public ParsedDatum parse(FetchedDatum fetchedDatum) throws Exception {
-        init();
-
         if (LOGGER.isTraceEnabled()) {
         	LOGGER.trace(String.format("Parsing %s", fetchedDatum.getBaseUrl()));
         }
@@ -91,8 +236,8 @@ public class SimpleParser extends BaseParser {
         // Provide clues to the parser about the format of the content.
         Metadata metadata = new Metadata();
         metadata.add(Metadata.RESOURCE_NAME_KEY, fetchedDatum.getBaseUrl());
-        metadata.add(Metadata.CONTENT_TYPE, fetchedDatum.getContentType());
         String charset = getCharset(fetchedDatum);
+        metadata.add(Metadata.CONTENT_TYPE, getContentType(fetchedDatum, charset));
         metadata.add(Metadata.CONTENT_LANGUAGE, getLanguage(fetchedDatum, charset));
         
         InputStream is = new ByteArrayInputStream(fetchedDatum.getContentBytes(), 0, fetchedDatum.getContentLength());
@@ -101,22 +246,42 @@ public class SimpleParser extends BaseParser {
         	URL baseUrl = getContentLocation(fetchedDatum);
         	metadata.add(Metadata.CONTENT_LOCATION, baseUrl.toExternalForm());
 
-            Callable<ParsedDatum> c = new TikaCallable(_parser, _contentExtractor, _linkExtractor, is, metadata, isExtractLanguage());
-            FutureTask<ParsedDatum> task = new FutureTask<ParsedDatum>(c);
-            Thread t = new Thread(task);
-            t.start();
-            
-            ParsedDatum result;
-            try {
-                result = task.get(getParserPolicy().getMaxParseDuration(), TimeUnit.MILLISECONDS);
-            } catch (TimeoutException e) {
-                task.cancel(true);
-                t.interrupt();
-                throw e;
-            } finally {
-                t = null;
+            // The state goes back into the pool when the parse is actually done, not when we
+            // stop waiting for it, since a parse that timed out could still be using it.
+            final ParseState state = acquireParseState();
+            final Callable<ParsedDatum> parseCallable;
+            if (isFastHtmlParsing() && isHtml(fetchedDatum, charset)) {
+                // Use the datum's decoded content if we can, so it only gets decoded once.
+                CharBuffer chars;
+                if (charset.equals(fetchedDatum.getCharset())) {
+                    chars = fetchedDatum.getContentChars();
+                } else {
+                    chars = CharsetUtils.decode(fetchedDatum.getContentBytes(), fetchedDatum.getContentLength(), charset);
+                }
+                
+                parseCallable = new HtmlCallable(state._contentExtractor, state._linkExtractor, chars, charset, metadata,
+                                isExtractLanguage(), state._budget);
+            } else {
+                parseCallable = new TikaCallable(state._parser, state._contentExtractor, state._linkExtractor, is, metadata,
+                                isExtractLanguage(), state._budget);
             }
             
+            Callable<ParsedDatum> c = new Callable<ParsedDatum>() {
+
+                @Override
+                public ParsedDatum call() throws Exception {
+                    try {
+                        ParsedDatum result = parseCallable.call();
+                        countLimits(state);
+                        return result;
+                    } finally {
+                        releaseParseState(state);
+                    }
+                }
+            };
+            
+            ParsedDatum result = getParseExecutor().invoke(c, getParserPolicy().getMaxParseDuration());
+            
             // TODO KKr Should there be a BaseParser to take care of copying
             // these two fields?
             result.setHostAddress(fetchedDatum.getHostAddress());
@@ -127,6 +292,35 @@ public class SimpleParser extends BaseParser {
         }
     }
 
+    /**
+     * See if <fetchedDatum> can be parsed by HtmlCallable: the server says it's HTML, we
+     * know the charset, and it doesn't look like binary content.
+     * 
+     * @param fetchedDatum
+     * @param charset
+     * @return true if it's HTML that we can decode
+     */
+    protected boolean isHtml(FetchedDatum fetchedDatum, String charset) {
+        if ((charset == null) || (charset.length() == 0)) {
+            return false;
+        }
+        
+        String mimeType = HttpUtils.getMimeTypeFromContentType(fetchedDatum.getContentType()).toLowerCase();
+        if (!HTML_MIME_TYPES.contains(mimeType)) {
+            return false;
+        }
+        
+        byte[] content = fetchedDatum.getContentBytes();
+        int checkLength = Math.min(BINARY_CHECK_LENGTH, fetchedDatum.getContentLength());
+        for (int i = 0; i < checkLength; i++) {
+            if (content[i] == 0) {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+
     protected URL getContentLocation(FetchedDatum fetchedDatum) throws MalformedURLException {
 		URL baseUrl = new URL(fetchedDatum.getFetchedUrl());
 		
@@ -142,16 +336,41 @@ public class SimpleParser extends BaseParser {
 	}
 
     /**
-     * Extract encoding from content-type
+     * Return the charset of the content. This is normally what the fetcher detected,
+     * but for datums that didn't come from the fetcher we detect it here (from the
+     * byte order mark, the content-type, or a <meta> tag).
      * 
      * If a charset is returned, then it's a valid/normalized charset name that's
      * supported on this platform.
      * 
      * @param datum
-     * @return charset in response headers, or null
+     * @return charset of the content, or null
      */
     protected String getCharset(FetchedDatum datum) {
-        return CharsetUtils.clean(HttpUtils.getCharsetFromContentType(datum.getContentType()));
+        String result = CharsetUtils.clean(datum.getCharset());
+        if (result == null) {
+            result = CharsetUtils.detectCharset(datum.getContentBytes(), datum.getContentLength(), datum.getContentType());
+        }
+        
+        return result;
+    }
+
+    /**
+     * Return the content-type to give Tika, with the charset added if the server didn't
+     * include one, so that Tika doesn't have to detect it again.
+     * 
+     * @param datum
+     * @param charset
+     * @return content-type for the metadata
+     */
+    protected String getContentType(FetchedDatum datum, String charset) {
+        String contentType = datum.getContentType();
+        if ((charset == null) || (contentType == null) || (contentType.length() == 0)
+                        || (HttpUtils.getCharsetFromContentType(contentType).length() > 0)) {
+            return contentType;
+        }
+        
+        return contentType + "; charset=" + charset;
     }
 
     /**
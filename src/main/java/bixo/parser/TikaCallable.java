@@ -69,18 +69,28 @@ class TikaCallable implements Callable<ParsedDatum> {
     private InputStream _input;
     private Metadata _metadata;
     private boolean _extractLanguage;
+    private ParseBudget _budget;
     
     public TikaCallable(Parser parser, BaseContentExtractor contentExtractor, BaseLinkExtractor linkExtractor, InputStream input, Metadata metadata) {
         this(parser, contentExtractor, linkExtractor, input, metadata, true);
     }
     
     public TikaCallable(Parser parser, BaseContentExtractor contentExtractor, BaseLinkExtractor linkExtractor, InputStream input, Metadata metadata, boolean extractLanguage) {
+        this(parser, contentExtractor, linkExtractor, input, metadata, extractLanguage, null);
+    }
+    
+    /**
+     * @param budget Limits for the parse, which stop it early once they're all reached (or
+     *        null, to parse the entire document)
+     */
+    public TikaCallable(Parser parser, BaseContentExtractor contentExtractor, BaseLinkExtractor linkExtractor, InputStream input, Metadata metadata, boolean extractLanguage, ParseBudget budget) {
         _parser = parser;
         _contentExtractor = contentExtractor;
         _linkExtractor = linkExtractor;
         _input = input;
         _metadata = metadata;
         _extractLanguage = extractLanguage;
+        _budget = budget;
     }
     
     @Override
@@ -91,11 +101,26 @@ class TikaCallable implements Callable<ParsedDatum> {
             
             if (_extractLanguage) {
                 profilingHandler = new ProfilingHandler();
+            }
+            
+            if (_budget != null) {
+                // The budget passes text on to the profiling handler.
+                _budget.reset(profilingHandler);
+                teeContentHandler = new TeeContentHandler(_contentExtractor, _linkExtractor, _budget);
+            } else if (_extractLanguage) {
                 teeContentHandler = new TeeContentHandler(_contentExtractor, _linkExtractor, profilingHandler);
             } else {
                 teeContentHandler = new TeeContentHandler(_contentExtractor, _linkExtractor);
             }
-            _parser.parse(_input, teeContentHandler, _metadata, makeParseContext());
+            
+            try {
+                _parser.parse(_input, teeContentHandler, _metadata, makeParseContext());
+            } catch (Exception e) {
+                // Stopping the parse early isn't an error, so use what we've got.
+                if ((_budget == null) || !_budget.isStopped()) {
+                    throw e;
+                }
+            }
             
             String lang = _extractLanguage ? detectLanguage(_metadata, profilingHandler) : "";
             return new ParsedDatum(_metadata.get(Metadata.RESOURCE_NAME_KEY), null, _contentExtractor.getContent(), lang,
@@ -171,7 +196,7 @@ class TikaCallable implements Callable<ParsedDatum> {
         return result;
     }
 
-    private static Map<String, String> makeMap(Metadata metadata) {
+    static Map<String, String> makeMap(Metadata metadata) {
         Map<String, String> result = new HashMap<String, String>();
         
         for (String key : metadata.names()) {
@@ -182,7 +207,7 @@ class TikaCallable implements Callable<ParsedDatum> {
     }
 
 
-    private static String getFirstLanguage(String lang) {
+    static String getFirstLanguage(String lang) {
         if (lang != null && lang.length() > 0) {
             // TODO VMa -- DublinCore languages could be specified in a multiple of ways
             // see : http://dublincore.org/documents/2000/07/16/usageguide/qualified-html.shtml#language
@@ -3,29 +3,38 @@ package bixo.pipes;
 import java.net.MalformedURLException;
 import java.security.InvalidParameterException;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 import bixo.config.BaseFetchJobPolicy;
 import bixo.config.DefaultFetchJobPolicy;
+import bixo.config.FetcherPolicy;
+import bixo.config.FetcherPolicy.RawContentMode;
 import bixo.datum.FetchSetDatum;
 import bixo.datum.FetchedDatum;
 import bixo.datum.GroupedUrlDatum;
+import bixo.datum.ParsedDatum;
 import bixo.datum.ScoredUrlDatum;
 import bixo.datum.StatusDatum;
 import bixo.datum.UrlDatum;
 import bixo.datum.UrlStatus;
 import bixo.exceptions.BaseFetchException;
 import bixo.fetcher.BaseFetcher;
+import bixo.fetcher.CrawlDelayController;
 import bixo.operations.BaseGroupGenerator;
 import bixo.operations.BaseScoreGenerator;
 import bixo.operations.FetchBuffer;
 import bixo.operations.FilterAndScoreByUrlAndRobots;
 import bixo.operations.GroupFunction;
 import bixo.operations.MakeFetchSetsBuffer;
+import bixo.parser.BaseParser;
 import bixo.robots.BaseRobotsParser;
 import bixo.robots.RobotUtils;
+import bixo.robots.RobotsCache;
 import bixo.robots.SimpleRobotRulesParser;
 import bixo.utils.GroupingKey;
+import bixo.utils.HttpUtils;
 import bixo.utils.UrlUtils;
 import cascading.flow.FlowProcess;
 import cascading.operation.BaseOperation;
@@ -55,6 +64,10 @@ public class FetchPipe extends SubAssembly {
     // Pipe that outputs StatusDatum tuples, for all URLs being processed.
     public static final String STATUS_PIPE_NAME = "FetchPipe-status";
     
+    // Pipe that outputs ParsedDatum tuples, for URLs that were fetched and parsed (only
+    // if the FetchPipe has a parser).
+    public static final String PARSE_PIPE_NAME = "FetchPipe-parse";
+    
     /**
      * Generate key using protocol+host+port, which is what we need in order
      * to safely fetch robots.txt files.
@@ -88,19 +101,49 @@ public class FetchPipe extends SubAssembly {
         }
     }
     
+    // Field with the server (IP address) for each URL's grouping key, so that all of the
+    // fetch sets for a server are made (and partitioned) together.
+    private static final String SERVER_FN = "FetchPipe-server";
+    
+    @SuppressWarnings({ "unchecked", "serial" })
+    private static class AddServerFunction extends BaseOperation<NullContext> implements Function<NullContext> {
+        
+        public AddServerFunction() {
+            super(new Fields(SERVER_FN));
+        }
+        
+        @Override
+        public void operate(FlowProcess process, FunctionCall<NullContext> funcCall) {
+            ScoredUrlDatum datum = new ScoredUrlDatum(funcCall.getArguments());
+            funcCall.getOutputCollector().add(new Tuple(GroupingKey.getServerFromRef(datum.getGroupKey())));
+        }
+    }
+    
     @SuppressWarnings({ "unchecked" })
     private static class FilterErrorsFunction extends BaseOperation implements Function {
         private int _fieldPos;
         private int[] _fieldsToCopy;
+        private boolean _hasParse;
+        private RawContentMode _rawContentMode;
+        private Set<String> _rawContentMimeTypes;
         
-        // Only output FetchedDatum tuples for input where we were able to fetch the URL.
-        public FilterErrorsFunction() {
-            super(FetchedDatum.FIELDS.size() + 1, FetchedDatum.FIELDS);
+        // Only output FetchedDatum tuples for input where we were able to fetch the URL, and
+        // the fetcher policy says to keep the raw content.
+        public FilterErrorsFunction(int numArgs, FetcherPolicy fetcherPolicy) {
+            super(numArgs, FetchedDatum.FIELDS);
             int baseFieldCount = FetchedDatum.FIELDS.size();
             
             // Location of extra field added during fetch, that contains fetch error
             _fieldPos = baseFieldCount;
             
+            // If there's another field after that, it's the parse.
+            _hasParse = numArgs > baseFieldCount + 1;
+            _rawContentMode = fetcherPolicy.getRawContentMode();
+            _rawContentMimeTypes = new HashSet<String>();
+            for (String mimeType : fetcherPolicy.getRawContentMimeTypes()) {
+                _rawContentMimeTypes.add(mimeType.toLowerCase());
+            }
+            
             // Create array used to extract the fields we need that correspond to
             // the FetchedDatum w/o the exception tacked on the end.
             _fieldsToCopy = new int[baseFieldCount];
@@ -116,7 +159,47 @@ public class FetchPipe extends SubAssembly {
             // Get the status to decide if it's a good fetch
             Comparable status = t.get(_fieldPos);
             if ((status instanceof String) && (UrlStatus.valueOf((String)status) == UrlStatus.FETCHED)) {
-                funcCall.getOutputCollector().add(t.get(_fieldsToCopy));
+                Tuple result = t.get(_fieldsToCopy);
+                if (isKeepRawContent(t, result)) {
+                    funcCall.getOutputCollector().add(result);
+                }
+            }
+        }
+        
+        private boolean isKeepRawContent(Tuple t, Tuple fetched) {
+            // Without a parse, the raw content is all we've got.
+            if ((_rawContentMode == RawContentMode.KEEP_ALL) || !_hasParse) {
+                return true;
+            }
+            
+            // Keep what we couldn't parse, so that it's not lost.
+            if (t.get(_fieldPos + 1) == null) {
+                return true;
+            }
+            
+            String mimeType = HttpUtils.getMimeTypeFromContentType(new FetchedDatum(fetched).getContentType()).toLowerCase();
+            return _rawContentMimeTypes.contains(mimeType);
+        }
+    }
+    
+    @SuppressWarnings({ "unchecked" })
+    private static class FilterParsedFunction extends BaseOperation implements Function {
+        private int _fieldPos;
+        
+        // Output the ParsedDatum tuples that the FetchBuffer added, for URLs that were
+        // fetched and parsed.
+        public FilterParsedFunction(int numArgs) {
+            super(numArgs, ParsedDatum.FIELDS);
+            
+            // Location of field after the fetch status, that contains the parse
+            _fieldPos = FetchedDatum.FIELDS.size() + 1;
+        }
+
+        @Override
+        public void operate(FlowProcess process, FunctionCall funcCall) {
+            Comparable parse = funcCall.getArguments().getTuple().get(_fieldPos);
+            if (parse != null) {
+                funcCall.getOutputCollector().add((Tuple)parse);
             }
         }
     }
@@ -127,8 +210,8 @@ public class FetchPipe extends SubAssembly {
         
         // Output an appropriate StatusDatum based on whether we were able to fetch
         // the URL or not.
-        public MakeStatusFunction() {
-            super(StatusDatum.FIELDS);
+        public MakeStatusFunction(int numArgs) {
+            super(numArgs, StatusDatum.FIELDS);
             
             // Location of extra field added during fetch, that contains fetch status
             _fieldPos = FetchedDatum.FIELDS.size();
@@ -210,27 +293,113 @@ public class FetchPipe extends SubAssembly {
     
     public FetchPipe(Pipe urlProvider, BaseScoreGenerator scorer, BaseFetcher fetcher, BaseFetcher robotsFetcher, BaseRobotsParser parser,
                     BaseFetchJobPolicy fetchJobPolicy, int numReducers) {
+        this(urlProvider, scorer, fetcher, robotsFetcher, parser, null, fetchJobPolicy, numReducers);
+    }
+    
+    /**
+     * Generate an assembly that will fetch all of the UrlDatum tuples coming out of urlProvider,
+     * using (and updating) <robotsCache> to avoid re-fetching robots.txt files.
+     * 
+     * @param urlProvider
+     * @param scorer
+     * @param fetcher
+     * @param robotsFetcher
+     * @param parser
+     * @param robotsCache cache of robot rules from earlier crawls, or null
+     * @param fetchJobPolicy
+     * @param numReducers
+     */
+    public FetchPipe(Pipe urlProvider, BaseScoreGenerator scorer, BaseFetcher fetcher, BaseFetcher robotsFetcher, BaseRobotsParser parser,
+                    RobotsCache robotsCache, BaseFetchJobPolicy fetchJobPolicy, int numReducers) {
+        this(urlProvider, scorer, fetcher, robotsFetcher, parser, robotsCache, null, fetchJobPolicy, numReducers);
+    }
+    
+    /**
+     * Generate an assembly that will fetch all of the UrlDatum tuples coming out of urlProvider,
+     * using (and updating) <robotsCache> to avoid re-fetching robots.txt files, and
+     * <delayController> to adjust the delay between requests to each server based on
+     * how it's responding.
+     * 
+     * @param urlProvider
+     * @param scorer
+     * @param fetcher
+     * @param robotsFetcher
+     * @param parser
+     * @param robotsCache cache of robot rules from earlier crawls, or null
+     * @param delayController controller for per-server crawl delays, or null
+     * @param fetchJobPolicy
+     * @param numReducers
+     */
+    public FetchPipe(Pipe urlProvider, BaseScoreGenerator scorer, BaseFetcher fetcher, BaseFetcher robotsFetcher, BaseRobotsParser parser,
+                    RobotsCache robotsCache, CrawlDelayController delayController, BaseFetchJobPolicy fetchJobPolicy, int numReducers) {
+        this(urlProvider, scorer, fetcher, robotsFetcher, parser, robotsCache, delayController, fetchJobPolicy, numReducers, null);
+    }
+    
+    /**
+     * Generate an assembly that will fetch all of the UrlDatum tuples coming out of urlProvider,
+     * and parse the fetched content in the same reducer, using <contentParser>.
+     * 
+     * The parse tail pipe then has ParsedDatum tuples, and the content tail pipe only has
+     * the raw content that the fetcher policy's RawContentMode says to keep (plus any
+     * documents that couldn't be parsed). This avoids writing out content, and reading it
+     * back in again, just to parse it.
+     * 
+     * @param urlProvider
+     * @param scorer
+     * @param fetcher
+     * @param contentParser thread safe parser for fetched content
+     * @param numReducers
+     */
+    public FetchPipe(Pipe urlProvider, BaseScoreGenerator scorer, BaseFetcher fetcher, BaseParser contentParser, int numReducers) {
+        this(urlProvider, scorer, fetcher, RobotUtils.createFetcher(fetcher),
+                        new SimpleRobotRulesParser(), null, null,
+                        new DefaultFetchJobPolicy(fetcher.getFetcherPolicy()),
+                        numReducers, contentParser);
+    }
+    
+    /**
+     * Generate an assembly that will fetch all of the UrlDatum tuples coming out of urlProvider,
+     * and (if <contentParser> isn't null) parse the fetched content.
+     * 
+     * @param urlProvider
+     * @param scorer
+     * @param fetcher
+     * @param robotsFetcher
+     * @param parser
+     * @param robotsCache cache of robot rules from earlier crawls, or null
+     * @param delayController controller for per-server crawl delays, or null
+     * @param fetchJobPolicy
+     * @param numReducers
+     * @param contentParser thread safe parser for fetched content, or null to skip parsing
+     */
+    public FetchPipe(Pipe urlProvider, BaseScoreGenerator scorer, BaseFetcher fetcher, BaseFetcher robotsFetcher, BaseRobotsParser parser,
+                    RobotsCache robotsCache, CrawlDelayController delayController, BaseFetchJobPolicy fetchJobPolicy, int numReducers,
+                    BaseParser contentParser) {
         
         Pipe robotsPipe = new Each(urlProvider, new GroupFunction(new GroupByDomain()));
         robotsPipe = new GroupBy("Grouping URLs by IP/delay", robotsPipe, GroupedUrlDatum.getGroupingField());
-        robotsPipe = new Every(robotsPipe, new FilterAndScoreByUrlAndRobots(robotsFetcher, parser, scorer), Fields.RESULTS);
+        robotsPipe = new Every(robotsPipe, new FilterAndScoreByUrlAndRobots(robotsFetcher, parser, robotsCache, scorer), Fields.RESULTS);
         
         // Split into records for URLs that are special (not fetchable) and regular
         SplitterAssembly splitter = new SplitterAssembly(robotsPipe, new SplitIntoSpecialAndRegularKeys());
         
-        // Now generate sets of URLs to fetch. We'll wind up with all URLs for the same server & the same crawl delay,
-        // ordered by score, getting passed per list to the PreFetchBuffer. This will generate PreFetchDatums that contain a key
-        // based on the hash of the IP address (with a range of values == number of reducers), plus a list of URLs and a target
-        // crawl time.
-        Pipe prefetchPipe = new GroupBy("Distributing URL sets", splitter.getRHSPipe(), GroupedUrlDatum.getGroupingField(), ScoredUrlDatum.getSortingField(), true);
+        // Now generate sets of URLs to fetch. We'll wind up with all URLs for the same server, ordered by crawl delay
+        // and then score, getting passed per list to the PreFetchBuffer. This will generate PreFetchDatums that contain a key
+        // based on the hash of the IP address, or the estimated fetch time (see BaseFetchJobPolicy.PartitioningMode), with
+        // a range of values == number of reducers, plus a list of URLs and a target crawl time.
+        // URLs are grouped by server, and sorted by grouping key, so that we get all of the URLs for a server in one call.
+        Pipe prefetchPipe = new Each(splitter.getRHSPipe(), new AddServerFunction(), Fields.ALL);
+        prefetchPipe = new GroupBy("Distributing URL sets", prefetchPipe, new Fields(SERVER_FN), GroupedUrlDatum.getGroupingField().append(ScoredUrlDatum.getSortingField()), true);
         
-        prefetchPipe = new Every(prefetchPipe, new MakeFetchSetsBuffer(fetchJobPolicy, numReducers), Fields.RESULTS);
+        prefetchPipe = new Every(prefetchPipe, ScoredUrlDatum.FIELDS, new MakeFetchSetsBuffer(fetchJobPolicy, numReducers), Fields.RESULTS);
         Pipe fetchPipe = new GroupBy("Fetching URL sets", prefetchPipe, FetchSetDatum.getGroupingField(), FetchSetDatum.getSortingField());
-        fetchPipe = new Every(fetchPipe, new FetchBuffer(fetcher), Fields.RESULTS);
+        FetchBuffer fetchBuffer = new FetchBuffer(fetcher, delayController, fetchJobPolicy.getOrderingMode(), contentParser);
+        fetchPipe = new Every(fetchPipe, fetchBuffer, Fields.RESULTS);
+        int numFetchFields = fetchBuffer.getFieldDeclaration().size();
 
-        Pipe fetchedContent = new Pipe(CONTENT_PIPE_NAME, new Each(fetchPipe, new FilterErrorsFunction()));
+        Pipe fetchedContent = new Pipe(CONTENT_PIPE_NAME, new Each(fetchPipe, new FilterErrorsFunction(numFetchFields, fetcher.getFetcherPolicy())));
 
-        Pipe fetchedStatus = new Pipe("fetched status", new Each(fetchPipe, new MakeStatusFunction()));
+        Pipe fetchedStatus = new Pipe("fetched status", new Each(fetchPipe, new MakeStatusFunction(numFetchFields)));
 
         // We need to merge URLs from the LHS of the splitter (never fetched) so that our status pipe
         // gets status for every URL we put into this sub-assembly.
@@ -241,7 +410,12 @@ public class FetchPipe extends SubAssembly {
         // group name here for BaseTool.nameFlowSteps to use for the job name.
         Pipe joinedStatus = new GroupBy(STATUS_PIPE_NAME, Pipe.pipes(skippedStatus, fetchedStatus), StatusDatum.getGroupingField());
 
-        setTails(fetchedContent, joinedStatus);
+        if (contentParser == null) {
+            setTails(fetchedContent, joinedStatus);
+        } else {
+            Pipe parsedContent = new Pipe(PARSE_PIPE_NAME, new Each(fetchPipe, new FilterParsedFunction(numFetchFields)));
+            setTails(fetchedContent, joinedStatus, parsedContent);
+        }
     }
 
     public Pipe getContentTailPipe() {
@@ -252,6 +426,13 @@ public class FetchPipe extends SubAssembly {
         return getTailPipe(STATUS_PIPE_NAME);
     }
     
+    /**
+     * @return tail pipe with ParsedDatum tuples (only if the FetchPipe has a parser)
+     */
+    public Pipe getParseTailPipe() {
+        return getTailPipe(PARSE_PIPE_NAME);
+    }
+    
     private Pipe getTailPipe(String pipeName) {
         String[] pipeNames = getTailNames();
         for (int i = 0; i < pipeNames.length; i++) {
@@ -287,4 +468,23 @@ public class FetchPipe extends SubAssembly {
         
         return result;
     }
+
+    /**
+     * Same as makeSinkMap(statusSink, fetchedSink), for a FetchPipe that has a parser.
+     * 
+     * @param statusSink Tap where status will be sent (can be null)
+     * @param fetchedSink Tap where fetched content will be sent (can be null)
+     * @param parsedSink Tap where parsed content will be sent (can be null)
+     * @return Map usable in FlowConnector.connect() call.
+     */
+    public static Map<String, Tap> makeSinkMap(Tap statusSink, Tap fetchedSink, Tap parsedSink) {
+        Map<String, Tap> result = makeSinkMap(statusSink, fetchedSink);
+        
+        if (parsedSink == null) {
+            parsedSink = new NullSinkTap(ParsedDatum.FIELDS);
+        }
+        
+        result.put(PARSE_PIPE_NAME, parsedSink);
+        return result;
+    }
 }
@@ -22,11 +22,19 @@
  */
 package bixo.pipes;
 
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+
 import org.apache.log4j.Logger;
 
+import bixo.config.ParserPolicy;
 import bixo.datum.FetchedDatum;
 import bixo.datum.ParsedDatum;
 import bixo.parser.BaseParser;
+import bixo.parser.ParseExecutor;
+import bixo.parser.ParseWindow;
+import bixo.parser.ParseWindow.ParseResult;
 import bixo.parser.ParserCounters;
 import bixo.parser.SimpleParser;
 import cascading.flow.FlowProcess;
@@ -39,6 +47,8 @@ import cascading.pipe.Each;
 import cascading.pipe.Pipe;
 import cascading.pipe.SubAssembly;
 import cascading.tuple.Fields;
+import cascading.tuple.TupleEntry;
+import cascading.tuple.TupleEntryCollector;
 
 import com.bixolabs.cascading.LoggingFlowProcess;
 import com.bixolabs.cascading.LoggingFlowReporter;
@@ -54,6 +64,10 @@ public class ParsePipe extends SubAssembly {
 
         private transient LoggingFlowProcess _flowProcess;
         private BaseParser _parser;
+        
+        // Set if we're parsing more than one document at a time.
+        private transient ParseWindow _window;
+        private transient TupleEntryCollector _collector;
 
         public ParseFunction(BaseParser parser) {
             super(ParsedDatum.FIELDS);
@@ -66,6 +80,12 @@ public class ParsePipe extends SubAssembly {
             super.prepare(flowProcess, operationCall);
             _flowProcess = new LoggingFlowProcess((HadoopFlowProcess)flowProcess);
             _flowProcess.addReporter(new LoggingFlowReporter());
+            
+            ParserPolicy parserPolicy = _parser.getParserPolicy();
+            int numThreads = parserPolicy.getMaxParseThreads();
+            if (numThreads > 1) {
+                _window = new ParseWindow(_parser, numThreads, parserPolicy.getMaxParseWindow(), parserPolicy.getOutputMode());
+            }
         }
 
         @Override
@@ -76,14 +96,45 @@ public class ParsePipe extends SubAssembly {
         
         @Override
         public void operate(FlowProcess flowProcess, FunctionCall<NullContext> functionCall) {
-            FetchedDatum fetchedDatum = new FetchedDatum(functionCall.getArguments());
+            _collector = functionCall.getOutputCollector();
+            
+            if (_window == null) {
+                emit(ParseWindow.parse(_parser, new FetchedDatum(functionCall.getArguments())));
+                return;
+            }
+            
+            // The arguments get reused by Cascading, so make a copy that's still valid
+            // after we return.
+            FetchedDatum fetchedDatum = new FetchedDatum(new TupleEntry(functionCall.getArguments()));
             
             try {
-                ParsedDatum parseResult = _parser.parse(fetchedDatum);
+                emit(_window.add(fetchedDatum));
+            } catch (InterruptedException e) {
+                LOGGER.warn("Interrupted while waiting to parse " + fetchedDatum.getBaseUrl());
+                _flowProcess.increment(ParserCounters.DOCUMENTS_FAILED, 1);
+                Thread.currentThread().interrupt();
+            }
+        }
+        
+        private void emit(List<ParseResult> results) {
+            for (ParseResult result : results) {
+                emit(result);
+            }
+        }
+        
+        private void emit(ParseResult result) {
+            _flowProcess.increment(ParserCounters.PARSE_TIME, (int)result.getParseTime());
+            
+            Exception e = result.getException();
+            if (e == null) {
                 _flowProcess.increment(ParserCounters.DOCUMENTS_PARSED, 1);
-                functionCall.getOutputCollector().add(parseResult.getTuple());
-            } catch (Exception e) {
-                LOGGER.warn("Error processing " + fetchedDatum.getBaseUrl(), e);
+                _collector.add(result.getParsedDatum().getTuple());
+            } else if (e instanceof TimeoutException) {
+                LOGGER.warn("Timeout parsing " + result.getFetchedDatum().getBaseUrl());
+                _flowProcess.increment(ParserCounters.DOCUMENTS_FAILED, 1);
+                _flowProcess.increment(ParserCounters.PARSE_TIMEOUTS, 1);
+            } else {
+                LOGGER.warn("Error processing " + result.getFetchedDatum().getBaseUrl(), e);
                 _flowProcess.increment(ParserCounters.DOCUMENTS_FAILED, 1);
                 // TODO KKr - don't lose datums for documents that couldn't be parsed
             }
@@ -91,6 +142,28 @@ public class ParsePipe extends SubAssembly {
         
         @Override
         public void cleanup(FlowProcess flowProcess, OperationCall<NullContext> operationCall) {
+            if (_window != null) {
+                // Write out whatever is still being parsed, using the collector from operate().
+                try {
+                    emit(_window.drain());
+                } catch (InterruptedException e) {
+                    LOGGER.warn("Interrupted while waiting for " + _window.getNumInFlight() + " parses to finish");
+                    _flowProcess.increment(ParserCounters.DOCUMENTS_FAILED, _window.getNumInFlight());
+                } finally {
+                    _window.shutdown();
+                }
+            }
+            
+            ParseExecutor executor = _parser.getParseExecutor();
+            if (executor != null) {
+                _flowProcess.increment(ParserCounters.PARSE_SATURATED, (int)executor.getNumSaturated());
+                _flowProcess.increment(ParserCounters.PARSE_WEDGED, executor.getNumWedged());
+            }
+            
+            for (Map.Entry<ParserCounters, Long> entry : _parser.getLimitCounts().entrySet()) {
+                _flowProcess.increment(entry.getKey(), entry.getValue().intValue());
+            }
+            
             _flowProcess.dumpCounters();
             super.cleanup(flowProcess, operationCall);
         }
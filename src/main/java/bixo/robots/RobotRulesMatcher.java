@@ -0,0 +1,236 @@
+package bixo.robots;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Compiled form of a set of allow/disallow rules, built once per robots.txt file.
+ *
+ * Plain prefix rules go into a character trie, so finding the longest matching prefix
+ * takes one pass over the path. Rules with wildcards ('*', or a trailing '$' to anchor
+ * the end of the path) are checked separately, longest first, and only when they're long
+ * enough to beat the best prefix match.
+ *
+ * The longest matching rule wins, and if an allow and disallow rule have the same length,
+ * the allow rule wins. If no rule matches, the path is allowed.
+ */
+class RobotRulesMatcher {
+    private static final char WILDCARD = '*';
+    private static final char END_ANCHOR = '$';
+
+    private static final int NO_MATCH = -1;
+
+    private static class TrieNode {
+        private char[] _chars = new char[0];
+        private TrieNode[] _children = new TrieNode[0];
+
+        // Length of the rule ending at this node, or NO_MATCH
+        private int _ruleLength = NO_MATCH;
+        private boolean _allow;
+
+        public TrieNode getChild(char c) {
+            int index = Arrays.binarySearch(_chars, c);
+            return index < 0 ? null : _children[index];
+        }
+
+        public TrieNode addChild(char c) {
+            int index = Arrays.binarySearch(_chars, c);
+            if (index >= 0) {
+                return _children[index];
+            }
+
+            index = -(index + 1);
+            char[] chars = new char[_chars.length + 1];
+            TrieNode[] children = new TrieNode[_children.length + 1];
+            System.arraycopy(_chars, 0, chars, 0, index);
+            System.arraycopy(_children, 0, children, 0, index);
+            System.arraycopy(_chars, index, chars, index + 1, _chars.length - index);
+            System.arraycopy(_children, index, children, index + 1, _children.length - index);
+
+            TrieNode result = new TrieNode();
+            chars[index] = c;
+            children[index] = result;
+            _chars = chars;
+            _children = children;
+            return result;
+        }
+    }
+
+    private static class WildcardRule {
+        private String[] _segments;
+        private boolean _anchored;
+        private int _length;
+        private boolean _allow;
+
+        public WildcardRule(String pattern, boolean allow) {
+            _length = pattern.length();
+            _allow = allow;
+
+            _anchored = pattern.charAt(pattern.length() - 1) == END_ANCHOR;
+            if (_anchored) {
+                pattern = pattern.substring(0, pattern.length() - 1);
+            }
+
+            List<String> segments = new ArrayList<String>();
+            int segmentStart = 0;
+            int wildcardPos;
+            while ((wildcardPos = pattern.indexOf(WILDCARD, segmentStart)) != -1) {
+                segments.add(pattern.substring(segmentStart, wildcardPos));
+                segmentStart = wildcardPos + 1;
+            }
+
+            segments.add(pattern.substring(segmentStart));
+            _segments = segments.toArray(new String[segments.size()]);
+        }
+
+        public boolean matches(CharSequence path, int start, int end) {
+            // First segment has to match at the start of the path.
+            String segment = _segments[0];
+            if (!regionMatches(path, start, end, segment)) {
+                return false;
+            }
+
+            int lastSegment = _segments.length - 1;
+            if (lastSegment == 0) {
+                return !_anchored || (start + segment.length() == end);
+            }
+
+            int pos = start + segment.length();
+            for (int i = 1; i < lastSegment; i++) {
+                segment = _segments[i];
+                int matchPos = indexOf(path, pos, end, segment);
+                if (matchPos == -1) {
+                    return false;
+                }
+
+                pos = matchPos + segment.length();
+            }
+
+            segment = _segments[lastSegment];
+            if (_anchored) {
+                int suffixStart = end - segment.length();
+                return (suffixStart >= pos) && regionMatches(path, suffixStart, end, segment);
+            } else {
+                return indexOf(path, pos, end, segment) != -1;
+            }
+        }
+    }
+
+    // Longest rules first, and allow before disallow for rules of the same length.
+    private static final Comparator<WildcardRule> WILDCARD_RULE_ORDER = new Comparator<WildcardRule>() {
+
+        @Override
+        public int compare(WildcardRule o1, WildcardRule o2) {
+            if (o1._length != o2._length) {
+                return o1._length > o2._length ? -1 : 1;
+            } else if (o1._allow == o2._allow) {
+                return 0;
+            } else {
+                return o1._allow ? -1 : 1;
+            }
+        }
+    };
+
+    private TrieNode _root;
+    private WildcardRule[] _wildcardRules;
+
+    public RobotRulesMatcher(List<SimpleRobotRules.RobotRule> rules) {
+        _root = new TrieNode();
+
+        List<WildcardRule> wildcardRules = new ArrayList<WildcardRule>();
+        for (SimpleRobotRules.RobotRule rule : rules) {
+            String pattern = rule._prefix;
+            boolean allow = rule._allow;
+
+            if (isWildcardPattern(pattern)) {
+                wildcardRules.add(new WildcardRule(pattern, allow));
+            } else {
+                TrieNode node = _root;
+                for (int j = 0; j < pattern.length(); j++) {
+                    node = node.addChild(pattern.charAt(j));
+                }
+
+                // If we get the same path twice, allow wins.
+                node._allow = (node._ruleLength == NO_MATCH) ? allow : (node._allow || allow);
+                node._ruleLength = pattern.length();
+            }
+        }
+
+        Collections.sort(wildcardRules, WILDCARD_RULE_ORDER);
+        _wildcardRules = wildcardRules.toArray(new WildcardRule[wildcardRules.size()]);
+    }
+
+    /**
+     * Decide if the path (already decoded & lower-cased) between <start> and <end>
+     * in <path> is allowed.
+     *
+     * @param path Text containing the path (e.g. the full URL)
+     * @param start offset of path in <path>
+     * @param end offset of end of path in <path>
+     * @return true if the path is allowed
+     */
+    public boolean isAllowed(CharSequence path, int start, int end) {
+        int bestLength = NO_MATCH;
+        boolean bestAllow = true;
+
+        TrieNode node = _root;
+        if (node._ruleLength != NO_MATCH) {
+            bestLength = node._ruleLength;
+            bestAllow = node._allow;
+        }
+
+        for (int i = start; (i < end) && (node != null); i++) {
+            node = node.getChild(path.charAt(i));
+            if ((node != null) && (node._ruleLength != NO_MATCH)) {
+                bestLength = node._ruleLength;
+                bestAllow = node._allow;
+            }
+        }
+
+        for (WildcardRule rule : _wildcardRules) {
+            if ((rule._length < bestLength) || ((rule._length == bestLength) && bestAllow)) {
+                // Can't beat what we've got, and all remaining rules are shorter.
+                break;
+            }
+
+            if (rule.matches(path, start, end)) {
+                return rule._allow;
+            }
+        }
+
+        return bestAllow;
+    }
+
+    private static boolean isWildcardPattern(String pattern) {
+        return (pattern.indexOf(WILDCARD) != -1) || pattern.endsWith("" + END_ANCHOR);
+    }
+
+    private static boolean regionMatches(CharSequence text, int start, int end, String target) {
+        int targetLength = target.length();
+        if (end - start < targetLength) {
+            return false;
+        }
+
+        for (int i = 0; i < targetLength; i++) {
+            if (text.charAt(start + i) != target.charAt(i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static int indexOf(CharSequence text, int start, int end, String target) {
+        int lastStart = end - target.length();
+        for (int i = start; i <= lastStart; i++) {
+            if (regionMatches(text, i, end, target)) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+}
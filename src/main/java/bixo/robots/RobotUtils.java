@@ -1,6 +1,7 @@
 package bixo.robots;
 
 import java.net.URL;
+import java.util.Arrays;
 
 import org.apache.http.HttpStatus;
 import org.apache.log4j.Logger;
@@ -88,7 +89,14 @@ public class RobotUtils {
                 return parser.failedFetch(HttpStatus.SC_GONE);
             }
             
-            return parser.parseContent(urlToFetch, result.getContentBytes(), result.getContentType(), 
+            // The content buffer can be longer than the actual content.
+            byte[] content = result.getContentBytes();
+            int contentLength = result.getContentLength();
+            if (contentLength < content.length) {
+                content = Arrays.copyOf(content, contentLength);
+            }
+            
+            return parser.parseContent(urlToFetch, content, result.getContentType(), 
                             fetcher.getUserAgent().getAgentName());
         } catch (HttpFetchException e) {
             return parser.failedFetch(e.getHttpStatus());
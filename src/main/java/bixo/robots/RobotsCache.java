@@ -0,0 +1,318 @@
+package bixo.robots;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.log4j.Logger;
+
+import bixo.utils.PartFileUtils;
+import bixo.utils.PartFileUtils.PartFileReader;
+import bixo.utils.PartFileUtils.PartFileWriter;
+
+/**
+ * Store of robot rules, keyed by protocol+domain, that persists across crawl loops.
+ *
+ * The cache lives in a directory (typically in the top-level crawl directory, next to the
+ * loop directories). Every task that uses the cache loads all of the part files in that
+ * directory when it's opened, and writes out the rules it fetched as a new part file when
+ * it's closed. Call compact() between loops to merge the part files and drop expired rules.
+ *
+ * Rules are kept in serialized (compressed) form, and deserialized for each request. Rules
+ * that defer visits (e.g. robots.txt fetch got a 5xx error) are never cached, so that the
+ * next loop will try again.
+ */
+@SuppressWarnings("serial")
+public class RobotsCache implements Serializable {
+    private static final Logger LOGGER = Logger.getLogger(RobotsCache.class);
+
+    public static final long DEFAULT_TTL = 24 * 60 * 60 * 1000L;
+
+    private static final int FORMAT_VERSION = 1;
+
+    private static class CachedRules {
+        private long _fetchTime;
+        private long _expiration;
+        private byte[] _rules;
+
+        public CachedRules(long fetchTime, long expiration, byte[] rules) {
+            _fetchTime = fetchTime;
+            _expiration = expiration;
+            _rules = rules;
+        }
+
+        public boolean isExpired(long now) {
+            return now >= _expiration;
+        }
+    }
+
+    private String _cacheDir;
+    private long _ttl;
+
+    private transient Map<String, CachedRules> _entries;
+    private transient Map<String, CachedRules> _newEntries;
+
+    public RobotsCache(String cacheDir) {
+        this(cacheDir, DEFAULT_TTL);
+    }
+
+    public RobotsCache(String cacheDir, long ttl) {
+        _cacheDir = cacheDir;
+        _ttl = ttl;
+    }
+
+    public String getCacheDir() {
+        return _cacheDir;
+    }
+
+    public long getTtl() {
+        return _ttl;
+    }
+
+    /**
+     * Return the cached rules for <protocolAndDomain>, or null if we don't
+     * have rules (or they've expired).
+     *
+     * @param protocolAndDomain Key for the rules, e.g. http://www.domain.com
+     * @return rules, or null
+     */
+    public BaseRobotRules getRules(String protocolAndDomain) {
+        CachedRules cached = getEntries().get(protocolAndDomain);
+        if ((cached == null) || cached.isExpired(System.currentTimeMillis())) {
+            return null;
+        }
+
+        try {
+            return deserializeRules(cached._rules);
+        } catch (IOException e) {
+            LOGGER.warn("Ignoring invalid cached robot rules for " + protocolAndDomain, e);
+            return null;
+        }
+    }
+
+    /**
+     * Add rules that were just fetched for <protocolAndDomain>.
+     *
+     * @param protocolAndDomain Key for the rules, e.g. http://www.domain.com
+     * @param rules Rules from RobotUtils.getRobotRules()
+     */
+    public void putRules(String protocolAndDomain, BaseRobotRules rules) {
+        // Deferred rules mean we had a problem fetching robots.txt, so we want
+        // to try again next time.
+        if (rules.isDeferVisits()) {
+            return;
+        }
+
+        try {
+            long now = System.currentTimeMillis();
+            CachedRules cached = new CachedRules(now, now + _ttl, serializeRules(rules));
+            getEntries().put(protocolAndDomain, cached);
+            getNewEntries().put(protocolAndDomain, cached);
+        } catch (IOException e) {
+            LOGGER.warn("Can't cache robot rules for " + protocolAndDomain, e);
+        }
+    }
+
+    public int size() {
+        return getEntries().size();
+    }
+
+    /**
+     * Load all of the (unexpired) rules from the cache directory.
+     *
+     * @param conf Configuration used to get the file system
+     * @throws IOException
+     */
+    public void open(Configuration conf) throws IOException {
+        Path cachePath = new Path(_cacheDir);
+        FileSystem fs = cachePath.getFileSystem(conf);
+
+        PartFileUtils.readPartFiles(fs, PartFileUtils.listPartFiles(fs, cachePath), makeReader(getEntries()));
+
+        LOGGER.info(String.format("Loaded %d cached robot rules from %s", getEntries().size(), _cacheDir));
+    }
+
+    /**
+     * Write out all of the rules added since the cache was opened, as a new
+     * part file in the cache directory.
+     *
+     * @param conf Configuration used to get the file system
+     * @throws IOException
+     */
+    public void close(Configuration conf) throws IOException {
+        final Map<String, CachedRules> newEntries = getNewEntries();
+        if (newEntries.isEmpty()) {
+            return;
+        }
+
+        Path cachePath = new Path(_cacheDir);
+        FileSystem fs = cachePath.getFileSystem(conf);
+        PartFileUtils.writePartFile(fs, cachePath, makeWriter(newEntries));
+
+        LOGGER.info(String.format("Saved %d new robot rules to %s", newEntries.size(), _cacheDir));
+        newEntries.clear();
+    }
+
+    /**
+     * Merge all of the part files in the cache directory into one file, dropping
+     * rules that have expired. This must not be called while a crawl is using the cache.
+     *
+     * @param conf Configuration used to get the file system
+     * @throws IOException
+     */
+    public void compact(Configuration conf) throws IOException {
+        Path cachePath = new Path(_cacheDir);
+        FileSystem fs = cachePath.getFileSystem(conf);
+
+        List<Path> partPaths = PartFileUtils.listPartFiles(fs, cachePath);
+        if (partPaths.size() == 0) {
+            return;
+        }
+
+        Map<String, CachedRules> entries = new ConcurrentHashMap<String, CachedRules>();
+        PartFileUtils.readPartFiles(fs, partPaths, makeReader(entries));
+        PartFileUtils.replacePartFiles(fs, cachePath, partPaths, makeWriter(entries));
+
+        LOGGER.info(String.format("Compacted %d part files in %s to %d robot rules", partPaths.size(), _cacheDir, entries.size()));
+    }
+
+    /**
+     * Write <entries>, skipping any that have expired.
+     *
+     * @param out Output
+     * @param entries Entries to write
+     * @throws IOException
+     */
+    private static void writeEntries(DataOutput out, Map<String, CachedRules> entries) throws IOException {
+        long now = System.currentTimeMillis();
+        List<Map.Entry<String, CachedRules>> liveEntries = new ArrayList<Map.Entry<String, CachedRules>>(entries.size());
+        for (Map.Entry<String, CachedRules> entry : entries.entrySet()) {
+            if (!entry.getValue().isExpired(now)) {
+                liveEntries.add(entry);
+            }
+        }
+
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(liveEntries.size());
+        for (Map.Entry<String, CachedRules> entry : liveEntries) {
+            CachedRules cached = entry.getValue();
+            out.writeUTF(entry.getKey());
+            out.writeLong(cached._fetchTime);
+            out.writeLong(cached._expiration);
+            out.writeInt(cached._rules.length);
+            out.write(cached._rules);
+        }
+    }
+
+    /**
+     * Read entries into <entries>, skipping any that have expired. If we get the same key
+     * more than once, the most recently fetched rules win.
+     *
+     * @param in Input
+     * @param entries Map to fill in
+     * @throws IOException
+     */
+    private static void readEntries(DataInput in, Map<String, CachedRules> entries) throws IOException {
+        int version = in.readInt();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unknown robots cache format version: " + version);
+        }
+
+        long now = System.currentTimeMillis();
+        int numEntries = in.readInt();
+        for (int i = 0; i < numEntries; i++) {
+            String key = in.readUTF();
+            long fetchTime = in.readLong();
+            long expiration = in.readLong();
+            byte[] rules = new byte[in.readInt()];
+            in.readFully(rules);
+
+            CachedRules cached = new CachedRules(fetchTime, expiration, rules);
+            CachedRules existing = entries.get(key);
+            if (!cached.isExpired(now) && ((existing == null) || (existing._fetchTime < fetchTime))) {
+                entries.put(key, cached);
+            }
+        }
+    }
+
+    // Package-private so that tests can skip the file system.
+    void save(DataOutputStream out) throws IOException {
+        writeEntries(out, getEntries());
+    }
+
+    void load(DataInputStream in) throws IOException {
+        readEntries(in, getEntries());
+    }
+
+    private static PartFileWriter makeWriter(final Map<String, CachedRules> entries) {
+        return new PartFileWriter() {
+
+            @Override
+            public void write(DataOutput out) throws IOException {
+                writeEntries(out, entries);
+            }
+        };
+    }
+
+    private static PartFileReader makeReader(final Map<String, CachedRules> entries) {
+        return new PartFileReader() {
+
+            @Override
+            public void read(DataInput in) throws IOException {
+                readEntries(in, entries);
+            }
+        };
+    }
+
+    private static byte[] serializeRules(BaseRobotRules rules) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(new DeflaterOutputStream(bytes));
+        out.writeObject(rules);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static BaseRobotRules deserializeRules(byte[] rules) throws IOException {
+        ObjectInputStream in = new ObjectInputStream(new InflaterInputStream(new ByteArrayInputStream(rules)));
+
+        try {
+            return (BaseRobotRules)in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Unknown robot rules class: " + e.getMessage());
+        } finally {
+            in.close();
+        }
+    }
+
+    private synchronized Map<String, CachedRules> getEntries() {
+        if (_entries == null) {
+            _entries = new ConcurrentHashMap<String, CachedRules>();
+        }
+
+        return _entries;
+    }
+
+    private synchronized Map<String, CachedRules> getNewEntries() {
+        if (_newEntries == null) {
+            _newEntries = new ConcurrentHashMap<String, CachedRules>();
+        }
+
+        return _newEntries;
+    }
+}
@@ -0,0 +1,160 @@
+package bixo.robots;
+
+import java.net.URL;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import org.apache.http.HttpStatus;
+import org.apache.log4j.Logger;
+
+import bixo.fetcher.BaseFetcher;
+
+/**
+ * Shared by all of the robots threads in a task, to coordinate fetches of robots.txt files.
+ *
+ * The number of concurrent robots.txt requests to any one IP address is limited, so
+ * that all of the virtual hosts on a shared hosting server don't get hit at once. Because
+ * http and https variants of a domain (and vhosts) share the IP address, they also share
+ * the limit, and the fetcher's pooled connections to that server get reused.
+ *
+ * Requests for an IP address that's already at its limit are queued up, and the calling
+ * thread returns right away (instead of waiting), so one busy IP address can't tie up all
+ * of the robots threads. Whenever a thread finishes a request, it takes the next request
+ * for the same IP address off the queue, if there is one.
+ *
+ * Each protocol+host+port is only processed once per task, so there's never more than one
+ * request for the same robots.txt URL, and the rules for different hosts (or protocols)
+ * on the same IP address can't be shared.
+ */
+public class RobotsFetchCoordinator {
+    private static final Logger LOGGER = Logger.getLogger(RobotsFetchCoordinator.class);
+
+    public static final int DEFAULT_MAX_REQUESTS_PER_IP = 2;
+
+    /**
+     * Gets the result of getRobotRules(), from whichever thread did the fetch.
+     */
+    public interface RobotRulesCallback {
+        void rulesReady(BaseRobotRules rules);
+    }
+
+    private static class RobotsRequest {
+        private URL _robotsUrl;
+        private RobotRulesCallback _callback;
+
+        public RobotsRequest(URL robotsUrl, RobotRulesCallback callback) {
+            _robotsUrl = robotsUrl;
+            _callback = callback;
+        }
+    }
+
+    private BaseFetcher _fetcher;
+    private BaseRobotsParser _parser;
+    private int _maxRequestsPerIp;
+
+    private Map<String, Integer> _activeRequests;
+    private Map<String, LinkedList<RobotsRequest>> _pendingRequests;
+
+    public RobotsFetchCoordinator(BaseFetcher fetcher, BaseRobotsParser parser) {
+        this(fetcher, parser, DEFAULT_MAX_REQUESTS_PER_IP);
+    }
+
+    public RobotsFetchCoordinator(BaseFetcher fetcher, BaseRobotsParser parser, int maxRequestsPerIp) {
+        if (maxRequestsPerIp < 1) {
+            throw new IllegalArgumentException("maxRequestsPerIp must be at least 1");
+        }
+
+        _fetcher = fetcher;
+        _parser = parser;
+        _maxRequestsPerIp = maxRequestsPerIp;
+
+        _activeRequests = new HashMap<String, Integer>();
+        _pendingRequests = new HashMap<String, LinkedList<RobotsRequest>>();
+    }
+
+    public BaseFetcher getFetcher() {
+        return _fetcher;
+    }
+
+    public int getMaxRequestsPerIp() {
+        return _maxRequestsPerIp;
+    }
+
+    /**
+     * Fetch and parse the robots.txt file at <robotsUrl>, and pass the rules to <callback>.
+     * If there are already too many robots.txt requests to <hostAddress>, the request is
+     * queued and this returns immediately. Otherwise the calling thread does the fetch, and
+     * then keeps going with any requests that have been queued up for <hostAddress>.
+     *
+     * @param robotsUrl URL to robots.txt file
+     * @param hostAddress Text form of the IP address for the robots.txt host
+     * @param callback Callback for the robot rules
+     */
+    public void getRobotRules(URL robotsUrl, String hostAddress, RobotRulesCallback callback) {
+        RobotsRequest request = new RobotsRequest(robotsUrl, callback);
+
+        synchronized (this) {
+            Integer numActive = _activeRequests.get(hostAddress);
+            if ((numActive != null) && (numActive >= _maxRequestsPerIp)) {
+                LinkedList<RobotsRequest> pending = _pendingRequests.get(hostAddress);
+                if (pending == null) {
+                    pending = new LinkedList<RobotsRequest>();
+                    _pendingRequests.put(hostAddress, pending);
+                }
+
+                pending.add(request);
+                return;
+            }
+
+            _activeRequests.put(hostAddress, numActive == null ? 1 : numActive + 1);
+        }
+
+        while (request != null) {
+            try {
+                processRequest(request);
+            } catch (RuntimeException e) {
+                // Don't let one bad callback strand the requests queued up behind it.
+                LOGGER.warn("Exception processing " + request._robotsUrl, e);
+            }
+
+            request = nextRequest(hostAddress);
+        }
+    }
+
+    private void processRequest(RobotsRequest request) {
+        BaseRobotRules rules;
+        if (Thread.currentThread().isInterrupted()) {
+            rules = _parser.failedFetch(HttpStatus.SC_INTERNAL_SERVER_ERROR);
+        } else {
+            rules = RobotUtils.getRobotRules(_fetcher, _parser, request._robotsUrl);
+        }
+
+        request._callback.rulesReady(rules);
+    }
+
+    /**
+     * Return the next queued request for <hostAddress>, which the caller now owns, or
+     * release the caller's slot if there's nothing left to do.
+     */
+    private synchronized RobotsRequest nextRequest(String hostAddress) {
+        LinkedList<RobotsRequest> pending = _pendingRequests.get(hostAddress);
+        if (pending != null) {
+            RobotsRequest result = pending.poll();
+            if (pending.isEmpty()) {
+                _pendingRequests.remove(hostAddress);
+            }
+
+            return result;
+        }
+
+        int numActive = _activeRequests.get(hostAddress) - 1;
+        if (numActive == 0) {
+            _activeRequests.remove(hostAddress);
+        } else {
+            _activeRequests.put(hostAddress, numActive);
+        }
+
+        return null;
+    }
+}
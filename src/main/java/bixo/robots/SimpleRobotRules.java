@@ -1,15 +1,14 @@
 package bixo.robots;
 
-import java.net.URL;
+import java.io.Serializable;
 import java.net.URLDecoder;
 import java.util.ArrayList;
-import java.util.regex.Pattern;
 
 /**
  * Result from parsing a single robots.txt file - which means we
  * get a set of rules, and a crawl-delay.
  */
-
+@SuppressWarnings("serial")
 public class SimpleRobotRules extends BaseRobotRules {
 
     public enum RobotRulesMode {
@@ -19,30 +18,28 @@ public class SimpleRobotRules extends BaseRobotRules {
     }
 
     /**
-     * Single rule that maps from a path prefix to an allow flag.
+     * Single rule that maps from a path prefix to an allow flag. The prefix
+     * can contain '*' wildcards, and end with '$' to match the end of the path.
      */
-    protected class RobotRule {
+    protected static class RobotRule implements Serializable {
         String _prefix;
-        Pattern _pattern;
         boolean _allow;
 
         public RobotRule(String prefix, boolean allow) {
             _prefix = prefix;
-            _pattern = null;
-            _allow = allow;
-        }
-
-        public RobotRule(Pattern pattern, boolean allow) {
-            _prefix = null;
-            _pattern = pattern;
             _allow = allow;
         }
     }
 
 
+    private static final String ROBOTS_TXT_PATH = "/robots.txt";
+    
     private ArrayList<RobotRule> _rules;
     private RobotRulesMode _mode;
     
+    // Built from _rules the first time we need it.
+    private transient volatile RobotRulesMatcher _matcher;
+    
     public SimpleRobotRules() {
         this(RobotRulesMode.ALLOW_SOME);
     }
@@ -56,6 +53,7 @@ public class SimpleRobotRules extends BaseRobotRules {
     
     public void clearRules() {
         _rules.clear();
+        _matcher = null;
     }
 
     public void addRule(String prefix, boolean allow) {
@@ -66,51 +64,90 @@ public class SimpleRobotRules extends BaseRobotRules {
         }
 
         _rules.add(new RobotRule(prefix, allow));
+        _matcher = null;
     }
 
-    // TODO KKr - make sure paths are sorted from longest to shortest,
-    // to implement longest match
+    /**
+     * Decide if <url> is allowed, using the longest matching rule (allow wins ties).
+     * The path and query are matched against the rules, without building a URL
+     * unless the path needs to be decoded or lower-cased.
+     */
     public boolean isAllowed(String url) {
         if (_mode == RobotRulesMode.ALLOW_NONE) {
             return false;
         } else if (_mode == RobotRulesMode.ALLOW_ALL) {
             return true;
-        } else {
-            String path = getPath(url);
-            
-            // Always allow robots.txt
-            if (path.equals("/robots.txt")) {
-                return true;
+        }
+        
+        String path = url;
+        int start = -1;
+        int end = url.length();
+        
+        int hostStart = url.indexOf("://");
+        if (hostStart != -1) {
+            start = hostStart + "://".length();
+            while ((start < end) && ("/?#".indexOf(url.charAt(start)) == -1)) {
+                start++;
             }
-
-            for (RobotRule rule : _rules) {
-                if (path.startsWith(rule._prefix)) {
-                    return rule._allow;
-                }
+            
+            int fragmentStart = url.indexOf('#', start);
+            if (fragmentStart != -1) {
+                end = fragmentStart;
             }
-
+        }
+        
+        if ((start == -1) || (start == end)) {
+            // If the URL is invalid, we don't really care since the fetch
+            // will fail, so use the root.
+            path = "/";
+            start = 0;
+            end = 1;
+        } else if ((url.charAt(start) != '/') || needsNormalizing(url, start, end)) {
+            path = normalizePath(url.substring(start, end));
+            start = 0;
+            end = path.length();
+        }
+        
+        // Always allow robots.txt
+        if ((end - start == ROBOTS_TXT_PATH.length()) && path.startsWith(ROBOTS_TXT_PATH, start)) {
             return true;
         }
+        
+        RobotRulesMatcher matcher = _matcher;
+        if (matcher == null) {
+            matcher = new RobotRulesMatcher(_rules);
+            _matcher = matcher;
+        }
+        
+        return matcher.isAllowed(path, start, end);
     }
 
-    private String getPath(String url) {
-
-        try {
-            String path = new URL(url).getPath();
-            
-            if ((path == null) || (path.equals(""))) {
-                return "/";
-            } else {
-                // We always lower-case the path, as anybody who sets up rules that differ only by case
-                // is insane, but it's more likely that somebody will accidentally put in rules that don't
-                // match their target paths because of case differences.
-                return URLDecoder.decode(path, "UTF-8").toLowerCase();
+    private static boolean needsNormalizing(String url, int start, int end) {
+        for (int i = start; i < end; i++) {
+            char c = url.charAt(i);
+            if ((c == '%') || (c == '+') || Character.isUpperCase(c)) {
+                return true;
             }
+        }
+        
+        return false;
+    }
+    
+    private static String normalizePath(String path) {
+        if (path.charAt(0) != '/') {
+            path = "/" + path;
+        }
+        
+        try {
+            path = URLDecoder.decode(path, "UTF-8");
         } catch (Exception e) {
-            // If the URL is invalid, we don't really care since the fetch
-            // will fail, so return the root.
-            return "/";
+            // Use the path as-is, since we can't decode it.
         }
+        
+        // We always lower-case the path, as anybody who sets up rules that differ only by case
+        // is insane, but it's more likely that somebody will accidentally put in rules that don't
+        // match their target paths because of case differences.
+        return path.toLowerCase();
     }
     
     /**
@@ -0,0 +1,99 @@
+package bixo.utils;
+
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.log4j.Logger;
+
+import bixo.config.FetcherPolicy;
+import bixo.config.FetcherPolicy.ExecutorMode;
+
+/**
+ * Runs tasks (e.g. FetchTasks) for the fetch & robots buffers. The contract is the
+ * one established by ThreadedExecutor: execute() either hands off the task, or blocks
+ * for at most the request timeout before throwing a RejectedExecutionException. Tasks
+ * that were accepted will eventually be run, or (after a hard termination) run with
+ * the interrupted flag set, so that they can dispose of their work.
+ *
+ */
+public abstract class BaseExecutor {
+    private static final Logger LOGGER = Logger.getLogger(BaseExecutor.class);
+
+    // Max latency between when a task is accepted, and when a thread starts working on it.
+    public static final long MAX_POLL_TIME = 1000L;
+
+    /**
+     * Execute <command>, waiting for up to the request timeout if the executor is busy.
+     * 
+     * @param command
+     * @throws RejectedExecutionException
+     */
+    public abstract void execute(Runnable command) throws RejectedExecutionException;
+    
+    /**
+     * Return number of tasks that are currently running.
+     * 
+     * @return count of active tasks
+     */
+    public abstract int getActiveCount();
+    
+    /**
+     * Terminate the executor.
+     * 
+     * @return true if we did a normal termination, false if we had to do a hard shutdown
+     * @throws InterruptedException 
+     */
+    public abstract boolean terminate(long terminationTimeout) throws InterruptedException;
+    
+    /**
+     * Create the executor specified by <policy>'s executor mode. If that's VIRTUAL but
+     * the JVM doesn't support virtual threads, we fall back to THREADED.
+     * 
+     * @param policy Fetcher policy with executor settings
+     * @param maxThreads Max number of tasks to run at once
+     * @param requestTimeout Max time for execute() to wait before rejecting a task
+     * @return executor
+     */
+    public static BaseExecutor makeExecutor(FetcherPolicy policy, int maxThreads, long requestTimeout) {
+        ExecutorMode mode = policy.getExecutorMode();
+        
+        if ((mode == ExecutorMode.VIRTUAL) && !VirtualThreadExecutor.isSupported()) {
+            LOGGER.warn("Virtual threads aren't supported by this JVM, using threaded executor");
+            mode = ExecutorMode.THREADED;
+        }
+        
+        switch (mode) {
+            case THREADED:
+                return new ThreadedExecutor(maxThreads, requestTimeout);
+                
+            case QUEUED:
+                return new QueuedExecutor(maxThreads, policy.getExecutorQueueDepth(), requestTimeout);
+                
+            case VIRTUAL:
+                return new VirtualThreadExecutor(maxThreads, requestTimeout);
+                
+            default:
+                throw new RuntimeException("Unknown executor mode: " + mode);
+        }
+    }
+    
+    /**
+     * Run tasks that were never started (because of a hard shutdown) with the interrupted
+     * flag set, so they'll skip (and write out) their work versus silently dropping it.
+     * 
+     * @param tasks Tasks returned by shutdownNow()
+     */
+    protected static void interruptTasks(Iterable<Runnable> tasks) {
+        for (Runnable task : tasks) {
+            Thread.currentThread().interrupt();
+            
+            try {
+                task.run();
+            } catch (Throwable t) {
+                LOGGER.error("Exception while interrupting queued task", t);
+            } finally {
+                // Clear the interrupted flag that we set.
+                Thread.interrupted();
+            }
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package bixo.utils;
+
+/**
+ * A per-thread pool of scratch byte arrays, in power-of-two size classes.
+ * 
+ * Fetching a page used to allocate (and then copy through) several arrays that were
+ * garbage as soon as the fetch was done. Instead, buffers that don't escape the fetch
+ * (read buffers, compressed content) can be acquired from the current thread's pool,
+ * and released back to it afterwards. Each pool holds at most one idle buffer per
+ * size class, and buffers bigger than the largest class aren't pooled. Pools live as
+ * long as their threads, so the largest class is kept small (MAX_POOLED_BUFFER_SIZE)
+ * to bound the idle memory per thread (to less than 2x that size). Bigger buffers, e.g.
+ * for the occasional huge page, are allocated as needed and left for the GC.
+ * 
+ * Counts of bytes allocated vs. reused are kept per thread, so that callers can
+ * track the allocation rate (see FetchCounters).
+ *
+ */
+public class BufferPool {
+
+    public static final int MIN_BUFFER_SIZE = 8 * 1024;
+    public static final int MAX_POOLED_BUFFER_SIZE = 1024 * 1024;
+    
+    private static final ThreadLocal<BufferPool> POOLS = new ThreadLocal<BufferPool>() {
+        
+        @Override
+        protected BufferPool initialValue() {
+            return new BufferPool();
+        }
+    };
+    
+    private byte[][] _buffers;
+    private long _bytesAllocated;
+    private long _bytesReused;
+    
+    protected BufferPool() {
+        _buffers = new byte[getSizeClass(MAX_POOLED_BUFFER_SIZE) + 1][];
+        _bytesAllocated = 0;
+        _bytesReused = 0;
+    }
+    
+    /**
+     * Return the pool for the current thread.
+     * 
+     * @return thread's buffer pool
+     */
+    public static BufferPool get() {
+        return POOLS.get();
+    }
+    
+    /**
+     * Return a buffer that's at least <minSize> bytes long. The contents of the buffer
+     * are undefined.
+     * 
+     * @param minSize Minimum length of the buffer
+     * @return buffer, which should be passed to release() once it's no longer needed
+     */
+    public byte[] acquire(int minSize) {
+        if (minSize > MAX_POOLED_BUFFER_SIZE) {
+            return allocate(minSize);
+        }
+        
+        int sizeClass = getSizeClass(minSize);
+        byte[] result = _buffers[sizeClass];
+        if (result == null) {
+            return allocate(MIN_BUFFER_SIZE << sizeClass);
+        } else {
+            _buffers[sizeClass] = null;
+            _bytesReused += result.length;
+            return result;
+        }
+    }
+    
+    /**
+     * Return a buffer that's at least <minSize> bytes long, with the first <length> bytes
+     * of <buffer> copied into it. <buffer> is released.
+     * 
+     * @param buffer Buffer to grow
+     * @param length Number of bytes in <buffer> to keep
+     * @param minSize Minimum length of the new buffer
+     * @return new buffer
+     */
+    public byte[] grow(byte[] buffer, int length, int minSize) {
+        byte[] result = acquire(minSize);
+        System.arraycopy(buffer, 0, result, 0, length);
+        release(buffer);
+        return result;
+    }
+    
+    /**
+     * Give <buffer> back to the pool. The caller must not use it after this call.
+     * 
+     * @param buffer Buffer returned by acquire(), or null
+     */
+    public void release(byte[] buffer) {
+        if ((buffer == null) || (buffer.length < MIN_BUFFER_SIZE) || (buffer.length > MAX_POOLED_BUFFER_SIZE)) {
+            return;
+        }
+        
+        // Only pool buffers that exactly match a size class.
+        int sizeClass = getSizeClass(buffer.length);
+        if ((buffer.length == (MIN_BUFFER_SIZE << sizeClass)) && (_buffers[sizeClass] == null)) {
+            _buffers[sizeClass] = buffer;
+        }
+    }
+    
+    /**
+     * Allocate a new (unpooled) buffer of exactly <size> bytes, and count it as allocated.
+     * This is for buffers that escape (e.g. returned content).
+     * 
+     * @param size Length of the buffer
+     * @return new buffer
+     */
+    public byte[] allocate(int size) {
+        _bytesAllocated += size;
+        return new byte[size];
+    }
+    
+    /**
+     * Return total number of bytes allocated by this pool.
+     * 
+     * @return bytes allocated
+     */
+    public long getBytesAllocated() {
+        return _bytesAllocated;
+    }
+    
+    /**
+     * Return total number of bytes in buffers that were reused versus allocated.
+     * 
+     * @return bytes reused
+     */
+    public long getBytesReused() {
+        return _bytesReused;
+    }
+    
+    private static int getSizeClass(int size) {
+        int sizeClass = 0;
+        while ((MIN_BUFFER_SIZE << sizeClass) < size) {
+            sizeClass += 1;
+        }
+        
+        return sizeClass;
+    }
+}
@@ -0,0 +1,154 @@
+package bixo.utils;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Figure out the charset of fetched content from the raw bytes and headers, without
+ * decoding it first. In order, we check for:
+ *
+ * 1. A byte order mark
+ * 2. A charset in the Content-Type header
+ * 3. A <meta charset> or http-equiv Content-Type tag near the start of the content
+ *
+ * All charset names that get returned are canonical Java names, for charsets that are
+ * supported on this platform.
+ */
+public class CharsetUtils {
+
+    // What browsers use if nothing says what the charset is.
+    public static final String DEFAULT_CHARSET = "windows-1252";
+
+    // How far into the content we look for a <meta> tag with the charset (same as HTML5).
+    public static final int MAX_META_SCAN_LENGTH = 1024;
+
+    // Matches both <meta charset="x"> and <meta http-equiv="Content-Type" content="text/html; charset=x">
+    private static final Pattern META_CHARSET_PATTERN = Pattern.compile("<meta\\s[^>]*charset\\s*=\\s*[\"']?\\s*([a-z0-9_.:\\-]+)",
+                    Pattern.CASE_INSENSITIVE);
+
+    private static final byte[] UTF8_BOM = { (byte)0xEF, (byte)0xBB, (byte)0xBF };
+    private static final byte[] UTF16BE_BOM = { (byte)0xFE, (byte)0xFF };
+    private static final byte[] UTF16LE_BOM = { (byte)0xFF, (byte)0xFE };
+
+    /**
+     * Detect the charset of <content>.
+     *
+     * @param content Raw content
+     * @param length Number of valid bytes in <content>
+     * @param contentType Value of the Content-Type header (can be null)
+     * @return charset name, or null if nothing says what it is
+     */
+    public static String detectCharset(byte[] content, int length, String contentType) {
+        String result = getBomCharset(content, length);
+
+        if ((result == null) && (contentType != null)) {
+            result = clean(HttpUtils.getCharsetFromContentType(contentType));
+        }
+
+        if (result == null) {
+            result = getMetaCharset(content, length);
+        }
+
+        return result;
+    }
+
+    /**
+     * @return charset from the byte order mark at the start of <content>, or null
+     */
+    public static String getBomCharset(byte[] content, int length) {
+        if (startsWith(content, length, UTF8_BOM)) {
+            return "UTF-8";
+        } else if (startsWith(content, length, UTF16BE_BOM)) {
+            return "UTF-16BE";
+        } else if (startsWith(content, length, UTF16LE_BOM)) {
+            return "UTF-16LE";
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * @return charset from the first <meta> tag (in the first MAX_META_SCAN_LENGTH bytes)
+     * that has one, or null
+     */
+    public static String getMetaCharset(byte[] content, int length) {
+        String prefix;
+
+        try {
+            // Every byte maps to one char, so ASCII markup is intact whatever the real charset is.
+            prefix = new String(content, 0, Math.min(length, MAX_META_SCAN_LENGTH), "ISO-8859-1");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException("Impossible exception", e);
+        }
+
+        Matcher m = META_CHARSET_PATTERN.matcher(prefix);
+        if (!m.find()) {
+            return null;
+        }
+
+        String result = clean(m.group(1));
+
+        // If we could read the tag as ASCII, then it's not really UTF-16.
+        if ((result != null) && result.startsWith("UTF-16")) {
+            result = "UTF-8";
+        }
+
+        return result;
+    }
+
+    /**
+     * Return the canonical name for <charsetName>, or null if it's empty or not supported.
+     *
+     * @param charsetName Charset name from the content or headers
+     * @return canonical name, or null
+     */
+    public static String clean(String charsetName) {
+        if (charsetName == null) {
+            return null;
+        }
+
+        String name = charsetName.replaceAll("[\"']", "").trim();
+
+        if (name.length() == 0) {
+            return null;
+        }
+
+        try {
+            return Charset.isSupported(name) ? Charset.forName(name).name() : null;
+        } catch (IllegalCharsetNameException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Decode <length> bytes of <content> using <charsetName>. Malformed input is replaced,
+     * not reported.
+     *
+     * @param content Raw content
+     * @param length Number of valid bytes in <content>
+     * @param charsetName Charset to use
+     * @return decoded content, backed by an array
+     */
+    public static CharBuffer decode(byte[] content, int length, String charsetName) {
+        return Charset.forName(charsetName).decode(ByteBuffer.wrap(content, 0, length));
+    }
+
+    private static boolean startsWith(byte[] content, int length, byte[] prefix) {
+        if (length < prefix.length) {
+            return false;
+        }
+
+        for (int i = 0; i < prefix.length; i++) {
+            if (content[i] != prefix[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
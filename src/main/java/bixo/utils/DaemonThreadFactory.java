@@ -0,0 +1,24 @@
+package bixo.utils;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread factory for pools whose threads shouldn't keep the JVM from exiting. Threads
+ * are named <prefix>-1, <prefix>-2, etc, so they're easy to find in thread dumps.
+ */
+public class DaemonThreadFactory implements ThreadFactory {
+    private String _namePrefix;
+    private AtomicInteger _threadIndex = new AtomicInteger();
+
+    public DaemonThreadFactory(String namePrefix) {
+        _namePrefix = namePrefix;
+    }
+
+    @Override
+    public Thread newThread(Runnable r) {
+        Thread result = new Thread(r, _namePrefix + "-" + _threadIndex.incrementAndGet());
+        result.setDaemon(true);
+        return result;
+    }
+}
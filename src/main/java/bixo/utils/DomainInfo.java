@@ -1,6 +1,5 @@
 package bixo.utils;
 
-import java.net.InetAddress;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -8,6 +7,9 @@ import java.net.URL;
 import java.net.UnknownHostException;
 import java.util.regex.Pattern;
 
+import bixo.fetcher.BaseHostResolver;
+import bixo.fetcher.SimpleHostResolver;
+
 public class DomainInfo {
 
     private static final String TESTING_DOMAIN_PREFIX = "bixo-test-domain-";
@@ -20,11 +22,19 @@ public class DomainInfo {
         return TESTING_DOMAIN_PREFIX + index + ".com";
     }
     
+    public static boolean isTestingDomain(String domain) {
+        return TESTING_DOMAIN_PATTERN.matcher(domain).matches();
+    }
+    
     private String _protocolAndDomain;
     private String _domain;
     private String _hostAddress;
 
     public DomainInfo(String protocolAndDomain) throws UnknownHostException, MalformedURLException, URISyntaxException {
+        this(protocolAndDomain, new SimpleHostResolver());
+    }
+    
+    public DomainInfo(String protocolAndDomain, BaseHostResolver hostResolver) throws UnknownHostException, MalformedURLException, URISyntaxException {
         _protocolAndDomain = protocolAndDomain;
         URL url = new URL(protocolAndDomain);
 
@@ -33,10 +43,10 @@ public class DomainInfo {
         
         _domain = url.getHost();
         
-        if (TESTING_DOMAIN_PATTERN.matcher(_domain).matches()) {
+        if (isTestingDomain(_domain)) {
             _hostAddress = _domain;
         } else {
-            _hostAddress = InetAddress.getByName(_domain).getHostAddress();
+            _hostAddress = hostResolver.resolve(_domain).getHostAddress();
         }
     }
 
@@ -18,37 +18,80 @@
 package bixo.utils;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.Inflater;
 import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
 
 import org.apache.log4j.Logger;
 
 public class EncodingUtils {
     private static final Logger LOGGER = Logger.getLogger(EncodingUtils.class);
     
-    private static final int EXPECTED_GZIP_COMPRESSION_RATIO= 5;
-    private static final int EXPECTED_DEFLATE_COMPRESSION_RATIO= 5;
+    private static final int EXPECTED_COMPRESSION_RATIO= 5;
     private static final int BUF_SIZE= 4096;
     
+    public static final String GZIP_ENCODING = "gzip";
+    public static final String X_GZIP_ENCODING = "x-gzip";
+    public static final String DEFLATE_ENCODING = "deflate";
+    
+    /**
+     * InflaterInputStream doesn't release the native resources of an Inflater that
+     * it didn't create, so we do that on close.
+     */
+    private static class DeflateInputStream extends InflaterInputStream {
+        
+        public DeflateInputStream(InputStream in, boolean isRaw) {
+            super(in, new Inflater(isRaw), BUF_SIZE);
+        }
+        
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                inf.end();
+            }
+        }
+    }
+    
     public static class ExpandedResult {
         private byte[] _expanded;
+        private int _length;
         private boolean _isTruncated;
         
         public ExpandedResult(byte[] expanded, boolean isTruncated) {
+            this(expanded, expanded.length, isTruncated);
+        }
+
+        public ExpandedResult(byte[] expanded, int length, boolean isTruncated) {
             super();
             _expanded = expanded;
+            _length = length;
             _isTruncated = isTruncated;
         }
 
+        /**
+         * Return the expanded data. This can be longer than getLength(), if the
+         * result was created by one of the methods that avoid a final copy.
+         * 
+         * @return expanded data
+         */
         public byte[] getExpanded() {
             return _expanded;
         }
         
         public void setExpanded(byte[] expanded) {
             _expanded = expanded;
+            _length = expanded.length;
+        }
+        
+        public int getLength() {
+            return _length;
         }
         
         public boolean isTruncated() {
@@ -65,80 +108,163 @@ public class EncodingUtils {
     }
 
     public static ExpandedResult processGzipEncoded(byte[] compressed, int sizeLimit) throws IOException {
+        ExpandedResult result = processGzipEncoded(compressed, compressed.length, sizeLimit);
+        if (result.getLength() != result.getExpanded().length) {
+            byte[] expanded = new byte[result.getLength()];
+            System.arraycopy(result.getExpanded(), 0, expanded, 0, expanded.length);
+            result.setExpanded(expanded);
+        }
+        
+        return result;
+    }
 
-        ByteArrayOutputStream outStream =  new ByteArrayOutputStream(EXPECTED_GZIP_COMPRESSION_RATIO * compressed.length);
-        GZIPInputStream inStream = new GZIPInputStream (new ByteArrayInputStream(compressed));
+    /**
+     * Expand the first <length> bytes of <compressed>, up to <sizeLimit> bytes. The data is
+     * inflated directly into the result's buffer, which can be longer than the expanded data
+     * (see ExpandedResult.getLength()).
+     * 
+     * @param compressed gzipped data
+     * @param length number of valid bytes in <compressed>
+     * @param sizeLimit max number of bytes to expand
+     * @return expanded data (which might be truncated)
+     * @throws IOException
+     */
+    public static ExpandedResult processGzipEncoded(byte[] compressed, int length, int sizeLimit) throws IOException {
+        return processEncoded(compressed, length, GZIP_ENCODING, sizeLimit);
+    }
+
+    /**
+     * Decode the first <length> bytes of <encoded>, which uses <contentEncoding>, up to
+     * <sizeLimit> bytes. If the encoded data is cut off or corrupt, whatever was decoded
+     * before the problem is returned, and the result is flagged as truncated.
+     * 
+     * @param encoded encoded data
+     * @param length number of valid bytes in <encoded>
+     * @param contentEncoding one of the encodings supported by makeDecodingStream()
+     * @param sizeLimit max number of bytes to decode
+     * @return decoded data (which might be truncated)
+     * @throws IOException if the data can't be decoded at all
+     */
+    public static ExpandedResult processEncoded(byte[] encoded, int length, String contentEncoding, int sizeLimit) throws IOException {
+        BufferPool pool = BufferPool.get();
+        long expectedSize = Math.max(BUF_SIZE, (long)EXPECTED_COMPRESSION_RATIO * length);
+        byte[] expanded = pool.allocate((int)Math.min(sizeLimit, expectedSize));
+        InputStream inStream = makeDecodingStream(new ByteArrayInputStream(encoded, 0, length), contentEncoding);
 
         boolean isTruncated = false;
-        byte[] buf = new byte[BUF_SIZE];
         int written = 0;
-        while (true) {
-            try {
-                int size = inStream.read(buf);
-                if (size <= 0) {
-                    break;
+        try {
+            while (true) {
+                if (written == expanded.length) {
+                    if (written >= sizeLimit) {
+                        // See if there's anything more that we're dropping.
+                        isTruncated = inStream.read() != -1;
+                        break;
+                    }
+
+                    byte[] newExpanded = pool.allocate((int)Math.min(sizeLimit, 2L * expanded.length));
+                    System.arraycopy(expanded, 0, newExpanded, 0, written);
+                    expanded = newExpanded;
                 }
 
-                if ((written + size) > sizeLimit) {
-                    isTruncated = true;
-                    outStream.write(buf, 0, sizeLimit - written);
+                int size = inStream.read(expanded, written, expanded.length - written);
+                if (size <= 0) {
                     break;
                 }
 
-                outStream.write(buf, 0, size);
-                written+= size;
-            } catch (Exception e) {
-                LOGGER.trace("Exception unzipping content", e);
-                break;
+                written += size;
+            }
+        } catch (IOException e) {
+            if (!isDecodingException(e)) {
+                throw e;
             }
+            
+            LOGGER.trace("Exception decoding content", e);
+            isTruncated = true;
+        } finally {
+            IoUtils.safeClose(inStream);
         }
 
-        IoUtils.safeClose(outStream);
-        return new ExpandedResult(outStream.toByteArray(), isTruncated);
+        return new ExpandedResult(expanded, written, isTruncated);
     }
 
-    // TODO KKr The following routines are designed to support the deflate
-    // compression standard (RFC 1250) for HTTP 1.1 (RFC 2616). However,
-    // I was unable to verify that they really work correctly, so I've
-    // removed deflate from SimpleHttpFetcher.DEFAULT_ACCEPT_ENCODING.
-    
     public static byte[] processDeflateEncoded(byte[] content) throws IOException {
         return processDeflateEncoded(content, Integer.MAX_VALUE);
     }
 
     public static byte[] processDeflateEncoded(byte[] compressed, int sizeLimit) throws IOException {
-        ByteArrayOutputStream outStream = new ByteArrayOutputStream(EXPECTED_DEFLATE_COMPRESSION_RATIO * compressed.length);
+        ExpandedResult result = processEncoded(compressed, compressed.length, DEFLATE_ENCODING, sizeLimit);
+        byte[] expanded = new byte[result.getLength()];
+        System.arraycopy(result.getExpanded(), 0, expanded, 0, expanded.length);
+        return expanded;
+    }
 
-        // "true" because HTTP does not provide zlib headers
-        Inflater inflater = new Inflater(true);
-        InflaterInputStream inStream = new InflaterInputStream(new ByteArrayInputStream(compressed), inflater);
+    /**
+     * Return true if <contentEncoding> (the value of a Content-Encoding header, which might
+     * be null) is one that makeDecodingStream() knows how to decode.
+     * 
+     * @param contentEncoding content encoding, or null
+     * @return true if the content needs (and can be) decoded
+     */
+    public static boolean isSupportedEncoding(String contentEncoding) {
+        return GZIP_ENCODING.equals(contentEncoding)
+            || X_GZIP_ENCODING.equals(contentEncoding)
+            || DEFLATE_ENCODING.equals(contentEncoding);
+    }
 
-        byte[] buf = new byte[BUF_SIZE];
-        int written = 0;
-        while (true) {
-            try {
-                int size = inStream.read(buf);
-                if (size <= 0) {
-                    break;
-                }
-                
-                if ((written + size) > sizeLimit) {
-                    outStream.write(buf, 0, sizeLimit - written);
-                    break;
-                }
-                
-                outStream.write(buf, 0, size);
-                written += size;
-            } catch (Exception e) {
-                LOGGER.trace("Exception inflating content", e);
-                break;
-            }
+    /**
+     * Wrap <in> with a stream that decodes it as it's read. For "deflate" we handle both
+     * the zlib-wrapped format that RFC 2616 calls for, and the raw deflate data that some
+     * servers (following Explorer's lead) send instead - see
+     * http://www.zlib.net/zlib_faq.html#faq39. Unsupported encodings are passed through,
+     * and so is an empty body (e.g. from a server that sets Content-Encoding on every
+     * response), since there's nothing to decode.
+     * 
+     * @param in encoded stream
+     * @param contentEncoding value of the Content-Encoding header
+     * @return decoded stream
+     * @throws IOException if the stream doesn't start with a valid header
+     */
+    public static InputStream makeDecodingStream(InputStream in, String contentEncoding) throws IOException {
+        if (!isSupportedEncoding(contentEncoding)) {
+            return in;
         }
         
-        IoUtils.safeClose(outStream);
-        return outStream.toByteArray();
+        PushbackInputStream pushbackIn = new PushbackInputStream(in, 2);
+        byte[] header = new byte[2];
+        int headerLength = 0;
+        int bytesRead;
+        while ((headerLength < header.length) && ((bytesRead = pushbackIn.read(header, headerLength, header.length - headerLength)) != -1)) {
+            headerLength += bytesRead;
+        }
+        
+        if (headerLength == 0) {
+            return pushbackIn;
+        }
+        
+        pushbackIn.unread(header, 0, headerLength);
+        
+        if (DEFLATE_ENCODING.equals(contentEncoding)) {
+            boolean isZlib = (headerLength == header.length) && isZlibHeader(header[0] & 0xFF, header[1] & 0xFF);
+            return new DeflateInputStream(pushbackIn, !isZlib);
+        } else {
+            return new GZIPInputStream(pushbackIn, BUF_SIZE);
+        }
+    }
+    
+    /**
+     * Return true if <e> (thrown while reading from a stream returned by makeDecodingStream())
+     * means the encoded data was cut off or corrupt, versus a problem reading the data.
+     * 
+     * @param e exception thrown by read()
+     * @return true if it's a decoding problem
+     */
+    public static boolean isDecodingException(IOException e) {
+        return (e instanceof EOFException) || (e instanceof ZipException);
+    }
+    
+    private static boolean isZlibHeader(int cmf, int flg) {
+        // Compression method 8 (deflate), and the header check bits are valid.
+        return ((cmf & 0x0F) == 8) && ((((cmf << 8) | flg) % 31) == 0);
     }
-
-
-
 }
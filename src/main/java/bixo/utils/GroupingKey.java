@@ -37,6 +37,10 @@ public class GroupingKey {
         return key.startsWith(KEY_PREFIX);
     }
     
+    public static boolean isValidKey(String key) {
+        return GROUPING_KEY_PATTERN.matcher(key).matches();
+    }
+    
     public static String makeGroupingKey(String domain, long crawlDelay) {
         if (crawlDelay == BaseFetchJobPolicy.UNSET_CRAWL_DELAY) {
             return String.format("%s-%s", domain, UNSET_DURATION);
@@ -54,6 +58,23 @@ public class GroupingKey {
         return m.group(1);
     }
     
+    /**
+     * Return the server (IP address) for a fetch set's grouping ref. The same server can
+     * show up under more than one ref (with different crawl delays), so politeness that's
+     * per-server has to use this versus the ref. If <ref> isn't a regular grouping key
+     * (e.g. it came from a custom grouper), then the ref itself is returned.
+     * 
+     * @param ref Grouping ref
+     * @return server for the ref
+     */
+    public static String getServerFromRef(String ref) {
+        if (!isSpecialKey(ref) && isValidKey(ref)) {
+            return getDomainFromKey(ref);
+        } else {
+            return ref;
+        }
+    }
+    
     public static long getCrawlDelayFromKey(String key) {
         Matcher m = GROUPING_KEY_PATTERN.matcher(key);
         if (!m.matches()) {
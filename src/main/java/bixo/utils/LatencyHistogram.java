@@ -0,0 +1,114 @@
+package bixo.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread-safe histogram of times, using a fixed set of buckets (roughly 1-2-5 steps
+ * from 1ms up to 1 minute), so recording a time is just a bucket lookup and an
+ * atomic increment.
+ */
+public class LatencyHistogram {
+
+    // Upper bound (exclusive) of each bucket, in milliseconds. There's one more bucket
+    // for everything that's bigger than the last limit.
+    private static final long[] BUCKET_LIMITS = {
+        1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 20000, 60000
+    };
+    
+    private AtomicLongArray _counts;
+    private AtomicLong _totalTime;
+    
+    public LatencyHistogram() {
+        _counts = new AtomicLongArray(BUCKET_LIMITS.length + 1);
+        _totalTime = new AtomicLong();
+    }
+    
+    public void record(long time) {
+        int bucket = 0;
+        while ((bucket < BUCKET_LIMITS.length) && (time >= BUCKET_LIMITS[bucket])) {
+            bucket += 1;
+        }
+        
+        _counts.incrementAndGet(bucket);
+        _totalTime.addAndGet(time);
+    }
+    
+    public int getNumBuckets() {
+        return _counts.length();
+    }
+    
+    /**
+     * Return the upper bound (exclusive) of <bucket>, or Long.MAX_VALUE for the last bucket.
+     * 
+     * @param bucket Index of bucket
+     * @return time in milliseconds
+     */
+    public long getBucketLimit(int bucket) {
+        return bucket < BUCKET_LIMITS.length ? BUCKET_LIMITS[bucket] : Long.MAX_VALUE;
+    }
+    
+    public long getBucketCount(int bucket) {
+        return _counts.get(bucket);
+    }
+    
+    public long getCount() {
+        long result = 0;
+        for (int i = 0; i < _counts.length(); i++) {
+            result += _counts.get(i);
+        }
+        
+        return result;
+    }
+    
+    public long getTotalTime() {
+        return _totalTime.get();
+    }
+    
+    /**
+     * Return the upper bound of the bucket that contains the <percentile> value,
+     * or 0 if nothing has been recorded.
+     * 
+     * @param percentile Value from 0 to 100
+     * @return time in milliseconds
+     */
+    public long getPercentile(double percentile) {
+        long count = getCount();
+        if (count == 0) {
+            return 0;
+        }
+        
+        long target = (long)Math.ceil(count * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < _counts.length(); i++) {
+            seen += _counts.get(i);
+            if (seen >= Math.max(1, target)) {
+                return getBucketLimit(i);
+            }
+        }
+        
+        return getBucketLimit(_counts.length() - 1);
+    }
+    
+    @Override
+    public String toString() {
+        long count = getCount();
+        StringBuilder result = new StringBuilder();
+        result.append(String.format("count=%d, mean=%dms, p50<%s, p90<%s, p99<%s", count,
+                        count == 0 ? 0 : getTotalTime() / count,
+                        formatLimit(getPercentile(50)), formatLimit(getPercentile(90)), formatLimit(getPercentile(99))));
+        
+        for (int i = 0; i < _counts.length(); i++) {
+            long bucketCount = _counts.get(i);
+            if (bucketCount > 0) {
+                result.append(String.format("; <%s: %d", formatLimit(getBucketLimit(i)), bucketCount));
+            }
+        }
+        
+        return result.toString();
+    }
+    
+    private static String formatLimit(long limit) {
+        return limit == Long.MAX_VALUE ? "inf" : limit + "ms";
+    }
+}
@@ -0,0 +1,129 @@
+package bixo.utils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Support for state that's kept in a directory of part files, across crawl loops.
+ *
+ * Each task that changes the state writes a new part file when it's done, so tasks never
+ * have to coordinate. Readers load every part file, and the owner merges them into one
+ * file (compacts) between crawls. Part files are written under a temp name and then
+ * renamed, so nobody ever reads a partial file.
+ */
+public class PartFileUtils {
+
+    private static final String PART_FILE_PREFIX = "part-";
+    private static final String TEMP_FILE_PREFIX = "_temp-";
+
+    public interface PartFileWriter {
+        void write(DataOutput out) throws IOException;
+    }
+
+    public interface PartFileReader {
+        void read(DataInput in) throws IOException;
+    }
+
+    /**
+     * Return all of the (complete) part files in <dirPath>, or an empty list if the
+     * directory doesn't exist yet.
+     *
+     * @param fs File system for <dirPath>
+     * @param dirPath Directory with the part files
+     * @return paths of the part files
+     * @throws IOException
+     */
+    public static List<Path> listPartFiles(FileSystem fs, Path dirPath) throws IOException {
+        List<Path> result = new ArrayList<Path>();
+        if (!fs.exists(dirPath)) {
+            return result;
+        }
+
+        FileStatus[] files = fs.listStatus(dirPath);
+        if (files != null) {
+            for (FileStatus file : files) {
+                if (!file.isDir() && file.getPath().getName().startsWith(PART_FILE_PREFIX)) {
+                    result.add(file.getPath());
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Call <reader> once for each of the part files in <partPaths>.
+     *
+     * @param fs File system for the part files
+     * @param partPaths Part files, from listPartFiles()
+     * @param reader Reader for the file format
+     * @throws IOException
+     */
+    public static void readPartFiles(FileSystem fs, List<Path> partPaths, PartFileReader reader) throws IOException {
+        for (Path partPath : partPaths) {
+            FSDataInputStream in = fs.open(partPath);
+
+            try {
+                reader.read(in);
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * Write a new part file in <dirPath>, using <writer>.
+     *
+     * @param fs File system for <dirPath>
+     * @param dirPath Directory with the part files
+     * @param writer Writer for the file format
+     * @return path of the new part file
+     * @throws IOException
+     */
+    public static Path writePartFile(FileSystem fs, Path dirPath, PartFileWriter writer) throws IOException {
+        String uniqueName = System.currentTimeMillis() + "-" + UUID.randomUUID();
+        Path tempPath = new Path(dirPath, TEMP_FILE_PREFIX + uniqueName);
+        FSDataOutputStream out = fs.create(tempPath, true);
+
+        try {
+            writer.write(out);
+        } finally {
+            out.close();
+        }
+
+        Path result = new Path(dirPath, PART_FILE_PREFIX + uniqueName);
+        if (!fs.rename(tempPath, result)) {
+            throw new IOException("Can't rename part file " + tempPath);
+        }
+
+        return result;
+    }
+
+    /**
+     * Replace the part files in <partPaths> with one new part file, written by <writer>
+     * (which normally has the merged contents of the old files). This must not be called
+     * while anybody else is using the directory.
+     *
+     * @param fs File system for <dirPath>
+     * @param dirPath Directory with the part files
+     * @param partPaths Part files to replace, from listPartFiles()
+     * @param writer Writer for the file format
+     * @throws IOException
+     */
+    public static void replacePartFiles(FileSystem fs, Path dirPath, List<Path> partPaths, PartFileWriter writer) throws IOException {
+        writePartFile(fs, dirPath, writer);
+        for (Path partPath : partPaths) {
+            fs.delete(partPath, false);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package bixo.utils;
+
+import java.security.InvalidParameterException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An executor with a fixed number of threads and a bounded queue of waiting tasks.
+ * 
+ * Unlike ThreadedExecutor, execute() returns immediately as long as there's room
+ * in the queue, so the caller isn't stalled every time all of the threads are busy.
+ * Once the queue is full, execute() blocks (for up to the request timeout) until a
+ * slot frees up, which applies backpressure to the caller. The queue depth controls
+ * the trade-off - a deeper queue means less time blocked in execute(), but more tasks
+ * that have been handed off but aren't running yet.
+ *
+ */
+public class QueuedExecutor extends BaseExecutor {
+    
+    /**
+     * Wait for up to the request timeout when offer() is called and the queue is full.
+     *
+     * @param <E> element stored in queue
+     */
+    @SuppressWarnings("serial")
+    private class MyBlockingQueue<E> extends ArrayBlockingQueue<E> {
+
+        public MyBlockingQueue(int capacity) {
+            super(capacity, true);
+        }
+
+        @Override
+        public boolean offer(E element) {
+            try {
+                return offer(element, _requestTimeout, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+
+    private long _requestTimeout;
+    private ThreadPoolExecutor _pool;
+    
+    public QueuedExecutor(int maxThreads, int queueDepth, long requestTimeout) {
+        if (queueDepth < 1) {
+            throw new InvalidParameterException("Queue depth must be at least one: " + queueDepth);
+        }
+        
+        _requestTimeout = requestTimeout;
+        
+        // As with ThreadedExecutor, core and max pool sizes need to be the same, since
+        // extra threads only get created when the queue rejects an offer.
+        _pool = new ThreadPoolExecutor(maxThreads, maxThreads, MAX_POLL_TIME, TimeUnit.MILLISECONDS, new MyBlockingQueue<Runnable>(queueDepth));
+    }
+    
+    @Override
+    public void execute(Runnable command) throws RejectedExecutionException {
+        _pool.execute(command);
+    }
+    
+    @Override
+    public int getActiveCount() {
+        return _pool.getActiveCount();
+    }
+    
+    /**
+     * Return number of tasks waiting for a thread.
+     * 
+     * @return count of queued tasks
+     */
+    public int getQueuedCount() {
+        return _pool.getQueue().size();
+    }
+    
+    @Override
+    public boolean terminate(long terminationTimeout) throws InterruptedException {
+        // First wait for running and queued tasks to complete naturally.
+        _pool.shutdown();
+        if (_pool.awaitTermination(terminationTimeout, TimeUnit.MILLISECONDS)) {
+            return true;
+        }
+        
+        // We need to do a hard shutdown. Tasks that never got a thread still need
+        // to be run (interrupted), so they can clean up.
+        List<Runnable> remainingTasks = _pool.shutdownNow();
+        interruptTasks(remainingTasks);
+        return false;
+    }
+}
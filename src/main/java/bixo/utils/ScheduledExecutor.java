@@ -0,0 +1,195 @@
+package bixo.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * An executor that can also run a task at some point in the future, without tying
+ * up a thread while it waits. Delayed tasks sit in a TimerWheel, and are handed off
+ * to the wrapped executor when they expire.
+ * 
+ * This is what lets a fetch task release its thread between requests to the same
+ * server, versus sleeping through the crawl delay.
+ *
+ */
+public class ScheduledExecutor extends BaseExecutor {
+
+    // How long to wait before retrying a delayed task that the executor rejected.
+    private static final long RETRY_DELAY = 100L;
+    
+    /**
+     * Wrapper that lets us know when a task has completed, so we can tell when
+     * there's no more work (a running task can schedule more of it).
+     */
+    private class TrackedTask implements Runnable {
+        private Runnable _command;
+        
+        public TrackedTask(Runnable command) {
+            _command = command;
+        }
+        
+        @Override
+        public void run() {
+            try {
+                _command.run();
+            } finally {
+                taskDone();
+            }
+        }
+    }
+    
+    private class DelayedTask implements Runnable {
+        private TrackedTask _task;
+        
+        public DelayedTask(TrackedTask task) {
+            _task = task;
+        }
+        
+        @Override
+        public void run() {
+            try {
+                _executor.execute(_task);
+            } catch (RejectedExecutionException e) {
+                // Executor is saturated, so try again a bit later (unless we're being
+                // terminated, in which case the task needs to clean up).
+                synchronized (ScheduledExecutor.this) {
+                    if (!_stopped) {
+                        _wheel.schedule(this, RETRY_DELAY);
+                        return;
+                    }
+                }
+                
+                interruptTasks(Collections.<Runnable>singletonList(_task));
+            }
+        }
+    }
+    
+    private BaseExecutor _executor;
+    private TimerWheel _wheel;
+    
+    // Number of tasks that haven't completed (running, or waiting for their delay to
+    // expire), and the latest time that any of them is due.
+    private int _numTasks;
+    private long _lastDueTime;
+    private boolean _stopped;
+    
+    public ScheduledExecutor(BaseExecutor executor) {
+        _executor = executor;
+        _wheel = new TimerWheel();
+        _numTasks = 0;
+        _lastDueTime = 0;
+        _stopped = false;
+    }
+    
+    @Override
+    public void execute(Runnable command) throws RejectedExecutionException {
+        TrackedTask task = new TrackedTask(command);
+        taskAdded(0);
+        
+        try {
+            _executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            taskDone();
+            throw e;
+        }
+    }
+    
+    /**
+     * Execute <command> once <delay> milliseconds have elapsed. If we've already been
+     * (hard) terminated, the command is run immediately with the interrupted flag set.
+     * 
+     * Note that the hand-off happens on the timer wheel's thread, so an executor that
+     * blocks in execute() when it's busy (e.g. ThreadedExecutor) will delay every other
+     * scheduled task as well.
+     * 
+     * @param command
+     * @param delay Time to wait, in milliseconds
+     */
+    public void execute(Runnable command, long delay) {
+        TrackedTask task = new TrackedTask(command);
+        
+        synchronized (this) {
+            if (!_stopped) {
+                taskAdded(delay);
+                _wheel.schedule(new DelayedTask(task), delay);
+                return;
+            }
+        }
+        
+        boolean wasInterrupted = Thread.currentThread().isInterrupted();
+        taskAdded(0);
+        interruptTasks(Collections.<Runnable>singletonList(task));
+        if (wasInterrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    @Override
+    public int getActiveCount() {
+        return _executor.getActiveCount();
+    }
+    
+    /**
+     * Return number of tasks waiting for their delay to expire.
+     * 
+     * @return count of delayed tasks
+     */
+    public int getDelayedCount() {
+        return _wheel.size();
+    }
+    
+    /**
+     * Terminate the executor. Since running tasks can schedule more work (e.g. the
+     * next request to the same server), we wait until every task has completed. The
+     * termination timeout is measured from when the last task is due, so we only do
+     * a hard shutdown if nothing new is scheduled for that long.
+     * 
+     * @return true if we did a normal termination, false if we had to do a hard shutdown
+     * @throws InterruptedException
+     */
+    @Override
+    public boolean terminate(long terminationTimeout) throws InterruptedException {
+        boolean normalTermination = true;
+        List<Runnable> remainingTasks = new ArrayList<Runnable>();
+        
+        synchronized (this) {
+            _lastDueTime = Math.max(_lastDueTime, System.currentTimeMillis());
+            while (_numTasks > 0) {
+                long waitTime = (_lastDueTime + terminationTimeout) - System.currentTimeMillis();
+                if (waitTime <= 0) {
+                    normalTermination = false;
+                    break;
+                }
+                
+                wait(waitTime);
+            }
+            
+            _stopped = true;
+            for (Runnable delayedTask : _wheel.stop()) {
+                remainingTasks.add(((DelayedTask)delayedTask)._task);
+            }
+        }
+        
+        // Run anything that's still waiting with the interrupted flag set, so it can
+        // dispose of its work.
+        interruptTasks(remainingTasks);
+        
+        if (!_executor.terminate(terminationTimeout)) {
+            normalTermination = false;
+        }
+        
+        return normalTermination;
+    }
+    
+    private synchronized void taskAdded(long delay) {
+        _numTasks += 1;
+        _lastDueTime = Math.max(_lastDueTime, System.currentTimeMillis() + delay);
+    }
+    
+    private synchronized void taskDone() {
+        _numTasks -= 1;
+        notifyAll();
+    }
+}
@@ -13,9 +13,7 @@ import java.util.concurrent.TimeUnit;
  * specified timeout is exceeded (no threads finish up in that amount of time).
  *
  */
-public class ThreadedExecutor {
-    
-    public static final long MAX_POLL_TIME = 1000L;
+public class ThreadedExecutor extends BaseExecutor {
     
     /**
      * Always wait for some time when offer() is called. This gives any
@@ -67,6 +65,7 @@ public class ThreadedExecutor {
      * @param command
      * @throws RejectedExecutionException
      */
+    @Override
     public void execute(Runnable command) throws RejectedExecutionException {
         _pool.execute(command);
     }
@@ -77,6 +76,7 @@ public class ThreadedExecutor {
      * 
      * @return count of active threads
      */
+    @Override
     public int getActiveCount() {
         return _pool.getActiveCount();
     }
@@ -87,6 +87,7 @@ public class ThreadedExecutor {
      * @return true if we did a normal termination, false if we had to do a hard shutdown
      * @throws InterruptedException 
      */
+    @Override
     public boolean terminate(long terminationTimeout) throws InterruptedException {
         
         // First just wait for threads to terminate naturally.
@@ -0,0 +1,186 @@
+package bixo.utils;
+
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A hashed timer wheel, for running large numbers of short tasks after a delay
+ * without holding a thread per task.
+ * 
+ * Time is divided into ticks, and each scheduled task goes into the bucket for the
+ * tick when it expires (modulo the number of buckets). A single daemon thread wakes
+ * up once per tick, and runs the tasks in the current bucket that have expired. Tasks
+ * run on the wheel's thread, so they should be quick (e.g. hand off work to an
+ * executor). Scheduling resolution is one tick.
+ *
+ */
+public class TimerWheel {
+    private static final Logger LOGGER = Logger.getLogger(TimerWheel.class);
+
+    public static final long DEFAULT_TICK_DURATION = 10;
+    public static final int DEFAULT_NUM_BUCKETS = 512;
+    
+    private static class Timeout {
+        private Runnable _task;
+        private long _deadline;
+        
+        public Timeout(Runnable task, long deadline) {
+            _task = task;
+            _deadline = deadline;
+        }
+    }
+    
+    private long _tickDuration;
+    private List<LinkedList<Timeout>> _buckets;
+    private long _startTime;
+    private long _tick;
+    private int _size;
+    private boolean _stopped;
+    private Thread _thread;
+    
+    public TimerWheel() {
+        this(DEFAULT_TICK_DURATION, DEFAULT_NUM_BUCKETS);
+    }
+    
+    public TimerWheel(long tickDuration, int numBuckets) {
+        if ((tickDuration < 1) || (numBuckets < 1)) {
+            throw new InvalidParameterException("Tick duration and number of buckets must be > 0");
+        }
+        
+        _tickDuration = tickDuration;
+        _buckets = new ArrayList<LinkedList<Timeout>>(numBuckets);
+        for (int i = 0; i < numBuckets; i++) {
+            _buckets.add(new LinkedList<Timeout>());
+        }
+        
+        _startTime = System.currentTimeMillis();
+        _tick = 0;
+        _size = 0;
+        _stopped = false;
+        
+        _thread = new Thread(new Runnable() {
+            
+            @Override
+            public void run() {
+                runWheel();
+            }
+        }, "TimerWheel");
+        
+        _thread.setDaemon(true);
+        _thread.start();
+    }
+    
+    /**
+     * Run <task> on the wheel's thread once <delay> milliseconds have elapsed.
+     * 
+     * @param task Task to run (quickly)
+     * @param delay Time to wait, in milliseconds
+     */
+    public synchronized void schedule(Runnable task, long delay) {
+        if (_stopped) {
+            throw new IllegalStateException("Timer wheel has been stopped");
+        }
+        
+        long deadline = System.currentTimeMillis() + Math.max(0, delay);
+        
+        // Never schedule into the bucket we've already processed (or are processing).
+        long tick = Math.max(_tick + 1, (deadline - _startTime + _tickDuration - 1) / _tickDuration);
+        _buckets.get((int)(tick % _buckets.size())).add(new Timeout(task, deadline));
+        _size += 1;
+    }
+    
+    /**
+     * Return number of tasks waiting to be run.
+     * 
+     * @return count of scheduled tasks
+     */
+    public synchronized int size() {
+        return _size;
+    }
+    
+    /**
+     * Stop the wheel, and return the tasks that haven't been run.
+     * 
+     * @return tasks that were still scheduled
+     */
+    public List<Runnable> stop() {
+        List<Runnable> result = new ArrayList<Runnable>();
+        
+        synchronized (this) {
+            _stopped = true;
+            
+            for (LinkedList<Timeout> bucket : _buckets) {
+                for (Timeout timeout : bucket) {
+                    result.add(timeout._task);
+                }
+                
+                bucket.clear();
+            }
+            
+            _size = 0;
+        }
+        
+        _thread.interrupt();
+        return result;
+    }
+    
+    private void runWheel() {
+        List<Runnable> expired = new ArrayList<Runnable>();
+        
+        while (true) {
+            try {
+                long nextTickTime;
+                synchronized (this) {
+                    if (_stopped) {
+                        return;
+                    }
+                    
+                    nextTickTime = _startTime + ((_tick + 1) * _tickDuration);
+                }
+                
+                long sleepTime = nextTickTime - System.currentTimeMillis();
+                if (sleepTime > 0) {
+                    Thread.sleep(sleepTime);
+                }
+            } catch (InterruptedException e) {
+                // We get interrupted by stop()
+                return;
+            }
+            
+            synchronized (this) {
+                if (_stopped) {
+                    return;
+                }
+                
+                _tick += 1;
+                long now = System.currentTimeMillis();
+                Iterator<Timeout> iter = _buckets.get((int)(_tick % _buckets.size())).iterator();
+                while (iter.hasNext()) {
+                    Timeout timeout = iter.next();
+                    
+                    // Tasks further out than one rotation stay in the bucket.
+                    if (timeout._deadline <= now) {
+                        iter.remove();
+                        _size -= 1;
+                        expired.add(timeout._task);
+                    }
+                }
+            }
+            
+            for (Runnable task : expired) {
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    LOGGER.error("Exception running timer task", t);
+                }
+            }
+            
+            expired.clear();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package bixo.utils;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An executor that runs each task in its own virtual thread, for JVMs that support
+ * them (Java 21+). We use reflection to create the underlying executor, since Bixo
+ * is still built for older JVMs.
+ * 
+ * Virtual threads are cheap, so <maxThreads> can be much larger than with a platform
+ * thread pool - but it's still enforced (via a semaphore), since it's also the limit on
+ * the number of simultaneous connections. As with ThreadedExecutor, execute() blocks for
+ * up to the request timeout waiting for a free slot, then throws RejectedExecutionException.
+ *
+ */
+public class VirtualThreadExecutor extends BaseExecutor {
+    
+    private static final String FACTORY_METHOD_NAME = "newVirtualThreadPerTaskExecutor";
+    
+    private int _maxThreads;
+    private long _requestTimeout;
+    private Semaphore _permits;
+    private ExecutorService _pool;
+    
+    public VirtualThreadExecutor(int maxThreads, long requestTimeout) {
+        _maxThreads = maxThreads;
+        _requestTimeout = requestTimeout;
+        _permits = new Semaphore(maxThreads, true);
+        
+        try {
+            Method factory = Executors.class.getMethod(FACTORY_METHOD_NAME);
+            _pool = (ExecutorService)factory.invoke(null);
+        } catch (Exception e) {
+            throw new UnsupportedOperationException("Virtual threads aren't supported by this JVM", e);
+        }
+    }
+    
+    /**
+     * Return true if the current JVM can run virtual threads.
+     * 
+     * @return true if supported
+     */
+    public static boolean isSupported() {
+        try {
+            Executors.class.getMethod(FACTORY_METHOD_NAME);
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+    
+    @Override
+    public void execute(final Runnable command) throws RejectedExecutionException {
+        try {
+            if (!_permits.tryAcquire(_requestTimeout, TimeUnit.MILLISECONDS)) {
+                throw new RejectedExecutionException("No free thread after " + _requestTimeout + "ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting for a free thread");
+        }
+        
+        try {
+            _pool.execute(new Runnable() {
+                
+                @Override
+                public void run() {
+                    try {
+                        command.run();
+                    } finally {
+                        _permits.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            _permits.release();
+            throw e;
+        }
+    }
+    
+    @Override
+    public int getActiveCount() {
+        return _maxThreads - _permits.availablePermits();
+    }
+    
+    @Override
+    public boolean terminate(long terminationTimeout) throws InterruptedException {
+        _pool.shutdown();
+        if (_pool.awaitTermination(terminationTimeout, TimeUnit.MILLISECONDS)) {
+            return true;
+        }
+        
+        // Every task gets its own thread as soon as it's accepted, so there shouldn't be
+        // anything that hasn't been started, but we'll play it safe.
+        List<Runnable> remainingTasks = _pool.shutdownNow();
+        interruptTasks(remainingTasks);
+        return false;
+    }
+}
@@ -10,6 +10,7 @@ import org.junit.Test;
 
 import bixo.config.BaseFetchJobPolicy.FetchSetInfo;
 import bixo.datum.ScoredUrlDatum;
+import bixo.datum.UrlStatus;
 
 public class DefaultFetchJobPolicyTest {
 
@@ -88,4 +89,27 @@ public class DefaultFetchJobPolicyTest {
         }
     }
     
+    @Test
+    public void testValueSortKey() throws Exception {
+        BaseFetchJobPolicy policy = new DefaultFetchJobPolicy(1, 100, BaseFetchJobPolicy.DEFAULT_CRAWL_DELAY);
+        policy.setOrderingMode(BaseFetchJobPolicy.OrderingMode.VALUE);
+        
+        // Slow server with high scores.
+        policy.startFetchSet("slow", 10000);
+        long slowKey = policy.nextFetchSet(new ScoredUrlDatum("http://slow.com/1", "slow", UrlStatus.UNFETCHED, 2.0)).getSortKey();
+        
+        // Same scores per millisecond of crawl delay still have to increase for one server.
+        long slowKey2 = policy.nextFetchSet(new ScoredUrlDatum("http://slow.com/2", "slow", UrlStatus.UNFETCHED, 2.0)).getSortKey();
+        assertTrue(slowKey2 > slowKey);
+        
+        // Fast server with lower scores is worth more per millisecond.
+        policy.startFetchSet("fast", 1000);
+        long fastKey = policy.nextFetchSet(new ScoredUrlDatum("http://fast.com/1", "fast", UrlStatus.UNFETCHED, 0.5)).getSortKey();
+        assertTrue(fastKey < slowKey);
+        
+        // Zero (or negative) scores sort last.
+        long zeroKey = policy.nextFetchSet(new ScoredUrlDatum("http://fast.com/2", "fast", UrlStatus.UNFETCHED, -1.0)).getSortKey();
+        assertTrue(zeroKey > slowKey2);
+    }
+    
 }
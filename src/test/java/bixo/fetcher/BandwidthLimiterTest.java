@@ -0,0 +1,122 @@
+package bixo.fetcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import bixo.config.FetcherPolicy;
+
+public class BandwidthLimiterTest {
+
+    @Test
+    public void testNoLimit() {
+        BandwidthLimiter limiter = new BandwidthLimiter();
+        assertFalse(limiter.isLimited());
+
+        for (int i = 0; i < 100; i++) {
+            assertEquals(0, limiter.consume(1024 * 1024));
+        }
+
+        assertEquals(100L * 1024 * 1024, limiter.getTotalBytes());
+    }
+
+    @Test
+    public void testLimit() {
+        BandwidthLimiter limiter = new BandwidthLimiter(100 * 1000);
+        assertTrue(limiter.isLimited());
+
+        // Bucket starts out empty, so 50K takes ~500ms.
+        long startTime = System.currentTimeMillis();
+        long waitTime = 0;
+        for (int i = 0; i < 10; i++) {
+            waitTime += limiter.consume(5 * 1000);
+        }
+
+        long deltaTime = System.currentTimeMillis() - startTime;
+        assertTrue("Delta time: " + deltaTime, deltaTime >= 450);
+        assertTrue("Delta time: " + deltaTime, deltaTime < 1000);
+        assertTrue("Wait time: " + waitTime, waitTime >= 400);
+    }
+
+    @Test
+    public void testChangingRate() {
+        BandwidthLimiter limiter = new BandwidthLimiter(10 * 1000);
+        limiter.setMaxBytesPerSecond(FetcherPolicy.NO_MAX_BANDWIDTH);
+        assertEquals(0, limiter.consume(100 * 1000));
+
+        limiter.setMaxBytesPerSecond(100 * 1000);
+        long startTime = System.currentTimeMillis();
+        limiter.consume(20 * 1000);
+        long deltaTime = System.currentTimeMillis() - startTime;
+        assertTrue("Delta time: " + deltaTime, deltaTime >= 150);
+    }
+
+    @Test
+    public void testReserve() {
+        BandwidthLimiter limiter = new BandwidthLimiter(100 * 1000);
+
+        // Bucket starts out empty, so each reservation adds to the debt without waiting.
+        long startTime = System.currentTimeMillis();
+        long waitTime = limiter.reserve(10 * 1000);
+        assertTrue("Wait time: " + waitTime, (waitTime >= 90) && (waitTime <= 100));
+        waitTime = limiter.reserve(10 * 1000);
+        assertTrue("Wait time: " + waitTime, (waitTime >= 190) && (waitTime <= 200));
+        assertTrue(System.currentTimeMillis() - startTime < 50);
+        assertEquals(20 * 1000L, limiter.getTotalBytes());
+
+        // No limit means no waiting, but bytes still get counted.
+        limiter.setMaxBytesPerSecond(FetcherPolicy.NO_MAX_BANDWIDTH);
+        assertEquals(0, limiter.reserve(100 * 1000));
+        assertEquals(120 * 1000L, limiter.getTotalBytes());
+    }
+
+    @Test
+    public void testFairShare() throws Exception {
+        final BandwidthLimiter limiter = new BandwidthLimiter(200 * 1000);
+        final long endTime = System.currentTimeMillis() + 1000;
+
+        List<Thread> threads = new ArrayList<Thread>();
+        final List<AtomicLong> bytesRead = new ArrayList<AtomicLong>();
+        for (int i = 0; i < 4; i++) {
+            final AtomicLong count = new AtomicLong();
+            bytesRead.add(count);
+
+            Thread t = new Thread() {
+
+                @Override
+                public void run() {
+                    while (System.currentTimeMillis() < endTime) {
+                        limiter.consume(1000);
+                        count.addAndGet(1000);
+                    }
+                }
+            };
+
+            threads.add(t);
+            t.start();
+        }
+
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        long total = 0;
+        long min = Long.MAX_VALUE;
+        long max = 0;
+        for (AtomicLong count : bytesRead) {
+            total += count.get();
+            min = Math.min(min, count.get());
+            max = Math.max(max, count.get());
+        }
+
+        // Total is close to the target, and each thread gets about the same share.
+        assertTrue("Total: " + total, (total >= 150 * 1000) && (total <= 260 * 1000));
+        assertTrue("Min: " + min + ", max: " + max, max - min <= 10 * 1000);
+    }
+}
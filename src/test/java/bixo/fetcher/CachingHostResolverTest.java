@@ -0,0 +1,242 @@
+package bixo.fetcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class CachingHostResolverTest {
+
+    @SuppressWarnings("serial")
+    private static class CountingResolver extends CachingHostResolver {
+        private AtomicInteger _numLookups = new AtomicInteger();
+        
+        public CountingResolver(int maxEntries, long ttl, long negativeTtl) {
+            super(maxEntries, ttl, negativeTtl, 2);
+        }
+        
+        @Override
+        protected InetAddress lookup(String host) throws UnknownHostException {
+            _numLookups.incrementAndGet();
+            
+            if (host.startsWith("unknown")) {
+                throw new UnknownHostException(host);
+            } else if (host.startsWith("slow")) {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            
+            return InetAddress.getByAddress(host, new byte[] {10, 0, 0, 1});
+        }
+        
+        public int getNumLookups() {
+            return _numLookups.get();
+        }
+    }
+    
+    @Test
+    public void testCaching() throws Exception {
+        CountingResolver resolver = new CountingResolver(100, 100000, 100000);
+        
+        assertEquals("10.0.0.1", resolver.resolve("domain.com").getHostAddress());
+        assertEquals("10.0.0.1", resolver.resolve("domain.com").getHostAddress());
+        assertEquals(1, resolver.getNumLookups());
+    }
+    
+    @Test
+    public void testExpiration() throws Exception {
+        CountingResolver resolver = new CountingResolver(100, 50, 100000);
+        
+        resolver.resolve("domain.com");
+        Thread.sleep(100);
+        resolver.resolve("domain.com");
+        assertEquals(2, resolver.getNumLookups());
+    }
+    
+    @Test
+    public void testNegativeCaching() throws Exception {
+        CountingResolver resolver = new CountingResolver(100, 100000, 50);
+        
+        for (int i = 0; i < 2; i++) {
+            try {
+                resolver.resolve("unknown.com");
+                fail("Should have thrown exception");
+            } catch (UnknownHostException e) {
+                // expected
+            }
+        }
+        
+        assertEquals(1, resolver.getNumLookups());
+        
+        Thread.sleep(100);
+        
+        try {
+            resolver.resolve("unknown.com");
+            fail("Should have thrown exception");
+        } catch (UnknownHostException e) {
+            // expected
+        }
+        
+        assertEquals(2, resolver.getNumLookups());
+    }
+    
+    @Test
+    public void testMaxEntries() throws Exception {
+        CountingResolver resolver = new CountingResolver(2, 100000, 100000);
+        
+        resolver.resolve("domain1.com");
+        resolver.resolve("domain2.com");
+        resolver.resolve("domain1.com");
+        resolver.resolve("domain3.com");
+        assertEquals(2, resolver.size());
+        assertEquals(3, resolver.getNumLookups());
+        
+        // domain2.com was least recently used, so it should have been dropped.
+        resolver.resolve("domain1.com");
+        assertEquals(3, resolver.getNumLookups());
+        resolver.resolve("domain2.com");
+        assertEquals(4, resolver.getNumLookups());
+    }
+    
+    @Test
+    public void testAddAddress() throws Exception {
+        CountingResolver resolver = new CountingResolver(100, 100000, 100000);
+        
+        resolver.addAddress("domain.com", "192.168.1.1");
+        InetAddress address = resolver.resolve("domain.com");
+        assertEquals("192.168.1.1", address.getHostAddress());
+        assertEquals("domain.com", address.getHostName());
+        assertEquals(0, resolver.getNumLookups());
+        
+        // Not an address, so we shouldn't use it.
+        resolver.addAddress("other.com", "domain.com");
+        assertEquals("10.0.0.1", resolver.resolve("other.com").getHostAddress());
+        assertEquals(1, resolver.getNumLookups());
+    }
+    
+    @Test
+    public void testPrefetch() throws Exception {
+        CountingResolver resolver = new CountingResolver(100, 100000, 100000);
+        
+        for (int i = 0; i < 10; i++) {
+            resolver.prefetch("domain-" + i + ".com");
+        }
+        
+        long endTime = System.currentTimeMillis() + 1000;
+        while ((resolver.size() < 10) && (System.currentTimeMillis() < endTime)) {
+            Thread.sleep(10);
+        }
+        
+        assertEquals(10, resolver.size());
+        for (int i = 0; i < 10; i++) {
+            resolver.resolve("domain-" + i + ".com");
+        }
+        
+        assertEquals(10, resolver.getNumLookups());
+        resolver.shutdown();
+    }
+    
+    @Test
+    public void testConcurrentResolves() throws Exception {
+        final CountingResolver resolver = new CountingResolver(100, 100000, 100000);
+        
+        Thread[] threads = new Thread[10];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                
+                @Override
+                public void run() {
+                    try {
+                        resolver.resolve("slow.com");
+                    } catch (UnknownHostException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            
+            threads[i].start();
+        }
+        
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        
+        // Everybody should have waited on the first lookup.
+        assertEquals(1, resolver.getNumLookups());
+    }
+
+    @Test
+    public void testResolveAsync() throws Exception {
+        CountingResolver resolver = new CountingResolver(100, 100000, 100000);
+        
+        final CountDownLatch latch = new CountDownLatch(2);
+        final AtomicReference<InetAddress> address = new AtomicReference<InetAddress>();
+        final AtomicReference<UnknownHostException> exception = new AtomicReference<UnknownHostException>();
+        
+        long startTime = System.currentTimeMillis();
+        resolver.resolveAsync("slow.com", new BaseHostResolver.ResolveCallback() {
+            
+            @Override
+            public void resolved(InetAddress result) {
+                address.set(result);
+                latch.countDown();
+            }
+            
+            @Override
+            public void failed(UnknownHostException e) {
+                latch.countDown();
+            }
+        });
+        
+        resolver.resolveAsync("unknown.com", new BaseHostResolver.ResolveCallback() {
+            
+            @Override
+            public void resolved(InetAddress result) {
+                latch.countDown();
+            }
+            
+            @Override
+            public void failed(UnknownHostException e) {
+                exception.set(e);
+                latch.countDown();
+            }
+        });
+        
+        // The slow lookup shouldn't block the caller.
+        assertTrue(System.currentTimeMillis() - startTime < 100);
+        
+        assertTrue(latch.await(1000, TimeUnit.MILLISECONDS));
+        assertEquals("10.0.0.1", address.get().getHostAddress());
+        assertEquals("unknown.com", exception.get().getMessage());
+        
+        // Now it's cached, so the callback happens right away.
+        final AtomicReference<InetAddress> cached = new AtomicReference<InetAddress>();
+        resolver.resolveAsync("slow.com", new BaseHostResolver.ResolveCallback() {
+            
+            @Override
+            public void resolved(InetAddress result) {
+                cached.set(result);
+            }
+            
+            @Override
+            public void failed(UnknownHostException e) {
+                // Leaves the result null
+            }
+        });
+        
+        assertEquals("10.0.0.1", cached.get().getHostAddress());
+        assertEquals(2, resolver.getNumLookups());
+        resolver.shutdown();
+    }
+}
@@ -0,0 +1,168 @@
+package bixo.fetcher;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+
+import org.junit.Test;
+
+import bixo.config.BaseFetchJobPolicy;
+import bixo.fetcher.CrawlDelayController.Adjustment;
+import bixo.utils.GroupingKey;
+
+public class CrawlDelayControllerTest {
+
+    private static final String REF = GroupingKey.makeGroupingKey("10.0.0.1", BaseFetchJobPolicy.UNSET_CRAWL_DELAY);
+
+    @Test
+    public void testNoSamples() {
+        CrawlDelayController controller = new CrawlDelayController();
+
+        assertEquals(Adjustment.NONE, controller.update(REF));
+        assertEquals(10000, controller.getFetchDelay(REF, 10000, 10, 0));
+    }
+
+    @Test
+    public void testBackoffOnErrors() {
+        CrawlDelayController controller = new CrawlDelayController();
+
+        for (int i = 0; i < 5; i++) {
+            controller.record(REF, 100, true);
+        }
+
+        assertEquals(Adjustment.BACKOFF, controller.update(REF));
+        assertEquals(20000, controller.getFetchDelay(REF, 10000, 10, 0));
+
+        // Keeps backing off, up to the max factor.
+        for (int i = 0; i < 10; i++) {
+            controller.record(REF, 100, true);
+            controller.update(REF);
+        }
+
+        assertEquals(CrawlDelayController.DEFAULT_MAX_FACTOR, controller.getFactor(REF), 0.0001);
+        assertEquals(Adjustment.NONE, controller.update(REF));
+    }
+
+    @Test
+    public void testBackoffOnSlowResponses() {
+        CrawlDelayController controller = new CrawlDelayController();
+        controller.setSlowResponseTime(1000);
+
+        controller.record(REF, 2000, false);
+        assertEquals(Adjustment.BACKOFF, controller.update(REF));
+    }
+
+    @Test
+    public void testSpeedupToFloor() {
+        CrawlDelayController controller = new CrawlDelayController();
+
+        for (int i = 0; i < 20; i++) {
+            controller.record(REF, 50, false);
+            controller.update(REF);
+        }
+
+        assertEquals(CrawlDelayController.DEFAULT_MIN_FACTOR, controller.getFactor(REF), 0.0001);
+        assertEquals(2500, controller.getFetchDelay(REF, 10000, 10, 0));
+
+        // Min crawl delay from the fetcher policy is a hard floor.
+        assertEquals(5000, controller.getFetchDelay(REF, 10000, 10, 500));
+    }
+
+    @Test
+    public void testRobotsCrawlDelayIsFloor() {
+        CrawlDelayController controller = new CrawlDelayController();
+        String ref = GroupingKey.makeGroupingKey("10.0.0.2", 800);
+
+        for (int i = 0; i < 20; i++) {
+            controller.record(ref, 50, false);
+            controller.update(ref);
+        }
+
+        assertEquals(8000, controller.getFetchDelay(ref, 10000, 10, 0));
+    }
+
+    @Test
+    public void testStateSharedByServer() {
+        CrawlDelayController controller = new CrawlDelayController();
+        String otherRef = GroupingKey.makeGroupingKey("10.0.0.1", 1000);
+
+        controller.record(REF, 100, true);
+        controller.update(REF);
+        assertEquals(2.0, controller.getFactor(otherRef), 0.0001);
+    }
+
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        CrawlDelayController controller = new CrawlDelayController();
+        String healthyRef = GroupingKey.makeGroupingKey("10.0.0.2", BaseFetchJobPolicy.UNSET_CRAWL_DELAY);
+
+        controller.record(REF, 100, true);
+        controller.update(REF);
+        controller.record(healthyRef, 1000, false);
+        controller.update(healthyRef);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        controller.save(out);
+        out.close();
+
+        CrawlDelayController newController = new CrawlDelayController();
+        newController.load(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+        // Only servers whose factor changed get saved.
+        assertEquals(1, newController.getFactors().size());
+        assertEquals(2.0, newController.getFactor(REF), 0.0001);
+        assertEquals(1.0, newController.getFactor(healthyRef), 0.0001);
+    }
+
+    @Test
+    public void testSaveDefaultFactor() throws Exception {
+        CrawlDelayController controller = new CrawlDelayController();
+        controller.setMinFactor(0.5);
+        
+        // Speed up until we're at the min factor.
+        for (int i = 0; i < 10; i++) {
+            controller.record(REF, 100, false);
+            controller.update(REF);
+        }
+        
+        assertEquals(0.5, controller.getFactor(REF), 0.0001);
+        byte[] firstCrawl = save(controller);
+        
+        // Next crawl, the server gets backed off to the default factor.
+        CrawlDelayController newController = new CrawlDelayController();
+        load(newController, firstCrawl);
+        Thread.sleep(10);
+        newController.record(REF, 100, true);
+        assertEquals(Adjustment.BACKOFF, newController.update(REF));
+        assertEquals(1.0, newController.getFactor(REF), 0.0001);
+        byte[] secondCrawl = save(newController);
+        
+        // The default factor gets saved, and wins over the older one.
+        CrawlDelayController thirdController = new CrawlDelayController();
+        load(thirdController, secondCrawl);
+        load(thirdController, firstCrawl);
+        assertEquals(1, thirdController.getFactors().size());
+        assertEquals(1.0, thirdController.getFactor(REF), 0.0001);
+        
+        // Servers that were loaded, but not changed, aren't saved again.
+        CrawlDelayController fourthController = new CrawlDelayController();
+        load(fourthController, save(thirdController));
+        assertEquals(0, fourthController.getFactors().size());
+    }
+    
+    private static byte[] save(CrawlDelayController controller) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        controller.save(out);
+        out.close();
+        return bytes.toByteArray();
+    }
+    
+    private static void load(CrawlDelayController controller, byte[] bytes) throws Exception {
+        controller.load(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+}
@@ -0,0 +1,62 @@
+package bixo.fetcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import bixo.fetcher.FetchTimings.Phase;
+
+public class FetchTimingsTest {
+
+    @Test
+    public void testAddingTimes() {
+        FetchTimings timings = FetchTimings.get();
+        timings.reset();
+        
+        for (Phase phase : Phase.values()) {
+            assertEquals(FetchTimings.NOT_RECORDED, timings.getTime(phase));
+        }
+        
+        // Times for a phase that happens more than once (e.g. a redirect) get summed.
+        timings.addTime(Phase.DNS, 0);
+        assertEquals(0, timings.getTime(Phase.DNS));
+        timings.addTime(Phase.DNS, 10);
+        timings.addTime(Phase.DNS, 5);
+        assertEquals(15, timings.getTime(Phase.DNS));
+        
+        timings.reset();
+        assertEquals(FetchTimings.NOT_RECORDED, timings.getTime(Phase.DNS));
+    }
+    
+    @Test
+    public void testFirstByte() throws Exception {
+        FetchTimings timings = FetchTimings.get();
+        timings.reset();
+        
+        // Nothing gets recorded without a request being sent.
+        timings.responseReceived();
+        assertEquals(FetchTimings.NOT_RECORDED, timings.getTime(Phase.FIRST_BYTE));
+        
+        timings.requestSent();
+        Thread.sleep(20);
+        timings.responseReceived();
+        assertTrue(timings.getTime(Phase.FIRST_BYTE) >= 10);
+    }
+    
+    @Test
+    public void testHistograms() {
+        FetchTimings timings = FetchTimings.get();
+        timings.reset();
+        timings.addTime(Phase.CONNECT, 30);
+        timings.addTime(Phase.BODY, 100);
+        
+        FetchTimings.Histograms histograms = new FetchTimings.Histograms();
+        histograms.record(timings);
+        
+        assertEquals(0, histograms.getHistogram(Phase.DNS).getCount());
+        assertEquals(1, histograms.getHistogram(Phase.CONNECT).getCount());
+        assertEquals(30, histograms.getHistogram(Phase.CONNECT).getTotalTime());
+        assertEquals(1, histograms.getHistogram(Phase.BODY).getCount());
+    }
+}
@@ -0,0 +1,109 @@
+package bixo.fetcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+import org.mortbay.http.HttpServer;
+
+import bixo.config.FetcherPolicy;
+import bixo.datum.FetchedDatum;
+import bixo.datum.ScoredUrlDatum;
+import bixo.exceptions.AbortedFetchException;
+import bixo.exceptions.AbortedFetchReason;
+import bixo.fetcher.simulation.SimulationWebServer;
+import bixo.utils.ConfigUtils;
+
+public class NioHttpFetcherTest extends SimulationWebServer {
+
+    @Test
+    public final void testSimpleFetch() throws Exception {
+        HttpServer server = startServer(new ResourcesResponseHandler(), 8089);
+        NioHttpFetcher fetcher = new NioHttpFetcher(1, ConfigUtils.BIXO_TEST_AGENT);
+        String url = "http://localhost:8089/simple-page.html";
+
+        try {
+            FetchedDatum result = fetcher.get(new ScoredUrlDatum(url));
+            assertTrue(result.getContentLength() > 0);
+            assertEquals("127.0.0.1", result.getHostAddress());
+        } finally {
+            fetcher.abort();
+            server.stop();
+        }
+    }
+
+    @Test
+    public final void testManyConcurrentFetches() throws Exception {
+        HttpServer server = startServer(new ResourcesResponseHandler(), 8089);
+        NioHttpFetcher fetcher = new NioHttpFetcher(1, ConfigUtils.BIXO_TEST_AGENT);
+
+        try {
+            List<Future<FetchedDatum>> results = new ArrayList<Future<FetchedDatum>>();
+            for (int i = 0; i < 20; i++) {
+                results.add(fetcher.submit(new ScoredUrlDatum("http://localhost:8089/simple-page.html?i=" + i)));
+            }
+
+            for (Future<FetchedDatum> result : results) {
+                assertNotNull(result.get());
+            }
+        } finally {
+            fetcher.abort();
+            server.stop();
+        }
+    }
+
+    @Test
+    public final void testMimeTypeFiltering() throws Exception {
+        FetcherPolicy policy = new FetcherPolicy();
+        Set<String> validMimeTypes = new HashSet<String>();
+        validMimeTypes.add("text/html");
+        policy.setValidMimeTypes(validMimeTypes);
+
+        HttpServer server = startServer(new StringResponseHandler("text/xml", "<xml/>"), 8089);
+        NioHttpFetcher fetcher = new NioHttpFetcher(1, policy, ConfigUtils.BIXO_TEST_AGENT);
+        String url = "http://localhost:8089/";
+
+        try {
+            fetcher.get(new ScoredUrlDatum(url));
+            fail("Fetch should have failed");
+        } catch (AbortedFetchException e) {
+            assertEquals(AbortedFetchReason.INVALID_MIMETYPE, e.getAbortReason());
+        } finally {
+            fetcher.abort();
+            server.stop();
+        }
+    }
+
+    @Test
+    public final void testMaxBandwidth() throws Exception {
+        FetcherPolicy policy = new FetcherPolicy();
+        policy.setMaxBandwidth(100 * 1000);
+
+        HttpServer server = startServer(new RandomResponseHandler(50 * 1000, 10), 8089);
+        NioHttpFetcher fetcher = new NioHttpFetcher(1, policy, ConfigUtils.BIXO_TEST_AGENT);
+        String url = "http://localhost:8089/";
+
+        try {
+            // Limiter's bucket starts out empty, so 50K at 100K/sec takes ~500ms.
+            long startTime = System.currentTimeMillis();
+            FetchedDatum result = fetcher.get(new ScoredUrlDatum(url));
+            long deltaTime = System.currentTimeMillis() - startTime;
+
+            assertEquals(50 * 1000, result.getContentLength());
+            assertTrue("Delta time: " + deltaTime, deltaTime >= 400);
+            assertEquals(50 * 1000L, fetcher.getBandwidthLimiter().getTotalBytes());
+            assertTrue(fetcher.getBandwidthLimiter().getAchievedBytesPerSecond() > 0);
+        } finally {
+            fetcher.abort();
+            server.stop();
+        }
+    }
+}
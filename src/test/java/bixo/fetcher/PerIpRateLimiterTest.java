@@ -0,0 +1,82 @@
+package bixo.fetcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class PerIpRateLimiterTest {
+
+    @Test
+    public void testMaxConnections() {
+        PerIpRateLimiter limiter = new PerIpRateLimiter(2, 0);
+        long now = System.currentTimeMillis();
+
+        assertTrue(limiter.isReady("10.0.0.1", now));
+        limiter.acquire("10.0.0.1", now);
+        assertTrue(limiter.isReady("10.0.0.1", now));
+        limiter.acquire("10.0.0.1", now);
+        assertEquals(PerIpRateLimiter.AT_CAPACITY, limiter.getReadyTime("10.0.0.1"));
+        assertEquals(2, limiter.getNumActive("10.0.0.1"));
+
+        // Other servers aren't affected.
+        assertTrue(limiter.isReady("10.0.0.2", now));
+
+        limiter.release("10.0.0.1");
+        assertTrue(limiter.isReady("10.0.0.1", now));
+        limiter.release("10.0.0.1");
+        assertEquals(0, limiter.getNumActive("10.0.0.1"));
+        assertEquals(0, limiter.getReadyTime("10.0.0.1"));
+    }
+
+    @Test
+    public void testMinRequestGap() {
+        PerIpRateLimiter limiter = new PerIpRateLimiter(10, 1000);
+        long now = System.currentTimeMillis();
+
+        limiter.acquire("10.0.0.1", now);
+        assertEquals(0, limiter.reserveRequest("10.0.0.1", now));
+        assertEquals(now + 1000, limiter.getReadyTime("10.0.0.1"));
+        assertFalse(limiter.isReady("10.0.0.1", now + 999));
+        assertTrue(limiter.isReady("10.0.0.1", now + 1000));
+
+        // Gap still applies after the set is done.
+        limiter.release("10.0.0.1");
+        assertFalse(limiter.isReady("10.0.0.1", now + 500));
+    }
+
+    @Test
+    public void testReserveRequest() {
+        PerIpRateLimiter limiter = new PerIpRateLimiter(3, 1000);
+        long now = System.currentTimeMillis();
+
+        // First request can go right away, even with two sets active.
+        limiter.acquire("10.0.0.1", now);
+        limiter.acquire("10.0.0.1", now);
+        assertEquals(0, limiter.reserveRequest("10.0.0.1", now));
+        
+        // The next one has to wait for the gap, and trying doesn't change that.
+        assertEquals(990, limiter.reserveRequest("10.0.0.1", now + 10));
+        assertEquals(500, limiter.reserveRequest("10.0.0.1", now + 500));
+        assertEquals(now + 1000, limiter.getReadyTime("10.0.0.1"));
+        
+        // The gap is from when the last request was made.
+        assertEquals(0, limiter.reserveRequest("10.0.0.1", now + 1500));
+        assertEquals(1000, limiter.reserveRequest("10.0.0.1", now + 1500));
+
+        // Other servers aren't affected.
+        limiter.acquire("10.0.0.2", now);
+        assertEquals(0, limiter.reserveRequest("10.0.0.2", now));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testReserveRequestWithoutAcquire() {
+        new PerIpRateLimiter(1, 0).reserveRequest("10.0.0.1", System.currentTimeMillis());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testReleaseWithoutAcquire() {
+        new PerIpRateLimiter(1, 0).release("10.0.0.1");
+    }
+}
@@ -124,6 +124,18 @@ public class SimpleHttpFetcherTest extends SimulationWebServer {
         }
     }
 
+    @SuppressWarnings("serial")
+    private class EmptyGzipResponseHandler extends AbstractHttpHandler {
+        
+        @Override
+        public void handle(String pathInContext, String pathParams, HttpRequest request, HttpResponse response) throws HttpException, IOException {
+            response.setStatus(HttpStatus.SC_OK);
+            response.setContentType("text/html");
+            response.setField("Content-Encoding", "gzip");
+            response.setContentLength(0);
+        }
+    }
+
     @Test
     public final void testConnectionTimeout() throws Exception {
         HttpServer server = startServer(new ResourcesResponseHandler(), 8089);
@@ -432,4 +444,17 @@ public class SimpleHttpFetcherTest extends SimulationWebServer {
         assertEquals("127.0.0.1", hostAddress);
     }
     
+    @Test
+    public final void testEmptyGzipContent() throws Exception {
+        HttpServer server = startServer(new EmptyGzipResponseHandler(), 8089);
+        BaseFetcher fetcher = new SimpleHttpFetcher(1, ConfigUtils.BIXO_TEST_AGENT);
+        String url = "http://localhost:8089/";
+        
+        try {
+            FetchedDatum result = fetcher.get(new ScoredUrlDatum(url));
+            assertEquals(0, result.getContentLength());
+        } finally {
+            server.stop();
+        }
+    }
 }
@@ -0,0 +1,196 @@
+package bixo.fetcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import bixo.config.FetcherPolicy;
+import bixo.datum.FetchedDatum;
+import bixo.datum.ScoredUrlDatum;
+import bixo.exceptions.BaseFetchException;
+import bixo.utils.ConfigUtils;
+import bixo.utils.ScheduledExecutor;
+import bixo.utils.ThreadedExecutor;
+import cascading.tuple.Tuple;
+
+import com.bixolabs.cascading.LoggingFlowProcess;
+
+public class SpacedFetchTaskTest {
+
+    private static final String SERVER = "10.0.0.1";
+
+    @SuppressWarnings("serial")
+    private static class TimingFetcher extends BaseFetcher {
+        private List<Long> _startTimes;
+        private long _fetchTime;
+        
+        public TimingFetcher(long fetchTime) {
+            super(1, new FetcherPolicy(), ConfigUtils.BIXO_TEST_AGENT);
+            
+            _startTimes = Collections.synchronizedList(new ArrayList<Long>());
+            _fetchTime = fetchTime;
+        }
+        
+        @Override
+        public FetchedDatum get(ScoredUrlDatum scoredUrl) throws BaseFetchException {
+            _startTimes.add(System.currentTimeMillis());
+            
+            try {
+                Thread.sleep(_fetchTime);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            
+            return new FetchedDatum(scoredUrl);
+        }
+
+        @Override
+        public void abort() {
+            // Do nothing
+        }
+        
+        public List<Long> getStartTimes() {
+            return _startTimes;
+        }
+    }
+    
+    private static class MyFetchMgr implements IFetchMgr {
+        private LoggingFlowProcess _process = new LoggingFlowProcess();
+        private FetchTimings.Histograms _phaseTimes = new FetchTimings.Histograms();
+        private List<Tuple> _results = Collections.synchronizedList(new ArrayList<Tuple>());
+        private Map<String, Long> _finishTimes = Collections.synchronizedMap(new HashMap<String, Long>());
+        
+        // If set, every ref is treated as being on the same server.
+        private PerIpRateLimiter _ipLimiter;
+        
+        @Override
+        public LoggingFlowProcess getProcess() {
+            return _process;
+        }
+
+        @Override
+        public FetchTimings.Histograms getPhaseTimes() {
+            return _phaseTimes;
+        }
+
+        @Override
+        public void collect(Tuple tuple) {
+            _results.add(tuple);
+        }
+
+        @Override
+        public long reserveRequest(String ref) {
+            if (_ipLimiter == null) {
+                return 0;
+            }
+            
+            return _ipLimiter.reserveRequest(SERVER, System.currentTimeMillis());
+        }
+
+        @Override
+        public void fetched(String ref, long responseTime, boolean isServerError) {
+            // Do nothing
+        }
+
+        @Override
+        public void finished(String ref) {
+            _finishTimes.put(ref, System.currentTimeMillis());
+        }
+    }
+    
+    private static List<ScoredUrlDatum> makeUrls(String ref, int numUrls) {
+        List<ScoredUrlDatum> result = new ArrayList<ScoredUrlDatum>();
+        for (int i = 0; i < numUrls; i++) {
+            result.add(new ScoredUrlDatum("http://" + ref + "/page-" + i));
+        }
+        
+        return result;
+    }
+    
+    @Test
+    public void testRequestSpacing() throws Exception {
+        final long crawlDelay = 100;
+        
+        TimingFetcher fetcher = new TimingFetcher(10);
+        MyFetchMgr fetchMgr = new MyFetchMgr();
+        ScheduledExecutor executor = new ScheduledExecutor(new ThreadedExecutor(1, 1000));
+        
+        long startTime = System.currentTimeMillis();
+        executor.execute(new SpacedFetchTask(fetchMgr, fetcher, makeUrls("domain.com", 3), "domain.com", crawlDelay, executor));
+        assertTrue(executor.terminate(1000));
+        
+        assertEquals(3, fetchMgr._results.size());
+        List<Long> startTimes = fetcher.getStartTimes();
+        assertEquals(3, startTimes.size());
+        for (int i = 1; i < startTimes.size(); i++) {
+            assertTrue(startTimes.get(i) - startTimes.get(i - 1) >= crawlDelay);
+        }
+        
+        // Ref shouldn't be released until the crawl delay after the last request.
+        assertTrue(fetchMgr._finishTimes.get("domain.com") - startTime >= 3 * crawlDelay);
+    }
+    
+    @Test
+    public void testThreadReleasedBetweenRequests() throws Exception {
+        final long crawlDelay = 200;
+        final int numDomains = 5;
+        
+        TimingFetcher fetcher = new TimingFetcher(10);
+        MyFetchMgr fetchMgr = new MyFetchMgr();
+        
+        // With one thread, a FetchTask would take 5 * 200 * 2 = 2 seconds
+        // to fetch from all of these domains.
+        ScheduledExecutor executor = new ScheduledExecutor(new ThreadedExecutor(1, 1000));
+        
+        long startTime = System.currentTimeMillis();
+        for (int i = 0; i < numDomains; i++) {
+            String ref = "domain-" + i + ".com";
+            executor.execute(new SpacedFetchTask(fetchMgr, fetcher, makeUrls(ref, 2), ref, crawlDelay, executor));
+        }
+        
+        assertTrue(executor.terminate(1000));
+        assertEquals(numDomains * 2, fetchMgr._results.size());
+        assertEquals(numDomains, fetchMgr._finishTimes.size());
+        assertTrue(System.currentTimeMillis() - startTime < 1000);
+    }
+    
+    @Test
+    public void testMinRequestGapPerIp() throws Exception {
+        final long requestGap = 100;
+        
+        for (boolean spaced : new boolean[] { false, true }) {
+            TimingFetcher fetcher = new TimingFetcher(10);
+            MyFetchMgr fetchMgr = new MyFetchMgr();
+            fetchMgr._ipLimiter = new PerIpRateLimiter(1, requestGap);
+            fetchMgr._ipLimiter.acquire(SERVER, System.currentTimeMillis());
+            ScheduledExecutor executor = new ScheduledExecutor(new ThreadedExecutor(1, 1000));
+            
+            // No crawl delay, so only the per-IP gap spaces out the requests.
+            List<ScoredUrlDatum> urls = makeUrls("domain.com", 3);
+            if (spaced) {
+                executor.execute(new SpacedFetchTask(fetchMgr, fetcher, urls, "domain.com", 0, executor));
+            } else {
+                executor.execute(new FetchTask(fetchMgr, fetcher, urls, "domain.com"));
+            }
+            
+            assertTrue(executor.terminate(1000));
+            
+            assertEquals(3, fetchMgr._results.size());
+            List<Long> startTimes = fetcher.getStartTimes();
+            assertEquals(3, startTimes.size());
+            
+            // The fetcher sees the request a bit after it was reserved, which can vary by
+            // a few milliseconds from one request to the next.
+            for (int i = 1; i < startTimes.size(); i++) {
+                assertTrue(startTimes.get(i) - startTimes.get(i - 1) >= requestGap - 10);
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package bixo.operations;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class FetchSetPartitionerTest {
+
+    @Test
+    public void testLeastLoaded() {
+        FetchSetPartitioner partitioner = new FetchSetPartitioner(3, 0);
+        
+        assertEquals(0, partitioner.assign(1000));
+        assertEquals(1, partitioner.assign(500));
+        assertEquals(2, partitioner.assign(200));
+        
+        // Smallest load is partition 2.
+        assertEquals(2, partitioner.assign(200));
+        assertEquals(2, partitioner.assign(200));
+        assertEquals(1, partitioner.assign(100));
+        
+        partitioner.addCost(1, 1000);
+        assertEquals(1600, partitioner.getLoad(1));
+        assertEquals(2, partitioner.assign(0));
+    }
+    
+    @Test
+    public void testStartsAtTaskNum() {
+        assertEquals(2, new FetchSetPartitioner(4, 2).assign(1000));
+        assertEquals(1, new FetchSetPartitioner(4, 5).assign(1000));
+    }
+    
+    @Test
+    public void testZeroCostRoundRobin() {
+        FetchSetPartitioner partitioner = new FetchSetPartitioner(3, 1);
+        
+        assertEquals(1, partitioner.assign(0));
+        assertEquals(2, partitioner.assign(0));
+        assertEquals(0, partitioner.assign(0));
+        assertEquals(1, partitioner.assign(0));
+    }
+    
+    @Test
+    public void testBalancesMixedCosts() {
+        FetchSetPartitioner partitioner = new FetchSetPartitioner(4, 0);
+        
+        // One big server (e.g. lots of URLs with a long crawl delay), plus lots of small ones.
+        partitioner.assign(40000);
+        for (int i = 0; i < 120; i++) {
+            partitioner.assign(1000);
+        }
+        
+        // Other partitions split up the small servers, instead of one also getting the big one.
+        assertEquals(40000, partitioner.getLoad(0));
+        for (int i = 1; i < 4; i++) {
+            assertEquals(40000, partitioner.getLoad(i), 1000);
+        }
+    }
+}
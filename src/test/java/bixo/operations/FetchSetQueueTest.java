@@ -0,0 +1,168 @@
+package bixo.operations;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Test;
+
+import bixo.datum.FetchSetDatum;
+import bixo.datum.ScoredUrlDatum;
+import bixo.datum.UrlStatus;
+import bixo.fetcher.PerIpRateLimiter;
+import bixo.utils.GroupingKey;
+
+public class FetchSetQueueTest {
+
+    private static FetchSetDatum makeSet(String ref, int index) {
+        List<ScoredUrlDatum> urls = new ArrayList<ScoredUrlDatum>();
+        urls.add(new ScoredUrlDatum("http://" + ref + "/page-" + index, ref, UrlStatus.UNFETCHED, 1.0));
+        return new FetchSetDatum(urls, index, 0, 0, ref);
+    }
+
+    @Test
+    public void testActiveRefDoesntBlockOthers() {
+        Map<String, Long> activeRefs = new ConcurrentHashMap<String, Long>();
+        Map<String, Long> pendingRefs = new ConcurrentHashMap<String, Long>();
+        FetchSetQueue queue = new FetchSetQueue(10, activeRefs, pendingRefs);
+
+        activeRefs.put("a.com", 0L);
+        queue.add(makeSet("a.com", 0));
+        queue.add(makeSet("b.com", 1));
+
+        FetchSetDatum datum = queue.poll(System.currentTimeMillis());
+        assertEquals("b.com", datum.getGroupingRef());
+        assertNull(queue.poll(System.currentTimeMillis()));
+        assertEquals(FetchSetQueue.ACTIVE_REF, queue.getNextReadyTime());
+
+        activeRefs.remove("a.com");
+        queue.release("a.com");
+        datum = queue.poll(System.currentTimeMillis());
+        assertEquals("a.com", datum.getGroupingRef());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void testEarliestReadyFirst() {
+        Map<String, Long> activeRefs = new ConcurrentHashMap<String, Long>();
+        Map<String, Long> pendingRefs = new ConcurrentHashMap<String, Long>();
+        FetchSetQueue queue = new FetchSetQueue(10, activeRefs, pendingRefs);
+
+        pendingRefs.put("a.com", 3000L);
+        pendingRefs.put("b.com", 1000L);
+        pendingRefs.put("c.com", 2000L);
+        queue.add(makeSet("a.com", 0));
+        queue.add(makeSet("b.com", 1));
+        queue.add(makeSet("c.com", 2));
+
+        assertEquals(1000L, queue.getNextReadyTime());
+        assertNull(queue.poll(500L));
+        assertEquals("b.com", queue.poll(5000L).getGroupingRef());
+        assertEquals("c.com", queue.poll(5000L).getGroupingRef());
+        assertEquals("a.com", queue.poll(5000L).getGroupingRef());
+        assertNull(queue.poll(5000L));
+    }
+
+    @Test
+    public void testSetsForSameRefWaitForRelease() {
+        Map<String, Long> activeRefs = new ConcurrentHashMap<String, Long>();
+        Map<String, Long> pendingRefs = new ConcurrentHashMap<String, Long>();
+        FetchSetQueue queue = new FetchSetQueue(10, activeRefs, pendingRefs);
+
+        queue.add(makeSet("a.com", 0));
+        queue.add(makeSet("a.com", 1));
+
+        FetchSetDatum datum = queue.poll(System.currentTimeMillis());
+        assertEquals(0, datum.getFetchTime());
+        activeRefs.put("a.com", 100L);
+
+        // Second set has to wait until the ref is no longer active.
+        assertNull(queue.poll(System.currentTimeMillis()));
+
+        activeRefs.remove("a.com");
+        pendingRefs.put("a.com", 100L);
+        queue.release("a.com");
+        assertNull(queue.poll(50L));
+        assertEquals(1, queue.poll(100L).getFetchTime());
+    }
+
+    @Test
+    public void testRefsForSameServerWaitForRelease() {
+        Map<String, Long> activeRefs = new ConcurrentHashMap<String, Long>();
+        Map<String, Long> pendingRefs = new ConcurrentHashMap<String, Long>();
+        PerIpRateLimiter limiter = new PerIpRateLimiter(1, 0);
+        FetchSetQueue queue = new FetchSetQueue(10, activeRefs, pendingRefs, limiter);
+
+        // Same server, but different crawl delays.
+        String ref1 = GroupingKey.makeGroupingKey("10.0.0.1", 1000);
+        String ref2 = GroupingKey.makeGroupingKey("10.0.0.1", 2000);
+        String otherRef = GroupingKey.makeGroupingKey("10.0.0.2", 1000);
+
+        queue.add(makeSet(ref1, 0));
+        queue.add(makeSet(ref2, 1));
+        queue.add(makeSet(otherRef, 2));
+
+        FetchSetDatum datum = queue.poll(System.currentTimeMillis());
+        assertEquals(ref1, datum.getGroupingRef());
+        activeRefs.put(ref1, 0L);
+        limiter.acquire("10.0.0.1", System.currentTimeMillis());
+
+        // Other ref for the same server is blocked, but a different server isn't.
+        assertEquals(otherRef, queue.poll(System.currentTimeMillis()).getGroupingRef());
+        assertNull(queue.poll(System.currentTimeMillis()));
+
+        activeRefs.remove(ref1);
+        limiter.release("10.0.0.1");
+        queue.release(ref1);
+        assertEquals(ref2, queue.poll(System.currentTimeMillis()).getGroupingRef());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void testOrderBySortKey() {
+        Map<String, Long> activeRefs = new ConcurrentHashMap<String, Long>();
+        Map<String, Long> pendingRefs = new ConcurrentHashMap<String, Long>();
+        FetchSetQueue queue = new FetchSetQueue(10, activeRefs, pendingRefs);
+        queue.setOrderBySortKey(true);
+
+        pendingRefs.put("a.com", 1000L);
+        pendingRefs.put("b.com", 2000L);
+        pendingRefs.put("c.com", 6000L);
+        queue.add(makeSet("a.com", 30));
+        queue.add(makeSet("b.com", 10));
+        queue.add(makeSet("c.com", 0));
+
+        // Lowest sort key of the ready sets, not the one that's been ready longest.
+        assertNull(queue.poll(500L));
+        assertEquals("b.com", queue.poll(5000L).getGroupingRef());
+        assertEquals(0, queue.getNextReadyTime());
+        assertEquals("a.com", queue.poll(5000L).getGroupingRef());
+        assertNull(queue.poll(5000L));
+        assertEquals("c.com", queue.poll(6000L).getGroupingRef());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void testSpillToDisk() {
+        Map<String, Long> activeRefs = new ConcurrentHashMap<String, Long>();
+        Map<String, Long> pendingRefs = new ConcurrentHashMap<String, Long>();
+        FetchSetQueue queue = new FetchSetQueue(2, activeRefs, pendingRefs);
+
+        for (int i = 0; i < 10; i++) {
+            queue.add(makeSet("domain-" + i + ".com", i));
+        }
+
+        assertEquals(10, queue.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i, queue.poll(System.currentTimeMillis()).getFetchTime());
+        }
+
+        assertTrue(queue.isEmpty());
+        assertNull(queue.poll());
+    }
+}
@@ -0,0 +1,88 @@
+package bixo.operations;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.hadoop.mapred.JobConf;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import bixo.config.BaseFetchJobPolicy.PartitioningMode;
+import bixo.config.DefaultFetchJobPolicy;
+import bixo.datum.FetchSetDatum;
+import bixo.datum.ScoredUrlDatum;
+import bixo.datum.UrlStatus;
+import bixo.utils.GroupingKey;
+import cascading.flow.hadoop.HadoopFlowProcess;
+import cascading.operation.BufferCall;
+import cascading.operation.OperationCall;
+import cascading.tuple.Tuple;
+import cascading.tuple.TupleEntry;
+import cascading.tuple.TupleEntryCollector;
+
+import com.bixolabs.cascading.NullContext;
+
+public class MakeFetchSetsBufferTest {
+
+    private static void addUrls(List<TupleEntry> values, String ref, int numUrls) {
+        for (int i = 0; i < numUrls; i++) {
+            String url = String.format("http://%s/page-%d.html", ref, i);
+            values.add(new ScoredUrlDatum(url, ref, UrlStatus.UNFETCHED, 1.0).getTupleEntry());
+        }
+    }
+    
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testSameServerSamePartition() throws Exception {
+        DefaultFetchJobPolicy policy = new DefaultFetchJobPolicy(2, Integer.MAX_VALUE, 1000);
+        policy.setPartitioningMode(PartitioningMode.BALANCED);
+        MakeFetchSetsBuffer op = new MakeFetchSetsBuffer(policy, 4);
+        
+        HadoopFlowProcess fp = Mockito.mock(HadoopFlowProcess.class);
+        Mockito.when(fp.getJobConf()).thenReturn(new JobConf());
+        
+        OperationCall<NullContext> oc = Mockito.mock(OperationCall.class);
+        BufferCall<NullContext> bc = Mockito.mock(BufferCall.class);
+        TupleEntryCollector collector = Mockito.mock(TupleEntryCollector.class);
+        
+        // Two hosts on the same IP address, with different crawl delays.
+        String server = "1.2.3.4";
+        List<TupleEntry> values = new ArrayList<TupleEntry>();
+        addUrls(values, GroupingKey.makeGroupingKey(server, 1000), 5);
+        addUrls(values, GroupingKey.makeGroupingKey(server, 30000), 5);
+        
+        Mockito.when(bc.getGroup()).thenReturn(new TupleEntry(new Tuple(server)));
+        Mockito.when(bc.getArgumentsIterator()).thenReturn(values.iterator());
+        Mockito.when(bc.getOutputCollector()).thenReturn(collector);
+        
+        op.prepare(fp, oc);
+        op.operate(fp, bc);
+        op.cleanup(fp, oc);
+        
+        ArgumentCaptor<Tuple> results = ArgumentCaptor.forClass(Tuple.class);
+        Mockito.verify(collector, Mockito.atLeastOnce()).add(results.capture());
+        
+        Set<String> refs = new HashSet<String>();
+        Set<Integer> partitions = new HashSet<Integer>();
+        int numLastLists = 0;
+        for (Tuple result : results.getAllValues()) {
+            FetchSetDatum datum = new FetchSetDatum(result);
+            refs.add(datum.getGroupingRef());
+            partitions.add(datum.getGroupingKey());
+            if (datum.isLastList()) {
+                numLastLists += 1;
+            }
+        }
+        
+        assertEquals(2, refs.size());
+        assertEquals(1, partitions.size());
+        
+        // Each ref still gets its own last list.
+        assertEquals(2, numLastLists);
+    }
+}
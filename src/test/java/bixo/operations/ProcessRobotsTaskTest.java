@@ -0,0 +1,224 @@
+package bixo.operations;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import bixo.config.BaseFetchJobPolicy;
+import bixo.config.FetcherPolicy;
+import bixo.datum.FetchedDatum;
+import bixo.datum.GroupedUrlDatum;
+import bixo.datum.ScoredUrlDatum;
+import bixo.exceptions.BaseFetchException;
+import bixo.exceptions.IOFetchException;
+import bixo.fetcher.BaseFetcher;
+import bixo.robots.RobotsCache;
+import bixo.robots.SimpleRobotRulesParser;
+import bixo.utils.ConfigUtils;
+import bixo.utils.DiskQueue;
+import bixo.utils.DomainInfo;
+import bixo.utils.GroupingKey;
+import cascading.tuple.Tuple;
+import cascading.tuple.TupleEntryCollector;
+
+import com.bixolabs.cascading.LoggingFlowProcess;
+
+public class ProcessRobotsTaskTest {
+
+    private static final String DOMAIN = DomainInfo.makeTestDomain(1);
+    private static final String PROTOCOL_AND_DOMAIN = "http://" + DOMAIN;
+    
+    // Fetcher for robots.txt that waits to be released, then fails with an I/O error.
+    @SuppressWarnings("serial")
+    private static class BlockingFetcher extends BaseFetcher {
+        private CountDownLatch _latch = new CountDownLatch(1);
+        
+        public BlockingFetcher() {
+            super(1, new FetcherPolicy(), ConfigUtils.BIXO_TEST_AGENT);
+        }
+        
+        @Override
+        public FetchedDatum get(ScoredUrlDatum scoredUrl) throws BaseFetchException {
+            try {
+                _latch.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            
+            throw new IOFetchException(scoredUrl.getUrl(), new IOException("Fake I/O error"));
+        }
+
+        @Override
+        public void abort() {
+            // Do nothing
+        }
+        
+        public void release() {
+            _latch.countDown();
+        }
+    }
+    
+    // Scorer that fails for any URL with "bad" in it.
+    @SuppressWarnings("serial")
+    private static class ThrowingScoreGenerator extends BaseScoreGenerator {
+
+        @Override
+        public double generateScore(String domain, String pld, String url) {
+            if ((url != null) && url.contains("bad")) {
+                throw new RuntimeException("Fake scorer error");
+            }
+            
+            return 1.0;
+        }
+    }
+    
+    private static class ListCollector extends TupleEntryCollector {
+        private List<Tuple> _tuples = Collections.synchronizedList(new ArrayList<Tuple>());
+        
+        @Override
+        protected void collect(Tuple tuple) {
+            _tuples.add(tuple);
+        }
+        
+        public List<ScoredUrlDatum> getDatums() {
+            List<ScoredUrlDatum> result = new ArrayList<ScoredUrlDatum>();
+            synchronized (_tuples) {
+                for (Tuple tuple : _tuples) {
+                    result.add(new ScoredUrlDatum(tuple));
+                }
+            }
+            
+            return result;
+        }
+    }
+    
+    private static GroupedUrlDatum makeUrl(String path) {
+        return new GroupedUrlDatum(PROTOCOL_AND_DOMAIN + path, PROTOCOL_AND_DOMAIN);
+    }
+    
+    @Test
+    public void testUrlsAfterRulesResolved() throws Exception {
+        RobotsCache robotsCache = new RobotsCache("unused");
+        String robotsTxt = "User-agent: *\r\nDisallow: /private\r\n";
+        robotsCache.putRules(PROTOCOL_AND_DOMAIN, new SimpleRobotRulesParser().parseContent(PROTOCOL_AND_DOMAIN + "/robots.txt",
+                        robotsTxt.getBytes(), "text/plain", "testbot"));
+        
+        ListCollector collector = new ListCollector();
+        ProcessRobotsTask task = new ProcessRobotsTask(PROTOCOL_AND_DOMAIN, new FixedScoreGenerator(), new DiskQueue<GroupedUrlDatum>(10),
+                        new BlockingFetcher(), new SimpleRobotRulesParser(), robotsCache, collector, new LoggingFlowProcess());
+        
+        // Queued before the task runs.
+        task.addUrl(makeUrl("/page1.html"));
+        task.addUrl(makeUrl("/private/page1.html"));
+        assertEquals(0, collector.getDatums().size());
+        
+        task.run();
+        assertEquals(2, collector.getDatums().size());
+        
+        // Processed directly, now that the task knows the rules.
+        task.addUrl(makeUrl("/page2.html"));
+        task.addUrl(makeUrl("/private/page2.html"));
+        
+        List<ScoredUrlDatum> datums = collector.getDatums();
+        assertEquals(4, datums.size());
+        
+        int numBlocked = 0;
+        for (ScoredUrlDatum datum : datums) {
+            if (datum.getUrl().contains("/private/")) {
+                assertEquals(GroupingKey.BLOCKED_GROUPING_KEY, datum.getGroupKey());
+                numBlocked += 1;
+            } else {
+                assertEquals(GroupingKey.makeGroupingKey(DOMAIN, BaseFetchJobPolicy.UNSET_CRAWL_DELAY), datum.getGroupKey());
+            }
+        }
+        
+        assertEquals(2, numBlocked);
+    }
+    
+    @Test
+    public void testUrlsWhileRulesPending() throws Exception {
+        BlockingFetcher fetcher = new BlockingFetcher();
+        ListCollector collector = new ListCollector();
+        final ProcessRobotsTask task = new ProcessRobotsTask(PROTOCOL_AND_DOMAIN, new FixedScoreGenerator(), new DiskQueue<GroupedUrlDatum>(10),
+                        fetcher, new SimpleRobotRulesParser(), collector, new LoggingFlowProcess());
+        
+        Thread taskThread = new Thread(task);
+        taskThread.start();
+        
+        // More than fit in memory, so some get spilled to disk.
+        for (int i = 0; i < 50; i++) {
+            task.addUrl(makeUrl("/page-" + i + ".html"));
+        }
+        
+        assertEquals(0, collector.getDatums().size());
+        
+        fetcher.release();
+        for (int i = 50; i < 100; i++) {
+            task.addUrl(makeUrl("/page-" + i + ".html"));
+        }
+        
+        taskThread.join();
+        
+        // Failed robots.txt fetch means we defer all of the URLs.
+        List<ScoredUrlDatum> datums = collector.getDatums();
+        assertEquals(100, datums.size());
+        for (ScoredUrlDatum datum : datums) {
+            assertEquals(GroupingKey.DEFERRED_GROUPING_KEY, datum.getGroupKey());
+        }
+    }
+    
+    @Test
+    public void testScorerException() throws Exception {
+        RobotsCache robotsCache = new RobotsCache("unused");
+        robotsCache.putRules(PROTOCOL_AND_DOMAIN, new SimpleRobotRulesParser().parseContent(PROTOCOL_AND_DOMAIN + "/robots.txt",
+                        new byte[0], "text/plain", "testbot"));
+        
+        ListCollector collector = new ListCollector();
+        LoggingFlowProcess process = new LoggingFlowProcess();
+        ProcessRobotsTask task = new ProcessRobotsTask(PROTOCOL_AND_DOMAIN, new ThrowingScoreGenerator(), new DiskQueue<GroupedUrlDatum>(10),
+                        new BlockingFetcher(), new SimpleRobotRulesParser(), robotsCache, collector, process);
+        
+        // Queued before the task runs, so processed by run()...
+        task.addUrl(makeUrl("/bad1.html"));
+        task.addUrl(makeUrl("/page1.html"));
+        task.run();
+        
+        // ...and after, so processed by addUrl().
+        task.addUrl(makeUrl("/bad2.html"));
+        task.addUrl(makeUrl("/page2.html"));
+        
+        List<ScoredUrlDatum> datums = collector.getDatums();
+        assertEquals(4, datums.size());
+        for (ScoredUrlDatum datum : datums) {
+            if (datum.getUrl().contains("bad")) {
+                assertEquals(GroupingKey.INVALID_URL_GROUPING_KEY, datum.getGroupKey());
+            } else {
+                assertEquals(GroupingKey.makeGroupingKey(DOMAIN, BaseFetchJobPolicy.UNSET_CRAWL_DELAY), datum.getGroupKey());
+            }
+        }
+    }
+    
+    @Test
+    public void testReject() throws Exception {
+        ListCollector collector = new ListCollector();
+        ProcessRobotsTask task = new ProcessRobotsTask(PROTOCOL_AND_DOMAIN, new FixedScoreGenerator(), new DiskQueue<GroupedUrlDatum>(10),
+                        new BlockingFetcher(), new SimpleRobotRulesParser(), collector, new LoggingFlowProcess());
+        
+        task.addUrl(makeUrl("/page1.html"));
+        task.reject();
+        task.addUrl(makeUrl("/page2.html"));
+        
+        List<ScoredUrlDatum> datums = collector.getDatums();
+        assertEquals(2, datums.size());
+        for (ScoredUrlDatum datum : datums) {
+            assertEquals(GroupingKey.DEFERRED_GROUPING_KEY, datum.getGroupKey());
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package bixo.operations;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import cascading.tuple.Tuple;
+import cascading.tuple.TupleEntryCollector;
+
+import com.bixolabs.cascading.LoggingFlowProcess;
+
+public class TupleCollectorQueueTest {
+
+    // Not thread safe, and slow, so if tuples get written by more than one
+    // thread we'll (likely) lose some.
+    private static class SlowCollector extends TupleEntryCollector {
+        private List<Tuple> _tuples = new ArrayList<Tuple>();
+        
+        @Override
+        protected void collect(Tuple tuple) {
+            int size = _tuples.size();
+            Thread.yield();
+            _tuples.add(size, tuple);
+        }
+        
+        public List<Tuple> getTuples() {
+            return _tuples;
+        }
+    }
+    
+    @Test
+    public void testManyProducers() throws Exception {
+        final int numThreads = 20;
+        final int numTuples = 1000;
+        
+        // Use a small queue, so producers have to block.
+        TupleCollectorQueue queue = new TupleCollectorQueue(10, new LoggingFlowProcess());
+        SlowCollector collector = new SlowCollector();
+        final TupleEntryCollector wrapped = queue.wrap(collector);
+        
+        final List<Tuple> added = new ArrayList<Tuple>();
+        for (int i = 0; i < numThreads * numTuples; i++) {
+            added.add(new Tuple(i));
+        }
+        
+        Thread[] threads = new Thread[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            final int offset = i * numTuples;
+            threads[i] = new Thread(new Runnable() {
+                
+                @Override
+                public void run() {
+                    for (int j = 0; j < numTuples; j++) {
+                        wrapped.add(added.get(offset + j));
+                    }
+                }
+            });
+            
+            threads[i].start();
+        }
+        
+        for (Thread t : threads) {
+            t.join();
+        }
+        
+        // Everything queued before close() has to get written.
+        queue.close();
+        assertEquals(0, queue.getQueueDepth());
+        
+        List<Tuple> collected = collector.getTuples();
+        assertEquals(added.size(), collected.size());
+        
+        Set<Tuple> unique = new HashSet<Tuple>();
+        for (Tuple tuple : collected) {
+            assertTrue(unique.add(tuple));
+        }
+    }
+    
+    @Test
+    public void testMultipleCollectors() throws Exception {
+        TupleCollectorQueue queue = new TupleCollectorQueue(100, new LoggingFlowProcess());
+        SlowCollector collector1 = new SlowCollector();
+        SlowCollector collector2 = new SlowCollector();
+        
+        Tuple tuple1 = new Tuple("1");
+        Tuple tuple2 = new Tuple("2");
+        queue.wrap(collector1).add(tuple1);
+        queue.add(collector2, tuple2);
+        queue.close();
+        
+        assertEquals(1, collector1.getTuples().size());
+        assertTrue(collector1.getTuples().get(0) == tuple1);
+        assertEquals(1, collector2.getTuples().size());
+        assertTrue(collector2.getTuples().get(0) == tuple2);
+    }
+    
+    @Test
+    public void testAddAfterClose() throws Exception {
+        TupleCollectorQueue queue = new TupleCollectorQueue(100, new LoggingFlowProcess());
+        SlowCollector collector = new SlowCollector();
+        
+        queue.close();
+        queue.add(collector, new Tuple("lost"));
+        assertEquals(0, collector.getTuples().size());
+        assertEquals(0, queue.getQueueDepth());
+    }
+}
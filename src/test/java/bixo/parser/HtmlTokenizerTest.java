@@ -0,0 +1,123 @@
+package bixo.parser;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+public class HtmlTokenizerTest {
+
+    // Records events as a string, e.g. <a href="x">text</a>
+    private static class TraceHandler extends DefaultHandler {
+        private StringBuilder _trace = new StringBuilder();
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+            _trace.append('<').append(localName);
+            for (int i = 0; i < atts.getLength(); i++) {
+                _trace.append(' ').append(atts.getLocalName(i)).append("=\"").append(atts.getValue(i)).append('"');
+            }
+
+            _trace.append('>');
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) throws SAXException {
+            _trace.append("</").append(localName).append('>');
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) throws SAXException {
+            _trace.append(ch, start, length);
+        }
+
+        public String getTrace() {
+            return _trace.toString();
+        }
+    }
+
+    private static String tokenize(String html) throws SAXException {
+        TraceHandler handler = new TraceHandler();
+        char[] chars = html.toCharArray();
+        new HtmlTokenizer(handler).parse(chars, 0, chars.length);
+        return handler.getTrace();
+    }
+
+    @Test
+    public void testWellFormed() throws Exception {
+        assertEquals("<html><head><title>T</title></head><body><p>Hi</p></body></html>",
+                        tokenize("<!DOCTYPE html><HTML><Head><TITLE>T</TITLE></HEAD>\n<BODY><P>Hi</P></BODY></HTML>"));
+    }
+
+    @Test
+    public void testImpliedStructure() throws Exception {
+        assertEquals("<html><head><meta name=\"robots\" content=\"nofollow\"></meta></head><body>text</body></html>",
+                        tokenize("<meta name=robots content='nofollow'>text"));
+
+        assertEquals("<html><head></head><body></body></html>", tokenize(""));
+    }
+
+    @Test
+    public void testAttributes() throws Exception {
+        assertEquals("<html><head></head><body><a href=\"/x?a=1&b=2\" rel=\"nofollow\" download=\"\">link</a></body></html>",
+                        tokenize("<a HREF=\"/x?a=1&amp;b=2\" rel=nofollow download href='dup'>link</a>"));
+    }
+
+    @Test
+    public void testVoidAndSelfClosingElements() throws Exception {
+        assertEquals("<html><head></head><body><img src=\"a.jpg\"></img><br></br><div></div>after</body></html>",
+                        tokenize("<img src=a.jpg><br/><div/>after</br>"));
+    }
+
+    @Test
+    public void testUnclosedElements() throws Exception {
+        assertEquals("<html><head></head><body><a href=\"1\">one</a><a href=\"2\">two</a></body></html>",
+                        tokenize("<a href=1>one<a href=2>two"));
+
+        assertEquals("<html><head></head><body><div><span>x</span></div>y</body></html>",
+                        tokenize("<div><span>x</div>y</span>"));
+    }
+
+    @Test
+    public void testDiscardedElements() throws Exception {
+        assertEquals("<html><head></head><body>ab</body></html>",
+                        tokenize("<script>if (a < b) { document.write('</p>'); }</SCRIPT>a<style>p {}</style>b<!-- <a href=x> -->"));
+    }
+
+    @Test
+    public void testEntities() throws Exception {
+        assertEquals("<html><head><title>A & B</title></head><body>\u00A9 \u20AC < &bogus; & AB</body></html>",
+                        tokenize("<title>A &amp; B</title>&copy; &euro; &lt &bogus; & &#65;&#x42;"));
+    }
+
+    @Test
+    public void testUnterminatedEntitiesInAttributes() throws Exception {
+        // Legacy entities without a ';' are left alone when followed by '=' (or a letter or digit).
+        assertEquals("<html><head></head><body><a href=\"/p?a=1&copy=2&para=3&not=4&copyx\">x</a></body></html>",
+                        tokenize("<a href=\"/p?a=1&copy=2&para=3&not=4&copyx\">x</a>"));
+        
+        // But they're still decoded when terminated, or at the end of the value.
+        assertEquals("<html><head></head><body><a title=\"\u00A9=2 \u00A9\">x</a></body></html>",
+                        tokenize("<a title=\"&copy;=2 &copy\">x</a>"));
+        
+        // Text isn't an attribute, so the entity gets decoded.
+        assertEquals("<html><head></head><body>\u00A9=2</body></html>", tokenize("&copy=2"));
+    }
+
+    @Test
+    public void testSupplementaryCharacterReferences() throws Exception {
+        assertEquals("<html><head></head><body><a title=\"\uD83D\uDE00\">\uD83D\uDE00 \uD83D\uDE00</a></body></html>",
+                        tokenize("<a title=\"&#128512;\">&#128512; &#x1F600;</a>"));
+        
+        // Past the last code point isn't decoded.
+        assertEquals("<html><head></head><body>&#x110000;</body></html>", tokenize("&#x110000;"));
+    }
+
+    @Test
+    public void testTitleIsText() throws Exception {
+        assertEquals("<html><head><title><b>T</b></title></head><body></body></html>",
+                        tokenize("<title><b>T</b></title>"));
+    }
+}
@@ -0,0 +1,143 @@
+package bixo.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+public class ParseBudgetTest {
+
+    private static final String HTML = "<title>Title</title><p>Some text that's longer than the limit</p>" +
+        "<a href=\"link1\">one</a><a href=\"link2\">two</a><a href=\"link3\">three</a><p>The end</p>";
+
+    // Same order as the parsers use: extractors first, then the budget.
+    private static class BudgetHandler extends DefaultHandler {
+        private BaseContentExtractor _contentExtractor;
+        private BaseLinkExtractor _linkExtractor;
+        private ParseBudget _budget;
+        private int _numElements = 0;
+
+        public BudgetHandler(BaseContentExtractor contentExtractor, BaseLinkExtractor linkExtractor, ParseBudget budget) {
+            _contentExtractor = contentExtractor;
+            _linkExtractor = linkExtractor;
+            _budget = budget;
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+            _numElements += 1;
+            _contentExtractor.startElement(uri, localName, qName, atts);
+            _linkExtractor.startElement(uri, localName, qName, atts);
+            _budget.startElement(uri, localName, qName, atts);
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) throws SAXException {
+            _contentExtractor.endElement(uri, localName, qName);
+            _linkExtractor.endElement(uri, localName, qName);
+            _budget.endElement(uri, localName, qName);
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) throws SAXException {
+            _contentExtractor.characters(ch, start, length);
+            _linkExtractor.characters(ch, start, length);
+            _budget.characters(ch, start, length);
+        }
+
+        public int getNumElements() {
+            return _numElements;
+        }
+    }
+
+    private static void parse(BaseContentExtractor contentExtractor, BaseLinkExtractor linkExtractor,
+                    ParseBudget budget) throws SAXException {
+        contentExtractor.reset();
+        linkExtractor.reset();
+        budget.reset(null);
+
+        BudgetHandler handler = new BudgetHandler(contentExtractor, linkExtractor, budget);
+        char[] chars = HTML.toCharArray();
+        new HtmlTokenizer(handler).parse(chars, 0, chars.length);
+    }
+
+    @Test
+    public void testNoLimits() throws Exception {
+        SimpleContentExtractor contentExtractor = new SimpleContentExtractor();
+        SimpleLinkExtractor linkExtractor = new SimpleLinkExtractor();
+        ParseBudget budget = new ParseBudget(contentExtractor, linkExtractor, Integer.MAX_VALUE);
+        parse(contentExtractor, linkExtractor, budget);
+
+        assertTrue(contentExtractor.getContent().endsWith("The end"));
+        assertEquals(3, linkExtractor.getLinks().length);
+        assertFalse(contentExtractor.isContentLimitReached());
+        assertFalse(linkExtractor.isOutlinkLimitReached());
+        assertFalse(budget.isStopped());
+    }
+
+    @Test
+    public void testContentLimit() throws Exception {
+        SimpleContentExtractor contentExtractor = new SimpleContentExtractor();
+        contentExtractor.setMaxContentChars(10);
+        SimpleLinkExtractor linkExtractor = new SimpleLinkExtractor();
+        ParseBudget budget = new ParseBudget(contentExtractor, linkExtractor, Integer.MAX_VALUE);
+        parse(contentExtractor, linkExtractor, budget);
+
+        // Title, plus the space after it, plus the start of the text.
+        assertEquals("Title Some", contentExtractor.getContent());
+        assertTrue(contentExtractor.isContentLimitReached());
+
+        // Links aren't limited, so we still have to parse the whole thing.
+        assertEquals(3, linkExtractor.getLinks().length);
+        assertFalse(budget.isStopped());
+    }
+
+    @Test
+    public void testOutlinkLimit() throws Exception {
+        SimpleContentExtractor contentExtractor = new SimpleContentExtractor();
+        SimpleLinkExtractor linkExtractor = new SimpleLinkExtractor();
+        linkExtractor.setMaxOutlinks(2);
+        ParseBudget budget = new ParseBudget(contentExtractor, linkExtractor, Integer.MAX_VALUE);
+        parse(contentExtractor, linkExtractor, budget);
+
+        assertEquals(2, linkExtractor.getLinks().length);
+        assertEquals("link2", linkExtractor.getLinks()[1].getToUrl());
+        assertTrue(linkExtractor.isOutlinkLimitReached());
+        assertTrue(contentExtractor.getContent().endsWith("The end"));
+        assertFalse(budget.isStopped());
+
+        // Limits get cleared by reset
+        linkExtractor.reset();
+        assertFalse(linkExtractor.isOutlinkLimitReached());
+    }
+
+    @Test
+    public void testStopWhenAllLimitsReached() throws Exception {
+        SimpleContentExtractor contentExtractor = new SimpleContentExtractor();
+        contentExtractor.setMaxContentChars(10);
+        SimpleLinkExtractor linkExtractor = new SimpleLinkExtractor();
+        linkExtractor.setMaxOutlinks(1);
+        ParseBudget budget = new ParseBudget(contentExtractor, linkExtractor, Integer.MAX_VALUE);
+        budget.reset(null);
+        BudgetHandler handler = new BudgetHandler(contentExtractor, linkExtractor, budget);
+
+        char[] chars = HTML.toCharArray();
+        try {
+            new HtmlTokenizer(handler).parse(chars, 0, chars.length);
+            fail("Parse should have been stopped");
+        } catch (SAXException e) {
+            assertTrue(budget.isStopped());
+        }
+
+        assertEquals("Title Some", contentExtractor.getContent());
+        assertEquals(1, linkExtractor.getLinks().length);
+
+        // html, head, title, body, p, a, a - and we stop at the second <a>
+        assertEquals(7, handler.getNumElements());
+    }
+}
@@ -0,0 +1,173 @@
+package bixo.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Test;
+
+public class ParseExecutorTest {
+
+    private static class ThreadNameCallable implements Callable<String> {
+
+        @Override
+        public String call() throws Exception {
+            return Thread.currentThread().getName();
+        }
+    }
+
+    // Spins until told to stop, ignoring interrupts (like a runaway parse).
+    private static class WedgedCallable implements Callable<String> {
+        private volatile boolean _stop = false;
+
+        @Override
+        public String call() throws Exception {
+            while (!_stop) {
+                Thread.interrupted();
+                Thread.yield();
+            }
+
+            return "done";
+        }
+    }
+
+    @Test
+    public void testWorkersAreReused() throws Exception {
+        ParseExecutor executor = new ParseExecutor(1);
+
+        String threadName = executor.invoke(new ThreadNameCallable(), 1000);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(threadName, executor.invoke(new ThreadNameCallable(), 1000));
+        }
+
+        assertEquals(1, executor.getNumThreads());
+        executor.shutdown();
+    }
+
+    @Test
+    public void testExceptionsArePassedBack() throws Exception {
+        ParseExecutor executor = new ParseExecutor(1);
+
+        try {
+            executor.invoke(new Callable<String>() {
+
+                @Override
+                public String call() throws Exception {
+                    throw new IllegalStateException("bad document");
+                }
+            }, 1000);
+            fail("Should have thrown exception");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+
+        executor.shutdown();
+    }
+
+    @Test
+    public void testTimeoutInterruptsParse() throws Exception {
+        ParseExecutor executor = new ParseExecutor(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+
+        try {
+            executor.invoke(new Callable<String>() {
+
+                @Override
+                public String call() throws Exception {
+                    try {
+                        Thread.sleep(10000);
+                    } catch (InterruptedException e) {
+                        interrupted.countDown();
+                    }
+
+                    return "done";
+                }
+            }, 100);
+            fail("Should have timed out");
+        } catch (TimeoutException e) {
+            // Expected
+        }
+
+        assertTrue(interrupted.await(1000, TimeUnit.MILLISECONDS));
+        assertEquals(1, executor.getNumTimeouts());
+
+        // The interrupted worker finished, so it doesn't stay wedged.
+        Thread.sleep(100);
+        assertEquals(0, executor.getNumWedged());
+        executor.shutdown();
+    }
+
+    @Test
+    public void testWedgedWorkerIsReplaced() throws Exception {
+        ParseExecutor executor = new ParseExecutor(1);
+        WedgedCallable wedged = new WedgedCallable();
+
+        try {
+            executor.invoke(wedged, 100);
+            fail("Should have timed out");
+        } catch (TimeoutException e) {
+            // Expected
+        }
+
+        assertEquals(1, executor.getNumWedged());
+
+        // We can still parse, using a new worker.
+        long startTime = System.currentTimeMillis();
+        executor.invoke(new ThreadNameCallable(), 1000);
+        assertTrue(System.currentTimeMillis() - startTime < 1000);
+        assertEquals(2, executor.getNumThreads());
+
+        // Once the wedged parse finishes, its worker is no longer wedged.
+        wedged._stop = true;
+        Thread.sleep(100);
+        assertEquals(0, executor.getNumWedged());
+        executor.shutdown();
+    }
+
+    @Test
+    public void testSaturation() throws Exception {
+        final ParseExecutor executor = new ParseExecutor(1);
+        final CountDownLatch started = new CountDownLatch(1);
+
+        Thread t = new Thread() {
+
+            @Override
+            public void run() {
+                try {
+                    executor.invoke(new Callable<String>() {
+
+                        @Override
+                        public String call() throws Exception {
+                            started.countDown();
+                            Thread.sleep(200);
+                            return "done";
+                        }
+                    }, 1000);
+                } catch (Exception e) {
+                    // Shows up as a missing result
+                }
+            }
+        };
+
+        t.start();
+        started.await();
+
+        assertEquals("done", executor.invoke(new Callable<String>() {
+
+            @Override
+            public String call() throws Exception {
+                return "done";
+            }
+        }, 1000));
+
+        t.join();
+        assertEquals(1, executor.getNumSaturated());
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,163 @@
+package bixo.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.tika.parser.Parser;
+import org.junit.Test;
+
+import bixo.config.ParserPolicy;
+import bixo.config.ParserPolicy.OutputMode;
+import bixo.datum.ContentBytes;
+import bixo.datum.FetchedDatum;
+import bixo.datum.HttpHeaders;
+import bixo.datum.Outlink;
+import bixo.datum.ParsedDatum;
+import bixo.parser.ParseWindow.ParseResult;
+
+public class ParseWindowTest {
+
+    // Takes <url> milliseconds to parse a document, and fails if the delay is negative.
+    @SuppressWarnings("serial")
+    private static class DelayParser extends BaseParser {
+        private AtomicInteger _numActive = new AtomicInteger();
+        private AtomicInteger _maxActive = new AtomicInteger();
+
+        public DelayParser() {
+            super(new ParserPolicy());
+        }
+
+        @Override
+        public ParsedDatum parse(FetchedDatum fetchedDatum) throws Exception {
+            int numActive = _numActive.incrementAndGet();
+            synchronized (_maxActive) {
+                _maxActive.set(Math.max(_maxActive.get(), numActive));
+            }
+
+            try {
+                long delay = Long.parseLong(fetchedDatum.getBaseUrl());
+                if (delay < 0) {
+                    throw new Exception("Bad document");
+                }
+
+                Thread.sleep(delay);
+                return new ParsedDatum(fetchedDatum.getBaseUrl(), null, "", "en", "", new Outlink[0], null);
+            } finally {
+                _numActive.decrementAndGet();
+            }
+        }
+
+        @Override
+        public Parser getTikaParser() {
+            return null;
+        }
+
+        public int getMaxActive() {
+            return _maxActive.get();
+        }
+    }
+
+    private static FetchedDatum makeDatum(long delay) {
+        String url = "" + delay;
+        return new FetchedDatum(url, url, 0, new HttpHeaders(), new ContentBytes(), "text/html", 0);
+    }
+
+    private static List<String> getUrls(List<ParseResult> results) {
+        List<String> urls = new ArrayList<String>();
+        for (ParseResult result : results) {
+            urls.add(result.getFetchedDatum().getBaseUrl());
+        }
+
+        return urls;
+    }
+
+    @Test
+    public void testOrderedOutput() throws Exception {
+        DelayParser parser = new DelayParser();
+        ParseWindow window = new ParseWindow(parser, 4, 4, OutputMode.ORDERED);
+
+        // Earlier documents are slower, so they'd finish last.
+        List<ParseResult> results = new ArrayList<ParseResult>();
+        List<String> expected = new ArrayList<String>();
+        for (int i = 10; i > 0; i--) {
+            results.addAll(window.add(makeDatum(i * 20)));
+            expected.add("" + (i * 20));
+        }
+
+        results.addAll(window.drain());
+        window.shutdown();
+
+        assertEquals(expected, getUrls(results));
+        assertEquals(0, window.getNumInFlight());
+    }
+
+    @Test
+    public void testUnorderedOutput() throws Exception {
+        DelayParser parser = new DelayParser();
+        ParseWindow window = new ParseWindow(parser, 2, 8, OutputMode.UNORDERED);
+
+        List<ParseResult> results = new ArrayList<ParseResult>();
+        results.addAll(window.add(makeDatum(500)));
+        for (int i = 0; i < 5; i++) {
+            results.addAll(window.add(makeDatum(0)));
+            Thread.sleep(20);
+        }
+
+        results.addAll(window.drain());
+        window.shutdown();
+
+        List<String> urls = getUrls(results);
+        assertEquals(6, urls.size());
+        assertEquals("500", urls.get(urls.size() - 1));
+    }
+
+    @Test
+    public void testWindowLimit() throws Exception {
+        DelayParser parser = new DelayParser();
+        ParseWindow window = new ParseWindow(parser, 3, 5, OutputMode.ORDERED);
+
+        int numResults = 0;
+        for (int i = 0; i < 20; i++) {
+            numResults += window.add(makeDatum(10)).size();
+            assertTrue(window.getNumInFlight() <= 5);
+        }
+
+        numResults += window.drain().size();
+        window.shutdown();
+
+        assertEquals(20, numResults);
+        assertTrue(parser.getMaxActive() <= 3);
+        assertTrue(parser.getMaxActive() > 1);
+    }
+
+    @Test
+    public void testWindowNotSmallerThanThreads() throws Exception {
+        ParseWindow window = new ParseWindow(new DelayParser(), 4, 1, OutputMode.UNORDERED);
+        assertEquals(4, window.getMaxInFlight());
+        window.shutdown();
+    }
+
+    @Test
+    public void testFailedParse() throws Exception {
+        ParseWindow window = new ParseWindow(new DelayParser(), 2, 2, OutputMode.ORDERED);
+        List<ParseResult> results = new ArrayList<ParseResult>();
+        results.addAll(window.add(makeDatum(-1)));
+        results.addAll(window.add(makeDatum(0)));
+        results.addAll(window.drain());
+        window.shutdown();
+
+        assertEquals(2, results.size());
+        assertNull(results.get(0).getParsedDatum());
+        assertNotNull(results.get(0).getException());
+        assertNotNull(results.get(1).getParsedDatum());
+        assertNull(results.get(1).getException());
+        assertFalse(results.get(1).getParseTime() < 0);
+    }
+}
@@ -6,8 +6,16 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import junit.framework.Assert;
 
@@ -23,6 +31,7 @@ import bixo.datum.HttpHeaders;
 import bixo.datum.Outlink;
 import bixo.datum.ParsedDatum;
 import bixo.fetcher.HttpHeaderNames;
+import bixo.utils.DaemonThreadFactory;
 
 
 public class SimpleParserTest {
@@ -472,6 +481,169 @@ public class SimpleParserTest {
         Assert.assertEquals("http://domain.com/song.mid", outlinks[0].getToUrl());
     }
     
+    @Test
+    public void testFastHtmlMatchesTika() throws Exception {
+        String[] files = {
+            "parser-files/all-link-types.html",
+            "parser-files/lang-dc.html",
+            "parser-files/lang-http-equiv.html",
+            "parser-files/meta-nofollow.html",
+            "parser-files/relative-urls.html",
+            "parser-files/simple-content.html"
+        };
+        
+        ParserPolicy policy = new ParserPolicy( ParserPolicy.DEFAULT_MAX_PARSE_DURATION,
+                                                BaseLinkExtractor.ALL_LINK_TAGS,
+                                                BaseLinkExtractor.ALL_LINK_ATTRIBUTE_TYPES);
+        SimpleParser tikaParser = new SimpleParser(policy);
+        tikaParser.setFastHtmlParsing(false);
+        SimpleParser fastParser = new SimpleParser(policy);
+        
+        for (String file : files) {
+            String html = readFromFile(file);
+            String url = "http://domain.com/" + file;
+            String contentType = "text/html; charset=utf-8";
+            HttpHeaders headers = new HttpHeaders();
+            headers.add(HttpHeaderNames.CONTENT_TYPE, contentType);
+            ContentBytes content = new ContentBytes(html.getBytes("utf-8"));
+            FetchedDatum fetchedDatum = new FetchedDatum(url, url, System.currentTimeMillis(), headers, content, contentType, 0);
+            
+            ParsedDatum expected = tikaParser.parse(fetchedDatum);
+            ParsedDatum actual = fastParser.parse(fetchedDatum);
+            
+            Assert.assertEquals(file, expected.getTitle(), actual.getTitle());
+            Assert.assertEquals(file, expected.getLanguage(), actual.getLanguage());
+            compareTermsInStrings(expected.getParsedText().trim(), actual.getParsedText().trim());
+            
+            Outlink[] expectedLinks = expected.getOutlinks();
+            Outlink[] actualLinks = actual.getOutlinks();
+            Assert.assertEquals(file, expectedLinks.length, actualLinks.length);
+            for (int i = 0; i < expectedLinks.length; i++) {
+                Assert.assertEquals(file, expectedLinks[i].getToUrl(), actualLinks[i].getToUrl());
+                Assert.assertEquals(file, expectedLinks[i].getAnchor().trim(), actualLinks[i].getAnchor().trim());
+            }
+        }
+    }
+    
+    @Test
+    public void testFastHtmlBaseUrlAndRel() throws Exception {
+        final String html = "<html><head><title>Title</title><base href=\"http://newdomain.com/dir/\"></head>" +
+            "<body><a href=\"link\" rel=\"nofollow\">link1</a></body></html>";
+        
+        String url = "http://domain.com/base.html";
+        String contentType = "text/html; charset=utf-8";
+        HttpHeaders headers = new HttpHeaders();
+        headers.add(HttpHeaderNames.CONTENT_TYPE, contentType);
+        ContentBytes content = new ContentBytes(html.getBytes("utf-8"));
+        FetchedDatum fetchedDatum = new FetchedDatum(url, url, System.currentTimeMillis(), headers, content, contentType, 0);
+        
+        SimpleParser parser = new SimpleParser();
+        ParsedDatum parsedDatum = parser.parse(fetchedDatum);
+        
+        Outlink[] outlinks = parsedDatum.getOutlinks();
+        Assert.assertEquals(1, outlinks.length);
+        Assert.assertEquals("http://newdomain.com/dir/link", outlinks[0].getToUrl());
+        Assert.assertEquals("link1", outlinks[0].getAnchor());
+        Assert.assertEquals("nofollow", outlinks[0].getRelAttributes());
+        Assert.assertEquals("Title", parsedDatum.getTitle());
+    }
+    
+    @Test
+    public void testParseLimits() throws Exception {
+        final String html = "<html><head><title>Title</title></head><body>" +
+            "<p>Some text that is longer than the limit</p>" +
+            "<a href=\"link1\">link1</a><a href=\"link2\">link2</a><a href=\"link3\">link3</a>" +
+            "</body></html>";
+
+        String url = "http://domain.com/limits.html";
+        String contentType = "text/html; charset=utf-8";
+        HttpHeaders headers = new HttpHeaders();
+        headers.add(HttpHeaderNames.CONTENT_TYPE, contentType);
+        ContentBytes content = new ContentBytes(html.getBytes("utf-8"));
+        FetchedDatum fetchedDatum = new FetchedDatum(url, url, System.currentTimeMillis(), headers, content, contentType, 0);
+
+        ParserPolicy policy = new ParserPolicy();
+        policy.setMaxContentChars(10);
+        policy.setMaxOutlinks(2);
+        policy.setMaxLanguageChars(20);
+
+        for (boolean fastHtmlParsing : new boolean[] { false, true }) {
+            SimpleParser parser = new SimpleParser(policy);
+            parser.setFastHtmlParsing(fastHtmlParsing);
+            ParsedDatum parsedDatum = parser.parse(fetchedDatum);
+
+            Assert.assertTrue(parsedDatum.getParsedText().length() <= 10);
+            Assert.assertEquals(2, parsedDatum.getOutlinks().length);
+
+            Map<ParserCounters, Long> counts = parser.getLimitCounts();
+            Assert.assertEquals(1L, counts.get(ParserCounters.CONTENT_LIMITED).longValue());
+            Assert.assertEquals(1L, counts.get(ParserCounters.OUTLINKS_LIMITED).longValue());
+            Assert.assertEquals(1L, counts.get(ParserCounters.LANGUAGE_LIMITED).longValue());
+            Assert.assertEquals(1L, counts.get(ParserCounters.PARSE_STOPPED).longValue());
+        }
+    }
+
+    @Test
+    public void testConcurrentParses() throws Exception {
+        final int numThreads = 4;
+        final int numDocsPerThread = 50;
+        
+        // One parser shared by all of the threads, the same as in FetchBuffer/ParseWindow.
+        final SimpleParser parser = new SimpleParser();
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads, new DaemonThreadFactory("SimpleParserTest"));
+        
+        try {
+            List<Future<String>> results = new ArrayList<Future<String>>();
+            for (int i = 0; i < numThreads; i++) {
+                final int threadIndex = i;
+                results.add(pool.submit(new Callable<String>() {
+                    
+                    @Override
+                    public String call() throws Exception {
+                        for (int j = 0; j < numDocsPerThread; j++) {
+                            String id = threadIndex + "-" + j;
+                            String html = "<html><head><title>Title " + id + "</title></head><body>" +
+                                "<p>Content " + id + "</p>" +
+                                "<a href=\"link-" + id + "\">anchor " + id + "</a></body></html>";
+                            
+                            String url = "http://domain.com/doc-" + id + ".html";
+                            String contentType = "text/html; charset=utf-8";
+                            HttpHeaders headers = new HttpHeaders();
+                            headers.add(HttpHeaderNames.CONTENT_TYPE, contentType);
+                            ContentBytes content = new ContentBytes(html.getBytes("utf-8"));
+                            FetchedDatum fetchedDatum = new FetchedDatum(url, url, System.currentTimeMillis(), headers, content, contentType, 0);
+                            
+                            ParsedDatum parsedDatum = parser.parse(fetchedDatum);
+                            
+                            if (!("Title " + id).equals(parsedDatum.getTitle())) {
+                                return "Wrong title for " + id + ": " + parsedDatum.getTitle();
+                            }
+                            
+                            if (!parsedDatum.getParsedText().contains("Content " + id)) {
+                                return "Wrong content for " + id + ": " + parsedDatum.getParsedText();
+                            }
+                            
+                            Outlink[] outlinks = parsedDatum.getOutlinks();
+                            if ((outlinks.length != 1)
+                                || !outlinks[0].getToUrl().equals("http://domain.com/link-" + id)
+                                || !outlinks[0].getAnchor().equals("anchor " + id)) {
+                                return "Wrong outlinks for " + id;
+                            }
+                        }
+                        
+                        return null;
+                    }
+                }));
+            }
+            
+            for (Future<String> result : results) {
+                Assert.assertNull(result.get(60, TimeUnit.SECONDS));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
 	private static String readFromFile(String filePath) throws IOException {
 		InputStream is = SimpleParserTest.class.getResourceAsStream("/" + filePath);
 		
@@ -5,6 +5,7 @@ import java.io.OutputStream;
 
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.http.HttpStatus;
+import org.apache.tika.parser.Parser;
 import org.junit.Assert;
 import org.junit.Test;
 import org.mortbay.http.HttpException;
@@ -17,9 +18,12 @@ import com.bixolabs.cascading.Payload;
 import bixo.config.BaseFetchJobPolicy;
 import bixo.config.DefaultFetchJobPolicy;
 import bixo.config.FetcherPolicy;
+import bixo.config.FetcherPolicy.RawContentMode;
 import bixo.config.FetcherPolicy.RedirectMode;
+import bixo.config.ParserPolicy;
 import bixo.datum.FetchedDatum;
 import bixo.datum.HttpHeaders;
+import bixo.datum.ParsedDatum;
 import bixo.datum.ScoredUrlDatum;
 import bixo.datum.StatusDatum;
 import bixo.datum.UrlDatum;
@@ -39,6 +43,8 @@ import bixo.fetcher.simulation.TestWebServer;
 import bixo.operations.BaseGroupGenerator;
 import bixo.operations.BaseScoreGenerator;
 import bixo.operations.FixedScoreGenerator;
+import bixo.parser.BaseParser;
+import bixo.parser.SimpleParser;
 import bixo.robots.BaseRobotsParser;
 import bixo.robots.SimpleRobotRulesParser;
 import bixo.utils.ConfigUtils;
@@ -195,6 +201,145 @@ public class FetchPipeLRTest extends CascadingTestCase {
         Assert.assertEquals(numPages, totalEntries);
     }
     
+    @Test
+    public void testFetchAndParse() throws Exception {
+        final int numPages = 10;
+        final int port = 8089;
+
+        Lfs in = makeInputData("localhost:" + port, numPages, new Payload());
+
+        // Only keep the parse, not the raw content.
+        FetcherPolicy fetcherPolicy = new FetcherPolicy();
+        fetcherPolicy.setRawContentMode(RawContentMode.KEEP_MIME_TYPES);
+
+        ParserPolicy parserPolicy = new ParserPolicy();
+        parserPolicy.setMaxParseThreads(2);
+
+        Pipe pipe = new Pipe("urlSource");
+        BaseScoreGenerator scorer = new FixedScoreGenerator();
+        BaseFetcher fetcher = new SimpleHttpFetcher(1, fetcherPolicy, ConfigUtils.BIXO_TEST_AGENT);
+        FetchPipe fetchPipe = new FetchPipe(pipe, scorer, fetcher, new SimpleParser(parserPolicy), 1);
+
+        String outputPath = "build/test/FetchPipeTest/testFetchAndParse";
+        Tap status = new Lfs(new SequenceFile(StatusDatum.FIELDS), outputPath + "/status", true);
+        Tap content = new Lfs(new SequenceFile(FetchedDatum.FIELDS), outputPath + "/content", true);
+        Tap parse = new Lfs(new SequenceFile(ParsedDatum.FIELDS), outputPath + "/parse", true);
+
+        FlowConnector flowConnector = new FlowConnector();
+        Flow flow = flowConnector.connect(in, FetchPipe.makeSinkMap(status, content, parse), fetchPipe);
+        TestWebServer webServer = null;
+
+        try {
+            webServer = new TestWebServer(new NoRobotsHtmlResponseHandler(), port);
+            flow.complete();
+        } finally {
+            webServer.stop();
+        }
+
+        // Every page was parsed, so we shouldn't have any content.
+        Lfs validate = new Lfs(new SequenceFile(FetchedDatum.FIELDS), outputPath + "/content");
+        TupleEntryIterator tupleEntryIterator = validate.openForRead(new JobConf());
+        Assert.assertFalse(tupleEntryIterator.hasNext());
+        tupleEntryIterator.close();
+
+        validate = new Lfs(new SequenceFile(ParsedDatum.FIELDS), outputPath + "/parse");
+        tupleEntryIterator = validate.openForRead(new JobConf());
+
+        int totalEntries = 0;
+        boolean[] parsedPages = new boolean[numPages];
+        while (tupleEntryIterator.hasNext()) {
+            ParsedDatum datum = new ParsedDatum(tupleEntryIterator.next());
+            totalEntries += 1;
+
+            // Title is the page's path
+            String title = datum.getTitle();
+            Assert.assertTrue(title.startsWith("page-"));
+            int pageId = Integer.parseInt(title.substring("page-".length(), title.indexOf(".html")));
+            Assert.assertFalse(parsedPages[pageId]);
+            parsedPages[pageId] = true;
+        }
+
+        Assert.assertEquals(numPages, totalEntries);
+        tupleEntryIterator.close();
+
+        validate = new Lfs(new SequenceFile(StatusDatum.FIELDS), outputPath + "/status");
+        tupleEntryIterator = validate.openForRead(new JobConf());
+        totalEntries = 0;
+        while (tupleEntryIterator.hasNext()) {
+            StatusDatum sd = new StatusDatum(tupleEntryIterator.next());
+            Assert.assertEquals(UrlStatus.FETCHED, sd.getStatus());
+            totalEntries += 1;
+        }
+
+        Assert.assertEquals(numPages, totalEntries);
+        tupleEntryIterator.close();
+    }
+
+    @Test
+    public void testParseTimeoutKeepsAllDocuments() throws Exception {
+        final int numPages = 10;
+        final int port = 8089;
+
+        Lfs in = makeInputData("localhost:" + port, numPages, new Payload());
+
+        // One parse thread, with room for every document in the queue, and a parser that
+        // takes much longer than the max time we'll wait for parsing to finish. So parsing
+        // is always hard-terminated with documents still queued.
+        ParserPolicy parserPolicy = new ParserPolicy(100);
+        parserPolicy.setMaxParseThreads(1);
+        parserPolicy.setMaxParseWindow(numPages * 2);
+
+        Pipe pipe = new Pipe("urlSource");
+        BaseScoreGenerator scorer = new FixedScoreGenerator();
+        BaseFetcher fetcher = new SimpleHttpFetcher(1, new FetcherPolicy(), ConfigUtils.BIXO_TEST_AGENT);
+        FetchPipe fetchPipe = new FetchPipe(pipe, scorer, fetcher, new SlowParser(parserPolicy), 1);
+
+        String outputPath = "build/test/FetchPipeTest/testParseTimeoutKeepsAllDocuments";
+        Tap status = new Lfs(new SequenceFile(StatusDatum.FIELDS), outputPath + "/status", true);
+        Tap content = new Lfs(new SequenceFile(FetchedDatum.FIELDS), outputPath + "/content", true);
+        Tap parse = new Lfs(new SequenceFile(ParsedDatum.FIELDS), outputPath + "/parse", true);
+
+        FlowConnector flowConnector = new FlowConnector();
+        Flow flow = flowConnector.connect(in, FetchPipe.makeSinkMap(status, content, parse), fetchPipe);
+        TestWebServer webServer = null;
+
+        try {
+            webServer = new TestWebServer(new NoRobotsHtmlResponseHandler(), port);
+            flow.complete();
+        } finally {
+            webServer.stop();
+        }
+
+        // Nothing got parsed, but every document was still output.
+        Lfs validate = new Lfs(new SequenceFile(ParsedDatum.FIELDS), outputPath + "/parse");
+        TupleEntryIterator tupleEntryIterator = validate.openForRead(new JobConf());
+        Assert.assertFalse(tupleEntryIterator.hasNext());
+        tupleEntryIterator.close();
+
+        validate = new Lfs(new SequenceFile(FetchedDatum.FIELDS), outputPath + "/content");
+        tupleEntryIterator = validate.openForRead(new JobConf());
+        int totalEntries = 0;
+        while (tupleEntryIterator.hasNext()) {
+            tupleEntryIterator.next();
+            totalEntries += 1;
+        }
+
+        Assert.assertEquals(numPages, totalEntries);
+        tupleEntryIterator.close();
+
+        validate = new Lfs(new SequenceFile(StatusDatum.FIELDS), outputPath + "/status");
+        tupleEntryIterator = validate.openForRead(new JobConf());
+        totalEntries = 0;
+        while (tupleEntryIterator.hasNext()) {
+            StatusDatum sd = new StatusDatum(tupleEntryIterator.next());
+            Assert.assertEquals(UrlStatus.FETCHED, sd.getStatus());
+            totalEntries += 1;
+        }
+
+        Assert.assertEquals(numPages, totalEntries);
+        tupleEntryIterator.close();
+    }
+
     @Test
     public void testRedirectException() throws Exception {
         // System.setProperty("bixo.root.level", "TRACE");
@@ -676,6 +821,26 @@ public class FetchPipeLRTest extends CascadingTestCase {
         }
     }
     
+    @SuppressWarnings("serial")
+    private static class SlowParser extends BaseParser {
+
+        public SlowParser(ParserPolicy policy) {
+            super(policy);
+        }
+
+        @Override
+        public Parser getTikaParser() {
+            return null;
+        }
+
+        @Override
+        public ParsedDatum parse(FetchedDatum fetchedDatum) throws Exception {
+            // Way longer than the max parse duration, until we get interrupted.
+            Thread.sleep(60 * 1000L);
+            return null;
+        }
+    }
+    
     /***********************************************************************
      * Lots of ugly custom classes to support serializable "mocking" for a
      * particular test case. Mockito mocks aren't serializable,
@@ -100,6 +100,7 @@ public class RobotUtilsTest {
         BaseFetcher fetcher = Mockito.mock(BaseFetcher.class);
         FetchedDatum datum = Mockito.mock(FetchedDatum.class);
         Mockito.when(datum.getContentBytes()).thenReturn(simpleRobotsTxt.getBytes());
+        Mockito.when(datum.getContentLength()).thenReturn(simpleRobotsTxt.getBytes().length);
         Mockito.when(fetcher.get(Mockito.any(ScoredUrlDatum.class))).thenReturn(datum);
         UserAgent userAgent = new UserAgent("testAgent", "crawler@domain.com", "http://www.domain.com");
         Mockito.when(fetcher.getUserAgent()).thenReturn(userAgent);
@@ -0,0 +1,103 @@
+package bixo.robots;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+
+import org.apache.http.HttpStatus;
+import org.junit.Test;
+
+public class RobotsCacheTest {
+    private static final String ROBOTS_TXT = "User-agent: *\r\nDisallow: /private\r\nCrawl-delay: 5\r\n";
+    
+    private static BaseRobotRules makeRules() {
+        SimpleRobotRulesParser parser = new SimpleRobotRulesParser();
+        return parser.parseContent("http://domain.com/robots.txt", ROBOTS_TXT.getBytes(), "text/plain", "testbot");
+    }
+    
+    @Test
+    public void testCachedRules() throws Exception {
+        RobotsCache cache = new RobotsCache("unused");
+        assertNull(cache.getRules("http://domain.com"));
+        
+        cache.putRules("http://domain.com", makeRules());
+        BaseRobotRules rules = cache.getRules("http://domain.com");
+        assertNotNull(rules);
+        assertFalse(rules.isAllowed("http://domain.com/private/page.html"));
+        assertTrue(rules.isAllowed("http://domain.com/public/page.html"));
+        assertEquals(5000, rules.getCrawlDelay());
+    }
+    
+    @Test
+    public void testExpiration() throws Exception {
+        RobotsCache cache = new RobotsCache("unused", 50);
+        cache.putRules("http://domain.com", makeRules());
+        assertNotNull(cache.getRules("http://domain.com"));
+        
+        Thread.sleep(100);
+        assertNull(cache.getRules("http://domain.com"));
+    }
+    
+    @Test
+    public void testFailedFetches() throws Exception {
+        SimpleRobotRulesParser parser = new SimpleRobotRulesParser();
+        RobotsCache cache = new RobotsCache("unused");
+        
+        // Missing robots.txt means everything is allowed, and that's worth remembering.
+        cache.putRules("http://missing.com", parser.failedFetch(HttpStatus.SC_NOT_FOUND));
+        BaseRobotRules rules = cache.getRules("http://missing.com");
+        assertNotNull(rules);
+        assertTrue(rules.isAllowAll());
+        
+        // Server errors defer visits, so we don't want to cache those.
+        BaseRobotRules deferred = parser.failedFetch(HttpStatus.SC_SERVICE_UNAVAILABLE);
+        assertTrue(deferred.isDeferVisits());
+        cache.putRules("http://broken.com", deferred);
+        assertNull(cache.getRules("http://broken.com"));
+    }
+    
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        RobotsCache cache = new RobotsCache("unused");
+        cache.putRules("http://domain1.com", makeRules());
+        cache.putRules("http://domain2.com", new SimpleRobotRulesParser().failedFetch(HttpStatus.SC_FORBIDDEN));
+        
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        cache.save(out);
+        out.close();
+        
+        RobotsCache loadedCache = new RobotsCache("unused");
+        loadedCache.load(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(2, loadedCache.size());
+        
+        BaseRobotRules rules = loadedCache.getRules("http://domain1.com");
+        assertFalse(rules.isAllowed("http://domain1.com/private/page.html"));
+        assertEquals(5000, rules.getCrawlDelay());
+        
+        assertTrue(loadedCache.getRules("http://domain2.com").isAllowAll());
+    }
+    
+    @Test
+    public void testExpiredEntriesNotSaved() throws Exception {
+        RobotsCache cache = new RobotsCache("unused", 50);
+        cache.putRules("http://domain.com", makeRules());
+        Thread.sleep(100);
+        
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        cache.save(out);
+        out.close();
+        
+        RobotsCache loadedCache = new RobotsCache("unused");
+        loadedCache.load(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(0, loadedCache.size());
+    }
+}
@@ -0,0 +1,217 @@
+package bixo.robots;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpStatus;
+import org.junit.Test;
+
+import bixo.config.FetcherPolicy;
+import bixo.datum.FetchedDatum;
+import bixo.datum.HttpHeaders;
+import bixo.datum.ScoredUrlDatum;
+import bixo.exceptions.BaseFetchException;
+import bixo.exceptions.HttpFetchException;
+import bixo.fetcher.BaseFetcher;
+import bixo.robots.RobotsFetchCoordinator.RobotRulesCallback;
+import bixo.utils.ConfigUtils;
+
+public class RobotsFetchCoordinatorTest {
+
+    // Fetcher that takes a while to return a 404 for every robots.txt request, and
+    // tracks how many requests were active at once.
+    @SuppressWarnings("serial")
+    private static class SlowFetcher extends BaseFetcher {
+        private long _fetchTime;
+        private AtomicInteger _numFetches = new AtomicInteger();
+        private AtomicInteger _numActive = new AtomicInteger();
+        private AtomicInteger _maxActive = new AtomicInteger();
+
+        public SlowFetcher(long fetchTime) {
+            super(10, new FetcherPolicy(), ConfigUtils.BIXO_TEST_AGENT);
+
+            _fetchTime = fetchTime;
+        }
+
+        @Override
+        public FetchedDatum get(ScoredUrlDatum scoredUrl) throws BaseFetchException {
+            _numFetches.incrementAndGet();
+            int numActive = _numActive.incrementAndGet();
+            synchronized (_maxActive) {
+                _maxActive.set(Math.max(_maxActive.get(), numActive));
+            }
+
+            try {
+                Thread.sleep(_fetchTime);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                _numActive.decrementAndGet();
+            }
+
+            throw new HttpFetchException(scoredUrl.getUrl(), "Not found", HttpStatus.SC_NOT_FOUND, new HttpHeaders());
+        }
+
+        @Override
+        public void abort() {
+            // Do nothing
+        }
+    }
+
+    // Callback that checks the rules (all robots.txt requests get a 404, so everything
+    // is allowed), and counts down when it's been called.
+    private static class MyCallback implements RobotRulesCallback {
+        private String _robotsUrl;
+        private CountDownLatch _done;
+        private AtomicInteger _numFailures;
+
+        public MyCallback(String robotsUrl, CountDownLatch done, AtomicInteger numFailures) {
+            _robotsUrl = robotsUrl;
+            _done = done;
+            _numFailures = numFailures;
+        }
+
+        @Override
+        public void rulesReady(BaseRobotRules rules) {
+            if (!rules.isAllowed(_robotsUrl.replace("/robots.txt", "/page.html"))) {
+                _numFailures.incrementAndGet();
+            }
+
+            _done.countDown();
+        }
+    }
+
+    private static void runThreads(final RobotsFetchCoordinator coordinator, final String[] robotsUrls, final String hostAddress) throws Exception {
+        List<Thread> threads = new ArrayList<Thread>();
+        final AtomicInteger numFailures = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(robotsUrls.length);
+
+        for (final String robotsUrl : robotsUrls) {
+            Thread t = new Thread() {
+
+                @Override
+                public void run() {
+                    try {
+                        coordinator.getRobotRules(new URL(robotsUrl), hostAddress, new MyCallback(robotsUrl, done, numFailures));
+                    } catch (Exception e) {
+                        numFailures.incrementAndGet();
+                    }
+                }
+            };
+
+            threads.add(t);
+            t.start();
+        }
+
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(0, numFailures.get());
+    }
+
+    @Test
+    public void testLimitPerIp() throws Exception {
+        SlowFetcher fetcher = new SlowFetcher(50);
+        RobotsFetchCoordinator coordinator = new RobotsFetchCoordinator(fetcher, new SimpleRobotRulesParser(), 2);
+
+        String[] robotsUrls = new String[] {
+            "http://www.domain.com/robots.txt",
+            "https://www.domain.com/robots.txt",
+            "http://domain.com/robots.txt",
+            "http://vhost1.com/robots.txt",
+            "http://vhost2.com/robots.txt",
+            "http://vhost3.com/robots.txt",
+        };
+
+        runThreads(coordinator, robotsUrls, "10.0.0.1");
+
+        assertEquals(robotsUrls.length, fetcher._numFetches.get());
+        assertTrue(fetcher._maxActive.get() <= 2);
+    }
+
+    @Test
+    public void testDifferentIpsRunInParallel() throws Exception {
+        final SlowFetcher fetcher = new SlowFetcher(200);
+        final RobotsFetchCoordinator coordinator = new RobotsFetchCoordinator(fetcher, new SimpleRobotRulesParser(), 1);
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 4; i++) {
+            final String robotsUrl = "http://domain-" + i + ".com/robots.txt";
+            final String hostAddress = "10.0.0." + i;
+            Thread t = new Thread() {
+
+                @Override
+                public void run() {
+                    try {
+                        coordinator.getRobotRules(new URL(robotsUrl), hostAddress, new MyCallback(robotsUrl, new CountDownLatch(1), new AtomicInteger()));
+                    } catch (Exception e) {
+                        // Shows up as a missing fetch
+                    }
+                }
+            };
+
+            threads.add(t);
+            t.start();
+        }
+
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        assertEquals(4, fetcher._numFetches.get());
+        assertTrue(fetcher._maxActive.get() > 1);
+    }
+
+    @Test
+    public void testBusyIpDoesntBlockCaller() throws Exception {
+        final SlowFetcher fetcher = new SlowFetcher(200);
+        final RobotsFetchCoordinator coordinator = new RobotsFetchCoordinator(fetcher, new SimpleRobotRulesParser(), 1);
+        final String hostAddress = "10.0.0.1";
+        final CountDownLatch done = new CountDownLatch(3);
+        final AtomicInteger numFailures = new AtomicInteger();
+
+        Thread t = new Thread() {
+
+            @Override
+            public void run() {
+                try {
+                    String robotsUrl = "http://vhost0.com/robots.txt";
+                    coordinator.getRobotRules(new URL(robotsUrl), hostAddress, new MyCallback(robotsUrl, done, numFailures));
+                } catch (Exception e) {
+                    numFailures.incrementAndGet();
+                }
+            }
+        };
+        t.start();
+
+        while (fetcher._numFetches.get() == 0) {
+            Thread.sleep(1);
+        }
+
+        // The IP address is busy, so these get queued up instead of making us wait.
+        long startTime = System.currentTimeMillis();
+        for (int i = 1; i < 3; i++) {
+            String robotsUrl = "http://vhost" + i + ".com/robots.txt";
+            coordinator.getRobotRules(new URL(robotsUrl), hostAddress, new MyCallback(robotsUrl, done, numFailures));
+        }
+
+        long deltaTime = System.currentTimeMillis() - startTime;
+        assertTrue("Delta time: " + deltaTime, deltaTime < 100);
+
+        // The first thread handles the queued requests, one at a time.
+        t.join();
+        assertEquals(0, done.getCount());
+        assertEquals(0, numFailures.get());
+        assertEquals(3, fetcher._numFetches.get());
+        assertEquals(1, fetcher._maxActive.get());
+    }
+}
@@ -37,8 +37,7 @@ public class SimpleRobotRulesParserTest {
         assertTrue(rules.isAllowed("http://www.domain.com/anypage.html"));
     }
     
-    // TODO - reenable this test when wildcards (the '*' in the disallow) are supported.
-    // @Test
+    @Test
     public void testQueryParamInDisallow() throws Exception {
         final String simpleRobotsTxt = "User-agent: *" + CRLF
         + "Disallow: /index.cfm?fuseaction=sitesearch.results*";
@@ -47,6 +46,68 @@ public class SimpleRobotRulesParserTest {
         assertFalse(rules.isAllowed("http://searchservice.domain.com/index.cfm?fuseaction=sitesearch.results&type=People&qry=california&pg=2"));
     }
     
+    @Test
+    public void testWildcards() throws Exception {
+        final String simpleRobotsTxt = "User-agent: *" + CRLF
+        + "Disallow: /*.gif" + CRLF
+        + "Disallow: /private*/data" + CRLF
+        + "Disallow: /*?sessionid=";
+        
+        BaseRobotRules rules = createRobotRules("Any-darn-crawler", simpleRobotsTxt.getBytes());
+        assertFalse(rules.isAllowed("http://www.domain.com/images/logo.gif"));
+        assertFalse(rules.isAllowed("http://www.domain.com/logo.gif?size=large"));
+        assertTrue(rules.isAllowed("http://www.domain.com/logo.png"));
+        assertFalse(rules.isAllowed("http://www.domain.com/private-stuff/data/1.html"));
+        assertTrue(rules.isAllowed("http://www.domain.com/private-stuff/info.html"));
+        assertFalse(rules.isAllowed("http://www.domain.com/page.html?sessionid=1234"));
+        assertTrue(rules.isAllowed("http://www.domain.com/page.html?id=1234"));
+    }
+    
+    @Test
+    public void testEndAnchor() throws Exception {
+        final String simpleRobotsTxt = "User-agent: *" + CRLF
+        + "Disallow: /*.pdf$" + CRLF
+        + "Disallow: /exact$";
+        
+        BaseRobotRules rules = createRobotRules("Any-darn-crawler", simpleRobotsTxt.getBytes());
+        assertFalse(rules.isAllowed("http://www.domain.com/docs/paper.pdf"));
+        assertTrue(rules.isAllowed("http://www.domain.com/docs/paper.pdf.html"));
+        assertFalse(rules.isAllowed("http://www.domain.com/exact"));
+        assertTrue(rules.isAllowed("http://www.domain.com/exact/page.html"));
+    }
+    
+    @Test
+    public void testLongestMatch() throws Exception {
+        // The most specific (longest) rule wins, regardless of order, and
+        // allow wins if the allow & disallow rules are the same length.
+        final String simpleRobotsTxt = "User-agent: *" + CRLF
+        + "Allow: /folder/" + CRLF
+        + "Disallow: /folder/private" + CRLF
+        + "Disallow: /*/archive" + CRLF
+        + "Allow: /folder/archive/public" + CRLF
+        + "Disallow: /page" + CRLF
+        + "Allow: /page";
+        
+        BaseRobotRules rules = createRobotRules("Any-darn-crawler", simpleRobotsTxt.getBytes());
+        assertTrue(rules.isAllowed("http://www.domain.com/folder/index.html"));
+        assertFalse(rules.isAllowed("http://www.domain.com/folder/private/index.html"));
+        assertFalse(rules.isAllowed("http://www.domain.com/folder/archive/index.html"));
+        assertTrue(rules.isAllowed("http://www.domain.com/folder/archive/public/index.html"));
+        assertTrue(rules.isAllowed("http://www.domain.com/page.html"));
+    }
+    
+    @Test
+    public void testUrlsWithoutPaths() throws Exception {
+        final String simpleRobotsTxt = "User-agent: *" + CRLF
+        + "Disallow: /";
+        
+        BaseRobotRules rules = createRobotRules("Any-darn-crawler", simpleRobotsTxt.getBytes());
+        assertFalse(rules.isAllowed("http://www.domain.com"));
+        assertFalse(rules.isAllowed("http://www.domain.com:8080?query=value"));
+        assertFalse(rules.isAllowed("http://www.domain.com#fragment"));
+        assertTrue(rules.isAllowed("http://www.domain.com/robots.txt#fragment"));
+    }
+    
     @Test
     public void testCommentedOutLines() throws MalformedURLException {
         final String simpleRobotsTxt =  "#user-agent: testAgent" + LF
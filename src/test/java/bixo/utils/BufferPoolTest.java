@@ -0,0 +1,101 @@
+package bixo.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class BufferPoolTest {
+
+    @Test
+    public void testSizeClasses() {
+        BufferPool pool = new BufferPool();
+        
+        assertEquals(BufferPool.MIN_BUFFER_SIZE, pool.acquire(1).length);
+        assertEquals(BufferPool.MIN_BUFFER_SIZE, pool.acquire(BufferPool.MIN_BUFFER_SIZE).length);
+        assertEquals(2 * BufferPool.MIN_BUFFER_SIZE, pool.acquire(BufferPool.MIN_BUFFER_SIZE + 1).length);
+        
+        // Anything bigger than the largest class is allocated exactly.
+        assertEquals(BufferPool.MAX_POOLED_BUFFER_SIZE + 1, pool.acquire(BufferPool.MAX_POOLED_BUFFER_SIZE + 1).length);
+    }
+    
+    @Test
+    public void testReuse() {
+        BufferPool pool = new BufferPool();
+        
+        byte[] buffer = pool.acquire(100);
+        assertEquals(buffer.length, pool.getBytesAllocated());
+        assertEquals(0, pool.getBytesReused());
+        
+        pool.release(buffer);
+        assertSame(buffer, pool.acquire(200));
+        assertEquals(buffer.length, pool.getBytesAllocated());
+        assertEquals(buffer.length, pool.getBytesReused());
+        
+        // Buffer is checked out, so we should get a new one.
+        assertNotSame(buffer, pool.acquire(200));
+        
+        // Odd-sized buffers aren't pooled.
+        pool.release(new byte[BufferPool.MIN_BUFFER_SIZE + 1]);
+        assertEquals(2 * BufferPool.MIN_BUFFER_SIZE, pool.acquire(BufferPool.MIN_BUFFER_SIZE + 1).length);
+    }
+    
+    @Test
+    public void testOversizedNotKept() {
+        BufferPool pool = new BufferPool();
+        
+        // The largest class is kept...
+        byte[] buffer = pool.acquire(BufferPool.MAX_POOLED_BUFFER_SIZE);
+        assertEquals(BufferPool.MAX_POOLED_BUFFER_SIZE, buffer.length);
+        pool.release(buffer);
+        assertSame(buffer, pool.acquire(BufferPool.MAX_POOLED_BUFFER_SIZE));
+        
+        // ...but anything bigger isn't, even if it grew from a pooled buffer.
+        byte[] bigBuffer = pool.grow(buffer, buffer.length, 2 * BufferPool.MAX_POOLED_BUFFER_SIZE);
+        assertEquals(2 * BufferPool.MAX_POOLED_BUFFER_SIZE, bigBuffer.length);
+        pool.release(bigBuffer);
+        assertNotSame(bigBuffer, pool.acquire(2 * BufferPool.MAX_POOLED_BUFFER_SIZE));
+        
+        // And the buffer it grew from went back into the pool.
+        assertSame(buffer, pool.acquire(BufferPool.MAX_POOLED_BUFFER_SIZE));
+    }
+    
+    @Test
+    public void testGrow() {
+        BufferPool pool = new BufferPool();
+        
+        byte[] buffer = pool.acquire(10);
+        for (int i = 0; i < 10; i++) {
+            buffer[i] = (byte)i;
+        }
+        
+        byte[] grown = pool.grow(buffer, 10, buffer.length + 1);
+        assertTrue(grown.length > buffer.length);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i, grown[i]);
+        }
+        
+        // Old buffer went back into the pool.
+        assertSame(buffer, pool.acquire(10));
+    }
+    
+    @Test
+    public void testPerThread() throws Exception {
+        final BufferPool[] otherPool = new BufferPool[1];
+        Thread t = new Thread(new Runnable() {
+            
+            @Override
+            public void run() {
+                otherPool[0] = BufferPool.get();
+            }
+        });
+        
+        t.start();
+        t.join();
+        
+        assertSame(BufferPool.get(), BufferPool.get());
+        assertNotSame(BufferPool.get(), otherPool[0]);
+    }
+}
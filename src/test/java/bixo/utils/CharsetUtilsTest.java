@@ -0,0 +1,72 @@
+package bixo.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class CharsetUtilsTest {
+
+    private static String detect(String content, String contentType) throws Exception {
+        byte[] bytes = content.getBytes("ISO-8859-1");
+        return CharsetUtils.detectCharset(bytes, bytes.length, contentType);
+    }
+
+    @Test
+    public void testByteOrderMark() throws Exception {
+        byte[] content = { (byte)0xEF, (byte)0xBB, (byte)0xBF, 'a' };
+        assertEquals("UTF-8", CharsetUtils.detectCharset(content, content.length, "text/html; charset=iso-8859-1"));
+
+        content = new byte[] { (byte)0xFF, (byte)0xFE, 'a', 0 };
+        assertEquals("UTF-16LE", CharsetUtils.detectCharset(content, content.length, null));
+
+        // Only look at the valid bytes.
+        assertNull(CharsetUtils.getBomCharset(content, 1));
+    }
+
+    @Test
+    public void testContentTypeHeader() throws Exception {
+        assertEquals("ISO-8859-1", detect("<meta charset=\"utf-8\">", "text/html; charset=latin1"));
+        assertEquals("UTF-8", detect("<html>", "text/html; charset=\"UTF-8\""));
+
+        // Bogus header charset falls through to the meta tag.
+        assertEquals("UTF-8", detect("<meta charset=\"utf-8\">", "text/html; charset=bogus"));
+    }
+
+    @Test
+    public void testMetaTag() throws Exception {
+        assertEquals("UTF-8", detect("<html><head><META CHARSET=utf-8></head>", "text/html"));
+        assertEquals("Shift_JIS", detect("<meta http-equiv=\"Content-Type\" content=\"text/html; charset=Shift_JIS\">", null));
+
+        // A meta tag we can read as ASCII can't really be UTF-16.
+        assertEquals("UTF-8", detect("<meta charset='utf-16'>", null));
+
+        assertNull(detect("<html><head><title>charset=utf-8</title></head>", "text/html"));
+    }
+
+    @Test
+    public void testMetaTagPastScanLength() throws Exception {
+        StringBuilder content = new StringBuilder("<html><head>");
+        while (content.length() < CharsetUtils.MAX_META_SCAN_LENGTH) {
+            content.append("<!-- padding -->");
+        }
+
+        content.append("<meta charset=\"utf-8\">");
+        assertNull(detect(content.toString(), null));
+    }
+
+    @Test
+    public void testClean() throws Exception {
+        assertEquals("windows-1252", CharsetUtils.clean(" Windows-1252 "));
+        assertEquals("UTF-8", CharsetUtils.clean("'utf8'"));
+        assertNull(CharsetUtils.clean(""));
+        assertNull(CharsetUtils.clean("no such charset"));
+        assertNull(CharsetUtils.clean(null));
+    }
+
+    @Test
+    public void testDecode() throws Exception {
+        byte[] content = "caf\u00E9 and more".getBytes("UTF-8");
+        assertEquals("caf\u00E9", CharsetUtils.decode(content, 5, "UTF-8").toString());
+    }
+}
@@ -1,13 +1,22 @@
 package bixo.utils;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 
 import org.junit.Assert;
 import org.junit.Test;
 
+import bixo.utils.EncodingUtils.ExpandedResult;
+
 
 public class EncodingUtilsTest {
 
+    private static final String EXPECTED_TEXT = "Now is the time for all good men to come to the aid of their country.";
+    
     @Test
     public void testGzip() throws Exception {
         InputStream is = EncodingUtilsTest.class.getResourceAsStream("/compressed.gz");
@@ -17,41 +26,115 @@ public class EncodingUtilsTest {
         System.arraycopy(buffer, 0, compressed, 0, length);
         byte[] uncompressed = EncodingUtils.processGzipEncoded(compressed);
         
-        Assert.assertEquals("Now is the time for all good men to come to the aid of their country.",
-                        new String(uncompressed, "us-ascii"));
+        Assert.assertEquals(EXPECTED_TEXT, new String(uncompressed, "us-ascii"));
     }
     
     @Test
     public void testDeflate() throws Exception {
+        // /compressed.zip was created with:
+        //
+        // perl -MCompress::Zlib -e 'undef $/; print compress(<>)' < compressed.txt > compressed.zip
+        //
+        // so it's in the zlib-wrapped format that RFC 2616 specifies for "deflate".
+        InputStream is = EncodingUtilsTest.class.getResourceAsStream("/compressed.zip");
+        byte[] buffer = new byte[4096];
+        int length = is.read(buffer);
+        byte[] compressed = new byte[length];
+        System.arraycopy(buffer, 0, compressed, 0, length);
+        byte[] uncompressed = EncodingUtils.processDeflateEncoded(compressed);
+        
+        // compressed.txt ends with a newline.
+        Assert.assertEquals(EXPECTED_TEXT, new String(uncompressed, "us-ascii").trim());
+    }
+    
+    @Test
+    public void testRawDeflate() throws Exception {
+        // Some servers send raw deflate data (no zlib header) instead.
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DeflaterOutputStream deflateOut = new DeflaterOutputStream(out, new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+        deflateOut.write(EXPECTED_TEXT.getBytes("us-ascii"));
+        deflateOut.close();
+        
+        byte[] uncompressed = EncodingUtils.processDeflateEncoded(out.toByteArray());
+        Assert.assertEquals(EXPECTED_TEXT, new String(uncompressed, "us-ascii"));
+    }
+    
+    @Test
+    public void testTruncatedGzip() throws Exception {
+        byte[] text = makeText(100000);
+        byte[] compressed = gzip(text);
+        
+        // Cut off the compressed data half way through, and make sure we get back
+        // the start of the text.
+        ExpandedResult result = EncodingUtils.processEncoded(compressed, compressed.length / 2, "gzip", Integer.MAX_VALUE);
+        Assert.assertTrue(result.isTruncated());
+        Assert.assertTrue(result.getLength() > 0);
+        Assert.assertTrue(result.getLength() < text.length);
+        for (int i = 0; i < result.getLength(); i++) {
+            Assert.assertEquals(text[i], result.getExpanded()[i]);
+        }
+    }
+    
+    @Test
+    public void testSizeLimit() throws Exception {
+        byte[] text = makeText(100000);
+        byte[] compressed = gzip(text);
+        
+        ExpandedResult result = EncodingUtils.processEncoded(compressed, compressed.length, "x-gzip", 1000);
+        Assert.assertTrue(result.isTruncated());
+        Assert.assertEquals(1000, result.getLength());
+        
+        result = EncodingUtils.processEncoded(compressed, compressed.length, "x-gzip", text.length);
+        Assert.assertFalse(result.isTruncated());
+        Assert.assertEquals(text.length, result.getLength());
+    }
+    
+    @Test
+    public void testDecodingStream() throws Exception {
+        byte[] text = makeText(10000);
+        InputStream in = EncodingUtils.makeDecodingStream(new ByteArrayInputStream(gzip(text)), "gzip");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[100];
+        int bytesRead;
+        while ((bytesRead = in.read(buffer)) != -1) {
+            out.write(buffer, 0, bytesRead);
+        }
+        
+        Assert.assertArrayEquals(text, out.toByteArray());
         
-// TODO KKr I used the following command to create /compressed.zip:
-//
-// perl -MCompress::Zlib -e 'undef $/; print compress(<>)' < compressed.txt > compressed.zip
-//
-// Using the following command uncompresses it into a file identical to the original compressed.txt:
-//
-// perl -MCompress::Zlib -e 'undef $/; print uncompress(<>)' < compressed.zip > compressed2.txt
-//
-// Unfortunately, this test causes InflaterInputStream.read() to throw: 
-//
-// java.util.zip.ZipException: invalid stored block lengths
-//
-// I've removed deflate from SimpleHttpFetcher.DEFAULT_ACCEPT_ENCODING for now.
-// This shouldn't be much of an issue, though, as nearly all web sites that
-// support deflate will also support gzip. They're motivated to do so, since
-// Explorer screwed up its deflate support by using RFC 1251 instead of RFC 1250.
-// The real blame should go to the HTTP 1.1 standard (RFC 2616), which created
-// confusion by naming it "deflate" instead of "zlib".
-// (see http://www.zlib.net/zlib_faq.html#faq39).
-//
-//        InputStream is = EncodingUtilsTest.class.getResourceAsStream("/compressed.zip");
-//        byte[] buffer = new byte[4096];
-//        int length = is.read(buffer);
-//        byte[] compressed = new byte[length];
-//        System.arraycopy(buffer, 0, compressed, 0, length);
-//        byte[] uncompressed = EncodingUtils.processDeflateEncoded(compressed);
-//        
-//        Assert.assertEquals("Now is the time for all good men to come to the aid of their country.",
-//                        new String(uncompressed, "us-ascii"));
+        // Unknown encodings are passed through.
+        InputStream plain = new ByteArrayInputStream(text);
+        Assert.assertSame(plain, EncodingUtils.makeDecodingStream(plain, null));
+        Assert.assertSame(plain, EncodingUtils.makeDecodingStream(plain, "identity"));
+        Assert.assertFalse(EncodingUtils.isSupportedEncoding("identity"));
+    }
+    
+    @Test
+    public void testEmptyBody() throws Exception {
+        for (String encoding : new String[] { "gzip", "x-gzip", "deflate" }) {
+            InputStream in = EncodingUtils.makeDecodingStream(new ByteArrayInputStream(new byte[0]), encoding);
+            Assert.assertEquals(-1, in.read());
+            
+            ExpandedResult result = EncodingUtils.processEncoded(new byte[0], 0, encoding, 1000);
+            Assert.assertEquals(0, result.getLength());
+            Assert.assertFalse(result.isTruncated());
+        }
+    }
+    
+    private static byte[] makeText(int length) {
+        byte[] result = new byte[length];
+        for (int i = 0; i < length; i++) {
+            result[i] = (byte)('a' + ((i * 7) % 26));
+        }
+        
+        return result;
+    }
+    
+    private static byte[] gzip(byte[] data) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GZIPOutputStream gzipOut = new GZIPOutputStream(out);
+        gzipOut.write(data);
+        gzipOut.close();
+        return out.toByteArray();
     }
 }
@@ -27,6 +27,14 @@ public class GroupingKeyTest {
         assertEquals(30000, GroupingKey.getCrawlDelayFromKey("domain.com-30000"));
     }
     
+    @Test
+    public void testServerFromRef() {
+        assertEquals("10.0.0.1", GroupingKey.getServerFromRef("10.0.0.1-unset"));
+        assertEquals("10.0.0.1", GroupingKey.getServerFromRef("10.0.0.1-30000"));
+        assertEquals("custom-ref", GroupingKey.getServerFromRef("custom-ref"));
+        assertEquals(GroupingKey.DEFERRED_GROUPING_KEY, GroupingKey.getServerFromRef(GroupingKey.DEFERRED_GROUPING_KEY));
+    }
+    
     @Test
     public void testFunkyDomainNames() {
         assertEquals("domain-name.com", GroupingKey.getDomainFromKey("domain-name.com-unset"));
@@ -0,0 +1,59 @@
+package bixo.utils;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBuckets() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(50));
+        
+        histogram.record(0);
+        histogram.record(1);
+        histogram.record(150);
+        histogram.record(100000);
+        
+        assertEquals(4, histogram.getCount());
+        assertEquals(100151, histogram.getTotalTime());
+        
+        assertEquals(1, histogram.getBucketCount(0));
+        assertEquals(1, histogram.getBucketLimit(0));
+        assertEquals(1, histogram.getBucketCount(1));
+        assertEquals(1, histogram.getBucketCount(findBucket(histogram, 200)));
+        
+        int lastBucket = histogram.getNumBuckets() - 1;
+        assertEquals(Long.MAX_VALUE, histogram.getBucketLimit(lastBucket));
+        assertEquals(1, histogram.getBucketCount(lastBucket));
+    }
+    
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 90; i++) {
+            histogram.record(3);
+        }
+        
+        for (int i = 0; i < 10; i++) {
+            histogram.record(700);
+        }
+        
+        assertEquals(5, histogram.getPercentile(50));
+        assertEquals(5, histogram.getPercentile(90));
+        assertEquals(1000, histogram.getPercentile(91));
+        assertEquals(1000, histogram.getPercentile(100));
+    }
+    
+    private static int findBucket(LatencyHistogram histogram, long limit) {
+        for (int i = 0; i < histogram.getNumBuckets(); i++) {
+            if (histogram.getBucketLimit(i) == limit) {
+                return i;
+            }
+        }
+        
+        throw new IllegalArgumentException("No bucket with limit " + limit);
+    }
+}
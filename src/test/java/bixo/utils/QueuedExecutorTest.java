@@ -0,0 +1,102 @@
+package bixo.utils;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+
+public class QueuedExecutorTest {
+
+    private static class SleepTask implements Runnable {
+        private long _duration;
+        
+        public SleepTask(long duration) {
+            _duration = duration;
+        }
+        
+        public void run() {
+            try {
+                Thread.sleep(_duration);
+            } catch (InterruptedException e) {
+                // Terminate the run
+            }
+        }
+    }
+    
+    @Test
+    public void testNoBlockingWhileQueueHasRoom() {
+        final long timeoutInMS = 1000;
+
+        QueuedExecutor executor = new QueuedExecutor(1, 10, timeoutInMS);
+
+        // First task runs, and the next 10 get queued without waiting for the thread.
+        long startTime = System.currentTimeMillis();
+        for (int i = 0; i < 11; i++) {
+            try {
+                executor.execute(new SleepTask(50));
+            } catch (RejectedExecutionException e) {
+                Assert.fail("Execution was rejected");
+            }
+        }
+        
+        Assert.assertTrue(System.currentTimeMillis() - startTime < 50);
+        Assert.assertEquals(10, executor.getQueuedCount());
+    }
+    
+    @Test
+    public void testRejectionWhenQueueFull() {
+        final long timeoutInMS = 4;
+        
+        QueuedExecutor executor = new QueuedExecutor(1, 1, timeoutInMS);
+        
+        try {
+            executor.execute(new SleepTask(timeoutInMS * 10));
+            executor.execute(new SleepTask(timeoutInMS * 10));
+        } catch (RejectedExecutionException e) {
+            Assert.fail("Execution was rejected");
+        }
+        
+        try {
+            // This call should fail, since the thread is busy and the queue is full.
+            executor.execute(new SleepTask(0));
+            Assert.fail("Should have failed");
+        } catch (RejectedExecutionException e) {
+            // Valid
+        }
+    }
+    
+    @Test
+    public void testNormalTermination() throws Exception {
+        final long timeoutInMS = 100;
+
+        QueuedExecutor executor = new QueuedExecutor(1, 10, timeoutInMS);
+        executor.execute(new SleepTask(timeoutInMS / 4));
+        executor.execute(new SleepTask(timeoutInMS / 4));
+        
+        Assert.assertTrue(executor.terminate(timeoutInMS));
+    }
+
+    @Test
+    public void testHardTerminationRunsQueuedTasks() throws Exception {
+        final long timeoutInMS = 50;
+
+        QueuedExecutor executor = new QueuedExecutor(1, 10, timeoutInMS);
+        executor.execute(new SleepTask(timeoutInMS * 10));
+        
+        final AtomicBoolean wasInterrupted = new AtomicBoolean(false);
+        executor.execute(new Runnable() {
+            public void run() {
+                wasInterrupted.set(Thread.currentThread().isInterrupted());
+            }
+        });
+        
+        Assert.assertFalse(executor.terminate(timeoutInMS));
+        
+        // The queued task should have been run, with the interrupted flag set.
+        Assert.assertTrue(wasInterrupted.get());
+        Assert.assertFalse(Thread.currentThread().isInterrupted());
+    }
+}
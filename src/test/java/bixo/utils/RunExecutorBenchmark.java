@@ -0,0 +1,147 @@
+package bixo.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import bixo.config.FetcherPolicy;
+import bixo.config.FetcherPolicy.ExecutorMode;
+import bixo.datum.ScoredUrlDatum;
+import bixo.fetcher.BaseFetcher;
+import bixo.fetcher.FetchTask;
+import bixo.fetcher.FetchTimings;
+import bixo.fetcher.IFetchMgr;
+import bixo.fetcher.simulation.FakeHttpFetcher;
+import cascading.tuple.Tuple;
+
+import com.bixolabs.cascading.LoggingFlowProcess;
+
+/**
+ * Compare the executor modes by running a large number of FetchTasks (against a
+ * FakeHttpFetcher with a fixed response time), and reporting how long the dispatching
+ * thread spent in execute(), and the overall throughput.
+ * 
+ * Usage: RunExecutorBenchmark [num tasks] [max threads] [fetch time in ms]
+ *
+ */
+public class RunExecutorBenchmark {
+
+    private static class BenchmarkFetchMgr implements IFetchMgr {
+        private LoggingFlowProcess _process;
+        private FetchTimings.Histograms _phaseTimes;
+        private CountDownLatch _done;
+        private AtomicInteger _numCollected;
+        
+        public BenchmarkFetchMgr(int numTasks) {
+            _process = new LoggingFlowProcess();
+            _phaseTimes = new FetchTimings.Histograms();
+            _done = new CountDownLatch(numTasks);
+            _numCollected = new AtomicInteger();
+        }
+        
+        @Override
+        public LoggingFlowProcess getProcess() {
+            return _process;
+        }
+
+        @Override
+        public FetchTimings.Histograms getPhaseTimes() {
+            return _phaseTimes;
+        }
+
+        @Override
+        public void collect(Tuple tuple) {
+            _numCollected.incrementAndGet();
+        }
+
+        @Override
+        public long reserveRequest(String ref) {
+            return 0;
+        }
+
+        @Override
+        public void fetched(String ref, long responseTime, boolean isServerError) {
+            // Do nothing
+        }
+
+        @Override
+        public void finished(String ref) {
+            _done.countDown();
+        }
+        
+        public void await() throws InterruptedException {
+            _done.await();
+        }
+        
+        public int getNumCollected() {
+            return _numCollected.get();
+        }
+    }
+    
+    private static void runBenchmark(ExecutorMode mode, int numTasks, int maxThreads, long fetchTime) throws InterruptedException {
+        FetcherPolicy policy = new FetcherPolicy();
+        policy.setExecutorMode(mode);
+        policy.setExecutorQueueDepth(maxThreads);
+        
+        // FakeHttpFetcher uses size & speed to figure out how long to sleep.
+        BaseFetcher fetcher = new FakeHttpFetcher(false, maxThreads, policy);
+        int size = 1000;
+        int speed = (int)((size * 1000L) / fetchTime);
+        
+        BenchmarkFetchMgr fetchMgr = new BenchmarkFetchMgr(numTasks);
+        BaseExecutor executor = BaseExecutor.makeExecutor(policy, maxThreads, policy.getRequestTimeout());
+        
+        long maxDispatchTime = 0;
+        long totalDispatchTime = 0;
+        int numRejected = 0;
+        
+        long startTime = System.nanoTime();
+        for (int i = 0; i < numTasks; i++) {
+            String ref = "domain-" + i + ".com";
+            List<ScoredUrlDatum> urls = new ArrayList<ScoredUrlDatum>();
+            urls.add(new ScoredUrlDatum(String.format("http://%s/?size=%d&speed=%d", ref, size, speed)));
+            
+            long dispatchStart = System.nanoTime();
+            try {
+                executor.execute(new FetchTask(fetchMgr, fetcher, urls, ref));
+            } catch (RejectedExecutionException e) {
+                numRejected += 1;
+                fetchMgr.finished(ref);
+            }
+            
+            long dispatchTime = System.nanoTime() - dispatchStart;
+            totalDispatchTime += dispatchTime;
+            maxDispatchTime = Math.max(maxDispatchTime, dispatchTime);
+        }
+        
+        fetchMgr.await();
+        long elapsedTime = System.nanoTime() - startTime;
+        executor.terminate(policy.getRequestTimeout());
+        
+        System.out.println(String.format("%s (%s): %d tasks in %dms (%.1f tasks/sec), dispatch avg %.3fms, max %.3fms, %d rejected, %d collected",
+                        mode, executor.getClass().getSimpleName(), numTasks, elapsedTime / 1000000L,
+                        (numTasks * 1000000000.0) / elapsedTime, (totalDispatchTime / 1000000.0) / numTasks,
+                        maxDispatchTime / 1000000.0, numRejected, fetchMgr.getNumCollected()));
+    }
+    
+    /**
+     * @param args
+     */
+    public static void main(String[] args) {
+        int numTasks = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        long fetchTime = args.length > 2 ? Long.parseLong(args[2]) : 100;
+        
+        try {
+            for (ExecutorMode mode : ExecutorMode.values()) {
+                runBenchmark(mode, numTasks, maxThreads, fetchTime);
+            }
+        } catch (Throwable t) {
+            System.err.println("Exception running executor benchmark: " + t.getMessage());
+            t.printStackTrace(System.err);
+            System.exit(-1);
+        }
+    }
+}
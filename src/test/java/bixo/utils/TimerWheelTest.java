@@ -0,0 +1,83 @@
+package bixo.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+
+public class TimerWheelTest {
+
+    private static class RecordingTask implements Runnable {
+        private List<Integer> _runOrder;
+        private int _id;
+        private long _earliestTime;
+        private long _runTime;
+        
+        public RecordingTask(List<Integer> runOrder, int id, long delay) {
+            _runOrder = runOrder;
+            _id = id;
+            _earliestTime = System.currentTimeMillis() + delay;
+        }
+        
+        public void run() {
+            _runTime = System.currentTimeMillis();
+            _runOrder.add(_id);
+        }
+    }
+    
+    @Test
+    public void testRunInDeadlineOrder() throws Exception {
+        TimerWheel wheel = new TimerWheel(5, 8);
+        List<Integer> runOrder = Collections.synchronizedList(new ArrayList<Integer>());
+        
+        // Delays are spread out over more than one rotation of the wheel (40ms)
+        RecordingTask[] tasks = {
+            new RecordingTask(runOrder, 0, 100),
+            new RecordingTask(runOrder, 1, 10),
+            new RecordingTask(runOrder, 2, 50),
+        };
+        
+        wheel.schedule(tasks[0], 100);
+        wheel.schedule(tasks[1], 10);
+        wheel.schedule(tasks[2], 50);
+        Assert.assertEquals(3, wheel.size());
+        
+        Thread.sleep(200);
+        
+        Assert.assertEquals(0, wheel.size());
+        Assert.assertEquals(3, runOrder.size());
+        Assert.assertEquals(1, runOrder.get(0).intValue());
+        Assert.assertEquals(2, runOrder.get(1).intValue());
+        Assert.assertEquals(0, runOrder.get(2).intValue());
+        
+        for (RecordingTask task : tasks) {
+            Assert.assertTrue(task._runTime >= task._earliestTime);
+        }
+        
+        wheel.stop();
+    }
+    
+    @Test
+    public void testStop() throws Exception {
+        TimerWheel wheel = new TimerWheel();
+        List<Integer> runOrder = Collections.synchronizedList(new ArrayList<Integer>());
+        
+        wheel.schedule(new RecordingTask(runOrder, 0, 10000), 10000);
+        List<Runnable> remaining = wheel.stop();
+        
+        Assert.assertEquals(1, remaining.size());
+        Assert.assertEquals(0, wheel.size());
+        Assert.assertEquals(0, runOrder.size());
+        
+        try {
+            wheel.schedule(new RecordingTask(runOrder, 1, 0), 0);
+            Assert.fail("Should have failed");
+        } catch (IllegalStateException e) {
+            // Valid
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package bixo.utils;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import bixo.config.FetcherPolicy;
+import bixo.config.FetcherPolicy.ExecutorMode;
+
+
+public class VirtualThreadExecutorTest {
+
+    @Test
+    public void testFallbackWhenNotSupported() {
+        FetcherPolicy policy = new FetcherPolicy();
+        policy.setExecutorMode(ExecutorMode.VIRTUAL);
+        
+        BaseExecutor executor = BaseExecutor.makeExecutor(policy, 1, 10);
+        if (VirtualThreadExecutor.isSupported()) {
+            Assert.assertTrue(executor instanceof VirtualThreadExecutor);
+        } else {
+            Assert.assertTrue(executor instanceof ThreadedExecutor);
+        }
+    }
+    
+    @Test
+    public void testMaxThreads() throws Exception {
+        if (!VirtualThreadExecutor.isSupported()) {
+            return;
+        }
+        
+        final long timeoutInMS = 20;
+        final int numThreads = 100;
+        final CountDownLatch done = new CountDownLatch(1);
+        
+        VirtualThreadExecutor executor = new VirtualThreadExecutor(numThreads, timeoutInMS);
+        for (int i = 0; i < numThreads; i++) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        done.await();
+                    } catch (InterruptedException e) {
+                        // Terminate the run
+                    }
+                }
+            });
+        }
+        
+        Assert.assertEquals(numThreads, executor.getActiveCount());
+        
+        try {
+            executor.execute(new Runnable() {
+                public void run() { }
+            });
+            Assert.fail("Should have failed");
+        } catch (RejectedExecutionException e) {
+            // Valid
+        }
+        
+        done.countDown();
+        Assert.assertTrue(executor.terminate(TimeUnit.SECONDS.toMillis(1)));
+        Assert.assertEquals(0, executor.getActiveCount());
+    }
+}
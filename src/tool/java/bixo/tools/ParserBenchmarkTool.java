@@ -0,0 +1,163 @@
+package bixo.tools;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+
+import bixo.config.ParserPolicy;
+import bixo.datum.ContentBytes;
+import bixo.datum.FetchedDatum;
+import bixo.datum.HttpHeaders;
+import bixo.datum.ParsedDatum;
+import bixo.fetcher.HttpHeaderNames;
+import bixo.parser.SimpleParser;
+
+/**
+ * Compares the speed of parsing HTML with Tika versus our own tokenizer, for a directory
+ * of saved pages (e.g. from a crawl). Each page is parsed once to warm up, and then
+ * <iterations> times with each parser.
+ *
+ * Also reports how many pages got a different number of outlinks or a different title,
+ * as a sanity check that the two parsers agree.
+ */
+public class ParserBenchmarkTool {
+
+    private static final String DEFAULT_CHARSET = "utf-8";
+    private static final int DEFAULT_ITERATIONS = 5;
+
+    private static class Result {
+        private long _time;
+        private List<ParsedDatum> _parses = new ArrayList<ParsedDatum>();
+        private int _numFailed = 0;
+    }
+
+    private static void printUsageAndExit() {
+        System.err.println("Usage: ParserBenchmarkTool <directory of HTML files> [charset (default " + DEFAULT_CHARSET
+                        + ")] [iterations (default " + DEFAULT_ITERATIONS + ")]");
+        System.exit(-1);
+    }
+
+    private static List<FetchedDatum> loadPages(File dir, String charset) throws Exception {
+        List<FetchedDatum> result = new ArrayList<FetchedDatum>();
+        String contentType = "text/html; charset=" + charset;
+
+        File[] files = dir.listFiles();
+        for (File file : files) {
+            if (!file.isFile()) {
+                continue;
+            }
+
+            String url = "http://domain.com/" + file.getName();
+            HttpHeaders headers = new HttpHeaders();
+            headers.add(HttpHeaderNames.CONTENT_TYPE, contentType);
+            ContentBytes content = new ContentBytes(FileUtils.readFileToByteArray(file));
+            result.add(new FetchedDatum(url, url, System.currentTimeMillis(), headers, content, contentType, 0));
+        }
+
+        return result;
+    }
+
+    private static Result run(SimpleParser parser, List<FetchedDatum> pages, int iterations) {
+        Result result = new Result();
+
+        // Warm up, and save the parses for comparison.
+        for (FetchedDatum page : pages) {
+            try {
+                result._parses.add(parser.parse(page));
+            } catch (Exception e) {
+                result._parses.add(null);
+                result._numFailed += 1;
+            }
+        }
+
+        long startTime = System.currentTimeMillis();
+        for (int i = 0; i < iterations; i++) {
+            for (FetchedDatum page : pages) {
+                try {
+                    parser.parse(page);
+                } catch (Exception e) {
+                    // Already counted during warm up.
+                }
+            }
+        }
+
+        result._time = Math.max(1, System.currentTimeMillis() - startTime);
+        return result;
+    }
+
+    private static void report(String name, Result result, int numDocs, long numBytes) {
+        System.out.println(String.format("%s: %dms, %.1f docs/sec, %.2f MB/sec, %d failed", name, result._time,
+                        (numDocs * 1000.0) / result._time, (numBytes * 1000.0) / (result._time * 1024.0 * 1024.0),
+                        result._numFailed));
+    }
+
+    /**
+     * @param args - directory of HTML files, and optionally the charset and number of iterations
+     */
+    public static void main(String[] args) {
+        if ((args.length < 1) || (args.length > 3)) {
+            printUsageAndExit();
+        }
+
+        try {
+            File dir = new File(args[0]);
+            if (!dir.isDirectory()) {
+                System.err.println("Not a directory: " + dir);
+                printUsageAndExit();
+            }
+
+            String charset = args.length > 1 ? args[1] : DEFAULT_CHARSET;
+            int iterations = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_ITERATIONS;
+
+            List<FetchedDatum> pages = loadPages(dir, charset);
+            long numBytes = 0;
+            for (FetchedDatum page : pages) {
+                numBytes += page.getContentLength();
+            }
+
+            int numDocs = pages.size() * iterations;
+            System.out.println(String.format("Parsing %d pages (%d bytes) %d times", pages.size(), numBytes, iterations));
+
+            ParserPolicy policy = new ParserPolicy(ParserPolicy.NO_MAX_PARSE_DURATION);
+            SimpleParser tikaParser = new SimpleParser(policy);
+            tikaParser.setFastHtmlParsing(false);
+            Result tikaResult = run(tikaParser, pages, iterations);
+            report("Tika", tikaResult, numDocs, numBytes * iterations);
+
+            SimpleParser fastParser = new SimpleParser(policy);
+            Result fastResult = run(fastParser, pages, iterations);
+            report("Tokenizer", fastResult, numDocs, numBytes * iterations);
+
+            System.out.println(String.format("Speedup: %.2fx", (double)tikaResult._time / fastResult._time));
+
+            int numDifferentLinks = 0;
+            int numDifferentTitles = 0;
+            for (int i = 0; i < pages.size(); i++) {
+                ParsedDatum tikaParse = tikaResult._parses.get(i);
+                ParsedDatum fastParse = fastResult._parses.get(i);
+                if ((tikaParse == null) || (fastParse == null)) {
+                    continue;
+                }
+
+                if (tikaParse.getOutlinks().length != fastParse.getOutlinks().length) {
+                    numDifferentLinks += 1;
+                }
+
+                String tikaTitle = tikaParse.getTitle() == null ? "" : tikaParse.getTitle();
+                String fastTitle = fastParse.getTitle() == null ? "" : fastParse.getTitle();
+                if (!tikaTitle.equals(fastTitle)) {
+                    numDifferentTitles += 1;
+                }
+            }
+
+            System.out.println(String.format("Pages with different outlink counts: %d, different titles: %d",
+                            numDifferentLinks, numDifferentTitles));
+        } catch (Throwable t) {
+            System.err.println("Exception running benchmark: " + t.getMessage());
+            t.printStackTrace(System.err);
+            System.exit(-1);
+        }
+    }
+}